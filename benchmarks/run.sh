@@ -0,0 +1,16 @@
+#!/bin/sh
+# Builds the application and the benchmarks then runs them, JMH options are passed through (eg a benchmark name regexp).
+# Results are written as json to benchmarks/results/<commit>.json so that runs on different commits can be compared.
+set -e
+cd "$(dirname "$0")/.."
+
+commit=$(git rev-parse --short HEAD)
+if ! git diff --quiet HEAD; then
+  commit="$commit-dirty"
+fi
+
+./mvnw -B -q install -DskipTests
+./mvnw -B -q -f benchmarks/pom.xml package
+
+mkdir -p benchmarks/results
+java -jar benchmarks/target/benchmarks.jar -prof gc -rf json -rff "benchmarks/results/$commit.json" "$@"
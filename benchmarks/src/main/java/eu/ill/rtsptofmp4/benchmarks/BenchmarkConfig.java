@@ -0,0 +1,26 @@
+package eu.ill.rtsptofmp4.benchmarks;
+
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+public class BenchmarkConfig {
+
+    // Implements a configuration mapping interface outside of Quarkus from values keyed by method path, eg publisher.port
+    public static <T> T of(Class<T> type, Map<String, Object> values) {
+        return proxy(type, "", values);
+    }
+
+    private static <T> T proxy(Class<T> type, String prefix, Map<String, Object> values) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            String key = prefix + method.getName();
+            if (values.containsKey(key)) {
+                return values.get(key);
+
+            } else if (method.getReturnType().isInterface()) {
+                return proxy(method.getReturnType(), key + ".", values);
+            }
+
+            throw new IllegalStateException("No benchmark configuration value for " + key);
+        }));
+    }
+}
@@ -0,0 +1,40 @@
+package eu.ill.rtsptofmp4.benchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.IntSupplier;
+
+public class ChunkSizes {
+
+    // Splits a stream of the given length into chunks following the distribution: fixed-<size> or uniform-<min>-<max>
+    public static int[] split(String distribution, int length) {
+        String[] parameters = distribution.split("-");
+        IntSupplier sizes;
+        if (parameters[0].equals("fixed") && parameters.length == 2) {
+            int size = Integer.parseInt(parameters[1]);
+            sizes = () -> size;
+
+        } else if (parameters[0].equals("uniform") && parameters.length == 3) {
+            // Seeded so that every run reads the same chunks
+            Random random = new Random(0);
+            int min = Integer.parseInt(parameters[1]);
+            int max = Integer.parseInt(parameters[2]);
+            sizes = () -> min + random.nextInt(max - min + 1);
+
+        } else {
+            throw new IllegalArgumentException("Unknown chunk size distribution " + distribution);
+        }
+
+        int[] chunkLengths = new int[length];
+        int chunkCount = 0;
+        for (int position = 0; position < length; position += chunkLengths[chunkCount++]) {
+            chunkLengths[chunkCount] = Math.min(sizes.getAsInt(), length - position);
+        }
+
+        return Arrays.copyOf(chunkLengths, chunkCount);
+    }
+
+    public static int max(int[] chunkLengths) {
+        return Arrays.stream(chunkLengths).max().orElse(0);
+    }
+}
@@ -0,0 +1,51 @@
+package eu.ill.rtsptofmp4.benchmarks;
+
+import eu.ill.rtsptofmp4.business.mp4frag.BufferPool;
+import eu.ill.rtsptofmp4.business.mp4frag.MP4Frag;
+import eu.ill.rtsptofmp4.business.mp4frag.StreamBuffer;
+import eu.ill.rtsptofmp4.models.exceptions.MP4FragException;
+import eu.ill.rtsptofmp4.models.exceptions.StreamingException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Parsing of the initialization segment up to the mime type and codec string, as done once per stream
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecParseBenchmark {
+
+    @Param({FMP4Capture.AVC, FMP4Capture.HEVC})
+    public String codec;
+
+    private byte[] initSegment;
+    private BufferPool bufferPool;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.initSegment = FMP4Capture.initSegment(this.codec);
+        this.bufferPool = new BufferPool(0, false);
+    }
+
+    @Benchmark
+    public String parseInitSegment() throws MP4FragException, StreamingException {
+        MP4Frag mp4Frag = new MP4Frag(segment -> {}, this.bufferPool);
+        mp4Frag.parseChunk(new StreamBuffer(this.initSegment));
+
+        return mp4Frag.getMime(0);
+    }
+}
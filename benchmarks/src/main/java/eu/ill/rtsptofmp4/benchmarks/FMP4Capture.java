@@ -0,0 +1,160 @@
+package eu.ill.rtsptofmp4.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+
+public class FMP4Capture {
+
+    public static final String SYNTHETIC_VIDEO = "synthetic-video";
+    public static final String SYNTHETIC_AUDIO = "synthetic-audio";
+    public static final String AVC = "avc";
+    public static final String HEVC = "hevc";
+
+    // Every capture holds exactly this many fragments so that benchmarks can report per fragment figures
+    public static final int FRAGMENTS = 1000;
+
+    private static final String FTYP_BASE64 = "AAAAHGZ0eXBpc281AAACAGlzbzVpc282bXA0MQ==";
+    private static final String AVC_MOOV_BASE64 = "AAADJW1vb3YAAABsbXZoZAAAAAAAAAAAAAAAAAAAA+gAAAAAAAEAAAEAAAAAAAAAAAAAAAABAAAAAAAAAAAAAAAAAAAAAQAAAAAAAAAAAAAAAAAAQAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAIAAAIJdHJhawAAAFx0a2hkAAAAAwAAAAAAAAAAAAAAAQAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAABAAAAAAAAAAAAAAAAAAAAAQAAAAAAAAAAAAAAAAAAQAAAAAPAAAACHAAAAAABpW1kaWEAAAAgbWRoZAAAAAAAAAAAAAAAAAABX5AAAAAAVcQAAAAAAC1oZGxyAAAAAAAAAAB2aWRlAAAAAAAAAAAAAAAAVmlkZW9IYW5kbGVyAAAAAVBtaW5mAAAAFHZtaGQAAAABAAAAAAAAAAAAAAAkZGluZgAAABxkcmVmAAAAAAAAAAEAAAAMdXJsIAAAAAEAAAEQc3RibAAAAMRzdHNkAAAAAAAAAAEAAAC0YXZjMQAAAAAAAAABAAAAAAAAAAAAAAAAAAAAAAPAAhwASAAAAEgAAAAAAAAAAQAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAABj//wAAADthdmNDAWQAH//hAB5nZAAfrNlA8BF+8BagICAoAAADAAgAAAMBgHjBjLABAAZo6+C0siz9+PgAAAAAE2NvbHJuY2x4AAEAAQABAAAAABBwYXNwAAAAAQAAAAEAAAAQc3R0cwAAAAAAAAAAAAAAEHN0c2MAAAAAAAAAAAAAABRzdHN6AAAAAAAAAAAAAAAAAAAAEHN0Y28AAAAAAAAAAAAAAChtdmV4AAAAIHRyZXgAAAAAAAAAAQAAAAEAAAAAAAAAAAAAAAAAAACAdWR0YQAAAHhtZXRhAAAAAAAAACFoZGxyAAAAAAAAAABtZGlyYXBwbAAAAAAAAAAAAAAAAEtpbHN0AAAAHqluYW0AAAAWZGF0YQAAAAEAAAAAU3RyZWFtAAAAJal0b28AAAAdZGF0YQAAAAEAAAAATGF2ZjU5LjE2LjEwMA==";
+
+    private static final String HEVC_AAC_MOOV_BASE64 = "AAAFRW1vb3YAAABsbXZoZAAAAAAAAAAAAAAAAAAAA+gAAAAAAAEAAAEAAAAAAAAAAAAAAAABAAAAAAAAAAAAAAAAAAAAAQAAAAAAAAAAAAAAAAAAQAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAIAAAJKdHJhawAAAFx0a2hkAAAAAwAAAAAAAAAAAAAAAQAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAABAAAAAAAAAAAAAAAAAAAAAQAAAAAAAAAAAAAAAAAAQAAAAAPAAAACHAAAAAAB5m1kaWEAAAAgbWRoZAAAAAAAAAAAAAAAAAABX5AAAAAAVcQAAAAAAC1oZGxyAAAAAAAAAAB2aWRlAAAAAAAAAAAAAAAAVmlkZW9IYW5kbGVyAAAAAZFtaW5mAAAAFHZtaGQAAAABAAAAAAAAAAAAAAAkZGluZgAAABxkcmVmAAAAAAAAAAEAAAAMdXJsIAAAAAEAAAFRc3RibAAAAQVzdHNkAAAAAAAAAAEAAAD1aGV2MQAAAAAAAAABAAAAAAAAAAAAAAAAAAAAAAPAAhwASAAAAEgAAAAAAAAAAQAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAABj//wAAAHxodmNDAQFgAAAAkAAAAAAAWvAA/P34+AAADwMgAAEAGEABDAH//wFgAAADAJAAAAMAAAMAWpWYCSEAAQAvQgEBAWAAAAMAkAAAAwAAAwBaoAeCAIh95ZWaSTK8BagICA8IAAADAAgAAAMAwEAiAAEAB0QBwXK0YkAAAAATY29scm5jbHgAAQABAAEAAAAAEHBhc3AAAAABAAAAAQAAABBzdHRzAAAAAAAAAAAAAAAQc3RzYwAAAAAAAAAAAAAAFHN0c3oAAAAAAAAAAAAAAAAAAAAQc3RjbwAAAAAAAAAAAAABv3RyYWsAAABcdGtoZAAAAAMAAAAAAAAAAAAAAAIAAAAAAAAAAAAAAAAAAAAAAAAAAQEAAAAAAQAAAAAAAAAAAAAAAAAAAAEAAAAAAAAAAAAAAAAAAEAAAAAAAAAAAAAAAAAAAVttZGlhAAAAIG1kaGQAAAAAAAAAAAAAAAAAALuAAAAAAFXEAAAAAAAtaGRscgAAAAAAAAAAc291bgAAAAAAAAAAAAAAAFNvdW5kSGFuZGxlcgAAAAEGbWluZgAAABBzbWhkAAAAAAAAAAAAAAAkZGluZgAAABxkcmVmAAAAAAAAAAEAAAAMdXJsIAAAAAEAAADKc3RibAAAAH5zdHNkAAAAAAAAAAEAAABubXA0YQAAAAAAAAABAAAAAAAAAAAAAgAQAAAAALuAAAAAAAA2ZXNkcwAAAAADgICAJQACAASAgIAXQBUAAAAAAfQAAAH0AAWAgIAFEZBW5QAGgICAAQIAAAAUYnRydAAAAAAAAfQAAAH0AAAAABBzdHRzAAAAAAAAAAAAAAAQc3RzYwAAAAAAAAAAAAAAFHN0c3oAAAAAAAAAAAAAAAAAAAAQc3RjbwAAAAAAAAAAAAAASG12ZXgAAAAgdHJleAAAAAAAAAABAAAAAQAAAAAAAAAAAAAAAAAAACB0cmV4AAAAAAAAAAIAAAABAAAAAAAAAAAAAAAAAAAAgHVkdGEAAAB4bWV0YQAAAAAAAAAhaGRscgAAAAAAAAAAbWRpcmFwcGwAAAAAAAAAAAAAAABLaWxzdAAAAB6pbmFtAAAAFmRhdGEAAAABAAAAAFN0cmVhbQAAACWpdG9vAAAAHWRhdGEAAAABAAAAAExhdmY1OS4xNi4xMDA=";
+
+    private static final int MOOF_TYPE = 0x6d6f6f66; // moof
+    private static final int MDAT_TYPE = 0x6d646174; // mdat
+    private static final int SAMPLE_FLAGS_KEYFRAME = 0x02000000;
+    private static final int SAMPLE_FLAGS_DELTA = 0x01010000;
+
+    private final byte[] initSegment;
+    private final byte[] fragments;
+
+    private FMP4Capture(byte[] initSegment, byte[] fragments) {
+        this.initSegment = initSegment;
+        this.fragments = fragments;
+    }
+
+    public byte[] getInitSegment() {
+        return initSegment;
+    }
+
+    public byte[] getFragments() {
+        return fragments;
+    }
+
+    // Either one of the synthetic captures or the path of an fMP4 file recorded from ffmpeg
+    public static FMP4Capture load(String capture) throws IOException {
+        switch (capture) {
+            case SYNTHETIC_VIDEO:
+                // 25 fps, a keyframe every 2 seconds
+                return synthetic(3600, 50, 60000, 6000);
+            case SYNTHETIC_AUDIO:
+                // aac sized frames, a single read holds hundreds of them
+                return synthetic(1024, 1, 370, 370);
+            default:
+                return recorded(Path.of(capture));
+        }
+    }
+
+    // ftyp and moov of an avc video stream or of a hevc video and aac audio stream
+    public static byte[] initSegment(String codec) {
+        byte[] ftyp = Base64.getDecoder().decode(FTYP_BASE64);
+        byte[] moov = Base64.getDecoder().decode(codec.equals(HEVC) ? HEVC_AAC_MOOV_BASE64 : AVC_MOOV_BASE64);
+
+        return ByteBuffer.allocate(ftyp.length + moov.length).put(ftyp).put(moov).array();
+    }
+
+    private static FMP4Capture synthetic(int sampleDuration, int gopLength, int keyframeSize, int deltaSize) {
+        byte[] initSegment = initSegment(AVC);
+
+        Random random = new Random(0);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        for (int i = 0; i < FRAGMENTS; i++) {
+            boolean keyframe = i % gopLength == 0;
+            int size = keyframe ? keyframeSize : deltaSize;
+            byte[] payload = new byte[size / 2 + random.nextInt(size)];
+            random.nextBytes(payload);
+
+            outputStream.writeBytes(fragment(i + 1, (long) i * sampleDuration, keyframe, sampleDuration, payload));
+        }
+
+        return new FMP4Capture(initSegment, outputStream.toByteArray());
+    }
+
+    private static FMP4Capture recorded(Path path) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(path));
+
+        // Everything before the first moof is the initialization segment, boxes other than moof/mdat are dropped
+        int initSegmentLength = -1;
+        List<ByteBuffer> fragments = new ArrayList<>();
+        while (data.remaining() >= 8) {
+            int position = data.position();
+            int size = data.getInt(position);
+            int type = data.getInt(position + 4);
+            if (size < 8 || size > data.remaining()) {
+                break;
+            }
+
+            if (type == MOOF_TYPE) {
+                if (initSegmentLength == -1) {
+                    initSegmentLength = position;
+                }
+                int mdatPosition = position + size;
+                if (data.limit() < mdatPosition + 8 || data.getInt(mdatPosition + 4) != MDAT_TYPE) {
+                    break;
+                }
+                size += data.getInt(mdatPosition);
+                if (data.limit() < position + size) {
+                    break;
+                }
+                fragments.add(data.duplicate().position(position).limit(position + size).slice());
+            }
+            data.position(position + size);
+        }
+
+        if (fragments.isEmpty()) {
+            throw new IOException("No fragments found in " + path);
+        }
+
+        // Short recordings are repeated to make up the fragment count
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        for (int i = 0; i < FRAGMENTS; i++) {
+            ByteBuffer fragment = fragments.get(i % fragments.size()).duplicate();
+            byte[] bytes = new byte[fragment.remaining()];
+            fragment.get(bytes);
+            outputStream.writeBytes(bytes);
+        }
+
+        byte[] initSegment = new byte[initSegmentLength];
+        data.get(0, initSegment);
+
+        return new FMP4Capture(initSegment, outputStream.toByteArray());
+    }
+
+    // moof + mdat pair as written by ffmpeg with +frag_every_frame+default_base_moof
+    static byte[] fragment(int sequenceNumber, long baseMediaDecodeTime, boolean keyframe, int sampleDuration, byte[] payload) {
+        int mfhdSize = 16;
+        int tfhdSize = 24;
+        int tfdtSize = 20;
+        int trunSize = 28;
+        int trafSize = 8 + tfhdSize + tfdtSize + trunSize;
+        int moofSize = 8 + mfhdSize + trafSize;
+        int mdatSize = 8 + payload.length;
+
+        ByteBuffer buffer = ByteBuffer.allocate(moofSize + mdatSize);
+        buffer.putInt(moofSize).put("moof".getBytes());
+        buffer.putInt(mfhdSize).put("mfhd".getBytes()).putInt(0).putInt(sequenceNumber);
+        buffer.putInt(trafSize).put("traf".getBytes());
+        buffer.putInt(tfhdSize).put("tfhd".getBytes()).putInt(0x020028).putInt(1).putInt(sampleDuration).putInt(SAMPLE_FLAGS_DELTA);
+        buffer.putInt(tfdtSize).put("tfdt".getBytes()).putInt(0x01000000).putLong(baseMediaDecodeTime);
+        buffer.putInt(trunSize).put("trun".getBytes()).putInt(0x000205).putInt(1).putInt(moofSize + 8)
+                .putInt(keyframe ? SAMPLE_FLAGS_KEYFRAME : SAMPLE_FLAGS_DELTA).putInt(payload.length);
+        buffer.putInt(mdatSize).put("mdat".getBytes()).put(payload);
+
+        return buffer.array();
+    }
+}
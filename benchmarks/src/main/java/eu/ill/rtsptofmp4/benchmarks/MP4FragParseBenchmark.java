@@ -0,0 +1,94 @@
+package eu.ill.rtsptofmp4.benchmarks;
+
+import eu.ill.rtsptofmp4.business.mp4frag.BufferPool;
+import eu.ill.rtsptofmp4.business.mp4frag.MP4Frag;
+import eu.ill.rtsptofmp4.business.mp4frag.StreamBuffer;
+import eu.ill.rtsptofmp4.models.exceptions.MP4FragException;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Run with -prof gc: one operation is one fragment so gc.alloc.rate.norm is the number of bytes allocated per fragment
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MP4FragParseBenchmark {
+
+    // A synthetic capture or the path of a recorded one, eg -p capture=/tmp/camera.mp4
+    @Param({FMP4Capture.SYNTHETIC_VIDEO, FMP4Capture.SYNTHETIC_AUDIO})
+    public String capture;
+
+    // Sizes of the reads from the ffmpeg pipe: fixed-<size> or uniform-<min>-<max>
+    @Param({"fixed-188", "fixed-1500", "fixed-16384", "fixed-65536", "uniform-1-65536"})
+    public String chunkSizes;
+
+    private byte[] fragments;
+    private int[] chunkLengths;
+    private byte[] readBuffer;
+    private StreamBuffer chunk;
+    private MP4Frag mp4Frag;
+    private int segmentCount;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Throughput {
+        // Reported per second
+        public double megabytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, MP4FragException {
+        FMP4Capture fmp4Capture = FMP4Capture.load(this.capture);
+        this.fragments = fmp4Capture.getFragments();
+        this.chunkLengths = ChunkSizes.split(this.chunkSizes, this.fragments.length);
+        this.readBuffer = new byte[ChunkSizes.max(this.chunkLengths)];
+        this.chunk = new StreamBuffer(this.readBuffer);
+
+        BufferPool bufferPool = new BufferPool(64 * 1024 * 1024, false);
+        this.mp4Frag = new MP4Frag(segment -> {
+            this.segmentCount++;
+            segment.release();
+        }, bufferPool);
+
+        // The initialization segment is parsed once, the benchmark only covers the fragments that follow it
+        this.mp4Frag.parseChunk(new StreamBuffer(fmp4Capture.getInitSegment()));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FMP4Capture.FRAGMENTS)
+    public int parseChunks(Throughput throughput) throws MP4FragException {
+        this.segmentCount = 0;
+
+        // Copying into the read buffer stands in for the read from the ffmpeg pipe
+        int position = 0;
+        for (int length : this.chunkLengths) {
+            System.arraycopy(this.fragments, position, this.readBuffer, 0, length);
+            this.mp4Frag.parseChunk(this.chunk.reset(0, length));
+            position += length;
+        }
+
+        throughput.megabytes += this.fragments.length / (1024.0 * 1024.0);
+
+        if (this.segmentCount != FMP4Capture.FRAGMENTS) {
+            throw new IllegalStateException("Parsed " + this.segmentCount + " segments from " + FMP4Capture.FRAGMENTS + " fragments");
+        }
+        return this.segmentCount;
+    }
+}
@@ -0,0 +1,147 @@
+package eu.ill.rtsptofmp4.benchmarks;
+
+import eu.ill.rtsptofmp4.business.streaming.MpscRing;
+import eu.ill.rtsptofmp4.business.streaming.WaitStrategy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.TimeUnit;
+
+// Producer threads, one per stream, hand messages to the single publisher thread. Each invocation sends a batch of
+// MESSAGES split between the producers and waits for the consumer to receive all of them: the throughput is per message
+// and the sample time percentiles show the tail of a batch under contention.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MpscRingBenchmark {
+
+    private static final int MESSAGES = 128 * 256;
+
+    @Param({"1", "8", "32", "128"})
+    public int producers;
+
+    @Param({"linked-blocking-queue", "busy-spin", "yield", "park"})
+    public String queue;
+
+    private Handoff handoff;
+    private Phaser phaser;
+    private List<Thread> threads;
+    private volatile boolean running;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        if (this.queue.equals("linked-blocking-queue")) {
+            this.handoff = new LinkedBlockingQueueHandoff();
+        } else {
+            this.handoff = new MpscRingHandoff(WaitStrategy.valueOf(this.queue.toUpperCase().replace('-', '_')));
+        }
+
+        // Producers and the benchmark thread meet at the phaser at the start of each batch
+        this.phaser = new Phaser(this.producers + 1);
+        this.running = true;
+        this.threads = new ArrayList<>();
+        int messagesPerProducer = MESSAGES / this.producers;
+        for (int i = 0; i < this.producers; i++) {
+            // Messages are preallocated and reused so that only the queue itself allocates
+            Long[] messages = new Long[messagesPerProducer];
+            for (int j = 0; j < messagesPerProducer; j++) {
+                messages[j] = (long) i * messagesPerProducer + j;
+            }
+
+            Thread thread = new Thread(() -> {
+                while (true) {
+                    this.phaser.arriveAndAwaitAdvance();
+                    if (!this.running) {
+                        return;
+                    }
+                    for (Long message : messages) {
+                        this.handoff.offer(message);
+                    }
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+            this.threads.add(thread);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        this.running = false;
+        this.phaser.arriveAndAwaitAdvance();
+        for (Thread thread : this.threads) {
+            thread.join();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public long handoff() throws InterruptedException {
+        this.phaser.arriveAndAwaitAdvance();
+
+        long sum = 0;
+        for (int i = 0; i < MESSAGES; i++) {
+            sum += this.handoff.take();
+        }
+        return sum;
+    }
+
+    private interface Handoff {
+        void offer(Long message);
+
+        Long take() throws InterruptedException;
+    }
+
+    private static class LinkedBlockingQueueHandoff implements Handoff {
+        private final LinkedBlockingQueue<Long> queue = new LinkedBlockingQueue<>();
+
+        @Override
+        public void offer(Long message) {
+            this.queue.add(message);
+        }
+
+        @Override
+        public Long take() throws InterruptedException {
+            return this.queue.take();
+        }
+    }
+
+    private static class MpscRingHandoff implements Handoff {
+        private final MpscRing<Long> ring;
+
+        MpscRingHandoff(WaitStrategy waitStrategy) {
+            this.ring = new MpscRing<>(4096, waitStrategy);
+        }
+
+        @Override
+        public void offer(Long message) {
+            while (!this.ring.offer(message)) {
+                Thread.yield();
+            }
+        }
+
+        @Override
+        public Long take() throws InterruptedException {
+            return this.ring.take();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package eu.ill.rtsptofmp4.benchmarks;
+
+import eu.ill.rtsptofmp4.business.mp4frag.StreamBuffer;
+import eu.ill.rtsptofmp4.models.exceptions.MP4FragException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreamBufferBenchmark {
+
+    private static final byte[] AVCC = {0x61, 0x76, 0x63, 0x43}; // avcC
+    private static final byte[] MP4A = {0x6d, 0x70, 0x34, 0x61}; // mp4a
+    private static final byte[] MDAT = {0x6d, 0x64, 0x61, 0x74}; // mdat
+    private static final int MOOF_TYPE = 0x6d6f6f66; // moof
+    private static final int[] CODEC_TYPES = {0x61766343, 0x61766331, 0x61766332, 0x61766333, 0x61766334, 0x68766343, 0x68766331, 0x68657631, 0x6d703461};
+
+    private StreamBuffer initSegment;
+    private StreamBuffer ftyp;
+    private StreamBuffer moov;
+    private StreamBuffer fragment;
+    private StreamBuffer view;
+    private StreamBuffer corrupt;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, MP4FragException {
+        byte[] initSegment = FMP4Capture.initSegment(FMP4Capture.AVC);
+        this.initSegment = new StreamBuffer(initSegment);
+
+        int ftypLength = this.initSegment.readUInt32BE(0);
+        this.ftyp = this.initSegment.slice(0, ftypLength);
+        this.moov = this.initSegment.slice(ftypLength, initSegment.length);
+
+        // A keyframe of the synthetic video capture
+        byte[] fragments = FMP4Capture.load(FMP4Capture.SYNTHETIC_VIDEO).getFragments();
+        StreamBuffer firstFragment = new StreamBuffer(fragments);
+        int moofLength = firstFragment.readUInt32BE(0);
+        this.fragment = firstFragment.slice(0, moofLength + firstFragment.readUInt32BE(moofLength));
+
+        this.view = new StreamBuffer(new byte[0]);
+
+        // What a moof search has to go through when ffmpeg pipes out corrupt data
+        byte[] corrupt = new byte[4 * 1024 * 1024];
+        new Random(0).nextBytes(corrupt);
+        this.corrupt = new StreamBuffer(corrupt);
+    }
+
+    @Benchmark
+    public int indexOfFound() {
+        return this.initSegment.indexOf(AVCC);
+    }
+
+    @Benchmark
+    public int indexOfNotFound() {
+        // Scans the whole init segment, as done when looking for an audio track in a video only stream
+        return this.initSegment.indexOf(MP4A);
+    }
+
+    @Benchmark
+    public int indexOfMdat() {
+        return this.fragment.indexOf(MDAT);
+    }
+
+    @Benchmark
+    public int[] indexOfEachCodecType() {
+        return this.initSegment.indexOfEach(CODEC_TYPES);
+    }
+
+    @Benchmark
+    public int indexOfMoofInCorruptData() {
+        return this.corrupt.indexOf(MOOF_TYPE, 0);
+    }
+
+    @Benchmark
+    public long readUInt32BE() throws MP4FragException {
+        // Every field of the moof, the mdat payload is random and can overflow
+        long sum = 0;
+        for (int index = 0; index < 104; index += 4) {
+            sum += this.fragment.readUInt32BE(index);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public StreamBuffer slice() {
+        return this.fragment.slice(8, 1024);
+    }
+
+    @Benchmark
+    public StreamBuffer sliceIntoView() {
+        return this.fragment.slice(8, 1024, this.view);
+    }
+
+    @Benchmark
+    public StreamBuffer concat() {
+        return StreamBuffer.concat(this.ftyp, this.moov, -1);
+    }
+}
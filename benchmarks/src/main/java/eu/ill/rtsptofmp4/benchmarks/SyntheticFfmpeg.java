@@ -0,0 +1,41 @@
+package eu.ill.rtsptofmp4.benchmarks;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+
+// Stands in for ffmpeg in the WebSocket load benchmark, its arguments are ignored: writes an avc init segment to stdout
+// then one 25 fps fragment every 40 ms until the server closes the pipe. The first 8 bytes of each mdat payload hold the
+// wall-clock time (epoch micros) at which the fragment was written.
+public class SyntheticFfmpeg {
+
+    static final int FRAGMENT_INTERVAL_MS = 40;
+    static final int PAYLOAD_SIZE = 1000;
+
+    private static final int SAMPLE_DURATION = 3600;
+    private static final int GOP_LENGTH = 50;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        // System.out would swallow the error once the pipe is closed
+        OutputStream outputStream = new FileOutputStream(FileDescriptor.out);
+        outputStream.write(FMP4Capture.initSegment(FMP4Capture.AVC));
+        outputStream.flush();
+
+        byte[] payload = new byte[PAYLOAD_SIZE];
+        for (int i = 0; ; i++) {
+            Thread.sleep(FRAGMENT_INTERVAL_MS);
+
+            ByteBuffer.wrap(payload).putLong(nowMicros());
+            outputStream.write(FMP4Capture.fragment(i + 1, (long) i * SAMPLE_DURATION, i % GOP_LENGTH == 0, SAMPLE_DURATION, payload));
+            outputStream.flush();
+        }
+    }
+
+    static long nowMicros() {
+        return ChronoUnit.MICROS.between(Instant.EPOCH, Instant.now());
+    }
+}
@@ -0,0 +1,159 @@
+package eu.ill.rtsptofmp4.benchmarks;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.WebSocket;
+
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+// Watches one stream of a running server, fed by SyntheticFfmpeg, from thousands of web sockets plus a few that never
+// read. Reports the fragments received by the fast viewers, the ones they skipped and their mean pipe to viewer latency
+// over the measurement window, then the segments the server made the slow viewers skip.
+//   WebSocketLoad [server url] [viewers] [slow viewers] [measurement seconds]
+public class WebSocketLoad {
+
+    private static final String STREAM_ID = "load";
+    private static final int CONNECTION_BATCH = 500;
+
+    private static final int INIT_LENGTH = FMP4Capture.initSegment(FMP4Capture.AVC).length;
+    private static final int FRAGMENT_LENGTH = FMP4Capture.fragment(0, 0, true, 0, new byte[SyntheticFfmpeg.PAYLOAD_SIZE]).length;
+    private static final int PAYLOAD_OFFSET = FRAGMENT_LENGTH - SyntheticFfmpeg.PAYLOAD_SIZE;
+    private static final int SEQUENCE_NUMBER_OFFSET = 20;
+
+    // Written by the event loop of the socket, read by the main thread
+    private static class Viewer {
+
+        private volatile boolean initialised = false;
+        private volatile long lastSequenceNumber = -1;
+        private volatile long fragments = 0;
+        private volatile long gaps = 0;
+        private volatile long latencyMicros = 0;
+
+        private void onMessage(Buffer message) {
+            if (!this.initialised) {
+                this.initialised = message.length() == INIT_LENGTH;
+                return;
+            }
+
+            for (int offset = 0; offset + FRAGMENT_LENGTH <= message.length(); offset += FRAGMENT_LENGTH) {
+                long sequenceNumber = message.getInt(offset + SEQUENCE_NUMBER_OFFSET) & 0xffffffffL;
+                if (this.lastSequenceNumber >= 0 && sequenceNumber != this.lastSequenceNumber + 1) {
+                    this.gaps++;
+                }
+                this.lastSequenceNumber = sequenceNumber;
+                this.latencyMicros += SyntheticFfmpeg.nowMicros() - message.getLong(offset + PAYLOAD_OFFSET);
+                this.fragments++;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        URI server = URI.create(args.length > 0 ? args[0] : "http://localhost:8080");
+        int fastViewers = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        int slowViewers = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        int measurementMs = (args.length > 3 ? Integer.parseInt(args[3]) : 10) * 1000;
+        int viewerCount = fastViewers + slowViewers;
+
+        java.net.http.HttpClient restClient = java.net.http.HttpClient.newHttpClient();
+        for (int batch = 0; batch < viewerCount; batch += CONNECTION_BATCH) {
+            List<CompletableFuture<HttpResponse<String>>> connections = new ArrayList<>();
+            for (int i = batch; i < Math.min(batch + CONNECTION_BATCH, viewerCount); i++) {
+                String body = String.format("{\"id\":\"%s\",\"name\":\"Load\",\"url\":\"rtsp://localhost/load\",\"clientId\":\"viewer-%d\"}", STREAM_ID, i);
+                connections.add(restClient.sendAsync(HttpRequest.newBuilder(server.resolve("/api/streams/connect"))
+                        .header("Content-Type", "application/json")
+                        .POST(HttpRequest.BodyPublishers.ofString(body))
+                        .build(), HttpResponse.BodyHandlers.ofString()));
+            }
+            for (CompletableFuture<HttpResponse<String>> connection : connections) {
+                HttpResponse<String> response = connection.get(30, TimeUnit.SECONDS);
+                if (response.statusCode() != 200) {
+                    throw new IllegalStateException("Failed to connect a viewer: " + response.statusCode() + " " + response.body());
+                }
+            }
+        }
+
+        Vertx vertx = Vertx.vertx();
+        HttpClient httpClient = vertx.createHttpClient(new HttpClientOptions()
+                .setMaxWebSockets(viewerCount)
+                .setMaxWebSocketMessageSize(16 * 1024 * 1024)
+                .setReceiveBufferSize(16 * 1024));
+
+        List<Viewer> viewers = new ArrayList<>();
+        List<WebSocket> webSockets = Collections.synchronizedList(new ArrayList<>());
+        try {
+            for (int batch = 0; batch < viewerCount; batch += CONNECTION_BATCH) {
+                List<CompletableFuture<WebSocket>> opened = new ArrayList<>();
+                for (int i = batch; i < Math.min(batch + CONNECTION_BATCH, viewerCount); i++) {
+                    Viewer viewer = new Viewer();
+                    viewers.add(viewer);
+                    boolean slow = i >= fastViewers;
+
+                    opened.add(httpClient.webSocket(server.getPort(), server.getHost(), "/api/streams/ws/viewer-" + i).toCompletionStage().toCompletableFuture().thenApply(webSocket -> {
+                        webSockets.add(webSocket);
+                        webSocket.binaryMessageHandler(viewer::onMessage);
+                        if (slow) {
+                            // Never read: the server write queue fills once the socket buffers are full
+                            webSocket.pause();
+                        }
+                        return webSocket;
+                    }));
+                }
+                CompletableFuture.allOf(opened.toArray(CompletableFuture[]::new)).get(30, TimeUnit.SECONDS);
+            }
+
+            List<Viewer> fast = viewers.subList(0, fastViewers);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (fast.stream().anyMatch(viewer -> viewer.fragments == 0) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100);
+            }
+
+            long[] fragmentsBefore = fast.stream().mapToLong(viewer -> viewer.fragments).toArray();
+            long[] gapsBefore = fast.stream().mapToLong(viewer -> viewer.gaps).toArray();
+            long[] latencyBefore = fast.stream().mapToLong(viewer -> viewer.latencyMicros).toArray();
+            Thread.sleep(measurementMs);
+
+            long received = 0;
+            long minimumReceived = Long.MAX_VALUE;
+            long gaps = 0;
+            long latency = 0;
+            for (int i = 0; i < fastViewers; i++) {
+                Viewer viewer = fast.get(i);
+                long viewerReceived = viewer.fragments - fragmentsBefore[i];
+                received += viewerReceived;
+                minimumReceived = Math.min(minimumReceived, viewerReceived);
+                gaps += viewer.gaps - gapsBefore[i];
+                latency += viewer.latencyMicros - latencyBefore[i];
+            }
+
+            System.out.printf("%d viewers in %d ms: %d fragments produced, at least %d received per viewer, %d skipped, mean latency %d us%n",
+                    fastViewers, measurementMs, measurementMs / SyntheticFfmpeg.FRAGMENT_INTERVAL_MS, minimumReceived, gaps, latency / Math.max(1, received));
+
+            // The socket buffers of the slow viewers take a while to fill
+            Thread.sleep(measurementMs);
+            System.out.printf("%d slow viewers: %s%n", slowViewers, getSkippedSegments(restClient, server));
+
+        } finally {
+            // Closing the sockets disconnects their clients
+            webSockets.forEach(webSocket -> webSocket.close());
+            httpClient.close();
+            vertx.close();
+        }
+    }
+
+    private static String getSkippedSegments(java.net.http.HttpClient restClient, URI server) throws Exception {
+        String metrics = restClient.send(HttpRequest.newBuilder(server.resolve("/api/q/metrics")).build(), HttpResponse.BodyHandlers.ofString()).body();
+        return metrics.lines()
+                .filter(line -> line.startsWith("rtsptofmp4_relay_viewers_skipped") && line.contains("stream=\"" + STREAM_ID + "\""))
+                .findFirst()
+                .orElse("no skipped segments metric");
+    }
+}
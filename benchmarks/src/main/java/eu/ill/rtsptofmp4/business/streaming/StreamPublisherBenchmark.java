@@ -0,0 +1,130 @@
+package eu.ill.rtsptofmp4.business.streaming;
+
+import eu.ill.rtsptofmp4.ServerConfig;
+import eu.ill.rtsptofmp4.benchmarks.BenchmarkConfig;
+import eu.ill.rtsptofmp4.business.mp4frag.BufferPool;
+import eu.ill.rtsptofmp4.business.mp4frag.PooledBuffer;
+import eu.ill.rtsptofmp4.business.mp4frag.Segment;
+import eu.ill.rtsptofmp4.business.mp4frag.StreamBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zeromq.SocketType;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// End to end publish of pooled segments of several streams through the StreamPublisher queues and PUB sockets to a local
+// SUB socket, with one or more publisher shards. Lives in the publisher package so that its configuration can be set
+// without CDI.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StreamPublisherBenchmark {
+
+    private static final String STREAM_ID = "benchmark";
+    private static final int STREAMS = 16;
+
+    @Param({"1024", "65536", "1048576"})
+    public int segmentSize;
+
+    @Param({"1", "4"})
+    public int shards;
+
+    private StreamPublisher streamPublisher;
+    private ZContext context;
+    private ZMQ.Socket subscriber;
+    private BufferPool bufferPool;
+    private byte[] payload;
+    private String[] streamIds;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        int port;
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            port = serverSocket.getLocalPort();
+        }
+
+        this.streamPublisher = new StreamPublisher();
+        this.streamPublisher.serverConfig = BenchmarkConfig.of(ServerConfig.class, Map.of("publisher.port", port, "publisher.queueSize", 64, "publisher.dropPolicy", DropPolicy.BLOCK,
+                "publisher.ringSize", 4096, "publisher.waitStrategy", WaitStrategy.PARK, "publisher.shards", this.shards));
+        this.streamPublisher.start();
+
+        this.context = new ZContext();
+        this.subscriber = this.context.createSocket(SocketType.SUB);
+        this.subscriber.connect("tcp://localhost:" + port);
+        this.subscriber.subscribe(STREAM_ID.getBytes());
+
+        this.bufferPool = new BufferPool(64 * 1024 * 1024, false);
+        this.payload = new byte[this.segmentSize];
+        new Random(0).nextBytes(this.payload);
+
+        this.streamIds = new String[STREAMS];
+        for (int i = 0; i < STREAMS; i++) {
+            this.streamIds[i] = STREAM_ID + "-" + i;
+        }
+
+        // Messages published before the subscription has reached the PUB socket are dropped
+        this.subscriber.setReceiveTimeOut(100);
+        do {
+            this.publishSegments();
+        } while (this.receiveSegment() == -1);
+        while (this.receiveSegment() != -1) {
+        }
+        this.subscriber.setReceiveTimeOut(-1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.streamPublisher.stop();
+        this.subscriber.close();
+        this.context.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(STREAMS)
+    public int publish() {
+        this.publishSegments();
+
+        int length = 0;
+        for (int i = 0; i < STREAMS; i++) {
+            length += this.receiveSegment();
+        }
+        return length;
+    }
+
+    private void publishSegments() {
+        for (int i = 0; i < STREAMS; i++) {
+            // As handed over by MP4Frag: a pooled buffer owned by the publisher until it has been sent
+            PooledBuffer buffer = this.bufferPool.acquire(this.segmentSize);
+            System.arraycopy(this.payload, 0, buffer.getData(), 0, this.segmentSize);
+            this.streamPublisher.publish(this.streamIds[i], new Segment(buffer, new StreamBuffer(buffer.getData(), 0, this.segmentSize)));
+        }
+    }
+
+    private int receiveSegment() {
+        if (this.subscriber.recvStr() == null) {
+            return -1;
+        }
+        return this.subscriber.recv().length;
+    }
+}
@@ -0,0 +1,3 @@
+#!/bin/sh
+# Stands in for ffmpeg when running WebSocketLoad against a server, the ffmpeg arguments are ignored.
+exec java -cp "$(dirname "$0")/target/benchmarks.jar" eu.ill.rtsptofmp4.benchmarks.SyntheticFfmpeg
@@ -1,21 +1,79 @@
 package eu.ill.rtsptofmp4;
 
+import eu.ill.rtsptofmp4.business.streaming.DropPolicy;
+import eu.ill.rtsptofmp4.business.streaming.WaitStrategy;
 import io.quarkus.runtime.annotations.StaticInitSafe;
 import io.smallrye.config.ConfigMapping;
 
+import java.util.List;
+import java.util.Optional;
+
 @StaticInitSafe
 @ConfigMapping(prefix = "server")
 public interface ServerConfig {
     WorkerConfig worker();
     PublisherConfig publisher();
+    BufferPoolConfig bufferPool();
+    GopCacheConfig gopCache();
+    ViewerConfig viewer();
+    ClusterConfig cluster();
+    RecorderConfig recorder();
 
     interface WorkerConfig {
         int intialisationTimoutMs();
         String ffmpegPath();
+        boolean virtualThreads();
+        int lingerMs();
+        Optional<List<String>> prewarm();
+        RestartConfig restart();
+    }
+
+    interface RestartConfig {
+        int initialDelayMs();
+        int maxDelayMs();
+        int maxRestarts();
     }
 
     interface PublisherConfig {
         int port();
+        int queueSize();
+        DropPolicy dropPolicy();
+        int ringSize();
+        WaitStrategy waitStrategy();
+        int shards();
+        int unsubscribedTimeoutMs();
+    }
+
+    interface BufferPoolConfig {
+        int maxPooledMb();
+        boolean leakDetection();
+    }
+
+    interface GopCacheConfig {
+        int maxStreamMb();
+        int maxTotalMb();
+    }
+
+    interface ViewerConfig {
+        int writeQueueKb();
+    }
+
+    interface ClusterConfig {
+        Optional<String> nodeUrl();
+        Optional<List<String>> nodes();
+        int heartbeatMs();
+        int nodeTimeoutMs();
+        int feedTimeoutMs();
+    }
+
+    interface RecorderConfig {
+        Optional<String> directory();
+        int fileMb();
+        int fileMinutes();
+        int retentionHours();
+        int maxTotalMb();
+        int queueSize();
+        int replayThreads();
     }
 
 }
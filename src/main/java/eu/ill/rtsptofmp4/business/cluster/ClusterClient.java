@@ -0,0 +1,103 @@
+package eu.ill.rtsptofmp4.business.cluster;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.ill.rtsptofmp4.models.ClusterNode;
+import eu.ill.rtsptofmp4.models.StreamInfo;
+import io.quarkus.logging.Log;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Calls to the ClusterController of the other nodes
+class ClusterClient {
+
+    private final HttpClient httpClient;
+    private final ObjectMapper objectMapper;
+    private final Duration timeout;
+    private final int connectTimeoutMs;
+
+    // The timeout of connections is the initialisation timeout of ffmpeg on the owner, 0 for none
+    ClusterClient(final ObjectMapper objectMapper, final int timeoutMs, final int connectTimeoutMs) {
+        this.objectMapper = objectMapper;
+        this.timeout = Duration.ofMillis(timeoutMs);
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.httpClient = HttpClient.newBuilder().connectTimeout(this.timeout).build();
+    }
+
+    CompletableFuture<ClusterNode> getNodeAsync(String nodeUrl) {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(nodeUrl + "/cluster/node")).timeout(this.timeout).GET().build();
+
+        return this.httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString()).thenApply(response -> {
+            if (response.statusCode() != 200) {
+                throw new IllegalStateException("Node " + nodeUrl + " responded with status " + response.statusCode());
+            }
+
+            try {
+                return this.objectMapper.readValue(response.body(), ClusterNode.class);
+
+            } catch (IOException e) {
+                throw new IllegalStateException("Invalid response from node " + nodeUrl + ": " + e.getMessage());
+            }
+        });
+    }
+
+    // Blocks until the node has the init segment of the stream
+    byte[] connect(String nodeUrl, StreamInfo streamInfo, String clientId) throws IOException {
+        String body = this.objectMapper.writeValueAsString(Map.of("id", streamInfo.getId(), "name", streamInfo.getName(), "url", streamInfo.getUrl(), "clientId", clientId));
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(nodeUrl + "/cluster/connect"))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body));
+        if (this.connectTimeoutMs > 0) {
+            request.timeout(this.timeout.plusMillis(this.connectTimeoutMs));
+        }
+
+        HttpResponse<byte[]> response;
+        try {
+            response = this.httpClient.send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while connecting to node " + nodeUrl);
+        }
+
+        if (response.statusCode() != 200) {
+            throw new IOException(String.format("Node %s failed to connect to stream '%s' with status %d: %s", nodeUrl, streamInfo.getName(), response.statusCode(), new String(response.body())));
+        }
+        return response.body();
+    }
+
+    // Waits for the response unless the thread has been interrupted, in which case the request is still sent
+    void disconnect(String nodeUrl, String clientId) {
+        CompletableFuture<HttpResponse<String>> response;
+        try {
+            HttpRequest request = HttpRequest.newBuilder(URI.create(nodeUrl + "/cluster/disconnect"))
+                    .timeout(this.timeout)
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(this.objectMapper.writeValueAsString(Map.of("clientId", clientId))))
+                    .build();
+            response = this.httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+
+        } catch (IOException e) {
+            Log.errorf("Failed to disconnect client '%s' from node %s: %s", clientId, nodeUrl, e.getMessage());
+            return;
+        }
+
+        try {
+            response.get(this.timeout.toMillis(), TimeUnit.MILLISECONDS);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+        } catch (ExecutionException | TimeoutException e) {
+            Log.warnf("Failed to disconnect client '%s' from node %s: %s", clientId, nodeUrl, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package eu.ill.rtsptofmp4.business.cluster;
+
+import eu.ill.rtsptofmp4.business.streaming.StreamPublisher;
+import eu.ill.rtsptofmp4.business.streaming.StreamSource;
+import eu.ill.rtsptofmp4.models.StreamInfo;
+import io.quarkus.logging.Log;
+import org.zeromq.SocketType;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// A stream relayed from the node that owns it: the init segment returned when connecting to the node followed by the
+// segments it publishes over ZeroMQ, read by the worker as if ffmpeg had written them. The node keeps pulling the camera
+// until the feed is closed.
+class ClusterFeed extends InputStream implements StreamSource.Feed {
+
+    private static final int RECEIVE_TIMEOUT_MS = 100;
+
+    private final ClusterClient client;
+    private final String nodeUrl;
+    private final StreamInfo streamInfo;
+    private final String clientId;
+    private final ZMQ.Socket socket;
+    private final byte[] topic;
+    private final byte[] initialisationTopic;
+    private final int timeoutMs;
+
+    // Accessed by the worker thread only
+    private byte[] data;
+    private int position = 0;
+
+    private volatile boolean destroyed = false;
+
+    private ClusterFeed(final ClusterClient client, final String nodeUrl, final StreamInfo streamInfo, final String clientId, final ZMQ.Socket socket, final byte[] topic, final byte[] initialisation, final int timeoutMs) {
+        this.client = client;
+        this.nodeUrl = nodeUrl;
+        this.streamInfo = streamInfo;
+        this.clientId = clientId;
+        this.socket = socket;
+        this.topic = topic;
+        this.initialisationTopic = (streamInfo.getId() + StreamPublisher.INITIALISATION_TOPIC_SUFFIX).getBytes(StandardCharsets.UTF_8);
+        this.data = initialisation;
+        this.timeoutMs = timeoutMs;
+    }
+
+    // Subscribes before connecting so that no segment is missed after the init segment
+    static ClusterFeed open(ZContext context, ClusterClient client, String nodeUrl, String publisherAddress, StreamInfo streamInfo, String clientId, int timeoutMs) throws IOException {
+        byte[] topic = streamInfo.getId().getBytes(StandardCharsets.UTF_8);
+        ZMQ.Socket socket = context.createSocket(SocketType.SUB);
+        socket.setLinger(0);
+        socket.setReceiveTimeOut(RECEIVE_TIMEOUT_MS);
+        socket.connect(publisherAddress);
+        socket.subscribe(topic);
+
+        try {
+            Log.infof("Relaying stream '%s' from node %s", streamInfo.getName(), nodeUrl);
+            byte[] initialisation = client.connect(nodeUrl, streamInfo, clientId);
+            return new ClusterFeed(client, nodeUrl, streamInfo, clientId, socket, topic, initialisation, timeoutMs);
+
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return this;
+    }
+
+    @Override
+    public int waitFor() {
+        return 0;
+    }
+
+    @Override
+    public void destroy() {
+        // The socket belongs to the worker thread: it sees the flag within the receive timeout
+        this.destroyed = true;
+    }
+
+    @Override
+    public void close() {
+        try {
+            this.socket.close();
+
+        } catch (RuntimeException e) {
+            Log.debugf("Failed to close feed of stream '%s': %s", this.streamInfo.getName(), e.getMessage());
+        }
+        this.client.disconnect(this.nodeUrl, this.clientId);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] value = new byte[1];
+        return this.read(value, 0, 1) == -1 ? -1 : value[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        while (this.position == this.data.length) {
+            if (!this.receive()) {
+                return -1;
+            }
+        }
+
+        int count = Math.min(length, this.data.length - this.position);
+        System.arraycopy(this.data, this.position, buffer, offset, count);
+        this.position += count;
+        return count;
+    }
+
+    // False once the feed has ended
+    private boolean receive() throws IOException {
+        long lastReceivedMs = System.currentTimeMillis();
+        while (!this.destroyed) {
+            byte[] topic;
+            byte[] payload;
+            try {
+                topic = this.socket.recv(0);
+                payload = topic != null && this.socket.hasReceiveMore() ? this.socket.recv(0) : null;
+
+            } catch (RuntimeException e) {
+                // jeromq fails with unchecked exceptions when the worker thread is interrupted by stop()
+                if (this.destroyed || Thread.currentThread().isInterrupted()) {
+                    return false;
+                }
+                throw new IOException("Failed to receive from node " + this.nodeUrl + ": " + e.getMessage());
+            }
+
+            if (payload != null && Arrays.equals(topic, this.initialisationTopic)) {
+                // The node restarted ffmpeg with a new codec configuration: the worker connects again to get it
+                Log.infof("Node %s published a new initialisation segment for stream '%s'", this.nodeUrl, this.streamInfo.getName());
+                return false;
+            }
+
+            // Subscriptions are prefix matches: streams whose id starts with this one are received too
+            if (payload == null || !Arrays.equals(topic, this.topic)) {
+                if (System.currentTimeMillis() - lastReceivedMs > this.timeoutMs) {
+                    throw new IOException(String.format("No segment received from node %s for %d ms", this.nodeUrl, this.timeoutMs));
+                }
+                continue;
+            }
+
+            this.data = payload;
+            this.position = 0;
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,263 @@
+package eu.ill.rtsptofmp4.business.cluster;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.ill.rtsptofmp4.ServerConfig;
+import eu.ill.rtsptofmp4.business.services.StreamService;
+import eu.ill.rtsptofmp4.business.streaming.FfmpegSource;
+import eu.ill.rtsptofmp4.business.streaming.RTSPStreamManager;
+import eu.ill.rtsptofmp4.business.streaming.StreamSource;
+import eu.ill.rtsptofmp4.models.ClusterNode;
+import eu.ill.rtsptofmp4.models.StreamInfo;
+import eu.ill.rtsptofmp4.models.StreamInit;
+import eu.ill.rtsptofmp4.models.exceptions.StreamingException;
+import io.quarkus.logging.Log;
+import io.quarkus.runtime.StartupEvent;
+import org.zeromq.ZContext;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+// Spreads the streams over the nodes listed in the cluster configuration so that each camera is pulled by one node. The
+// owner of a stream is found by consistent hashing over the nodes that answer the heartbeats: the other nodes relay the
+// stream from the owner. Each worker asks for its source when ffmpeg is (re)started, and is restarted when its stream
+// moves to another node.
+@ApplicationScoped
+public class ClusterService implements StreamSource {
+
+    private static final int POINTS_PER_NODE = 128;
+
+    @Inject
+    ServerConfig serverConfig;
+
+    @Inject
+    ObjectMapper objectMapper;
+
+    @Inject
+    RTSPStreamManager rtspStreamManager;
+
+    @Inject
+    StreamService streamService;
+
+    private boolean enabled = false;
+    private String nodeUrl;
+    private List<String> nodeUrls;
+    private int nodeTimeoutMs;
+    private int feedTimeoutMs;
+
+    // Time of the last heartbeat answered by each of the other nodes, and the port of its publisher
+    private final Map<String, Long> lastSeenMs = new ConcurrentHashMap<>();
+    private final Map<String, Integer> publisherPorts = new ConcurrentHashMap<>();
+    private volatile Set<String> liveNodes = Set.of();
+    private volatile HashRing ring = new HashRing(List.of(), POINTS_PER_NODE);
+
+    // The node each running worker reads its stream from
+    private final Map<String, String> sources = new ConcurrentHashMap<>();
+
+    // Stream ids by the client ids of the nodes relaying them from this one
+    private final Map<String, String> peerClients = new ConcurrentHashMap<>();
+
+    private FfmpegSource ffmpegSource;
+    private ClusterClient client;
+    private ZContext context;
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    void init() {
+        ServerConfig.ClusterConfig config = this.serverConfig.cluster();
+        if (config.nodes().isEmpty()) {
+            return;
+        }
+
+        this.nodeUrls = config.nodes().get().stream().map(ClusterService::normalise).collect(Collectors.toList());
+        this.nodeUrl = config.nodeUrl().map(ClusterService::normalise).orElse(null);
+        if (this.nodeUrl == null || !this.nodeUrls.contains(this.nodeUrl)) {
+            Log.errorf("Cluster mode disabled: the node url '%s' is not one of the cluster nodes %s", this.nodeUrl, this.nodeUrls);
+            return;
+        }
+
+        this.enabled = true;
+        this.nodeTimeoutMs = config.nodeTimeoutMs();
+        this.feedTimeoutMs = config.feedTimeoutMs();
+        this.ffmpegSource = new FfmpegSource(this.serverConfig.worker().ffmpegPath());
+        this.client = new ClusterClient(this.objectMapper, config.heartbeatMs(), this.serverConfig.worker().intialisationTimoutMs());
+        this.context = new ZContext();
+
+        // Nodes are assumed to be up until they miss their heartbeats: a cluster starting together does not pull every
+        // camera from every node until the first heartbeats have been answered
+        long now = System.currentTimeMillis();
+        this.nodeUrls.forEach(url -> this.lastSeenMs.put(url, now));
+        this.updateLiveNodes();
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor();
+        this.scheduler.scheduleWithFixedDelay(this::checkNodes, config.heartbeatMs(), config.heartbeatMs(), TimeUnit.MILLISECONDS);
+    }
+
+    // The service is only created when first used: the heartbeats start at boot
+    void onStart(@Observes StartupEvent event) {
+        if (this.enabled) {
+            Log.infof("Cluster node %s started with nodes %s", this.nodeUrl, this.nodeUrls);
+        }
+    }
+
+    @PreDestroy
+    void terminate() {
+        if (this.enabled) {
+            this.scheduler.shutdownNow();
+            this.context.close();
+        }
+    }
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    public ClusterNode getNode() {
+        return new ClusterNode(this.nodeUrl, this.serverConfig.publisher().port(), true);
+    }
+
+    public List<ClusterNode> getNodes() {
+        Set<String> liveNodes = this.liveNodes;
+        return this.nodeUrls.stream().map(url -> {
+            int publisherPort = url.equals(this.nodeUrl) ? this.serverConfig.publisher().port() : this.publisherPorts.getOrDefault(url, 0);
+            return new ClusterNode(url, publisherPort, liveNodes.contains(url));
+        }).collect(Collectors.toList());
+    }
+
+    public Map<String, String> getSources() {
+        return new HashMap<>(this.sources);
+    }
+
+    // Called by the worker thread each time ffmpeg is (re)started
+    @Override
+    public Feed open(StreamInfo streamInfo) throws IOException {
+        String node = this.sourceOf(streamInfo.getId());
+        this.sources.put(streamInfo.getId(), node);
+
+        if (node.equals(this.nodeUrl)) {
+            return this.ffmpegSource.open(streamInfo);
+        }
+
+        Integer publisherPort = this.publisherPorts.get(node);
+        if (publisherPort == null) {
+            throw new IOException(String.format("Node %s owning stream '%s' has not answered any heartbeat yet", node, streamInfo.getName()));
+        }
+
+        String publisherAddress = "tcp://" + URI.create(node).getHost() + ":" + publisherPort;
+        return ClusterFeed.open(this.context, this.client, node, publisherAddress, streamInfo, this.nodeUrl + "#" + streamInfo.getId(), this.feedTimeoutMs);
+    }
+
+    // Another node relays the stream from this one. The camera is pulled here for as long as the stream has peers,
+    // whatever the ring says, so that nodes that briefly disagree on the owner never relay the stream from each other.
+    public CompletableFuture<byte[]> connectPeer(StreamInfo streamInfo, String clientId) {
+        if (!this.enabled) {
+            return CompletableFuture.failedFuture(new StreamingException("Cluster mode is not enabled"));
+        }
+
+        // The previous feed of the peer has not disconnected yet if it was closed by an interrupt
+        this.streamService.disconnect(clientId);
+        this.peerClients.put(clientId, streamInfo.getId());
+
+        CompletableFuture<byte[]> initialisation = this.streamService.connectAsync(streamInfo, clientId).thenApply(StreamInit::getInitSegment);
+        initialisation.whenComplete((ignored, error) -> {
+            if (error != null) {
+                this.peerClients.remove(clientId, streamInfo.getId());
+            }
+        });
+
+        // A worker that relays the stream from another node starts reading the camera
+        this.rebalance();
+        return initialisation;
+    }
+
+    public void disconnectPeer(String clientId) {
+        this.peerClients.remove(clientId);
+        this.streamService.disconnect(clientId);
+    }
+
+    private String sourceOf(String streamId) {
+        if (this.peerClients.containsValue(streamId)) {
+            return this.nodeUrl;
+        }
+
+        String owner = this.ring.ownerOf(streamId);
+        return owner != null ? owner : this.nodeUrl;
+    }
+
+    private void checkNodes() {
+        try {
+            for (String url : this.nodeUrls) {
+                if (!url.equals(this.nodeUrl)) {
+                    this.client.getNodeAsync(url).whenComplete((node, error) -> {
+                        if (error != null) {
+                            Log.debugf("Node %s did not answer the heartbeat: %s", url, error.getMessage());
+                            return;
+                        }
+                        this.publisherPorts.put(url, node.getPublisherPort());
+                        this.lastSeenMs.put(url, System.currentTimeMillis());
+                    });
+                }
+            }
+
+            this.updateLiveNodes();
+
+            // Peers that went away without disconnecting have been removed as abandoned clients
+            this.peerClients.keySet().removeIf(clientId -> !this.streamService.hasClient(clientId));
+            this.rebalance();
+
+        } catch (Exception e) {
+            // An exception would cancel the scheduled check
+            Log.errorf("Failed to check the cluster nodes: %s", e.getMessage());
+        }
+    }
+
+    private void updateLiveNodes() {
+        long now = System.currentTimeMillis();
+        Set<String> liveNodes = this.nodeUrls.stream()
+                .filter(url -> url.equals(this.nodeUrl) || now - this.lastSeenMs.getOrDefault(url, 0L) <= this.nodeTimeoutMs)
+                .collect(Collectors.toCollection(TreeSet::new));
+
+        if (!liveNodes.equals(this.liveNodes)) {
+            Log.infof("Cluster nodes are now %s", liveNodes);
+            this.ring = new HashRing(liveNodes, POINTS_PER_NODE);
+            this.liveNodes = liveNodes;
+        }
+    }
+
+    // Restarts the workers reading their stream from a node that no longer owns it
+    private void rebalance() {
+        for (Map.Entry<String, String> source : this.sources.entrySet()) {
+            String streamId = source.getKey();
+            if (!this.rtspStreamManager.hasWorker(streamId)) {
+                this.sources.remove(streamId, source.getValue());
+                continue;
+            }
+
+            String node = this.sourceOf(streamId);
+            if (!node.equals(source.getValue())) {
+                Log.infof("Stream '%s' moves from node %s to node %s", streamId, source.getValue(), node);
+                this.rtspStreamManager.restartSource(streamId);
+            }
+        }
+    }
+
+    private static String normalise(String url) {
+        String trimmed = url.trim();
+        return trimmed.endsWith("/") ? trimmed.substring(0, trimmed.length() - 1) : trimmed;
+    }
+}
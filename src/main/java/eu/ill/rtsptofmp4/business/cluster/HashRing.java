@@ -0,0 +1,46 @@
+package eu.ill.rtsptofmp4.business.cluster;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+// Consistent hashing of stream ids onto the nodes of the cluster. Each node is placed at many points of the ring so that
+// streams are spread evenly, and a node joining or leaving only moves the streams it takes or owned.
+public class HashRing {
+
+    private final NavigableMap<Long, String> points = new TreeMap<>();
+
+    public HashRing(final Collection<String> nodes, final int pointsPerNode) {
+        for (String node : nodes) {
+            for (int i = 0; i < pointsPerNode; i++) {
+                this.points.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    // Null if the ring has no nodes
+    public String ownerOf(String key) {
+        if (this.points.isEmpty()) {
+            return null;
+        }
+
+        Map.Entry<Long, String> point = this.points.ceilingEntry(hash(key));
+        return point != null ? point.getValue() : this.points.firstEntry().getValue();
+    }
+
+    // Every node computes the same ring: String.hashCode is too weak to spread the points
+    private static long hash(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package eu.ill.rtsptofmp4.business.mp4frag;
+
+import eu.ill.rtsptofmp4.models.exceptions.MP4FragException;
+
+import java.nio.charset.StandardCharsets;
+
+public class BoxReader {
+
+    private final static int HEADER_SIZE = 8;
+    private final static int LARGE_HEADER_SIZE = 16; // size field of 1 is followed by a 64 bit largesize
+
+    public enum Action {
+        READ,   // the complete box is given to onBox
+        STREAM, // the box, header included, is given to onBoxPart as it arrives followed by onBoxEnd
+        SKIP,
+    }
+
+    private final BoxListener listener;
+
+    private final byte[] header = new byte[LARGE_HEADER_SIZE];
+    private int headerSize = 0;
+    private int headerLength = HEADER_SIZE;
+
+    private int boxType;
+    private long boxSize;
+    private long boxRemaining = -1;
+    private Action boxAction;
+
+    private byte[] boxData = new byte[4096];
+    private int boxDataSize = 0;
+
+    // Boxes and parts are handed to the listener through this single view so that parsing does not allocate
+    private final StreamBuffer view = new StreamBuffer(new byte[0]);
+
+    private int searchType;
+    private int searchChunks = -1;
+    private int searchChunkLimit;
+    private long searchWindow;
+    private int searchBytes;
+
+    public BoxReader(final BoxListener listener) {
+        this.listener = listener;
+    }
+
+    // Chunks can be split anywhere, including inside a box header. Each byte is looked at once: boxes held entirely
+    // in the chunk are given to the listener as views, the others are accumulated as they arrive.
+    public void parse(StreamBuffer chunk) throws MP4FragException {
+        if (this.searchChunks != -1 && ++this.searchChunks > this.searchChunkLimit) {
+            throw new MP4FragException("Box '%s' search failed after %d attempts.", typeName(this.searchType), this.searchChunkLimit);
+        }
+
+        int length = chunk.length();
+        int position = 0;
+        while (position < length) {
+            if (this.searchChunks != -1) {
+                position = this.search(chunk, position, length);
+
+            } else if (this.boxRemaining == -1) {
+                position = this.readHeader(chunk, position, length);
+
+            } else {
+                position = this.readBody(chunk, position, length);
+            }
+        }
+    }
+
+    // Drops the current box and scans the stream for the next header of the given type, starting just after the first
+    // byte of the dropped header. Can be called from onBoxHeader when the stream is found to be corrupt.
+    public void search(int type, int chunkLimit) {
+        this.searchType = type;
+        this.searchChunks = 1;
+        this.searchChunkLimit = chunkLimit;
+        this.searchWindow = 0;
+        this.searchBytes = 0;
+
+        for (int i = 1; i < this.headerSize; i++) {
+            this.pushSearchByte(this.header[i]);
+        }
+        this.endBox();
+    }
+
+    public boolean searching() {
+        return this.searchChunks != -1;
+    }
+
+    private int search(StreamBuffer chunk, int position, int length) throws MP4FragException {
+        // A type ending in the first three bytes started in the bytes kept from the previous chunk
+        int end = Math.min(position + 3, length);
+        while (position < end) {
+            this.pushSearchByte(chunk.get(position++));
+            if (this.searchMatched()) {
+                return this.startFoundBox(chunk, position, length);
+            }
+        }
+
+        // Other candidates are found with a word at a time scan of the chunk, only the eight header bytes preceding
+        // the end of a candidate are pushed through the search window
+        while (position < length) {
+            int index = chunk.indexOf(this.searchType, position - 3);
+            if (index == -1) {
+                // Keep the bytes that could start a header spanning into the next chunk
+                position = this.skipSearchBytes(position, length - (HEADER_SIZE - 1));
+                while (position < length) {
+                    this.pushSearchByte(chunk.get(position++));
+                }
+                return position;
+            }
+
+            position = this.skipSearchBytes(position, index - 4);
+            while (position < index + 4) {
+                this.pushSearchByte(chunk.get(position++));
+            }
+            if (this.searchMatched()) {
+                return this.startFoundBox(chunk, position, length);
+            }
+        }
+
+        return position;
+    }
+
+    private int skipSearchBytes(int position, int to) {
+        // Bytes that cannot be part of a match only need to be counted
+        if (position < to) {
+            this.searchBytes += to - position;
+            return to;
+        }
+        return position;
+    }
+
+    private boolean searchMatched() {
+        return this.searchBytes >= HEADER_SIZE && (int) this.searchWindow == this.searchType;
+    }
+
+    private int startFoundBox(StreamBuffer chunk, int position, int length) throws MP4FragException {
+        this.searchChunks = -1;
+        for (int i = 0; i < HEADER_SIZE; i++) {
+            this.header[i] = (byte) (this.searchWindow >>> (56 - 8 * i));
+        }
+        this.headerSize = HEADER_SIZE;
+
+        return this.startBox(chunk, position, length);
+    }
+
+    private void pushSearchByte(byte value) {
+        this.searchWindow = (this.searchWindow << 8) | (value & 0xff);
+        this.searchBytes++;
+    }
+
+    private int readHeader(StreamBuffer chunk, int position, int length) throws MP4FragException {
+        int copyLength = Math.min(this.headerLength - this.headerSize, length - position);
+        chunk.copyTo(position, this.header, this.headerSize, copyLength);
+        this.headerSize += copyLength;
+        position += copyLength;
+
+        if (this.headerSize < this.headerLength) {
+            return position;
+        }
+
+        return this.startBox(chunk, position, length);
+    }
+
+    private int startBox(StreamBuffer chunk, int position, int length) throws MP4FragException {
+        long size = readUInt32(this.header, 0);
+        if (this.headerLength == HEADER_SIZE && size == 1) {
+            this.headerLength = LARGE_HEADER_SIZE;
+            return position;
+
+        } else if (this.headerLength == LARGE_HEADER_SIZE) {
+            size = (readUInt32(this.header, 8) << 32) | readUInt32(this.header, 12);
+        }
+
+        this.boxType = (int) readUInt32(this.header, 4);
+        this.boxSize = size;
+        this.boxAction = this.listener.onBoxHeader(this.boxType, size);
+        if (this.searchChunks != -1) {
+            return position;
+        }
+
+        if (size < this.headerLength || size > Integer.MAX_VALUE) {
+            throw new MP4FragException("Invalid size %d for box '%s'", size, typeName(this.boxType));
+        }
+
+        this.boxRemaining = size - this.headerLength;
+
+        if (this.boxAction == Action.READ) {
+            int headerStart = position - this.headerLength;
+            if (headerStart >= 0 && position + this.boxRemaining <= length) {
+                // Box is entirely in this chunk
+                position += (int) this.boxRemaining;
+                this.endBox();
+                this.listener.onBox(this.boxType, chunk.slice(headerStart, headerStart + (int) size, this.view));
+                return position;
+            }
+
+            if (this.boxData.length < size) {
+                this.boxData = new byte[(int) size];
+            }
+            System.arraycopy(this.header, 0, this.boxData, 0, this.headerLength);
+            this.boxDataSize = this.headerLength;
+
+        } else if (this.boxAction == Action.STREAM) {
+            this.listener.onBoxPart(this.view.reset(this.header, 0, this.headerLength));
+        }
+
+        if (this.boxRemaining == 0) {
+            this.completeBox();
+        }
+
+        return position;
+    }
+
+    private int readBody(StreamBuffer chunk, int position, int length) throws MP4FragException {
+        int partLength = (int) Math.min(this.boxRemaining, length - position);
+
+        if (this.boxAction == Action.READ) {
+            chunk.copyTo(position, this.boxData, this.boxDataSize, partLength);
+            this.boxDataSize += partLength;
+
+        } else if (this.boxAction == Action.STREAM) {
+            this.listener.onBoxPart(chunk.slice(position, position + partLength, this.view));
+        }
+
+        this.boxRemaining -= partLength;
+        if (this.boxRemaining == 0) {
+            this.completeBox();
+        }
+
+        return position + partLength;
+    }
+
+    private void completeBox() throws MP4FragException {
+        Action action = this.boxAction;
+        this.endBox();
+
+        if (action == Action.READ) {
+            this.listener.onBox(this.boxType, this.view.reset(this.boxData, 0, this.boxDataSize));
+
+        } else if (action == Action.STREAM) {
+            this.listener.onBoxEnd();
+        }
+    }
+
+    private void endBox() {
+        this.headerSize = 0;
+        this.headerLength = HEADER_SIZE;
+        this.boxRemaining = -1;
+        this.boxAction = null;
+    }
+
+    private static long readUInt32(byte[] data, int index) {
+        return ((data[index] & 0xffL) << 24) | ((data[index + 1] & 0xffL) << 16) | ((data[index + 2] & 0xffL) << 8) | (data[index + 3] & 0xffL);
+    }
+
+    public static String typeName(int type) {
+        byte[] name = {(byte) (type >>> 24), (byte) (type >>> 16), (byte) (type >>> 8), (byte) type};
+        return new String(name, StandardCharsets.US_ASCII);
+    }
+
+    public interface BoxListener {
+        // Boxes given to onBox and onBoxPart are only valid for the duration of the call
+        Action onBoxHeader(int type, long size) throws MP4FragException;
+        void onBox(int type, StreamBuffer box) throws MP4FragException;
+        void onBoxPart(StreamBuffer part) throws MP4FragException;
+        void onBoxEnd() throws MP4FragException;
+    }
+}
@@ -0,0 +1,130 @@
+package eu.ill.rtsptofmp4.business.mp4frag;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class BufferPool {
+
+    // Power of two size classes from 1 KiB to 8 MiB. Larger requests are allocated exactly and never pooled.
+    private final static int MIN_SIZE_CLASS_SHIFT = 10;
+    private final static int MAX_SIZE_CLASS_SHIFT = 23;
+
+    private final long maxPooledBytes;
+    private final boolean leakDetection;
+
+    private final List<ArrayDeque<byte[]>> sizeClasses = new ArrayList<>();
+    private final AtomicLong pooledBytes = new AtomicLong();
+
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final AtomicInteger outstandingBuffers = new AtomicInteger();
+    private final AtomicLong bytesInUse = new AtomicLong();
+
+    private final Map<PooledBuffer, Throwable> leakTraces = new ConcurrentHashMap<>();
+
+    public BufferPool(final long maxPooledBytes, final boolean leakDetection) {
+        this.maxPooledBytes = maxPooledBytes;
+        this.leakDetection = leakDetection;
+
+        for (int shift = MIN_SIZE_CLASS_SHIFT; shift <= MAX_SIZE_CLASS_SHIFT; shift++) {
+            this.sizeClasses.add(new ArrayDeque<>());
+        }
+    }
+
+    public PooledBuffer acquire(int size) {
+        this.acquisitions.increment();
+
+        byte[] data = null;
+        int sizeClass = sizeClassOf(size);
+        if (sizeClass != -1) {
+            ArrayDeque<byte[]> free = this.sizeClasses.get(sizeClass);
+            synchronized (free) {
+                data = free.pollFirst();
+            }
+
+            if (data != null) {
+                this.hits.increment();
+                this.pooledBytes.addAndGet(-data.length);
+
+            } else {
+                data = new byte[1 << (sizeClass + MIN_SIZE_CLASS_SHIFT)];
+            }
+
+        } else {
+            data = new byte[size];
+        }
+
+        PooledBuffer buffer = new PooledBuffer(this, data);
+        this.outstandingBuffers.incrementAndGet();
+        this.bytesInUse.addAndGet(data.length);
+
+        if (this.leakDetection) {
+            this.leakTraces.put(buffer, new Throwable("PooledBuffer of " + data.length + " bytes acquired here was never released"));
+        }
+
+        return buffer;
+    }
+
+    void recycle(PooledBuffer buffer) {
+        byte[] data = buffer.getData();
+        this.outstandingBuffers.decrementAndGet();
+        this.bytesInUse.addAndGet(-data.length);
+
+        if (this.leakDetection) {
+            this.leakTraces.remove(buffer);
+        }
+
+        int sizeClass = sizeClassOf(data.length);
+        if (sizeClass != -1 && data.length == 1 << (sizeClass + MIN_SIZE_CLASS_SHIFT)) {
+            if (this.pooledBytes.addAndGet(data.length) <= this.maxPooledBytes) {
+                ArrayDeque<byte[]> free = this.sizeClasses.get(sizeClass);
+                synchronized (free) {
+                    free.addFirst(data);
+                }
+
+            } else {
+                // Pool is full: let the garbage collector have it
+                this.pooledBytes.addAndGet(-data.length);
+            }
+        }
+    }
+
+    public long getAcquisitions() {
+        return this.acquisitions.sum();
+    }
+
+    public double getHitRate() {
+        long acquisitions = this.acquisitions.sum();
+        return acquisitions == 0 ? 0.0 : (double) this.hits.sum() / acquisitions;
+    }
+
+    public int getOutstandingBuffers() {
+        return this.outstandingBuffers.get();
+    }
+
+    public long getBytesInUse() {
+        return this.bytesInUse.get();
+    }
+
+    public long getPooledBytes() {
+        return this.pooledBytes.get();
+    }
+
+    public List<Throwable> getLeaks() {
+        return new ArrayList<>(this.leakTraces.values());
+    }
+
+    private static int sizeClassOf(int size) {
+        int shift = Math.max(MIN_SIZE_CLASS_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(size - 1, 1)));
+        if (shift > MAX_SIZE_CLASS_SHIFT) {
+            return -1;
+        }
+        return shift - MIN_SIZE_CLASS_SHIFT;
+    }
+}
@@ -0,0 +1,54 @@
+package eu.ill.rtsptofmp4.business.mp4frag;
+
+// Timing and sync information of a moof + mdat pair, decoded from the moof while it is parsed. Values describe the
+// first track fragment, which is the video track for the streams produced by ffmpeg.
+public class FragmentInfo {
+
+    private final long sequenceNumber;
+    private final long baseMediaDecodeTime;
+    private final int sampleCount;
+    private final long duration;
+    private final boolean keyframe;
+    private final int size;
+
+    public FragmentInfo(final long sequenceNumber, final long baseMediaDecodeTime, final int sampleCount, final long duration, final boolean keyframe, final int size) {
+        this.sequenceNumber = sequenceNumber;
+        this.baseMediaDecodeTime = baseMediaDecodeTime;
+        this.sampleCount = sampleCount;
+        this.duration = duration;
+        this.keyframe = keyframe;
+        this.size = size;
+    }
+
+    public long getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    // In the timescale of the track, -1 if the fragment has no tfdt
+    public long getBaseMediaDecodeTime() {
+        return baseMediaDecodeTime;
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    // In the timescale of the track, 0 if no sample durations are given in the moof
+    public long getDuration() {
+        return duration;
+    }
+
+    public boolean isKeyframe() {
+        return keyframe;
+    }
+
+    // Size of the moof and mdat in bytes
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FragmentInfo{sequenceNumber=%d, baseMediaDecodeTime=%d, sampleCount=%d, duration=%d, keyframe=%b, size=%d}", sequenceNumber, baseMediaDecodeTime, sampleCount, duration, keyframe, size);
+    }
+}
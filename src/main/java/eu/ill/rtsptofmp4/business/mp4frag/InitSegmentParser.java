@@ -0,0 +1,335 @@
+package eu.ill.rtsptofmp4.business.mp4frag;
+
+import eu.ill.rtsptofmp4.models.Track;
+import eu.ill.rtsptofmp4.models.exceptions.MP4FragException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class InitSegmentParser {
+
+    private final static int MOOV_TYPE = 0x6d6f6f76; // moov
+    private final static int TRAK_TYPE = 0x7472616b; // trak
+    private final static int TKHD_TYPE = 0x746b6864; // tkhd
+    private final static int MDIA_TYPE = 0x6d646961; // mdia
+    private final static int MDHD_TYPE = 0x6d646864; // mdhd
+    private final static int HDLR_TYPE = 0x68646c72; // hdlr
+    private final static int MINF_TYPE = 0x6d696e66; // minf
+    private final static int STBL_TYPE = 0x7374626c; // stbl
+    private final static int STSD_TYPE = 0x73747364; // stsd
+    private final static int AVC1_TYPE = 0x61766331; // avc1
+    private final static int AVC2_TYPE = 0x61766332; // avc2
+    private final static int AVC3_TYPE = 0x61766333; // avc3
+    private final static int AVC4_TYPE = 0x61766334; // avc4
+    private final static int AVCC_TYPE = 0x61766343; // avcC
+    private final static int HVC1_TYPE = 0x68766331; // hvc1
+    private final static int HEV1_TYPE = 0x68657631; // hev1
+    private final static int HVCC_TYPE = 0x68766343; // hvcC
+    private final static int MP4A_TYPE = 0x6d703461; // mp4a
+    private final static int ESDS_TYPE = 0x65736473; // esds
+    private final static int VIDE_HANDLER = 0x76696465; // vide
+    private final static int SOUN_HANDLER = 0x736f756e; // soun
+
+    private final static int VISUAL_SAMPLE_ENTRY_SIZE = 78; // fixed fields before the child boxes of avc1, hvc1...
+    private final static int AUDIO_SAMPLE_ENTRY_SIZE = 28; // fixed fields before the child boxes of mp4a
+
+    private final static int HEVC_VPS_NAL_TYPE = 32;
+    private final static int HEVC_SPS_NAL_TYPE = 33;
+    private final static int HEVC_PPS_NAL_TYPE = 34;
+
+    private final StreamBuffer buffer;
+
+    private InitSegmentParser(final StreamBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    // Walks moov -> trak -> mdia -> minf -> stbl -> stsd down to the sample entry of each track. Only box headers are
+    // followed so bytes of other boxes that happen to look like a codec fourcc are never matched.
+    public static List<Track> parse(StreamBuffer initSegment) throws MP4FragException {
+        InitSegmentParser parser = new InitSegmentParser(initSegment);
+
+        Box moov = parser.child(new Box(0, 0, initSegment.length()), MOOV_TYPE);
+        if (moov == null) {
+            throw new MP4FragException("moov not found in initialization segment");
+        }
+
+        List<Track> tracks = new ArrayList<>();
+        for (Box trak : parser.children(moov)) {
+            if (trak.type == TRAK_TYPE) {
+                tracks.add(parser.parseTrak(trak));
+            }
+        }
+
+        return tracks;
+    }
+
+    private Track parseTrak(Box trak) throws MP4FragException {
+        TrackBuilder track = new TrackBuilder();
+
+        Box tkhd = this.child(trak, TKHD_TYPE);
+        if (tkhd != null) {
+            track.id = this.buffer.readUInt32BE(tkhd.contentStart + (this.buffer.get(tkhd.contentStart) == 1 ? 20 : 12));
+        }
+
+        Box mdia = this.child(trak, MDIA_TYPE);
+        Box mdhd = this.child(mdia, MDHD_TYPE);
+        if (mdhd != null) {
+            track.timescale = this.buffer.readUInt32BE(mdhd.contentStart + (this.buffer.get(mdhd.contentStart) == 1 ? 20 : 12)) & 0xffffffffL;
+        }
+
+        Box hdlr = this.child(mdia, HDLR_TYPE);
+        if (hdlr != null) {
+            int handler = this.buffer.readInt32BE(hdlr.contentStart + 8);
+            track.type = handler == VIDE_HANDLER ? "video" : handler == SOUN_HANDLER ? "audio" : BoxReader.typeName(handler);
+        }
+
+        Box stsd = this.child(this.child(this.child(mdia, MINF_TYPE), STBL_TYPE), STSD_TYPE);
+        if (stsd != null) {
+            // version and flags, entry count then the sample entries: only the first one is used
+            List<Box> sampleEntries = this.children(stsd, stsd.contentStart + 8);
+            if (!sampleEntries.isEmpty()) {
+                this.parseSampleEntry(sampleEntries.get(0), track);
+            }
+        }
+
+        return track.build();
+    }
+
+    private void parseSampleEntry(Box sampleEntry, TrackBuilder track) throws MP4FragException {
+        switch (sampleEntry.type) {
+            case AVC1_TYPE, AVC2_TYPE, AVC3_TYPE, AVC4_TYPE -> {
+                this.parseVisualSampleEntry(sampleEntry, track);
+                Box avcC = this.child(sampleEntry, AVCC_TYPE, sampleEntry.contentStart + VISUAL_SAMPLE_ENTRY_SIZE);
+                if (avcC != null) {
+                    this.parseAvcC(avcC, BoxReader.typeName(sampleEntry.type), track);
+                }
+            }
+            case HVC1_TYPE, HEV1_TYPE -> {
+                this.parseVisualSampleEntry(sampleEntry, track);
+                Box hvcC = this.child(sampleEntry, HVCC_TYPE, sampleEntry.contentStart + VISUAL_SAMPLE_ENTRY_SIZE);
+                if (hvcC != null) {
+                    this.parseHvcC(hvcC, BoxReader.typeName(sampleEntry.type), track);
+                }
+            }
+            case MP4A_TYPE -> {
+                track.channelCount = this.buffer.readUInt16BE(sampleEntry.contentStart + 16);
+                track.sampleRate = this.buffer.readUInt16BE(sampleEntry.contentStart + 24); // integer part of 16.16
+                Box esds = this.child(sampleEntry, ESDS_TYPE, sampleEntry.contentStart + AUDIO_SAMPLE_ENTRY_SIZE);
+                if (esds != null) {
+                    this.parseEsds(esds, track);
+                }
+            }
+            default -> {
+                // Unsupported codec: the track is reported without a codec string
+            }
+        }
+    }
+
+    private void parseVisualSampleEntry(Box sampleEntry, TrackBuilder track) {
+        track.width = this.buffer.readUInt16BE(sampleEntry.contentStart + 24);
+        track.height = this.buffer.readUInt16BE(sampleEntry.contentStart + 26);
+    }
+
+    private void parseAvcC(Box avcC, String sampleEntryType, TrackBuilder track) {
+        int position = avcC.contentStart;
+
+        // profile, constraint flags and level
+        track.codec = sampleEntryType + "." + this.buffer.slice(position + 1, position + 4).toString("hex").toUpperCase();
+
+        position += 5;
+        int spsCount = this.buffer.get(position++) & 0x1f;
+        position = this.readParameterSets(position, spsCount, track.sps, avcC.end);
+        if (position < avcC.end) {
+            int ppsCount = this.buffer.get(position++) & 0xff;
+            this.readParameterSets(position, ppsCount, track.pps, avcC.end);
+        }
+    }
+
+    private void parseHvcC(Box hvcC, String sampleEntryType, TrackBuilder track) throws MP4FragException {
+        int position = hvcC.contentStart;
+
+        byte profile = this.buffer.get(position + 1);
+        int generalProfileSpace = (profile >> 6) & 0x03; // get 1st 2 bits (11000000)
+        String generalTierFlag = ((profile & 0x20) != 0) ? "H" : "L"; // get next bit (00100000)
+        String generalProfileIdc = Integer.toString(profile & 0x1f); // get last 5 bits (00011111)
+        String generalProfileCompatibility = reverseBitsToHex(this.buffer.readInt32BE(position + 2));
+        String generalConstraintIndicator = this.buffer.slice(position + 6, position + 12).filterNonZeroBytes().toString("hex");
+        String generalLevelIdc = Integer.toString(this.buffer.get(position + 12) & 0xff);
+
+        List<String> codecs = new ArrayList<>();
+        codecs.add(sampleEntryType);
+        switch (generalProfileSpace) {
+            case 0 -> codecs.add(generalProfileIdc);
+            case 1 -> codecs.add("A" + generalProfileIdc);
+            case 2 -> codecs.add("B" + generalProfileIdc);
+            case 3 -> codecs.add("C" + generalProfileIdc);
+        }
+        codecs.add(generalProfileCompatibility);
+        codecs.add(generalTierFlag + generalLevelIdc);
+        if (generalConstraintIndicator.length() > 0) {
+            codecs.add(generalConstraintIndicator);
+        }
+        track.codec = String.join(".", codecs);
+
+        // Arrays of VPS, SPS, PPS and SEI NAL units
+        position += 22;
+        int arrayCount = this.buffer.get(position++) & 0xff;
+        for (int i = 0; i < arrayCount && position + 3 <= hvcC.end; i++) {
+            int nalUnitType = this.buffer.get(position) & 0x3f;
+            int nalUnitCount = this.buffer.readUInt16BE(position + 1);
+            position += 3;
+
+            List<byte[]> parameterSets = switch (nalUnitType) {
+                case HEVC_VPS_NAL_TYPE -> track.vps;
+                case HEVC_SPS_NAL_TYPE -> track.sps;
+                case HEVC_PPS_NAL_TYPE -> track.pps;
+                default -> new ArrayList<>();
+            };
+            position = this.readParameterSets(position, nalUnitCount, parameterSets, hvcC.end);
+        }
+    }
+
+    private void parseEsds(Box esds, TrackBuilder track) throws MP4FragException {
+        // version and flags then the ES_Descriptor (tag 3) holding the DecoderConfigDescriptor (tag 4) holding the
+        // DecoderSpecificInfo (tag 5)
+        int position = esds.contentStart + 4;
+        if (this.buffer.get(position) != 0x03) {
+            return;
+        }
+        position = this.skipDescriptorLength(position + 1);
+        int flags = this.buffer.get(position + 2) & 0xff;
+        position += 3;
+        if ((flags & 0x80) != 0) {
+            position += 2; // dependsOn_ES_ID
+        }
+        if ((flags & 0x40) != 0) {
+            position += 1 + (this.buffer.get(position) & 0xff); // URL
+        }
+        if ((flags & 0x20) != 0) {
+            position += 2; // OCR_ES_Id
+        }
+
+        if (position >= esds.end || this.buffer.get(position) != 0x04) {
+            return;
+        }
+        position = this.skipDescriptorLength(position + 1);
+        int objectTypeIndication = this.buffer.get(position) & 0xff;
+        position += 13;
+
+        String codec = String.format("mp4a.%02X", objectTypeIndication);
+        if (position < esds.end && this.buffer.get(position) == 0x05) {
+            position = this.skipDescriptorLength(position + 1);
+            int audioObjectType = (this.buffer.get(position) & 0xf8) >> 3;
+            if (audioObjectType == 31) {
+                audioObjectType = 32 + (((this.buffer.get(position) & 0x07) << 3) | ((this.buffer.get(position + 1) & 0xe0) >> 5));
+            }
+            codec += "." + audioObjectType;
+        }
+        track.codec = codec;
+    }
+
+    private int skipDescriptorLength(int position) {
+        // Up to four bytes, the high bit tells if another byte follows
+        for (int i = 0; i < 4; i++) {
+            if ((this.buffer.get(position++) & 0x80) == 0) {
+                break;
+            }
+        }
+        return position;
+    }
+
+    private int readParameterSets(int position, int count, List<byte[]> parameterSets, int end) {
+        for (int i = 0; i < count && position + 2 <= end; i++) {
+            int length = this.buffer.readUInt16BE(position);
+            position += 2;
+            if (position + length > end) {
+                break;
+            }
+            parameterSets.add(this.buffer.slice(position, position + length).getBytes());
+            position += length;
+        }
+        return position;
+    }
+
+    private Box child(Box parent, int type) throws MP4FragException {
+        return parent == null ? null : this.child(parent, type, parent.contentStart);
+    }
+
+    private Box child(Box parent, int type, int start) throws MP4FragException {
+        for (Box box : this.children(parent, start)) {
+            if (box.type == type) {
+                return box;
+            }
+        }
+        return null;
+    }
+
+    private List<Box> children(Box parent) throws MP4FragException {
+        return this.children(parent, parent.contentStart);
+    }
+
+    private List<Box> children(Box parent, int start) throws MP4FragException {
+        List<Box> boxes = new ArrayList<>();
+        int position = start;
+        while (position + 8 <= parent.end) {
+            long size = this.buffer.readInt32BE(position) & 0xffffffffL;
+            int type = this.buffer.readInt32BE(position + 4);
+            int headerLength = 8;
+            if (size == 1 && position + 16 <= parent.end) {
+                size = ((long) this.buffer.readInt32BE(position + 8) << 32) | (this.buffer.readInt32BE(position + 12) & 0xffffffffL);
+                headerLength = 16;
+
+            } else if (size == 0) {
+                // Box extends to the end of its parent
+                size = parent.end - position;
+            }
+
+            if (size < headerLength || size > parent.end - position) {
+                throw new MP4FragException("Invalid size %d for box '%s'", size, BoxReader.typeName(type));
+            }
+
+            boxes.add(new Box(type, position + headerLength, position + (int) size));
+            position += (int) size;
+        }
+
+        return boxes;
+    }
+
+    private static String reverseBitsToHex(int n) {
+        n = ((n >> 1) & 0x55555555) | ((n & 0x55555555) << 1);
+        n = ((n >> 2) & 0x33333333) | ((n & 0x33333333) << 2);
+        n = ((n >> 4) & 0x0f0f0f0f) | ((n & 0x0f0f0f0f) << 4);
+        n = ((n >> 8) & 0x00ff00ff) | ((n & 0x00ff00ff) << 8);
+        return Integer.toHexString ((n >> 16) | (n << 16));
+    }
+
+    private static final class Box {
+        private final int type;
+        private final int contentStart;
+        private final int end;
+
+        private Box(final int type, final int contentStart, final int end) {
+            this.type = type;
+            this.contentStart = contentStart;
+            this.end = end;
+        }
+    }
+
+    private static final class TrackBuilder {
+        private int id;
+        private String type;
+        private String codec;
+        private long timescale;
+        private int width;
+        private int height;
+        private int channelCount;
+        private int sampleRate;
+        private final List<byte[]> vps = new ArrayList<>();
+        private final List<byte[]> sps = new ArrayList<>();
+        private final List<byte[]> pps = new ArrayList<>();
+
+        private Track build() {
+            return new Track(this.id, this.type, this.codec, this.timescale, this.width, this.height, this.channelCount, this.sampleRate, List.copyOf(this.vps), List.copyOf(this.sps), List.copyOf(this.pps));
+        }
+    }
+}
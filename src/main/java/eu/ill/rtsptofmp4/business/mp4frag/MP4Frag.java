@@ -1,5 +1,6 @@
 package eu.ill.rtsptofmp4.business.mp4frag;
 
+import eu.ill.rtsptofmp4.models.Track;
 import eu.ill.rtsptofmp4.models.exceptions.MP4FragException;
 import eu.ill.rtsptofmp4.models.exceptions.StreamingException;
 import io.quarkus.logging.Log;
@@ -8,27 +9,26 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
-public class MP4Frag {
+public class MP4Frag implements BoxReader.BoxListener {
 
     private final static byte[] FTYP = {0x66, 0x74, 0x79, 0x70}; // ftyp
     private final static byte[] MOOV = {0x6d, 0x6f, 0x6f, 0x76}; // moov
-    private final static byte[] MOOF = {0x6d, 0x6f, 0x6f, 0x66}; // moof
     private final static byte[] MDAT = {0x6d, 0x64, 0x61, 0x74}; // mdat
-    private final static byte[] MFRA = {0x6d, 0x66, 0x72, 0x61}; // mfra
-    private final static byte[] HVCC = {0x68, 0x76, 0x63, 0x43}; // hvcC
-    private final static byte[] HEV1 = {0x68, 0x65, 0x76, 0x31}; // hev1
-    private final static byte[] HVC1 = {0x68, 0x76, 0x63, 0x31}; // hvc1
-    private final static byte[] AVCC = {0x61, 0x76, 0x63, 0x43}; // avcC
-    private final static byte[] AVC1 = {0x61, 0x76, 0x63, 0x31}; // avc1
-    private final static byte[] AVC2 = {0x61, 0x76, 0x63, 0x32}; // avc2
-    private final static byte[] AVC3 = {0x61, 0x76, 0x63, 0x33}; // avc3
-    private final static byte[] AVC4 = {0x61, 0x76, 0x63, 0x34}; // avc4
-    private final static byte[] MP4A = {0x6d, 0x70, 0x34, 0x61}; // mp4a
-    private final static byte[] ESDS = {0x65, 0x73, 0x64, 0x73}; // esds
+    private final static int FTYP_TYPE = 0x66747970; // ftyp
+    private final static int MOOV_TYPE = 0x6d6f6f76; // moov
+    private final static int MOOF_TYPE = 0x6d6f6f66; // moof
+    private final static int MDAT_TYPE = 0x6d646174; // mdat
+    private final static int MFRA_TYPE = 0x6d667261; // mfra
     private final static int MOOF_SEARCH_LIMIT = 50; // number of allowed attempts to find missing moof atom
+    private final static int MAX_BOX_SIZE = 64 * 1024 * 1024;
+    private final static int READ_BUFFER_SIZE = 64 * 1024; // matches the default pipe capacity on linux
 
     private enum ProcessStage {
         FIND_FTYP,
@@ -39,54 +39,99 @@ public class MP4Frag {
     }
 
     private final SegmentListener segmentListener;
+    private final BufferPool bufferPool;
+    private BoxReader boxReader = new BoxReader(this);
 
-    private String mime;
-    private byte[] initialization;
-
-    private final Object mimeCondition = new Object();
-    private final Object initializationCondition = new Object();
+    // Completed once by the reader thread: any number of clients can wait on them, or attach callbacks, without polling.
+    // Replaced by completed futures if ffmpeg restarts with a different initialization segment.
+    private volatile CompletableFuture<String> mime = new CompletableFuture<>();
+    private volatile CompletableFuture<byte[]> initialization = new CompletableFuture<>();
 
     private ProcessStage currentProcessStage = ProcessStage.FIND_FTYP;
 
-    private int ftypLength = -1;
     private StreamBuffer ftyp;
 
     private int moofLength = -1;
-    private StreamBuffer moof;
-    private int moofBufferSize = - 1;
-    private List<StreamBuffer> moofBuffer;
-    private int moofSearches = -1;
+    private byte[] moofData = new byte[1024];
+    private final MoofParser moofParser = new MoofParser();
 
     private int mdatLength = -1;
-    private int mdatBufferSize = - 1;
-    private List<StreamBuffer> mdatBuffer;
+    private int segmentDataSize = -1;
+    private PooledBuffer segmentData;
+
+    private volatile List<Track> tracks;
 
-    private String videoCodec;
-    private String audioCodec;
+    private volatile boolean stopped = false;
 
-    private boolean stopped = false;
+    // Written by the reader thread only and read when metrics are scraped
+    private volatile long bytesRead = 0;
+    private volatile long chunksParsed = 0;
+    private volatile long parseTimeNanos = 0;
+    private volatile long fragmentCount = 0;
 
     public MP4Frag(final SegmentListener segmentListener) {
+        this(segmentListener, new BufferPool(0, false));
+    }
+
+    public MP4Frag(final SegmentListener segmentListener, final BufferPool bufferPool) {
         this.segmentListener = segmentListener;
+        this.bufferPool = bufferPool;
     }
 
-    public void process(Process process) throws IOException, InterruptedException, MP4FragException {
-        InputStream inputStream = process.getInputStream();
-        while (process.isAlive()) {
-            while (inputStream.available() > 0) {
-                int available = inputStream.available();
-                byte[] chunk = inputStream.readNBytes(available);
-                Log.tracef("Received %d bytes from ffmpeg for processing", available);
+    public void process(Process process) throws IOException, MP4FragException {
+        this.process(process.getInputStream());
+    }
+
+    public void process(InputStream inputStream) throws IOException, MP4FragException {
+        // Blocking reads into a single reused buffer: data is parsed as soon as ffmpeg writes it. The chunk is only
+        // valid for the duration of parseChunk so anything kept between reads is copied out of it by the parser.
+        byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+        StreamBuffer chunk = new StreamBuffer(readBuffer);
+
+        try {
+            int bytesRead;
+            while (!this.stopped && (bytesRead = inputStream.read(readBuffer)) != -1) {
+                if (Log.isTraceEnabled()) {
+                    Log.tracef("Received %d bytes from ffmpeg for processing", bytesRead);
+                }
+
+                long start = System.nanoTime();
+                this.parseChunk(chunk.reset(0, bytesRead));
+                this.parseTimeNanos += System.nanoTime() - start;
+                this.chunksParsed++;
+                this.bytesRead += bytesRead;
+            }
 
-                this.parseChunk(new StreamBuffer(chunk));
+        } finally {
+            // Return a partially received segment to the pool
+            if (this.segmentData != null) {
+                this.segmentData.release();
+                this.segmentData = null;
             }
+        }
+    }
 
-            Thread.sleep(20);
+    // Prepares the parser for the output of a new ffmpeg process. The initialization segment stays available to clients
+    // until the new one is received.
+    public void reset() {
+        if (this.segmentData != null) {
+            this.segmentData.release();
+            this.segmentData = null;
         }
+        this.boxReader = new BoxReader(this);
+        this.currentProcessStage = ProcessStage.FIND_FTYP;
+        this.ftyp = null;
+        this.moofLength = -1;
+        this.mdatLength = -1;
+        this.segmentDataSize = -1;
     }
 
     public void stop() {
         this.stopped = true;
+
+        // Waiting clients fail straight away
+        this.mime.cancel(false);
+        this.initialization.cancel(false);
     }
 
     public boolean stopped() {
@@ -94,451 +139,231 @@ public class MP4Frag {
     }
 
     public String getMime(int timoutMs) throws StreamingException {
-        synchronized (mimeCondition) {
-            if (this.mime != null) {
-                return this.mime;
-            }
-
-            long startTimeMs = new Date().getTime();
-            long currentTimeMs;
-            long timeoutDeltaMs = 100;
-            boolean waiting;
-            do {
-                try {
-                    this.mimeCondition.wait(timeoutDeltaMs);
-
-                    if (this.stopped) {
-                        throw new StreamingException("MP4Frag stopped while waiting to receive mime");
-                    }
-
-                    if (this.mime != null) {
-                        return this.mime;
-
-                    } else {
-                        // Check if timeout reached
-                        currentTimeMs = new Date().getTime();
-                        waiting = (currentTimeMs - startTimeMs) < timoutMs || timoutMs == 0;
-
-                        if (!waiting) {
-                            throw new StreamingException("MP4Frag timeout while waiting to receive mime");
-                        }
-                    }
-
-                } catch (InterruptedException e) {
-                    throw new StreamingException("MP4Frag interrupted while waiting to receive mime");
-                }
+        return await(this.mime, timoutMs, "mime");
+    }
 
-            } while (waiting);
+    // Completes with the mime once the tracks have been parsed from the initialization segment
+    public CompletableFuture<String> getMimeFuture() {
+        return this.mime;
+    }
 
-            throw new StreamingException("MP4Frag mime has not been set");
-        }
+    // Available once getMime has returned
+    public List<Track> getTracks() {
+        return this.tracks;
     }
 
     public byte[] getInitialization(int timoutMs) throws StreamingException {
-        synchronized (initializationCondition) {
-            if (this.initialization != null) {
-                return this.initialization;
-            }
-
-            long startTimeMs = new Date().getTime();
-            long currentTimeMs;
-            long timeoutDeltaMs = 100;
-            boolean waiting;
-
-            do {
-                try {
-                    this.initializationCondition.wait(timeoutDeltaMs);
-
-                    if (this.stopped) {
-                        throw new StreamingException("MP4Frag stopped while waiting to receive mime");
-                    }
-
-                    if (this.initialization != null) {
-                        return this.initialization;
-
-                    } else {
-                        // Check if timeout reached
-                        currentTimeMs = new Date().getTime();
-                        waiting = (currentTimeMs - startTimeMs) < timoutMs || timoutMs == 0;
-
-                        if (!waiting) {
-                            throw new StreamingException("MP4Frag timeout while waiting to receive initialization segment");
-                        }
-                    }
-
-                } catch (InterruptedException e) {
-                    throw new StreamingException("MP4Frag interrupted while waiting to receive initialization segment");
-                }
-
-            } while (waiting);
-        }
-        throw new StreamingException("MP4Frag initialization has not been set");
+        return await(this.initialization, timoutMs, "initialization segment");
     }
 
-    public void parseChunk(StreamBuffer chunk) throws MP4FragException {
-        if (this.currentProcessStage.equals(ProcessStage.FIND_FTYP)) {
-            this.findFtyp(chunk);
-
-        } else if (this.currentProcessStage.equals(ProcessStage.FIND_MOOV)) {
-            this.findMoov(chunk);
-
-        } else if (this.currentProcessStage.equals(ProcessStage.FIND_MOOF)) {
-            this.findMoof(chunk);
-
-        } else if (this.currentProcessStage.equals(ProcessStage.FIND_MDAT)) {
-            this.findMdat(chunk);
-
-        } else if (this.currentProcessStage.equals(ProcessStage.MOOF_SEARCH)) {
-            this.moofSearch(chunk);
-        }
+    public CompletableFuture<byte[]> getInitializationFuture() {
+        return this.initialization;
     }
 
-    private void findFtyp(StreamBuffer chunk) throws MP4FragException {
-        long chunkLength = chunk.length();
-        if (chunkLength < 8 || chunk.indexOf(FTYP) != 4) {
-            throw new MP4FragException("FTYP %s not found", Arrays.toString(FTYP));
-        }
-
-        this.ftypLength = chunk.readUInt32BE(0);
+    public long getBytesRead() {
+        return this.bytesRead;
+    }
 
-        if (this.ftypLength < chunkLength) {
-            this.ftyp = chunk.slice(0, this.ftypLength);
-            this.currentProcessStage = ProcessStage.FIND_MOOV;
-            this.parseChunk(chunk.slice(this.ftypLength));
+    public long getChunksParsed() {
+        return this.chunksParsed;
+    }
 
-        } else if (this.ftypLength == chunkLength) {
-            this.ftyp = chunk;
-            this.currentProcessStage = ProcessStage.FIND_MOOV;
+    public long getParseTimeNanos() {
+        return this.parseTimeNanos;
+    }
 
-        } else {
-            //should not be possible to get here because ftyp is approximately 24 bytes
-            //will have to buffer this chunk and wait for rest of it on next pass
-            throw new MP4FragException("ftypLength: %d > chunkLength: %d", this.ftypLength, chunkLength);
-        }
+    public long getFragmentCount() {
+        return this.fragmentCount;
     }
 
-    private void findMoov(StreamBuffer chunk) throws MP4FragException {
-        int chunkLength = chunk.length();
-        if (chunkLength < 8 || chunk.indexOf(MOOV) != 4) {
-            throw new MP4FragException("MOOV %s not found", Arrays.toString(MOOV));
-        }
+    private static <T> T await(CompletableFuture<T> future, int timeoutMs, String name) throws StreamingException {
+        try {
+            return timeoutMs == 0 ? future.get() : future.get(timeoutMs, TimeUnit.MILLISECONDS);
 
-        int moovLength = chunk.readUInt32BE(0);
-        if (moovLength < chunkLength) {
-            this.initialize(StreamBuffer.concat(this.ftyp, chunk, this.ftypLength + moovLength));
-            this.ftyp = null;
-            this.ftypLength = -1;
-            this.currentProcessStage = ProcessStage.FIND_MOOF;
+        } catch (CancellationException e) {
+            throw new StreamingException("MP4Frag stopped while waiting to receive %s", name);
 
-            this.parseChunk(chunk.slice(moovLength));
+        } catch (TimeoutException e) {
+            throw new StreamingException("MP4Frag timeout while waiting to receive %s", name);
 
-        } else if (moovLength == chunkLength) {
-            this.initialize(StreamBuffer.concat(this.ftyp, chunk, this.ftypLength + moovLength));
-            this.ftyp = null;
-            this.ftypLength = -1;
-            this.currentProcessStage = ProcessStage.FIND_MOOF;
+        } catch (InterruptedException e) {
+            throw new StreamingException("MP4Frag interrupted while waiting to receive %s", name);
 
-        } else {
-            //probably should not arrive here here because moov is typically < 800 bytes
-            //will have to store chunk until size is big enough to have entire moov piece
-            //ffmpeg may have crashed before it could output moov and got us here
-            throw new MP4FragException("moovLength: %d > chunkLength: %d", moovLength, chunkLength);
+        } catch (ExecutionException e) {
+            throw new StreamingException("MP4Frag failed to get %s: %s", name, e.getCause().getMessage());
         }
     }
 
-    private void initialize(StreamBuffer chunk) throws MP4FragException {
-        this.setInitialisation(chunk.getBytes());
-
-//        int mdhdIndex = chunk.indexOf(MDHD);
-//        byte mdhdVersion = chunk.get(mdhdIndex + 4);
-//        int timescale = chunk.readUInt32BE(mdhdIndex + (mdhdVersion == 0 ? 16 : 24));
-
-        List<String> codecs = new ArrayList<>();
-        String mp4Type = "";
-
-        if (this.parseCodecAVCC(chunk) || this.parseCodecHVCC(chunk)) {
-            codecs.add(this.videoCodec);
-            mp4Type = "video";
-        }
-        if (this.parseCodecMP4A(chunk)) {
-            codecs.add(this.audioCodec);
-            if (this.videoCodec == null) {
-                mp4Type = "audio";
-            }
-        }
-        if (codecs.size() == 0) {
-            throw new MP4FragException("codecs not found.");
-        }
-
-        this.setMime(mp4Type + "/mp4; codecs=\"" + String.join(", ", codecs) + "\"");
+    public void parseChunk(StreamBuffer chunk) throws MP4FragException {
+        this.boxReader.parse(chunk);
     }
 
-    private void moofSearch(StreamBuffer chunk) throws MP4FragException {
-        if (this.moofSearches < MOOF_SEARCH_LIMIT) {
-            this.moofSearches++;
-
-            //console.warn(`MOOF search attempt number ${this._moofSearches}.`);
-            int index = chunk.indexOf(MOOF);
-            if (index > 3 && chunk.length() > index + 3) {
-                this.moofSearches = -1;
-                this.currentProcessStage = ProcessStage.FIND_MOOF;
-                this.parseChunk(chunk.slice(index - 4));
-            }
-        } else {
-            throw new MP4FragException("MOOF %s search failed after %d attempts.", Arrays.toString(MOOF), this.moofSearches);
-        }
-    }
+    @Override
+    public BoxReader.Action onBoxHeader(int type, long size) throws MP4FragException {
+        switch (this.currentProcessStage) {
+            case FIND_FTYP:
+                if (type != FTYP_TYPE || size > MAX_BOX_SIZE) {
+                    throw new MP4FragException("FTYP %s not found", Arrays.toString(FTYP));
+                }
+                return BoxReader.Action.READ;
 
-    private void findMoof(StreamBuffer chunk) throws MP4FragException {
-        if (this.moofBuffer != null) {
-            this.moofBuffer.add(chunk);
-
-            int chunkLength = chunk.length();
-            this.moofBufferSize += chunkLength;
-            if (this.moofLength == this.moofBufferSize) {
-                //todo verify this works
-                this.moof = StreamBuffer.concat(this.moofBuffer, this.moofLength);
-                this.moofBuffer = null;
-                this.moofBufferSize = -1;
-                this.currentProcessStage = ProcessStage.FIND_MDAT;
+            case FIND_MOOV:
+                if (type != MOOV_TYPE || size > MAX_BOX_SIZE) {
+                    throw new MP4FragException("MOOV %s not found", Arrays.toString(MOOV));
+                }
+                return BoxReader.Action.READ;
 
-            } else if (this.moofLength < this.moofBufferSize) {
-                this.moof = StreamBuffer.concat(this.moofBuffer, this.moofLength);
-                int sliceIndex = chunkLength - (this.moofBufferSize - this.moofLength);
-                this.moofBuffer = null;
-                this.moofBufferSize = -1;
-                this.currentProcessStage = ProcessStage.FIND_MDAT;
+            case FIND_MOOF:
+            case MOOF_SEARCH:
+                if (type == MOOF_TYPE && size > 8 && size <= MAX_BOX_SIZE) {
+                    this.currentProcessStage = ProcessStage.FIND_MOOF;
+                    return BoxReader.Action.READ;
 
-                this.parseChunk(chunk.slice(sliceIndex));
-            }
+                } else if (type == MFRA_TYPE) {
+                    // console.log(`MFRA was found. This is expected at the end of stream.`);
+                    return BoxReader.Action.SKIP;
+                }
 
-        } else {
-            int chunkLength = chunk.length();
-            if (chunkLength < 8 || chunk.indexOf(MOOF) != 4) {
                 // ffmpeg occasionally pipes corrupt data, lets try to get back to normal if we can find next MOOF box before attempts run out
-                int mfraIndex = chunk.indexOf(MFRA);
-                if (mfraIndex != -1) {
-                    // console.log(`MFRA was found at ${mfraIndex}. This is expected at the end of stream.`);
-                    return;
-                }
-                // console.warn('Failed to find MOOF. Starting MOOF search. Ignore this if your file stream input has ended.');
-                this.moofSearches = 0;
                 this.currentProcessStage = ProcessStage.MOOF_SEARCH;
+                this.boxReader.search(MOOF_TYPE, MOOF_SEARCH_LIMIT);
+                return BoxReader.Action.SKIP;
 
-                this.parseChunk(chunk);
-                return;
-            }
-
-            this.moofLength = chunk.readUInt32BE(0);
-            if (this.moofLength == 0) {
-                throw new MP4FragException("Bad data from input stream reports %s length of 0.", Arrays.toString(MOOF));
-            }
-
-            if (this.moofLength < chunkLength) {
-                this.moof = chunk.slice(0, this.moofLength);
-                this.currentProcessStage = ProcessStage.FIND_MDAT;
-                this.parseChunk(chunk.slice(this.moofLength));
+            default:
+                if (type != MDAT_TYPE) {
+                    throw new MP4FragException("MDAT %s not found", Arrays.toString(MDAT));
+                }
+                if (this.moofLength + size > MAX_BOX_SIZE) {
+                    throw new MP4FragException("Segment of %d bytes is too large", this.moofLength + size);
+                }
+                this.mdatLength = (int) size;
 
-            } else if (this.moofLength == chunkLength) {
-                // todo verify this works
-                this.moof = chunk;
-                this.currentProcessStage = ProcessStage.FIND_MDAT;
+                // moof and mdat are copied once, side by side, out of the read buffer into a pooled buffer: the segment is
+                // never concatenated afterwards
+                this.segmentData = this.bufferPool.acquire(this.moofLength + this.mdatLength);
+                System.arraycopy(this.moofData, 0, this.segmentData.getData(), 0, this.moofLength);
+                this.segmentDataSize = this.moofLength;
 
-            } else {
-                this.moofBuffer = new ArrayList<>(Arrays.asList(chunk));
-                this.moofBufferSize = chunkLength;
-            }
+                return BoxReader.Action.STREAM;
         }
     }
 
-    private void findMdat(StreamBuffer chunk) throws MP4FragException {
-        if (this.mdatBuffer != null) {
-            this.mdatBuffer.add(chunk);
-            int chunkLength = chunk.length();
-            this.mdatBufferSize += chunkLength;
-            if (this.mdatLength == this.mdatBufferSize) {
-                this.setSegment(this.moof, this.mdatBuffer, this.moofLength + this.mdatLength);
-
-                this.moof = null;
-                this.mdatBuffer = null;
-                this.mdatBufferSize = -1;
-                this.mdatLength = -1;
-                this.moofLength = -1;
-                this.currentProcessStage = ProcessStage.FIND_MOOF;
-
-            } else if (this.mdatLength < this.mdatBufferSize) {
-                this.setSegment(this.moof, this.mdatBuffer, this.moofLength + this.mdatLength);
-
-                int sliceIndex = chunkLength - (this.mdatBufferSize - this.mdatLength);
-                this.moof = null;
-                this.mdatBuffer = null;
-                this.mdatBufferSize = -1;
-                this.mdatLength = -1;
-                this.moofLength = -1;
-                this.currentProcessStage = ProcessStage.FIND_MOOF;
-
-                this.parseChunk(chunk.slice(sliceIndex));
-            }
-        } else {
-            int chunkLength = chunk.length();
-            if (chunkLength < 8 || chunk.indexOf(MDAT) != 4) {
-                throw new MP4FragException("MDAT %s not found", Arrays.toString(MDAT));
-            }
-            this.mdatLength = chunk.readUInt32BE(0);
-            if (this.mdatLength > chunkLength) {
-                this.mdatBuffer = new ArrayList<>();
-                this.mdatBuffer.add(chunk);
-                this.mdatBufferSize = chunkLength;
-
-            } else if (this.mdatLength == chunkLength) {
-                this.setSegment(this.moof, chunk, this.moofLength + chunkLength);
-                this.moof = null;
-                this.moofLength = -1;
-                this.mdatLength = -1;
-
+    @Override
+    public void onBox(int type, StreamBuffer box) throws MP4FragException {
+        switch (this.currentProcessStage) {
+            case FIND_FTYP:
+                this.ftyp = box.copy();
+                this.currentProcessStage = ProcessStage.FIND_MOOV;
+                break;
+
+            case FIND_MOOV:
+                this.initialize(StreamBuffer.concat(this.ftyp, box, -1));
+                this.ftyp = null;
                 this.currentProcessStage = ProcessStage.FIND_MOOF;
+                break;
 
-            } else {
-                this.setSegment(this.moof, chunk, this.moofLength + this.mdatLength);
-                int sliceIndex = this.mdatLength;
-                this.moof = null;
-                this.moofLength = -1;
-                this.mdatLength = -1;
-                this.currentProcessStage = ProcessStage.FIND_MOOF;
+            case FIND_MOOF:
+                // Keep the moof until its mdat arrives
+                this.moofLength = box.length();
+                if (this.moofData.length < this.moofLength) {
+                    this.moofData = new byte[this.moofLength];
+                }
+                box.copyTo(this.moofData, 0, this.moofLength);
+                this.moofParser.parse(box);
+                this.currentProcessStage = ProcessStage.FIND_MDAT;
+                break;
 
-                this.parseChunk(chunk.slice(sliceIndex));
-            }
+            default:
+                break;
         }
     }
 
-    private void setSegment(StreamBuffer moof, StreamBuffer mdat, int segmentLength) {
-        StreamBuffer segment = StreamBuffer.concat(moof, mdat, segmentLength);
-
-        this.segmentListener.onSegment(segment);
+    @Override
+    public void onBoxPart(StreamBuffer part) {
+        part.copyTo(this.segmentData.getData(), this.segmentDataSize, part.length());
+        this.segmentDataSize += part.length();
     }
 
-    private void setSegment(StreamBuffer moof, List<StreamBuffer> mdatBuffer, int segmentLength) {
-        List<StreamBuffer> segmentBuffer = new ArrayList<>();
-        segmentBuffer.add(moof);
-        segmentBuffer.addAll(mdatBuffer);
-        StreamBuffer segment = StreamBuffer.concat(segmentBuffer, segmentLength);
+    @Override
+    public void onBoxEnd() {
+        byte[] data = this.segmentData.getData();
+        Segment segment = new Segment(this.segmentData, this.moofParser.getFragmentInfo(this.moofLength + this.mdatLength), new StreamBuffer(data, 0, this.moofLength), new StreamBuffer(data, this.moofLength, this.mdatLength));
 
-        this.segmentListener.onSegment(segment);
-    }
-
-    private boolean parseCodecMP4A(StreamBuffer chunk) {
-        int index = chunk.indexOf(MP4A);
-        if (index != -1) {
-            List<String> codecs =  new ArrayList<>(Arrays.asList("mp4a"));
-            int esdsIndex = chunk.indexOf(ESDS, index);
-            // verify tags 3, 4, 5 to be in expected positions
-            if (esdsIndex != -1 && chunk.get(esdsIndex + 8) == 0x03 && chunk.get(esdsIndex + 16) == 0x04 && chunk.get(esdsIndex + 34) == 0x05) {
-                codecs.add(StreamBuffer.toHex(chunk.get(esdsIndex + 21)));
-                codecs.add(Integer.toString(((chunk.get(esdsIndex + 39) & 0xf8) >> 3)));
-                this.audioCodec = String.join(".", codecs);
-
-                return true;
-            }
-            // console.warn('unexpected mp4a esds structure');
-        }
+        this.segmentData = null;
+        this.segmentDataSize = -1;
+        this.mdatLength = -1;
+        this.moofLength = -1;
+        this.currentProcessStage = ProcessStage.FIND_MOOF;
+        this.fragmentCount++;
 
-        return false;
+        this.setSegment(segment);
     }
 
-    private boolean parseCodecAVCC(StreamBuffer chunk) {
-        int index = chunk.indexOf(AVCC);
-        if (index != -1) {
-            List<String> codecs = new ArrayList<>();
-            if (chunk.includes(AVC1)) {
-                codecs.add("avc1");
-
-            } else if (chunk.includes(AVC2)) {
-                codecs.add("avc2");
+    private void initialize(StreamBuffer chunk) throws MP4FragException {
+        byte[] initialization = chunk.getBytes();
 
-            } else if (chunk.includes(AVC3)) {
-                codecs.add("avc3");
+        if (!this.initialization.isDone()) {
+            this.initialization.complete(initialization);
 
-            } else if (chunk.includes(AVC4)) {
-                codecs.add("avc4");
+            try {
+                this.initializeTracks(chunk, this.mime);
 
-            } else {
-                return false;
+            } catch (MP4FragException e) {
+                this.mime.completeExceptionally(e);
+                throw e;
             }
+            this.segmentListener.onInitialization(initialization, false);
 
-            codecs.add(chunk.slice(index + 5, index + 8).toString("hex").toUpperCase());
-
-            this.videoCodec = String.join(".", codecs);
+        } else if (!Arrays.equals(this.initialization.getNow(null), initialization)) {
+            // ffmpeg has restarted with a different codec configuration: new clients get the new segment
+            CompletableFuture<String> mime = new CompletableFuture<>();
+            this.initializeTracks(chunk, mime);
+            this.mime = mime;
+            this.initialization = CompletableFuture.completedFuture(initialization);
+            this.segmentListener.onInitialization(initialization, true);
 
-            return true;
+        } else {
+            this.segmentListener.onInitialization(initialization, false);
         }
-
-        return false;
     }
 
-    private boolean parseCodecHVCC(StreamBuffer chunk) throws MP4FragException {
-        int index = chunk.indexOf(HVCC);
-        if (index != -1) {
-            List<String> codecs = new ArrayList<>();
-            if (chunk.includes(HVC1)) {
-                codecs.add("hvc1");
-
-            } else if (chunk.includes(HEV1)) {
-                codecs.add("hev1");
+    private void initializeTracks(StreamBuffer chunk, CompletableFuture<String> mime) throws MP4FragException {
+        // Parsed once per stream: the tracks and mime are kept for every client that connects
+        List<Track> tracks = InitSegmentParser.parse(chunk);
 
-            } else {
-                return false;
-            }
-
-            byte tmpByte = chunk.get(index + 5);
-            int generalProfileSpace = (tmpByte >> 6) & 0x03; // get 1st 2 bits (11000000)
-            String generalTierFlag = ((tmpByte & 0x20) != 0) ? "H" : "L"; // get next bit (00100000)
-            String generalProfileIdc = Integer.toString(tmpByte & 0x1f); // get last 5 bits (00011111)
-            String generalProfileCompatibility = MP4Frag.reverseBitsToHex(chunk.readUInt32BE(index + 6));
-            String generalConstraintIndicator = chunk.slice(index + 10, index + 16).filterNonZeroBytes().toString("hex");
-            String generalLevelIdc = Byte.toString(chunk.get(index + 16));
-
-            switch (generalProfileSpace) {
-                case 0 -> codecs.add(generalProfileIdc);
-                case 1 -> codecs.add("A" + generalProfileIdc);
-                case 2 -> codecs.add("B" + generalProfileIdc);
-                case 3 -> codecs.add("C" + generalProfileIdc);
+        List<String> codecs = new ArrayList<>();
+        String mp4Type = "";
+        for (Track track : tracks) {
+            if (track.getCodec() != null && "video".equals(track.getType())) {
+                codecs.add(track.getCodec());
+                mp4Type = "video";
             }
-            codecs.add(generalProfileCompatibility);
-            codecs.add(generalTierFlag + generalLevelIdc);
-            if (generalConstraintIndicator.length() > 0) {
-                codecs.add(generalConstraintIndicator);
+        }
+        for (Track track : tracks) {
+            if (track.getCodec() != null && "audio".equals(track.getType())) {
+                codecs.add(track.getCodec());
+                if (mp4Type.isEmpty()) {
+                    mp4Type = "audio";
+                }
             }
-
-            this.videoCodec = String.join(".", codecs);
-
-            return true;
         }
-        return false;
-    }
-
-    private static String reverseBitsToHex(int n) {
-        n = ((n >> 1) & 0x55555555) | ((n & 0x55555555) << 1);
-        n = ((n >> 2) & 0x33333333) | ((n & 0x33333333) << 2);
-        n = ((n >> 4) & 0x0f0f0f0f) | ((n & 0x0f0f0f0f) << 4);
-        n = ((n >> 8) & 0x00ff00ff) | ((n & 0x00ff00ff) << 8);
-        return Integer.toHexString ((n >> 16) | (n << 16));
-    }
-
-    private void setMime(String mime) {
-        synchronized (mimeCondition) {
-            this.mime = mime;
-            this.mimeCondition.notify();
+        if (codecs.size() == 0) {
+            throw new MP4FragException("codecs not found.");
         }
+
+        this.tracks = tracks;
+        mime.complete(mp4Type + "/mp4; codecs=\"" + String.join(", ", codecs) + "\"");
     }
 
-    private void setInitialisation(byte[] initialization) {
-        synchronized (initializationCondition) {
-            this.initialization = initialization;
-            this.initializationCondition.notify();
-        }
+    private void setSegment(Segment segment) {
+        this.segmentListener.onSegment(segment);
     }
 
     public interface SegmentListener {
-        void onSegment(StreamBuffer segment);
+        void onSegment(Segment segment);
+
+        // Called for each initialization segment received: changed is true if it differs from the previous one
+        default void onInitialization(byte[] initialization, boolean changed) {
+        }
     }
 }
@@ -0,0 +1,165 @@
+package eu.ill.rtsptofmp4.business.mp4frag;
+
+import eu.ill.rtsptofmp4.models.exceptions.MP4FragException;
+
+// Decodes mfhd, tfhd, tfdt and trun of a moof. The parser is reused for every fragment of a stream: the fields of the
+// last parsed moof are kept until the segment is complete and its FragmentInfo is created.
+public class MoofParser {
+
+    private final static int MFHD_TYPE = 0x6d666864; // mfhd
+    private final static int TRAF_TYPE = 0x74726166; // traf
+    private final static int TFHD_TYPE = 0x74666864; // tfhd
+    private final static int TFDT_TYPE = 0x74666474; // tfdt
+    private final static int TRUN_TYPE = 0x7472756e; // trun
+
+    private final static int TFHD_BASE_DATA_OFFSET_PRESENT = 0x000001;
+    private final static int TFHD_SAMPLE_DESCRIPTION_INDEX_PRESENT = 0x000002;
+    private final static int TFHD_DEFAULT_SAMPLE_DURATION_PRESENT = 0x000008;
+    private final static int TFHD_DEFAULT_SAMPLE_SIZE_PRESENT = 0x000010;
+    private final static int TFHD_DEFAULT_SAMPLE_FLAGS_PRESENT = 0x000020;
+
+    private final static int TRUN_DATA_OFFSET_PRESENT = 0x000001;
+    private final static int TRUN_FIRST_SAMPLE_FLAGS_PRESENT = 0x000004;
+    private final static int TRUN_SAMPLE_DURATION_PRESENT = 0x000100;
+    private final static int TRUN_SAMPLE_SIZE_PRESENT = 0x000200;
+    private final static int TRUN_SAMPLE_FLAGS_PRESENT = 0x000400;
+    private final static int TRUN_SAMPLE_COMPOSITION_TIME_OFFSET_PRESENT = 0x000800;
+
+    private final static int SAMPLE_IS_NON_SYNC_SAMPLE = 0x00010000;
+
+    private long sequenceNumber;
+    private long baseMediaDecodeTime;
+    private int sampleCount;
+    private long duration;
+    private boolean keyframe;
+
+    public void parse(StreamBuffer moof) throws MP4FragException {
+        this.sequenceNumber = 0;
+        this.baseMediaDecodeTime = -1;
+        this.sampleCount = 0;
+        this.duration = 0;
+        this.keyframe = false;
+
+        int end = moof.length();
+        int mfhd = findChild(moof, 8, end, MFHD_TYPE);
+        if (mfhd != -1) {
+            this.sequenceNumber = readUInt32(moof, mfhd + 12);
+        }
+
+        int traf = findChild(moof, 8, end, TRAF_TYPE);
+        if (traf != -1) {
+            this.parseTraf(moof, traf, traf + moof.readUInt32BE(traf));
+        }
+    }
+
+    public boolean isKeyframe() {
+        return this.keyframe;
+    }
+
+    public FragmentInfo getFragmentInfo(int size) {
+        return new FragmentInfo(this.sequenceNumber, this.baseMediaDecodeTime, this.sampleCount, this.duration, this.keyframe, size);
+    }
+
+    private void parseTraf(StreamBuffer moof, int traf, int trafEnd) throws MP4FragException {
+        int defaultSampleDuration = 0;
+        int defaultSampleFlags = -1;
+        int firstSampleFlags = -1;
+
+        int position = traf + 8;
+        while (position < trafEnd) {
+            int size = checkSize(moof, position, trafEnd);
+            int type = moof.readInt32BE(position + 4);
+
+            if (type == TFHD_TYPE) {
+                int flags = moof.readInt32BE(position + 8) & 0xffffff;
+                // track_ID then the optional fields in order
+                int field = position + 16;
+                field += (flags & TFHD_BASE_DATA_OFFSET_PRESENT) != 0 ? 8 : 0;
+                field += (flags & TFHD_SAMPLE_DESCRIPTION_INDEX_PRESENT) != 0 ? 4 : 0;
+                if ((flags & TFHD_DEFAULT_SAMPLE_DURATION_PRESENT) != 0) {
+                    defaultSampleDuration = moof.readInt32BE(field);
+                    field += 4;
+                }
+                field += (flags & TFHD_DEFAULT_SAMPLE_SIZE_PRESENT) != 0 ? 4 : 0;
+                if ((flags & TFHD_DEFAULT_SAMPLE_FLAGS_PRESENT) != 0) {
+                    defaultSampleFlags = moof.readInt32BE(field);
+                }
+
+            } else if (type == TFDT_TYPE) {
+                int version = moof.get(position + 8);
+                this.baseMediaDecodeTime = version == 1 ? readUInt64(moof, position + 12) : readUInt32(moof, position + 12);
+
+            } else if (type == TRUN_TYPE) {
+                int flags = moof.readInt32BE(position + 8) & 0xffffff;
+                int sampleCount = moof.readUInt32BE(position + 12);
+                // sample count then the optional fields in order
+                int field = position + 16;
+                field += (flags & TRUN_DATA_OFFSET_PRESENT) != 0 ? 4 : 0;
+                if ((flags & TRUN_FIRST_SAMPLE_FLAGS_PRESENT) != 0) {
+                    if (this.sampleCount == 0) {
+                        firstSampleFlags = moof.readInt32BE(field);
+                    }
+                    field += 4;
+                }
+
+                boolean hasDuration = (flags & TRUN_SAMPLE_DURATION_PRESENT) != 0;
+                int sampleSize = 4 * Integer.bitCount(flags & (TRUN_SAMPLE_DURATION_PRESENT | TRUN_SAMPLE_SIZE_PRESENT | TRUN_SAMPLE_FLAGS_PRESENT | TRUN_SAMPLE_COMPOSITION_TIME_OFFSET_PRESENT));
+                if ((long) sampleCount * sampleSize > position + size - field) {
+                    throw new MP4FragException("Invalid sample count %d for box 'trun'", sampleCount);
+                }
+
+                if (this.sampleCount == 0 && firstSampleFlags == -1 && sampleCount > 0 && (flags & TRUN_SAMPLE_FLAGS_PRESENT) != 0) {
+                    int flagsOffset = (hasDuration ? 4 : 0) + ((flags & TRUN_SAMPLE_SIZE_PRESENT) != 0 ? 4 : 0);
+                    firstSampleFlags = moof.readInt32BE(field + flagsOffset);
+                }
+
+                if (hasDuration) {
+                    for (int i = 0; i < sampleCount; i++) {
+                        this.duration += readUInt32(moof, field + i * sampleSize);
+                    }
+                } else {
+                    this.duration += (long) sampleCount * (defaultSampleDuration & 0xffffffffL);
+                }
+
+                this.sampleCount += sampleCount;
+            }
+
+            position += size;
+        }
+
+        // The first sample flags override the tfhd defaults. Fragments without any sample flags are not keyframes.
+        int sampleFlags = firstSampleFlags != -1 ? firstSampleFlags : defaultSampleFlags;
+        this.keyframe = this.sampleCount > 0 && sampleFlags != -1 && (sampleFlags & SAMPLE_IS_NON_SYNC_SAMPLE) == 0;
+    }
+
+    private static int findChild(StreamBuffer buffer, int start, int end, int type) throws MP4FragException {
+        int position = start;
+        while (position < end) {
+            int size = checkSize(buffer, position, end);
+            if (buffer.readInt32BE(position + 4) == type) {
+                return position;
+            }
+            position += size;
+        }
+        return -1;
+    }
+
+    private static int checkSize(StreamBuffer buffer, int position, int end) throws MP4FragException {
+        if (end - position < 8) {
+            throw new MP4FragException("Truncated box at offset %d of moof", position);
+        }
+        int size = buffer.readInt32BE(position);
+        if (size < 8 || size > end - position) {
+            throw new MP4FragException("Invalid size %d for box '%s'", size, BoxReader.typeName(buffer.readInt32BE(position + 4)));
+        }
+        return size;
+    }
+
+    private static long readUInt32(StreamBuffer buffer, int index) {
+        return buffer.readInt32BE(index) & 0xffffffffL;
+    }
+
+    private static long readUInt64(StreamBuffer buffer, int index) {
+        return (readUInt32(buffer, index) << 32) | readUInt32(buffer, index + 4);
+    }
+}
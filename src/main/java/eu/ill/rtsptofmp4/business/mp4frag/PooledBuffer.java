@@ -0,0 +1,49 @@
+package eu.ill.rtsptofmp4.business.mp4frag;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PooledBuffer {
+
+    private final BufferPool pool;
+    private final byte[] data;
+    private final AtomicInteger referenceCount = new AtomicInteger(1);
+
+    PooledBuffer(final BufferPool pool, final byte[] data) {
+        this.pool = pool;
+        this.data = data;
+    }
+
+    public byte[] getData() {
+        return this.data;
+    }
+
+    public int capacity() {
+        return this.data.length;
+    }
+
+    public int referenceCount() {
+        return this.referenceCount.get();
+    }
+
+    public PooledBuffer retain() {
+        int count;
+        do {
+            count = this.referenceCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("Cannot retain a PooledBuffer that has already been released");
+            }
+        } while (!this.referenceCount.compareAndSet(count, count + 1));
+
+        return this;
+    }
+
+    public void release() {
+        int count = this.referenceCount.decrementAndGet();
+        if (count == 0) {
+            this.pool.recycle(this);
+
+        } else if (count < 0) {
+            throw new IllegalStateException("PooledBuffer released more times than it was retained");
+        }
+    }
+}
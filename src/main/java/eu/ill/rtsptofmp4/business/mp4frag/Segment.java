@@ -0,0 +1,107 @@
+package eu.ill.rtsptofmp4.business.mp4frag;
+
+import java.nio.ByteBuffer;
+
+public class Segment {
+
+    private final PooledBuffer buffer;
+    private final StreamBuffer[] parts;
+    private final StreamBuffer contiguous;
+    private final int length;
+    private final FragmentInfo info;
+
+    public Segment(StreamBuffer... parts) {
+        this(null, null, parts);
+    }
+
+    public Segment(PooledBuffer buffer, StreamBuffer... parts) {
+        this(buffer, null, parts);
+    }
+
+    public Segment(PooledBuffer buffer, FragmentInfo info, StreamBuffer... parts) {
+        if (parts.length == 0) {
+            throw new IllegalArgumentException("A Segment needs at least one part");
+        }
+
+        this.buffer = buffer;
+        this.info = info;
+        this.parts = parts;
+        this.contiguous = StreamBuffer.join(parts);
+
+        int length = 0;
+        for (StreamBuffer part : parts) {
+            length += part.length();
+        }
+        this.length = length;
+    }
+
+    // Pooled segments are created with one reference held by the receiver of onSegment: whoever keeps or hands the
+    // segment on is responsible for the matching release() once the data has been consumed
+    public Segment retain() {
+        if (this.buffer != null) {
+            this.buffer.retain();
+        }
+        return this;
+    }
+
+    public void release() {
+        if (this.buffer != null) {
+            this.buffer.release();
+        }
+    }
+
+    public int length() {
+        return this.length;
+    }
+
+    // Null for segments that were not produced by MP4Frag
+    public FragmentInfo getInfo() {
+        return this.info;
+    }
+
+    // True if the fragment starts with a sync sample: decoding can start from here
+    public boolean isKeyframe() {
+        return this.info != null && this.info.isKeyframe();
+    }
+
+    public int getPartCount() {
+        return this.parts.length;
+    }
+
+    public StreamBuffer getPart(int index) {
+        return this.parts[index];
+    }
+
+    public boolean isContiguous() {
+        return this.contiguous != null;
+    }
+
+    public ByteBuffer asByteBuffer() {
+        // Gathering is only needed if the parts do not already sit side by side in memory
+        if (this.contiguous != null) {
+            return this.contiguous.asByteBuffer();
+        }
+
+        return ByteBuffer.wrap(this.getBytes());
+    }
+
+    public ByteBuffer[] asByteBuffers() {
+        ByteBuffer[] byteBuffers = new ByteBuffer[this.parts.length];
+        for (int i = 0; i < this.parts.length; i++) {
+            byteBuffers[i] = this.parts[i].asByteBuffer();
+        }
+
+        return byteBuffers;
+    }
+
+    public byte[] getBytes() {
+        byte[] bytes = new byte[this.length];
+        int position = 0;
+        for (StreamBuffer part : this.parts) {
+            part.copyTo(bytes, position, part.length());
+            position += part.length();
+        }
+
+        return bytes;
+    }
+}
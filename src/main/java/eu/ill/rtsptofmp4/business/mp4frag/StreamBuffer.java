@@ -2,16 +2,21 @@ package eu.ill.rtsptofmp4.business.mp4frag;
 
 import eu.ill.rtsptofmp4.models.exceptions.MP4FragException;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.List;
 
 public class StreamBuffer {
 
     private static final byte[] HEX_ARRAY = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+    private static final VarHandle LONG_BE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INT_BE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
 
     private byte[] data = {};
-    private final byte[] unsignedIntArray = {0, 0, 0, 0, 0, 0, 0, 0};
     private int offset = 0;
     private int capacity = 0;
     private int limit = 0;
@@ -30,6 +35,23 @@ public class StreamBuffer {
         this.limit = offset + length;
     }
 
+    public StreamBuffer reset(int offset, int length) {
+        if (this.data.length < offset + length) {
+            throw new IndexOutOfBoundsException("Cannot reset StreamBuffer of size " + this.data.length + " to offset " + offset + " with length " + length);
+        }
+
+        this.offset = offset;
+        this.capacity = length;
+        this.limit = offset + length;
+
+        return this;
+    }
+
+    public StreamBuffer reset(byte[] data, int offset, int length) {
+        this.data = data;
+        return this.reset(offset, length);
+    }
+
     public int length() {
         return this.capacity;
     }
@@ -39,16 +61,30 @@ public class StreamBuffer {
             throw new IndexOutOfBoundsException("Cannot read uint32 from StreamBuffer of length " + this.capacity + " at index " + index + " with offset " + this.offset);
         }
 
-        ByteBuffer byteBuffer = ByteBuffer.wrap(this.data, this.offset + index, 4);
-//        byteBuffer.order(ByteOrder.BIG_ENDIAN);
-
-        int value = byteBuffer.getInt();
+        int position = this.offset + index;
+        int value = (this.data[position] & 0xff) << 24 | (this.data[position + 1] & 0xff) << 16 | (this.data[position + 2] & 0xff) << 8 | (this.data[position + 3] & 0xff);
         if (value < 0) {
             throw new MP4FragException("Overflow of unit32 value stored in int32");
         }
         return value;
     }
 
+    public int readInt32BE(int index) {
+        if (this.limit < this.offset + index + 4) {
+            throw new IndexOutOfBoundsException("Cannot read int32 from StreamBuffer of length " + this.capacity + " at index " + index + " with offset " + this.offset);
+        }
+
+        return (int) INT_BE.get(this.data, this.offset + index);
+    }
+
+    public int readUInt16BE(int index) {
+        if (this.limit < this.offset + index + 2) {
+            throw new IndexOutOfBoundsException("Cannot read uint16 from StreamBuffer of length " + this.capacity + " at index " + index + " with offset " + this.offset);
+        }
+
+        return (this.data[this.offset + index] & 0xff) << 8 | (this.data[this.offset + index + 1] & 0xff);
+    }
+
     public byte get(int index) {
         if (this.limit < this.offset + index) {
             throw new IndexOutOfBoundsException("Cannot read byte from StreamBuffer of length " + this.capacity + " at index " + index + " with offset " + this.offset);
@@ -64,6 +100,26 @@ public class StreamBuffer {
         return bytes;
     }
 
+    public void copyTo(byte[] destination, int destinationOffset, int length) {
+        this.copyTo(0, destination, destinationOffset, length);
+    }
+
+    public void copyTo(int index, byte[] destination, int destinationOffset, int length) {
+        if (this.capacity < index + length) {
+            throw new IndexOutOfBoundsException("Cannot copy " + length + " bytes at index " + index + " from StreamBuffer of length " + this.capacity);
+        }
+
+        System.arraycopy(this.data, this.offset + index, destination, destinationOffset, length);
+    }
+
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(this.data, this.offset, this.capacity).slice();
+    }
+
+    public StreamBuffer copy() {
+        return new StreamBuffer(this.getBytes());
+    }
+
     public int indexOf(byte[] data) {
         return this.indexOf(data, 0);
     }
@@ -75,29 +131,95 @@ public class StreamBuffer {
         if (this.limit < this.offset + data.length) {
             return -1;
         }
+        if (data.length == 0) {
+            return byteOffset;
+        }
 
-        int indexOf = this.offset + byteOffset;
-        int streamBufferIndex = indexOf;
-        int dataIndex = 0;
+        int last = this.limit - data.length;
+        for (int index = this.scan(data[0], this.offset + byteOffset, last); index != -1; index = this.scan(data[0], index + 1, last)) {
+            if (Arrays.equals(this.data, index, index + data.length, data, 0, data.length)) {
+                return index - this.offset;
+            }
+        }
+
+        return -1;
+    }
 
-        while (dataIndex < data.length && streamBufferIndex < this.limit) {
-            if (data[dataIndex] == this.data[streamBufferIndex]) {
-                dataIndex++;
-                streamBufferIndex++;
+    public int indexOf(int fourcc, int byteOffset) {
+        if (this.limit < this.offset + byteOffset + 4) {
+            return -1;
+        }
 
-            } else {
-                dataIndex = 0;
-                indexOf++;
-                streamBufferIndex = indexOf;
+        byte first = (byte) (fourcc >>> 24);
+        int last = this.limit - 4;
+        for (int index = this.scan(first, this.offset + byteOffset, last); index != -1; index = this.scan(first, index + 1, last)) {
+            if ((int) INT_BE.get(this.data, index) == fourcc) {
+                return index - this.offset;
             }
         }
 
-        if (dataIndex == data.length) {
-            return indexOf - this.offset;
+        return -1;
+    }
+
+    // Offsets of the first occurrence of each fourcc (-1 if not found) in a single pass over the buffer
+    public int[] indexOfEach(int[] fourccs) {
+        int[] indexes = new int[fourccs.length];
+        Arrays.fill(indexes, -1);
 
-        } else {
-            return -1;
+        // Only windows ending with the last byte of one of the fourccs are compared
+        long[] lastBytes = new long[4];
+        for (int fourcc : fourccs) {
+            lastBytes[(fourcc & 0xff) >>> 6] |= 1L << fourcc;
+        }
+
+        int remaining = fourccs.length;
+        int window = 0;
+        for (int index = this.offset; index < this.limit && remaining > 0; index++) {
+            int value = this.data[index] & 0xff;
+            window = (window << 8) | value;
+
+            if ((lastBytes[value >>> 6] & (1L << value)) != 0 && index - this.offset >= 3) {
+                for (int i = 0; i < fourccs.length; i++) {
+                    if (fourccs[i] == window && indexes[i] == -1) {
+                        indexes[i] = index - 3 - this.offset;
+                        remaining--;
+                    }
+                }
+            }
+        }
+
+        return indexes;
+    }
+
+    // Absolute index of the first occurrence of value between from and last (inclusive), or -1. Eight bytes are
+    // compared at a time: the xor makes matching bytes zero and the classic haszero bit trick flags them. The borrow of
+    // the subtraction can also flag the byte just before a real match, so the flagged byte is checked before use.
+    private int scan(byte value, int from, int last) {
+        long pattern = (value & 0xffL) * 0x0101010101010101L;
+        int index = from;
+        for (; index + 8 <= last + 1; index += 8) {
+            long word = (long) LONG_BE.get(this.data, index) ^ pattern;
+            long zeros = (word - 0x0101010101010101L) & ~word & 0x8080808080808080L;
+            if (zeros != 0) {
+                int candidate = index + (Long.numberOfLeadingZeros(zeros) >>> 3);
+                if (this.data[candidate] == value) {
+                    return candidate;
+                }
+                // False positive, the real match can only be further on in the word
+                for (int i = candidate + 1; i < index + 8; i++) {
+                    if (this.data[i] == value) {
+                        return i;
+                    }
+                }
+            }
         }
+        for (; index <= last; index++) {
+            if (this.data[index] == value) {
+                return index;
+            }
+        }
+
+        return -1;
     }
 
     public boolean includes(byte[] data) {
@@ -113,13 +235,25 @@ public class StreamBuffer {
         if (this.capacity <= startIndex) {
             throw new IndexOutOfBoundsException("Cannot perform slice from Stream Buffer of length " + this.capacity + " at index " + startIndex);
         }
-        if (this.limit < endIndex) {
+        if (this.capacity < endIndex || endIndex < startIndex) {
             throw new IndexOutOfBoundsException("Cannot perform slice from Stream Buffer of length " + this.capacity + " from index " + startIndex + " to index " + endIndex);
         }
 
         return new StreamBuffer(this.data, this.offset + startIndex, endIndex - startIndex);
     }
 
+    public StreamBuffer slice(int startIndex, int endIndex, StreamBuffer view) {
+        // Same as slice but points an existing view at the data rather than allocating a new one
+        if (this.capacity <= startIndex) {
+            throw new IndexOutOfBoundsException("Cannot perform slice from Stream Buffer of length " + this.capacity + " at index " + startIndex);
+        }
+        if (this.capacity < endIndex || endIndex < startIndex) {
+            throw new IndexOutOfBoundsException("Cannot perform slice from Stream Buffer of length " + this.capacity + " from index " + startIndex + " to index " + endIndex);
+        }
+
+        return view.reset(this.data, this.offset + startIndex, endIndex - startIndex);
+    }
+
     public StreamBuffer filterNonZeroBytes() {
         int nonZeroByteCount = 0;
         for (int i = this.offset; i < this.limit; i++) {
@@ -162,6 +296,22 @@ public class StreamBuffer {
         return new StreamBuffer(concat, 0, bufferLength == -1 ? totalLength : bufferLength);
     }
 
+    static StreamBuffer join(StreamBuffer[] buffers) {
+        // Returns a single view over buffers that are adjacent in the same backing array, null if they are not
+        StreamBuffer first = buffers[0];
+        int length = first.capacity;
+        for (int i = 1; i < buffers.length; i++) {
+            StreamBuffer previous = buffers[i - 1];
+            StreamBuffer buffer = buffers[i];
+            if (buffer.data != first.data || buffer.offset != previous.limit) {
+                return null;
+            }
+            length += buffer.capacity;
+        }
+
+        return new StreamBuffer(first.data, first.offset, length);
+    }
+
     public String toString(String format) {
         if (format.equals("hex")) {
             return this.toHex();
@@ -0,0 +1,80 @@
+package eu.ill.rtsptofmp4.business.recording;
+
+import io.quarkus.logging.Log;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// The files recorded for a stream, in time order, in a directory of their own
+public class Recording {
+
+    private final String streamId;
+    private final Path directory;
+    private final List<RecordingFile> files = new ArrayList<>();
+
+    Recording(final String streamId, final Path directory) {
+        this.streamId = streamId;
+        this.directory = directory;
+    }
+
+    static Recording load(String streamId, Path directory) throws IOException {
+        Recording recording = new Recording(streamId, directory);
+
+        List<Path> paths;
+        try (Stream<Path> list = Files.list(directory)) {
+            paths = list.filter(RecordingFile::isDataFile).sorted().collect(Collectors.toList());
+        }
+
+        for (Path path : paths) {
+            try {
+                recording.files.add(RecordingFile.load(path));
+
+            } catch (IOException | RuntimeException e) {
+                Log.errorf("Ignoring invalid recording file %s: %s", path, e.getMessage());
+            }
+        }
+        recording.files.sort(Comparator.comparingLong(RecordingFile::getStartMs));
+
+        return recording;
+    }
+
+    public String getStreamId() {
+        return this.streamId;
+    }
+
+    Path getDirectory() {
+        return this.directory;
+    }
+
+    public synchronized List<RecordingFile> getFiles() {
+        return new ArrayList<>(this.files);
+    }
+
+    // The files holding the given time range
+    public synchronized List<RecordingFile> getFiles(long fromMs, long toMs) {
+        return this.files.stream().filter(file -> file.getStartMs() <= toMs && file.getEndMs() >= fromMs).collect(Collectors.toList());
+    }
+
+    synchronized void add(RecordingFile file) {
+        this.files.add(file);
+    }
+
+    synchronized RecordingFile getOldest() {
+        return this.files.stream().filter(file -> !file.isWriting()).findFirst().orElse(null);
+    }
+
+    synchronized long getBytes() {
+        return this.files.stream().mapToLong(RecordingFile::getLength).sum();
+    }
+
+    synchronized void delete(RecordingFile file) throws IOException {
+        this.files.remove(file);
+        file.delete();
+    }
+}
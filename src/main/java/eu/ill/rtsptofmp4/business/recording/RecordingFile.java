@@ -0,0 +1,241 @@
+package eu.ill.rtsptofmp4.business.recording;
+
+import eu.ill.rtsptofmp4.business.mp4frag.Segment;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// One file of a recording: the init segment followed by the fragments, playable as it is, with an index of the wall-clock
+// time of each keyframe and its offset in the file. The file is sized and mapped up front, fragments are appended to the
+// mapping by the recorder thread, and the file is truncated to its data when it is closed. Replays map it for reading
+// while it is written.
+public class RecordingFile {
+
+    private static final String DATA_EXTENSION = ".mp4";
+    private static final String INDEX_EXTENSION = ".idx";
+    private static final int INDEX_ENTRY_SIZE = 16;
+    private static final int FTYP_TYPE = 0x66747970; // ftyp
+    private static final int MOOV_TYPE = 0x6d6f6f76; // moov
+
+    private final Path path;
+    private final Path indexPath;
+    private final long startMs;
+    private final int initLength;
+
+    // Written by the recorder thread, read by replays: only data below the length has been written
+    private volatile long length;
+    private volatile long endMs;
+
+    // Keyframe times and offsets, in increasing order
+    private long[] times = new long[64];
+    private long[] offsets = new long[64];
+    private int entries = 0;
+
+    // Open while the file is written
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private FileChannel indexChannel;
+    private ByteBuffer indexEntry;
+    private volatile boolean writing;
+
+    private RecordingFile(final Path path, final long startMs, final int initLength) {
+        this.path = path;
+        this.indexPath = indexPathOf(path);
+        this.startMs = startMs;
+        this.initLength = initLength;
+    }
+
+    // Named by its start time so that the files of a recording sort in time order
+    static RecordingFile create(Path directory, long startMs, byte[] initialisation, long capacity) throws IOException {
+        RecordingFile file = new RecordingFile(directory.resolve(startMs + DATA_EXTENSION), startMs, initialisation.length);
+        file.channel = FileChannel.open(file.path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        file.indexChannel = FileChannel.open(file.indexPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        file.indexEntry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+
+        // Mapping the whole capacity sets the size of the file without writing it
+        file.mapped = file.channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(capacity, initialisation.length));
+        file.mapped.put(initialisation);
+        file.length = initialisation.length;
+        file.endMs = startMs;
+        file.writing = true;
+
+        return file;
+    }
+
+    // A file left by a previous run. Its end is found from the last keyframe if it was not closed.
+    static RecordingFile load(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            String name = path.getFileName().toString();
+            long startMs = Long.parseLong(name.substring(0, name.length() - DATA_EXTENSION.length()));
+
+            int ftypLength = readBoxSize(channel, 0, FTYP_TYPE);
+            int moovLength = readBoxSize(channel, ftypLength, MOOV_TYPE);
+            RecordingFile file = new RecordingFile(path, startMs, ftypLength + moovLength);
+
+            byte[] index = Files.exists(file.indexPath) ? Files.readAllBytes(file.indexPath) : new byte[0];
+            ByteBuffer entries = ByteBuffer.wrap(index);
+            while (entries.remaining() >= INDEX_ENTRY_SIZE) {
+                file.addEntry(entries.getLong(), entries.getLong());
+            }
+
+            long end = scanBoxes(channel, file.entries > 0 ? file.offsets[file.entries - 1] : file.initLength);
+            if (end < channel.size()) {
+                channel.truncate(end);
+            }
+            file.length = end;
+            file.endMs = Math.max(startMs, Files.getLastModifiedTime(path).toMillis());
+
+            return file;
+        }
+    }
+
+    static boolean isDataFile(Path path) {
+        String name = path.getFileName().toString();
+        return name.endsWith(DATA_EXTENSION) && name.substring(0, name.length() - DATA_EXTENSION.length()).chars().allMatch(Character::isDigit);
+    }
+
+    public long getStartMs() {
+        return this.startMs;
+    }
+
+    // Time of the last fragment written
+    public long getEndMs() {
+        return this.endMs;
+    }
+
+    public int getInitLength() {
+        return this.initLength;
+    }
+
+    public long getLength() {
+        return this.length;
+    }
+
+    public boolean isWriting() {
+        return this.writing;
+    }
+
+    long getRemaining() {
+        return this.mapped.capacity() - this.length;
+    }
+
+    // Called by the recorder thread. False if the fragment does not fit in the file.
+    boolean append(Segment segment, long timeMs) throws IOException {
+        if (segment.length() > this.getRemaining()) {
+            return false;
+        }
+
+        long offset = this.length;
+        for (ByteBuffer part : segment.asByteBuffers()) {
+            this.mapped.put(part);
+        }
+
+        if (segment.isKeyframe()) {
+            this.indexEntry.clear().putLong(timeMs).putLong(offset).flip();
+            while (this.indexEntry.hasRemaining()) {
+                this.indexChannel.write(this.indexEntry);
+            }
+            synchronized (this) {
+                this.addEntry(timeMs, offset);
+            }
+        }
+
+        this.endMs = timeMs;
+        this.length = offset + segment.length();
+        return true;
+    }
+
+    // Called by the recorder thread
+    void close() throws IOException {
+        if (!this.writing) {
+            return;
+        }
+
+        // The mapping goes past the data: it is dropped before the file is truncated under it, and unmapped once collected
+        this.mapped.force();
+        this.mapped = null;
+        this.channel.truncate(this.length);
+        this.channel.close();
+        this.indexChannel.close();
+        this.writing = false;
+    }
+
+    // Offset of the keyframe from which the file plays the given time, -1 if it has no keyframe
+    public synchronized long seek(long timeMs) {
+        if (this.entries == 0) {
+            return -1;
+        }
+
+        int index = Arrays.binarySearch(this.times, 0, this.entries, timeMs);
+        if (index < 0) {
+            // The keyframe before the time, or the first one if the time is before the file
+            index = Math.max(0, -index - 2);
+        }
+        return this.offsets[index];
+    }
+
+    // Offset at which playback of the given time is complete: the first keyframe after it, or the end of the data
+    public synchronized long seekEnd(long timeMs) {
+        int index = Arrays.binarySearch(this.times, 0, this.entries, timeMs);
+        index = index < 0 ? -index - 1 : index + 1;
+        return index < this.entries ? this.offsets[index] : this.length;
+    }
+
+    // Maps the bytes for reading without copying them to the heap. The mapping stays readable if the file is deleted by
+    // the retention.
+    public MappedByteBuffer map(long position, long count) throws IOException {
+        try (FileChannel channel = FileChannel.open(this.path, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, position, count);
+        }
+    }
+
+    void delete() throws IOException {
+        Files.deleteIfExists(this.path);
+        Files.deleteIfExists(this.indexPath);
+    }
+
+    private void addEntry(long timeMs, long offset) {
+        if (this.entries == this.times.length) {
+            this.times = Arrays.copyOf(this.times, this.entries * 2);
+            this.offsets = Arrays.copyOf(this.offsets, this.entries * 2);
+        }
+        this.times[this.entries] = timeMs;
+        this.offsets[this.entries] = offset;
+        this.entries++;
+    }
+
+    private static Path indexPathOf(Path path) {
+        String name = path.getFileName().toString();
+        return path.resolveSibling(name.substring(0, name.length() - DATA_EXTENSION.length()) + INDEX_EXTENSION);
+    }
+
+    private static int readBoxSize(FileChannel channel, long position, int type) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(8);
+        if (channel.read(header, position) != 8 || header.getInt(4) != type) {
+            throw new IOException(String.format("Recording does not start with an initialisation segment at %d", position));
+        }
+        return header.getInt(0);
+    }
+
+    // End of the last complete box: the rest of the file was mapped but not written
+    private static long scanBoxes(FileChannel channel, long position) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(8);
+        long size = channel.size();
+        while (position + 8 <= size) {
+            header.clear();
+            channel.read(header, position);
+            long boxSize = header.getInt(0) & 0xffffffffL;
+            if (boxSize < 8 || position + boxSize > size) {
+                break;
+            }
+            position += boxSize;
+        }
+        return position;
+    }
+}
@@ -0,0 +1,231 @@
+package eu.ill.rtsptofmp4.business.recording;
+
+import eu.ill.rtsptofmp4.ServerConfig;
+import eu.ill.rtsptofmp4.business.streaming.StreamMetrics;
+import eu.ill.rtsptofmp4.models.exceptions.StreamingException;
+import io.quarkus.logging.Log;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Recordings of the streams, one directory per stream under the recorder directory. Recording is enabled by setting
+// the directory. The oldest files are deleted once they are older than the retention time or once the recordings take
+// more than the maximum size.
+@ApplicationScoped
+public class RecordingService {
+
+    private static final long RETENTION_PERIOD_MS = 60000;
+
+    @Inject
+    ServerConfig serverConfig;
+
+    private boolean enabled = false;
+    private Path directory;
+    private long fileCapacity;
+    private long fileDurationMs;
+    private long retentionMs;
+    private long maxTotalBytes;
+    private int queueSize;
+
+    private final Map<String, Recording> recordings = new ConcurrentHashMap<>();
+    private ScheduledExecutorService scheduler;
+
+    // Reads the recordings from disk for the replays, off the event loop
+    private ExecutorService replayExecutor;
+
+    public RecordingService() {
+    }
+
+    // Used outside the application
+    public RecordingService(final Path directory, final long fileCapacity, final long fileDurationMs, final long retentionMs, final long maxTotalBytes, final int queueSize, final int replayThreads) {
+        this.configure(directory, fileCapacity, fileDurationMs, retentionMs, maxTotalBytes, queueSize, replayThreads);
+    }
+
+    @PostConstruct
+    void init() {
+        ServerConfig.RecorderConfig config = this.serverConfig.recorder();
+        if (config.directory().isEmpty()) {
+            return;
+        }
+
+        this.configure(Paths.get(config.directory().get()), config.fileMb() * 1024L * 1024L, config.fileMinutes() * 60000L, config.retentionHours() * 3600000L, config.maxTotalMb() * 1024L * 1024L, config.queueSize(), config.replayThreads());
+        if (this.enabled) {
+            this.scheduler = Executors.newSingleThreadScheduledExecutor();
+            this.scheduler.scheduleWithFixedDelay(this::enforceRetention, RETENTION_PERIOD_MS, RETENTION_PERIOD_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    void terminate() {
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+        }
+        if (this.replayExecutor != null) {
+            this.replayExecutor.shutdownNow();
+        }
+    }
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    // Null if nothing has been recorded for the stream
+    public Recording getRecording(String streamId) {
+        return this.recordings.get(streamId);
+    }
+
+    // Completes with null if nothing has been recorded for the stream in the time range
+    public CompletableFuture<Replay> replayAsync(String streamId, long fromMs, long toMs) {
+        Recording recording = this.recordings.get(streamId);
+        if (recording == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return Replay.create(recording, fromMs, toMs);
+
+            } catch (IOException e) {
+                throw new CompletionException(new StreamingException("Failed to read the recording of stream '%s': %s", streamId, e.getMessage()));
+            }
+        }, this.replayExecutor);
+    }
+
+    // Reads a chunk of a replay into the page cache, so that sending it does not wait for the disk
+    public CompletableFuture<MappedByteBuffer> readAsync(MappedByteBuffer chunk) {
+        return CompletableFuture.supplyAsync(chunk::load, this.replayExecutor);
+    }
+
+    // A recorder for a relay of the stream: files already recorded for the stream are kept
+    public StreamRecorder createRecorder(String streamId, StreamMetrics metrics) throws IOException {
+        Recording recording = this.recordings.get(streamId);
+        if (recording == null) {
+            Path directory = this.directory.resolve(getDirectoryName(streamId)).normalize();
+            if (!directory.startsWith(this.directory) || directory.equals(this.directory)) {
+                throw new IOException("Stream id '" + streamId + "' does not name a directory in the recorder directory");
+            }
+            Files.createDirectories(directory);
+            recording = this.recordings.computeIfAbsent(streamId, id -> new Recording(id, directory));
+        }
+
+        return new StreamRecorder(recording, this.fileCapacity, this.fileDurationMs, this.queueSize, metrics, this::enforceRetention);
+    }
+
+    // Letters, digits, '-' and '_' are kept and every other byte of the id is percent-encoded, so that no stream id can
+    // name "." or "..", or a path outside the recorder directory. The name is decoded by URLDecoder.
+    static String getDirectoryName(String streamId) {
+        StringBuilder name = new StringBuilder();
+        for (byte character : streamId.getBytes(StandardCharsets.UTF_8)) {
+            if ((character >= 'a' && character <= 'z') || (character >= 'A' && character <= 'Z') || (character >= '0' && character <= '9') || character == '-' || character == '_') {
+                name.append((char) character);
+
+            } else {
+                name.append(String.format("%%%02X", character & 0xff));
+            }
+        }
+        return name.toString();
+    }
+
+    // Called when a file has been closed and periodically, so that files only older than the retention time go too
+    public synchronized void enforceRetention() {
+        try {
+            long expiredMs = System.currentTimeMillis() - this.retentionMs;
+            for (Recording recording : this.recordings.values()) {
+                RecordingFile oldest;
+                while ((oldest = recording.getOldest()) != null && oldest.getEndMs() < expiredMs) {
+                    this.delete(recording, oldest);
+                }
+            }
+
+            long totalBytes = this.recordings.values().stream().mapToLong(Recording::getBytes).sum();
+            while (totalBytes > this.maxTotalBytes) {
+                Recording recording = this.recordings.values().stream()
+                        .filter(candidate -> candidate.getOldest() != null)
+                        .min(Comparator.comparingLong(candidate -> candidate.getOldest().getStartMs()))
+                        .orElse(null);
+                if (recording == null) {
+                    // Only files being written are left
+                    break;
+                }
+
+                RecordingFile oldest = recording.getOldest();
+                totalBytes -= oldest.getLength();
+                this.delete(recording, oldest);
+            }
+
+        } catch (Exception e) {
+            // An exception would cancel the scheduled check
+            Log.errorf("Failed to enforce the recording retention: %s", e.getMessage());
+        }
+    }
+
+    private void delete(Recording recording, RecordingFile file) throws IOException {
+        Log.debugf("Deleting recording file of stream '%s' started at %d", recording.getStreamId(), file.getStartMs());
+        recording.delete(file);
+    }
+
+    private void configure(Path directory, long fileCapacity, long fileDurationMs, long retentionMs, long maxTotalBytes, int queueSize, int replayThreads) {
+        // Normalised so that the directories of the streams can be checked to be inside it
+        this.directory = directory.toAbsolutePath().normalize();
+        this.fileCapacity = fileCapacity;
+        this.fileDurationMs = fileDurationMs;
+        this.retentionMs = retentionMs;
+        this.maxTotalBytes = maxTotalBytes;
+        this.queueSize = queueSize;
+
+        try {
+            Files.createDirectories(directory);
+            this.loadRecordings();
+            this.replayExecutor = Executors.newFixedThreadPool(replayThreads, runnable -> {
+                Thread thread = new Thread(runnable, "replay");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.enabled = true;
+            Log.infof("Recording streams to %s", directory.toAbsolutePath());
+
+        } catch (IOException e) {
+            Log.errorf("Recording disabled: failed to open the recorder directory %s: %s", directory, e.getMessage());
+        }
+    }
+
+    private void loadRecordings() throws IOException {
+        List<Path> streamDirectories;
+        try (Stream<Path> list = Files.list(this.directory)) {
+            streamDirectories = list.filter(Files::isDirectory).collect(Collectors.toList());
+        }
+
+        List<String> loaded = new ArrayList<>();
+        for (Path streamDirectory : streamDirectories) {
+            String streamId = URLDecoder.decode(streamDirectory.getFileName().toString(), StandardCharsets.UTF_8);
+            this.recordings.put(streamId, Recording.load(streamId, streamDirectory));
+            loaded.add(streamId);
+        }
+
+        if (!loaded.isEmpty()) {
+            Log.infof("Loaded recordings of streams %s", loaded);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package eu.ill.rtsptofmp4.business.recording;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// The recording of a stream between two times as one fragmented MP4: the initialisation segment, then the fragments from
+// the keyframe at or before the start time to the first keyframe after the end time. The initialisation segment of a
+// following file is only repeated if it differs. The parts are mapped from the files, nothing is read until they are sent.
+public class Replay {
+
+    private final List<MappedByteBuffer> parts;
+    private final long length;
+
+    private Replay(final List<MappedByteBuffer> parts) {
+        this.parts = parts;
+        this.length = parts.stream().mapToLong(MappedByteBuffer::remaining).sum();
+    }
+
+    // Null if nothing has been recorded in the time range
+    public static Replay create(Recording recording, long fromMs, long toMs) throws IOException {
+        List<MappedByteBuffer> parts = new ArrayList<>();
+        MappedByteBuffer previousInitialisation = null;
+
+        for (RecordingFile file : recording.getFiles(fromMs, toMs)) {
+            long start = file.seek(fromMs);
+            long end = file.seekEnd(toMs);
+            if (start < 0 || end <= start) {
+                // Nothing recorded in the file yet
+                continue;
+            }
+
+            MappedByteBuffer initialisation = file.map(0, file.getInitLength());
+            if (!initialisation.equals(previousInitialisation)) {
+                parts.add(initialisation);
+                previousInitialisation = initialisation;
+            }
+            parts.add(file.map(start, end - start));
+        }
+
+        return parts.isEmpty() ? null : new Replay(parts);
+    }
+
+    public long getLength() {
+        return this.length;
+    }
+
+    // The bytes from start to end (exclusive), in chunks of at most the given size
+    public List<MappedByteBuffer> getChunks(long start, long end, int chunkSize) {
+        List<MappedByteBuffer> chunks = new ArrayList<>();
+
+        long partStart = 0;
+        for (MappedByteBuffer part : this.parts) {
+            long partEnd = partStart + part.remaining();
+            long position = Math.max(start, partStart);
+            while (position < Math.min(end, partEnd)) {
+                int length = (int) Math.min(chunkSize, Math.min(end, partEnd) - position);
+                chunks.add(part.slice((int) (position - partStart), length));
+                position += length;
+            }
+            partStart = partEnd;
+        }
+
+        return chunks;
+    }
+}
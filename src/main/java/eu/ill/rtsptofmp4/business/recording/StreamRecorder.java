@@ -0,0 +1,259 @@
+package eu.ill.rtsptofmp4.business.recording;
+
+import eu.ill.rtsptofmp4.business.mp4frag.InitSegmentParser;
+import eu.ill.rtsptofmp4.business.mp4frag.MP4Frag;
+import eu.ill.rtsptofmp4.business.mp4frag.Segment;
+import eu.ill.rtsptofmp4.business.mp4frag.StreamBuffer;
+import eu.ill.rtsptofmp4.business.streaming.StreamMetrics;
+import eu.ill.rtsptofmp4.models.Track;
+import eu.ill.rtsptofmp4.models.exceptions.MP4FragException;
+import io.quarkus.logging.Log;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Writes the segments of a stream to its recording. The reader thread only queues the segments: they are written by a
+// thread of the recorder so that a slow disk never holds up the live stream. When the queue is full the segments are
+// dropped until the next keyframe, so that the recording has a gap rather than undecodable fragments.
+public class StreamRecorder implements MP4Frag.SegmentListener {
+
+    private static final long POLL_TIMEOUT_MS = 100;
+
+    private final Recording recording;
+    private final long fileCapacity;
+    private final long fileDurationMs;
+    private final Runnable onFileClosed;
+    private final BlockingQueue<Entry> queue;
+
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong droppedSegments = new AtomicLong();
+
+    // Set by the reader thread
+    private volatile byte[] initialisation;
+    private boolean dropping = false;
+
+    // Used by the recorder thread
+    private RecordingFile file;
+    private byte[] fileInitialisation;
+    private long timescale;
+    private long baseTimeMs;
+    private long baseDecodeTime = -1;
+    private long lastStartMs = 0;
+
+    private Thread thread;
+    private volatile boolean running = false;
+
+    public StreamRecorder(final Recording recording, final long fileCapacity, final long fileDurationMs, final int queueSize, final StreamMetrics metrics, final Runnable onFileClosed) {
+        this.recording = recording;
+        this.fileCapacity = fileCapacity;
+        this.fileDurationMs = fileDurationMs;
+        this.onFileClosed = onFileClosed;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+
+        metrics.counter("recorder.bytes", "Bytes written to the recording", "bytes", this.bytesWritten, AtomicLong::get);
+        metrics.counter("recorder.dropped", "Segments dropped because the recorder could not keep up", null, this.droppedSegments, AtomicLong::get);
+        metrics.gauge("recorder.queue.depth", "Segments waiting to be written to the recording", this.queue, BlockingQueue::size);
+    }
+
+    public synchronized void start() {
+        if (this.thread == null) {
+            this.running = true;
+            this.thread = new Thread(this::threadMain, "recorder-" + this.recording.getStreamId());
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+    }
+
+    // The thread is left to finish on its own rather than interrupted: an interrupt closes the file channels
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            thread = this.thread;
+            this.thread = null;
+            this.running = false;
+        }
+
+        if (thread != null) {
+            try {
+                thread.join();
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        this.releaseQueued();
+    }
+
+    public long getBytesWritten() {
+        return this.bytesWritten.get();
+    }
+
+    public long getDroppedSegments() {
+        return this.droppedSegments.get();
+    }
+
+    // Called by the reader thread: the segments that follow belong to this initialisation segment
+    @Override
+    public void onInitialization(byte[] initialization, boolean changed) {
+        this.initialisation = initialization;
+    }
+
+    // Called by the reader thread, which keeps its own reference to the segment
+    @Override
+    public void onSegment(Segment segment) {
+        byte[] initialisation = this.initialisation;
+        if (!this.running || initialisation == null) {
+            return;
+        }
+
+        if (this.dropping && !segment.isKeyframe()) {
+            this.droppedSegments.incrementAndGet();
+            return;
+        }
+
+        segment.retain();
+        if (this.queue.offer(new Entry(segment, initialisation, System.currentTimeMillis()))) {
+            this.dropping = false;
+
+        } else {
+            segment.release();
+            this.droppedSegments.incrementAndGet();
+            this.dropping = true;
+        }
+    }
+
+    private void threadMain() {
+        try {
+            while (this.running) {
+                Entry entry = this.queue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (entry != null) {
+                    this.write(entry);
+                }
+            }
+
+        } catch (InterruptedException e) {
+            Log.warnf("Recorder of stream '%s' interrupted", this.recording.getStreamId());
+        }
+
+        // Segments queued after the recorder has stopped are not recorded
+        this.releaseQueued();
+        this.closeFile();
+    }
+
+    private void releaseQueued() {
+        Entry entry;
+        while ((entry = this.queue.poll()) != null) {
+            entry.segment.release();
+        }
+    }
+
+    private void write(Entry entry) {
+        Segment segment = entry.segment;
+        try {
+            if (entry.initialisation != this.fileInitialisation) {
+                // ffmpeg has (re)started: its decode times start again from its own origin
+                this.closeFile();
+                this.fileInitialisation = entry.initialisation;
+                this.timescale = getTimescale(entry.initialisation);
+                this.baseDecodeTime = -1;
+            }
+
+            long timeMs = this.getTime(segment, entry.receivedMs);
+            if (this.file != null && segment.isKeyframe() && (this.file.getRemaining() < this.fileCapacity / 8 || timeMs - this.file.getStartMs() >= this.fileDurationMs)) {
+                this.closeFile();
+            }
+
+            if (this.file == null) {
+                // A file starts with a keyframe so that it plays on its own
+                if (!segment.isKeyframe()) {
+                    return;
+                }
+                this.openFile(timeMs);
+            }
+
+            if (this.file.append(segment, timeMs)) {
+                this.bytesWritten.addAndGet(segment.length());
+
+            } else {
+                // Bigger than the room left in the file: the fragments up to the next keyframe go too
+                this.droppedSegments.incrementAndGet();
+                this.closeFile();
+            }
+
+        } catch (IOException e) {
+            Log.errorf("Failed to record segment of stream '%s': %s", this.recording.getStreamId(), e.getMessage());
+            this.droppedSegments.incrementAndGet();
+            this.closeFile();
+
+        } finally {
+            segment.release();
+        }
+    }
+
+    // The wall-clock time of a fragment follows its decode time, so that it does not depend on when it was queued
+    private long getTime(Segment segment, long receivedMs) {
+        long decodeTime = segment.getInfo() != null ? segment.getInfo().getBaseMediaDecodeTime() : -1;
+        if (decodeTime < 0 || this.timescale <= 0) {
+            return receivedMs;
+        }
+
+        if (this.baseDecodeTime < 0) {
+            this.baseDecodeTime = decodeTime;
+            this.baseTimeMs = receivedMs;
+        }
+        return this.baseTimeMs + (decodeTime - this.baseDecodeTime) * 1000 / this.timescale;
+    }
+
+    private void openFile(long timeMs) throws IOException {
+        // Files are named by their start time, which has to be unique
+        long startMs = Math.max(timeMs, this.lastStartMs + 1);
+        this.file = RecordingFile.create(this.recording.getDirectory(), startMs, this.fileInitialisation, this.fileCapacity);
+        this.lastStartMs = startMs;
+        this.recording.add(this.file);
+    }
+
+    private void closeFile() {
+        RecordingFile file = this.file;
+        if (file == null) {
+            return;
+        }
+        this.file = null;
+
+        try {
+            file.close();
+
+        } catch (IOException e) {
+            Log.errorf("Failed to close recording file of stream '%s': %s", this.recording.getStreamId(), e.getMessage());
+        }
+        this.onFileClosed.run();
+    }
+
+    // Timescale of the video track, in which the fragments give their decode time
+    private static long getTimescale(byte[] initialisation) {
+        try {
+            List<Track> tracks = InitSegmentParser.parse(new StreamBuffer(initialisation));
+            return tracks.stream().filter(track -> "video".equals(track.getType())).findFirst()
+                    .or(() -> tracks.stream().findFirst())
+                    .map(Track::getTimescale).orElse(0L);
+
+        } catch (MP4FragException e) {
+            return 0;
+        }
+    }
+
+    private static class Entry {
+        private final Segment segment;
+        private final byte[] initialisation;
+        private final long receivedMs;
+
+        private Entry(final Segment segment, final byte[] initialisation, final long receivedMs) {
+            this.segment = segment;
+            this.initialisation = initialisation;
+            this.receivedMs = receivedMs;
+        }
+    }
+}
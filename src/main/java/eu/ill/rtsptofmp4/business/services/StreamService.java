@@ -1,49 +1,131 @@
 package eu.ill.rtsptofmp4.business.services;
 
+import eu.ill.rtsptofmp4.ServerConfig;
+import eu.ill.rtsptofmp4.business.mp4frag.Segment;
+import eu.ill.rtsptofmp4.business.recording.RecordingService;
+import eu.ill.rtsptofmp4.business.recording.StreamRecorder;
+import eu.ill.rtsptofmp4.business.streaming.GopCache;
 import eu.ill.rtsptofmp4.business.streaming.RTSPStreamManager;
 import eu.ill.rtsptofmp4.business.streaming.RTSPWorker;
+import eu.ill.rtsptofmp4.business.streaming.SegmentViewer;
+import eu.ill.rtsptofmp4.business.streaming.StreamMetrics;
 import eu.ill.rtsptofmp4.business.streaming.StreamPublisher;
 import eu.ill.rtsptofmp4.business.streaming.StreamRelay;
+import eu.ill.rtsptofmp4.models.PublishQueueStats;
 import eu.ill.rtsptofmp4.models.StreamInfo;
 import eu.ill.rtsptofmp4.models.StreamInit;
+import eu.ill.rtsptofmp4.models.WorkerStats;
 import eu.ill.rtsptofmp4.models.exceptions.StreamingException;
+import io.micrometer.core.instrument.MeterRegistry;
 import io.quarkus.logging.Log;
+import io.quarkus.runtime.StartupEvent;
+import io.smallrye.mutiny.infrastructure.Infrastructure;
 import org.apache.commons.lang3.RandomStringUtils;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
 import javax.inject.Inject;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 @ApplicationScoped
 public class StreamService {
 
+    @Inject
+    ServerConfig serverConfig;
+
     @Inject
     RTSPStreamManager rtspStreamManager;
 
     @Inject
     StreamPublisher streamPublisher;
 
-    private final List<StreamRelay> streamRelays = new ArrayList<>();
-    private final Map<String, StreamRelay> clients = new HashMap<>();
+    @Inject
+    MeterRegistry meterRegistry;
+
+    @Inject
+    RecordingService recordingService;
+
+    // Stream relays by stream id: connections to different streams never wait for each other
+    private final Map<String, StreamRelay> streamRelays = new ConcurrentHashMap<>();
+    private final Map<String, StreamRelay> clients = new ConcurrentHashMap<>();
+
+    // Client ids of the connections joining a stream, until they are added to the clients
+    private final Set<String> joiningClientIds = ConcurrentHashMap.newKeySet();
+    private GopCache.Budget gopCacheBudget;
+    private ScheduledExecutorService scheduler;
+    private long lingerMs;
+
+    // Ids of the streams started at boot: they keep running without clients until they fail
+    private final Set<String> prewarmedStreamIds = ConcurrentHashMap.newKeySet();
 
     public StreamService() {
     }
 
     @PostConstruct
     void init() {
+        this.gopCacheBudget = new GopCache.Budget(this.serverConfig.gopCache().maxTotalMb() * 1024L * 1024L);
+        this.lingerMs = this.serverConfig.worker().lingerMs();
         this.streamPublisher.start();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor();
+
+        // Clients that vanish without disconnecting are only seen through their ZeroMQ subscriptions
+        long unsubscribedTimeoutMs = this.serverConfig.publisher().unsubscribedTimeoutMs();
+        if (unsubscribedTimeoutMs > 0) {
+            long period = Math.max(100, Math.min(unsubscribedTimeoutMs / 4, 5000));
+            this.scheduler.scheduleWithFixedDelay(() -> this.removeAbandonedStreams(unsubscribedTimeoutMs), period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // The service is only created when first used: observing the startup event starts the pre-warmed streams at boot
+    void onStart(@Observes StartupEvent event) {
+        this.serverConfig.worker().prewarm().ifPresent(streams -> streams.forEach(this::prewarmStream));
     }
 
     @PreDestroy
     void terminate() {
+        this.scheduler.shutdownNow();
         this.streamPublisher.stop();
     }
 
     public List<StreamInfo> getAllStreamInfos() {
-        return this.streamRelays.stream().map(StreamRelay::getInfo).collect(Collectors.toList());
+        return this.streamRelays.values().stream().map(StreamRelay::getInfo).collect(Collectors.toList());
+    }
+
+    public List<PublishQueueStats> getPublishQueueStats() {
+        return this.streamPublisher.getQueueStats();
+    }
+
+    public List<WorkerStats> getWorkerStats() {
+        return this.streamRelays.values().stream().map(streamRelay -> streamRelay.getWorker().getStats()).collect(Collectors.toList());
+    }
+
+    public boolean hasStream(String streamId) {
+        return this.streamRelays.containsKey(streamId);
+    }
+
+    public CompletableFuture<byte[]> getInitialisationAsync(String streamId) {
+        StreamRelay streamRelay = this.streamRelays.get(streamId);
+        if (streamRelay == null) {
+            return CompletableFuture.failedFuture(new StreamingException("Stream '%s' is not running", streamId));
+        }
+
+        return streamRelay.getInitialisationAsync();
+    }
+
+    // The retained segments since the last keyframe of a running stream, null if the stream is not running
+    public List<Segment> getGop(String streamId) {
+        StreamRelay streamRelay = this.streamRelays.get(streamId);
+        return streamRelay != null ? streamRelay.getGop() : null;
     }
 
     public boolean hasClient(String clientId) {
@@ -51,59 +133,195 @@ public class StreamService {
     }
 
     public StreamInit connect(StreamInfo streamInfo, String clientId) throws StreamingException {
-        if (clientId != null && this.hasClient(clientId)) {
-            throw new StreamingException("ClientId %s is already connected to a stream", clientId);
-        }
-
         if (clientId == null) {
             clientId = this.generateClientId();
         }
 
+        StreamRelay streamRelay = this.attachClient(streamInfo, clientId);
+
+        // Get the init data
+        try {
+            // The client has been added to the stream relay (if first one it started ffmpeg): wait for init data
+            return streamRelay.getInitData(clientId);
+
+        } catch (StreamingException e) {
+            this.disconnect(clientId);
+
+            throw e;
+        }
+    }
+
+    // Non-blocking equivalent of connect: the returned future fails with a StreamingException. The stream is joined by
+    // the calling thread, which must not be an event loop: creating a relay starts ffmpeg, and joining one waits for it
+    // to stop if its last client has just left.
+    public CompletableFuture<StreamInit> connectAsync(StreamInfo streamInfo, String clientId) {
+        String connectionClientId = clientId == null ? this.generateClientId() : clientId;
+
         StreamRelay streamRelay;
-        synchronized (this.streamRelays) {
-            streamRelay = this.getStreamRelayByStreamInfo(streamInfo);
-            if (streamRelay == null) {
-                Log.infof("Creating new Stream Relay for stream '%s'", streamInfo.getName());
+        try {
+            streamRelay = this.attachClient(streamInfo, connectionClientId);
 
-                // Get the RTSP Stream Worker
-                RTSPWorker worker = this.rtspStreamManager.connectToStream(streamInfo);
+        } catch (StreamingException e) {
+            return CompletableFuture.failedFuture(e);
+        }
 
-                streamRelay = new StreamRelay(streamInfo, worker, this.streamPublisher, this::handleError);
+        // Failures are handled off the ffmpeg reader thread that completes the init data: disconnecting the last client
+        // joins that thread
+        return streamRelay.getInitDataAsync(connectionClientId).whenCompleteAsync((streamInit, error) -> {
+            if (error != null) {
+                this.disconnect(connectionClientId);
+            }
+        }, Infrastructure.getDefaultWorkerPool());
+    }
+
+    // Attaches the viewer to a running stream as a client, so that the stream keeps running while it is watched. The
+    // viewer starts receiving segments once the returned init data has completed. Can be called from an event loop.
+    public CompletableFuture<StreamInit> addViewer(String streamId, SegmentViewer viewer) {
+        StreamRelay running = this.streamRelays.get(streamId);
+        if (running == null) {
+            return CompletableFuture.failedFuture(new StreamingException("Stream '%s' is not running", streamId));
+        }
 
-                this.streamRelays.add(streamRelay);
+        CompletableFuture<StreamInit> connection = CompletableFuture.supplyAsync(() -> this.connectAsync(running.getInfo(), null), Infrastructure.getDefaultWorkerPool())
+                .thenCompose(future -> future);
+
+        return connection.thenCompose(streamInit -> this.attachViewer(streamInit.getClientId(), viewer).whenComplete((attached, error) -> {
+            if (error != null) {
+                this.disconnect(streamInit.getClientId());
             }
+        }));
+    }
+
+    // Sends the segments of the stream of a connected client to the viewer, from the next segment onwards
+    public CompletableFuture<StreamInit> attachViewer(String clientId, SegmentViewer viewer) {
+        StreamRelay streamRelay = this.clients.get(clientId);
+        if (streamRelay == null) {
+            return CompletableFuture.failedFuture(new StreamingException("ClientId %s is not connected to a stream", clientId));
+        }
+
+        return streamRelay.getInitDataAsync(clientId).thenApply(streamInit -> {
+            if (!streamRelay.addViewer(viewer, streamInit)) {
+                throw new CompletionException(new StreamingException("Stream '%s' stopped while attaching viewer", streamRelay.getInfo().getName()));
+            }
+            return streamInit;
+        });
+    }
+
+    public void removeViewer(String clientId, SegmentViewer viewer) {
+        StreamRelay streamRelay = this.clients.get(clientId);
+        if (streamRelay != null) {
+            streamRelay.removeViewer(viewer);
+        }
+        this.disconnect(clientId);
+    }
+
+    public void disconnect(String clientId) {
+        StreamRelay streamRelay = this.clients.remove(clientId);
+        if (streamRelay != null) {
+            if (streamRelay.removeClient(clientId)) {
+                this.onLastClientRemoved(streamRelay);
+            }
+
+        } else {
+            Log.debugf("Stream Relay for client '%s' does not exist", clientId);
+        }
+    }
+
+    // Reserves the client id before joining the stream: a concurrent connection with the same client id fails. The map
+    // functions only create the relays, joining one is done outside them.
+    private StreamRelay attachClient(StreamInfo streamInfo, String clientId) throws StreamingException {
+        if (!this.joiningClientIds.add(clientId)) {
+            throw new StreamingException("ClientId %s is already connected to a stream", clientId);
         }
 
-        // Get the init data
         try {
-            // Add the client to the stream relay (if first one it'll start ffmpeg) and wait for init data
-            StreamInit streamInit = streamRelay.addClient(clientId);
+            // A client is added before its reservation is removed
+            if (this.clients.containsKey(clientId)) {
+                throw new StreamingException("ClientId %s is already connected to a stream", clientId);
+            }
+
+            StreamRelay streamRelay = this.joinStreamRelay(streamInfo, clientId);
             this.clients.put(clientId, streamRelay);
+            return streamRelay;
 
-            return streamInit;
+        } finally {
+            this.joiningClientIds.remove(clientId);
+        }
+    }
 
-        } catch (StreamingException e) {
-            this.disconnect(clientId);
+    private StreamRelay joinStreamRelay(StreamInfo streamInfo, String clientId) {
+        while (true) {
+            StreamRelay streamRelay = this.streamRelays.computeIfAbsent(streamInfo.getId(), id -> this.createStreamRelay(streamInfo));
 
-            throw e;
+            if (streamRelay.attachClient(clientId)) {
+                return streamRelay;
+            }
+
+            // The last client of the relay has just left: help remove it and create a new one
+            this.removeStreamRelay(streamRelay);
         }
     }
 
-    public void disconnect(String clientId) {
-        synchronized (this.streamRelays) {
-            StreamRelay streamRelay = this.getStreamRelayForClientId(clientId);
-            if (streamRelay != null) {
-                streamRelay.removeClient(clientId);
-
-                if (!streamRelay.hasClients()) {
-                    Log.infof("Removing Stream Relay for stream '%s'", streamRelay.getInfo().getName());
-                    this.removeStreamRelay(streamRelay.getInfo());
-                }
+    private StreamRelay createStreamRelay(StreamInfo streamInfo) {
+        Log.infof("Creating new Stream Relay for stream '%s'", streamInfo.getName());
 
-            } else {
-                Log.debugf("Stream Relay for client '%s' does not exist", clientId);
+        // Get the RTSP Stream Worker
+        RTSPWorker worker = this.rtspStreamManager.connectToStream(streamInfo);
+
+        GopCache gopCache = new GopCache(this.serverConfig.gopCache().maxStreamMb() * 1024L * 1024L, this.gopCacheBudget);
+        StreamMetrics metrics = new StreamMetrics(this.meterRegistry, streamInfo.getId());
+
+        StreamRecorder recorder = null;
+        if (this.recordingService.isEnabled()) {
+            try {
+                recorder = this.recordingService.createRecorder(streamInfo.getId(), metrics);
+
+            } catch (IOException e) {
+                Log.errorf("Stream '%s' will not be recorded: %s", streamInfo.getName(), e.getMessage());
             }
         }
+
+        return new StreamRelay(streamInfo, worker, this.streamPublisher, gopCache, metrics, recorder, this::handleError);
+    }
+
+    // An entry of the pre-warm list: <stream id>=<RTSP url>
+    private void prewarmStream(String entry) {
+        int separator = entry.indexOf('=');
+        if (separator <= 0 || separator == entry.length() - 1) {
+            Log.errorf("Invalid pre-warmed stream '%s': expected <stream id>=<RTSP url>", entry);
+            return;
+        }
+
+        String id = entry.substring(0, separator).trim();
+        StreamInfo streamInfo = new StreamInfo(id, id, entry.substring(separator + 1).trim());
+
+        Log.infof("Pre-warming stream '%s' at %s", id, streamInfo.getUrl());
+        this.prewarmedStreamIds.add(id);
+        this.streamRelays.computeIfAbsent(id, streamId -> this.createStreamRelay(streamInfo)).start();
+    }
+
+    // The relay keeps ffmpeg running for the linger time so that a client reconnecting, or reloading the page, does not
+    // have to wait for ffmpeg to start again
+    private void onLastClientRemoved(StreamRelay streamRelay) {
+        if (this.prewarmedStreamIds.contains(streamRelay.getId())) {
+            return;
+        }
+
+        if (this.lingerMs > 0) {
+            Log.debugf("Stream '%s' has no clients: stopping it in %d ms", streamRelay.getInfo().getName(), this.lingerMs);
+            this.scheduler.schedule(() -> this.stopIdleStreamRelay(streamRelay), this.lingerMs, TimeUnit.MILLISECONDS);
+
+        } else {
+            this.stopIdleStreamRelay(streamRelay);
+        }
+    }
+
+    private void stopIdleStreamRelay(StreamRelay streamRelay) {
+        // Does nothing if a client has joined since, or left again more recently
+        if (streamRelay.stopIfIdle(this.lingerMs)) {
+            Log.infof("Removing Stream Relay for stream '%s'", streamRelay.getInfo().getName());
+            this.removeStreamRelay(streamRelay);
+        }
     }
 
     private String generateClientId() {
@@ -116,35 +334,45 @@ public class StreamService {
         return uuid;
     }
 
-    private StreamRelay getStreamRelayByStreamInfo(StreamInfo streamInfo) {
-        synchronized (this.streamRelays) {
-            return this.streamRelays.stream()
-                    .filter(streamRelay -> streamRelay.getInfo().equals(streamInfo))
-                    .findFirst()
-                    .orElse(null);
-        }
+    // For a relay that has stopped. The worker goes first so that a relay created for the stream afterwards gets a new one
+    private void removeStreamRelay(StreamRelay streamRelay) {
+        this.rtspStreamManager.removeWorker(streamRelay.getWorker());
+        this.streamRelays.remove(streamRelay.getId(), streamRelay);
     }
 
-    private StreamRelay getStreamRelayForClientId(String clientId) {
-        return this.clients.get(clientId);
-    }
+    private void removeAbandonedStreams(long unsubscribedTimeoutMs) {
+        for (StreamRelay streamRelay : this.streamRelays.values()) {
+            try {
+                // Relays without clients are lingering or pre-warmed: nobody is expected to subscribe
+                if (streamRelay.hasClients() && streamRelay.isAbandoned(unsubscribedTimeoutMs)) {
+                    Log.infof("Disconnecting clients of stream '%s': no subscribers for %d ms", streamRelay.getInfo().getName(), unsubscribedTimeoutMs);
+
+                    streamRelay.getClientIds().forEach(this::disconnect);
+                }
 
-    private void removeStreamRelay(StreamInfo streamInfo) {
-        synchronized (this.streamRelays) {
-            this.streamRelays.removeIf(streamRelay -> Objects.equals(streamRelay.getInfo(), streamInfo));
+            } catch (Exception e) {
+                // An exception would cancel the scheduled check
+                Log.errorf("Failed to remove abandoned stream '%s': %s", streamRelay.getInfo().getName(), e.getMessage());
+            }
         }
     }
 
     private void handleError(StreamInfo streamInfo, String error) {
-        Log.errorf("Removing stream '%s' due to errors: %s", streamInfo.getName(), error);
+        // Called from the thread of the RTSP worker, which stopping the relay joins
+        Infrastructure.getDefaultWorkerPool().execute(() -> {
+            StreamRelay streamRelay = this.streamRelays.get(streamInfo.getId());
+            if (streamRelay != null && streamRelay.getInfo() == streamInfo) {
+                Log.errorf("Removing stream '%s' due to errors: %s", streamInfo.getName(), error);
 
-        synchronized (this.streamRelays) {
-            StreamRelay streamRelay = this.getStreamRelayByStreamInfo(streamInfo);
-            if (streamRelay != null) {
+                Set<String> clientIds = streamRelay.getClientIds();
                 streamRelay.stop();
-                this.removeStreamRelay(streamInfo);
+                clientIds.forEach(clientId -> this.clients.remove(clientId, streamRelay));
+                this.removeStreamRelay(streamRelay);
+
+                // A relay created for the stream by a client afterwards is stopped once its clients have left
+                this.prewarmedStreamIds.remove(streamInfo.getId());
             }
-        }
+        });
     }
 
 }
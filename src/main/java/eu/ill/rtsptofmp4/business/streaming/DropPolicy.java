@@ -0,0 +1,12 @@
+package eu.ill.rtsptofmp4.business.streaming;
+
+// What the StreamPublisher does when the queue of a stream is full
+public enum DropPolicy {
+    // Discard the oldest queued segment to make space
+    DROP_OLDEST,
+    // Discard the queued segments and everything that follows until the next keyframe, so that clients do not receive
+    // fragments that cannot be decoded
+    DROP_UNTIL_KEYFRAME,
+    // Block the producer until the sender has made space
+    BLOCK,
+}
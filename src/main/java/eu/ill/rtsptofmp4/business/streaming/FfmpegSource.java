@@ -0,0 +1,71 @@
+package eu.ill.rtsptofmp4.business.streaming;
+
+import eu.ill.rtsptofmp4.models.StreamInfo;
+import io.quarkus.logging.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+public class FfmpegSource implements StreamSource {
+
+    private final String ffmpegPath;
+
+    public FfmpegSource(final String ffmpegPath) {
+        this.ffmpegPath = ffmpegPath;
+    }
+
+    @Override
+    public Feed open(StreamInfo streamInfo) throws IOException {
+        String[] params = {
+                this.ffmpegPath,
+                "-re",
+                "-rtsp_transport",
+                "tcp",
+                "-i",
+                streamInfo.getUrl(),
+                "-reset_timestamps",
+                "1",
+                "-an",
+                "-c:v",
+                "copy",
+                "-f",
+                "mp4",
+                "-movflags",
+                "+frag_every_frame+empty_moov+default_base_moof",
+                "pipe:1"
+        };
+
+        Log.infof("Spawning ffmpeg for RTSP stream '%s' at %s", streamInfo.getName(), streamInfo.getUrl());
+        ProcessBuilder processBuilder = new ProcessBuilder();
+        processBuilder.command(params);
+
+//        processBuilder.redirectInput(ProcessBuilder.Redirect.DISCARD);
+        processBuilder.redirectError(ProcessBuilder.Redirect.DISCARD);
+
+        Process process = processBuilder.start();
+        return new Feed() {
+            @Override
+            public InputStream getInputStream() {
+                return process.getInputStream();
+            }
+
+            @Override
+            public int waitFor() throws InterruptedException {
+                return process.waitFor();
+            }
+
+            @Override
+            public void destroy() {
+                process.destroy();
+            }
+
+            @Override
+            public void close() {
+                // ffmpeg is still running if its output could not be parsed
+                if (process.isAlive()) {
+                    process.destroy();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,115 @@
+package eu.ill.rtsptofmp4.business.streaming;
+
+import eu.ill.rtsptofmp4.business.mp4frag.Segment;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Keeps the segments of a stream from its most recent keyframe onwards so that a new client can start decoding
+// immediately rather than waiting for the next keyframe. The cached segments are retained: they share the pooled
+// buffers with the publisher rather than being copied.
+public class GopCache {
+
+    private final long maxBytes;
+    private final Budget budget;
+
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private long bytes = 0;
+
+    public GopCache(final long maxBytes, final Budget budget) {
+        this.maxBytes = maxBytes;
+        this.budget = budget;
+    }
+
+    public synchronized void add(Segment segment) {
+        if (segment.isKeyframe()) {
+            this.clear();
+
+        } else if (this.segments.isEmpty()) {
+            // No keyframe yet, or the group overflowed: delta segments are useless until the next keyframe
+            return;
+        }
+
+        if (this.bytes + segment.length() > this.maxBytes || !this.budget.reserve(segment.length())) {
+            this.clear();
+            return;
+        }
+
+        this.segments.add(segment.retain());
+        this.bytes += segment.length();
+    }
+
+    // The cached segments concatenated, empty if there is no complete group since the last keyframe
+    public synchronized byte[] getBytes() {
+        byte[] bytes = new byte[(int) this.bytes];
+        int position = 0;
+        for (Segment segment : this.segments) {
+            for (int i = 0; i < segment.getPartCount(); i++) {
+                segment.getPart(i).copyTo(bytes, position, segment.getPart(i).length());
+                position += segment.getPart(i).length();
+            }
+        }
+
+        return bytes;
+    }
+
+    // The cached segments, retained: the caller releases them once they have been sent
+    public synchronized List<Segment> getSegments() {
+        List<Segment> segments = new ArrayList<>(this.segments.size());
+        for (Segment segment : this.segments) {
+            segments.add(segment.retain());
+        }
+
+        return segments;
+    }
+
+    public synchronized int getSegmentCount() {
+        return this.segments.size();
+    }
+
+    public synchronized long getBytesUsed() {
+        return this.bytes;
+    }
+
+    public synchronized void clear() {
+        Segment segment;
+        while ((segment = this.segments.poll()) != null) {
+            segment.release();
+        }
+        this.budget.free(this.bytes);
+        this.bytes = 0;
+    }
+
+    // Memory shared by the caches of all streams
+    public static class Budget {
+
+        private final long maxBytes;
+        private final AtomicLong bytes = new AtomicLong();
+
+        public Budget(final long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        boolean reserve(long length) {
+            long current;
+            do {
+                current = this.bytes.get();
+                if (current + length > this.maxBytes) {
+                    return false;
+                }
+            } while (!this.bytes.compareAndSet(current, current + length));
+
+            return true;
+        }
+
+        void free(long length) {
+            this.bytes.addAndGet(-length);
+        }
+
+        public long getBytesUsed() {
+            return this.bytes.get();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package eu.ill.rtsptofmp4.business.streaming;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Bounded lock-free queue for many producers and a single consumer. Slots are preallocated and each has a sequence
+// number: a producer claims a position with a CAS on the tail and publishes its value by advancing the sequence of the
+// slot, the consumer reads slots in order once their sequence shows them as published. Nothing is allocated per element.
+public class MpscRing<T> {
+
+    private final static int SPIN_TRIES = 100;
+
+    private final Object[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+
+    private final AtomicLong tail = new AtomicLong();
+    private long head = 0;
+
+    private volatile Thread consumer;
+    private volatile boolean consumerWaiting = false;
+
+    public MpscRing(final int capacity, final WaitStrategy waitStrategy) {
+        // Round up to a power of two so that positions map to slots with a mask
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+
+        this.slots = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+        this.waitStrategy = waitStrategy;
+
+        for (int i = 0; i < size; i++) {
+            this.sequences.set(i, i);
+        }
+    }
+
+    public int capacity() {
+        return this.slots.length;
+    }
+
+    // Returns false if the ring is full
+    public boolean offer(T value) {
+        long position = this.tail.get();
+        int index;
+        while (true) {
+            index = (int) position & this.mask;
+            long difference = this.sequences.get(index) - position;
+            if (difference == 0) {
+                if (this.tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = this.tail.get();
+
+            } else if (difference < 0) {
+                // The consumer has not yet freed the slot from the previous lap
+                return false;
+
+            } else {
+                // Another producer claimed this position
+                position = this.tail.get();
+            }
+        }
+
+        this.slots[index] = value;
+        this.sequences.set(index, position + 1);
+
+        // Only the first producer to see the flag pays for the unpark
+        if (this.consumerWaiting) {
+            this.consumerWaiting = false;
+            LockSupport.unpark(this.consumer);
+        }
+
+        return true;
+    }
+
+    // Consumer only: returns null if the ring is empty
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        int index = (int) this.head & this.mask;
+        if (this.sequences.get(index) != this.head + 1) {
+            return null;
+        }
+
+        T value = (T) this.slots[index];
+        this.slots[index] = null;
+        this.sequences.lazySet(index, this.head + this.slots.length);
+        this.head++;
+
+        return value;
+    }
+
+    // Consumer only: waits for a value according to the wait strategy
+    public T take() throws InterruptedException {
+        return this.take(0);
+    }
+
+    // Consumer only: as take(), returning null once the timeout has passed without a value. No timeout if it is 0.
+    public T take(long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        T value;
+        int idleCount = 0;
+        while ((value = this.poll()) == null) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+
+            long remaining = timeoutNanos > 0 ? deadline - System.nanoTime() : Long.MAX_VALUE;
+            if (remaining <= 0) {
+                return null;
+            }
+            this.idle(idleCount++, remaining);
+        }
+
+        return value;
+    }
+
+    private void idle(int idleCount, long remainingNanos) {
+        switch (this.waitStrategy) {
+            case BUSY_SPIN:
+                Thread.onSpinWait();
+                break;
+
+            case YIELD:
+                if (idleCount < SPIN_TRIES) {
+                    Thread.onSpinWait();
+                } else {
+                    Thread.yield();
+                }
+                break;
+
+            case PARK:
+                if (idleCount < SPIN_TRIES) {
+                    Thread.onSpinWait();
+
+                } else {
+                    // Producers check the flag after publishing: either they see it and unpark, or the check below sees
+                    // their value
+                    this.consumer = Thread.currentThread();
+                    this.consumerWaiting = true;
+                    if (this.sequences.get((int) this.head & this.mask) != this.head + 1) {
+                        LockSupport.parkNanos(this, remainingNanos);
+                    }
+                    this.consumerWaiting = false;
+                }
+                break;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package eu.ill.rtsptofmp4.business.streaming;
+
+import eu.ill.rtsptofmp4.business.mp4frag.Segment;
+import eu.ill.rtsptofmp4.models.PublishQueueStats;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.TimeUnit;
+
+// Bounded queue of the segments of one stream waiting to be sent by the StreamPublisher. Segments and their enqueue
+// times are held in preallocated rings. A full queue applies the drop policy so that a stalled send or a bursting camera
+// only delays its own stream. A changed initialisation segment is held outside the ring and never dropped: it is sent
+// on its own topic once the segments queued before it have been sent or dropped.
+class PublishQueue {
+
+    private final String streamId;
+    private final DropPolicy dropPolicy;
+    private final Segment[] segments;
+    private final long[] enqueueTimes;
+    private final StreamMetrics metrics;
+    private final Timer latencyTimer;
+
+    private int head = 0;
+    // Written under the lock, the size and the drops are volatile so that the gauges read them without taking it
+    private volatile int size = 0;
+    private boolean scheduled = false;
+    private boolean waitingForKeyframe = false;
+    private boolean closed = false;
+
+    private Segment initialisation;
+    private int segmentsBeforeInitialisation = 0;
+
+    private volatile long dropped = 0;
+    private long skipped = 0;
+    private long sent = 0;
+    private long totalLatencyNanos = 0;
+    private long maxLatencyNanos = 0;
+
+    PublishQueue(final String streamId, final int capacity, final DropPolicy dropPolicy) {
+        this(streamId, capacity, dropPolicy, new StreamMetrics(null, streamId));
+    }
+
+    PublishQueue(final String streamId, final int capacity, final DropPolicy dropPolicy, final StreamMetrics metrics) {
+        this.streamId = streamId;
+        this.dropPolicy = dropPolicy;
+        this.segments = new Segment[capacity];
+        this.enqueueTimes = new long[capacity];
+
+        this.metrics = metrics;
+        this.latencyTimer = metrics.timer("publisher.latency", "Time from queueing a segment to sending it to the subscribers");
+        metrics.gauge("publisher.queue.depth", "Segments waiting to be sent", this, PublishQueue::getSize);
+        metrics.counter("publisher.dropped", "Segments dropped by the drop policy of the publish queue", null, this, PublishQueue::getDropped);
+    }
+
+    String getStreamId() {
+        return this.streamId;
+    }
+
+    // Takes ownership of the segment. Returns true if the queue has become ready and has to be scheduled with the sender.
+    synchronized boolean offer(Segment segment) throws InterruptedException {
+        if (this.waitingForKeyframe) {
+            if (!segment.isKeyframe()) {
+                this.drop(segment);
+                return false;
+            }
+            this.waitingForKeyframe = false;
+        }
+
+        while (!this.closed && this.size == this.segments.length) {
+            switch (this.dropPolicy) {
+                case DROP_OLDEST:
+                    this.drop(this.poll());
+                    break;
+
+                case DROP_UNTIL_KEYFRAME:
+                    while (this.size > 0) {
+                        this.drop(this.poll());
+                    }
+                    if (!segment.isKeyframe()) {
+                        this.waitingForKeyframe = true;
+                        this.drop(segment);
+                        return false;
+                    }
+                    break;
+
+                case BLOCK:
+                    try {
+                        this.wait();
+
+                    } catch (InterruptedException e) {
+                        segment.release();
+                        throw e;
+                    }
+                    break;
+            }
+        }
+
+        if (this.closed) {
+            segment.release();
+            return false;
+        }
+
+        int tail = (this.head + this.size) % this.segments.length;
+        this.segments[tail] = segment;
+        this.enqueueTimes[tail] = System.nanoTime();
+        this.size++;
+
+        if (!this.scheduled) {
+            this.scheduled = true;
+            return true;
+        }
+        return false;
+    }
+
+    // Takes ownership of the initialisation segment. Returns true if the queue has become ready and has to be scheduled
+    // with the sender.
+    synchronized boolean offerInitialisation(Segment initialisation) {
+        if (this.closed) {
+            initialisation.release();
+            return false;
+        }
+
+        if (this.initialisation != null) {
+            // ffmpeg restarted again before the previous one was sent: the segments in between can not be decoded
+            // with the new one, and only the new one is sent
+            while (this.size > this.segmentsBeforeInitialisation) {
+                this.drop(this.removeLast());
+            }
+            this.initialisation.release();
+
+        } else {
+            this.segmentsBeforeInitialisation = this.size;
+        }
+        this.initialisation = initialisation;
+
+        if (!this.scheduled) {
+            this.scheduled = true;
+            return true;
+        }
+        return false;
+    }
+
+    // Releases a segment that is not sent because the stream has no subscribers
+    synchronized void skip(Segment segment) {
+        segment.release();
+        this.skipped++;
+
+        // The segments that follow can not be decoded by a subscriber joining before the next keyframe
+        this.waitingForKeyframe = true;
+    }
+
+    // Called by the sender thread only: sends the oldest segment, or the initialisation segment once the segments queued
+    // before it have gone. Returns true if more segments are waiting and the queue has to be scheduled again.
+    boolean sendNext(SegmentSender sender) {
+        Segment segment;
+        long enqueueTime = 0;
+        boolean initialisation = false;
+        synchronized (this) {
+            if (this.initialisation != null && this.segmentsBeforeInitialisation == 0) {
+                segment = this.initialisation;
+                this.initialisation = null;
+                initialisation = true;
+
+            } else if (this.size == 0) {
+                this.scheduled = false;
+                return false;
+
+            } else {
+                enqueueTime = this.enqueueTimes[this.head];
+                segment = this.poll();
+            }
+        }
+
+        try {
+            sender.send(initialisation ? this.streamId + StreamPublisher.INITIALISATION_TOPIC_SUFFIX : this.streamId, segment);
+
+        } finally {
+            segment.release();
+        }
+
+        long latency = System.nanoTime() - enqueueTime;
+        if (!initialisation) {
+            this.latencyTimer.record(latency, TimeUnit.NANOSECONDS);
+        }
+        synchronized (this) {
+            if (!initialisation) {
+                this.sent++;
+                this.totalLatencyNanos += latency;
+                this.maxLatencyNanos = Math.max(this.maxLatencyNanos, latency);
+            }
+
+            if (this.size == 0 && this.initialisation == null) {
+                this.scheduled = false;
+                return false;
+            }
+            return true;
+        }
+    }
+
+    // Releases the queued segments and refuses any new ones, waking blocked producers
+    synchronized void close() {
+        this.closed = true;
+        while (this.size > 0) {
+            this.poll().release();
+        }
+        if (this.initialisation != null) {
+            this.initialisation.release();
+            this.initialisation = null;
+        }
+        this.notifyAll();
+        this.metrics.close();
+    }
+
+    synchronized PublishQueueStats getStats() {
+        long meanLatencyNanos = this.sent == 0 ? 0 : this.totalLatencyNanos / this.sent;
+        return new PublishQueueStats(this.streamId, this.size, this.segments.length, this.sent, this.dropped, this.skipped, meanLatencyNanos / 1000, this.maxLatencyNanos / 1000);
+    }
+
+    private int getSize() {
+        return this.size;
+    }
+
+    private long getDropped() {
+        return this.dropped;
+    }
+
+    private Segment poll() {
+        Segment segment = this.segments[this.head];
+        this.segments[this.head] = null;
+        this.head = (this.head + 1) % this.segments.length;
+        this.size--;
+        if (this.segmentsBeforeInitialisation > 0) {
+            this.segmentsBeforeInitialisation--;
+        }
+        this.notifyAll();
+
+        return segment;
+    }
+
+    private Segment removeLast() {
+        int tail = (this.head + this.size - 1) % this.segments.length;
+        Segment segment = this.segments[tail];
+        this.segments[tail] = null;
+        this.size--;
+        this.notifyAll();
+
+        return segment;
+    }
+
+    private void drop(Segment segment) {
+        segment.release();
+        this.dropped++;
+    }
+
+    interface SegmentSender {
+        void send(String topic, Segment segment);
+    }
+}
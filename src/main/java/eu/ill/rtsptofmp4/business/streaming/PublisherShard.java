@@ -0,0 +1,126 @@
+package eu.ill.rtsptofmp4.business.streaming;
+
+import eu.ill.rtsptofmp4.business.mp4frag.Segment;
+import io.micrometer.core.instrument.Timer;
+import org.jboss.logging.Logger;
+import org.zeromq.ZMQ;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+// A sender thread of the StreamPublisher with its own PUB socket. Streams are assigned to a shard by id so that the
+// segments of a stream are always sent in order by the same thread. A single shard publishes on the XPUB socket itself,
+// and reads the subscriptions from it between sends.
+class PublisherShard {
+
+    private static final Logger LOGGER = Logger.getLogger(PublisherShard.class);
+
+    // How long an idle shard that owns the XPUB socket waits for segments before checking for subscriptions
+    private static final long SUBSCRIPTION_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final int index;
+    private final ZMQ.Socket socket;
+    private final SubscriptionTracker subscriptions;
+    private final Timer sendTimer;
+
+    // Queues with segments to send are handed over exactly once through the lock-free ring: the sender keeps them in its
+    // own round-robin list until they are empty, so that streams are drained fairly and producers only contend on a CAS
+    private final MpscRing<PublishQueue> readyQueues;
+
+    private volatile boolean running;
+    private Thread thread;
+
+    // The subscriptions are null if the socket is a PUB socket connected to the proxy of the publisher
+    PublisherShard(final int index, final ZMQ.Socket socket, final SubscriptionTracker subscriptions, final int ringSize, final WaitStrategy waitStrategy, final Timer sendTimer) {
+        this.index = index;
+        this.socket = socket;
+        this.subscriptions = subscriptions;
+        this.sendTimer = sendTimer;
+        this.readyQueues = new MpscRing<>(ringSize, waitStrategy);
+    }
+
+    void start() {
+        this.running = true;
+        this.thread = new Thread(this::mainLoop, "stream-publisher-" + this.index);
+        this.thread.start();
+    }
+
+    void stop() {
+        this.running = false;
+        this.thread.interrupt();
+        try {
+            this.thread.join();
+
+        } catch (InterruptedException e) {
+            LOGGER.errorf("Stop of Stream Publisher thread %d interrupted: %s", this.index, e.getMessage());
+        }
+
+        this.socket.close();
+    }
+
+    void schedule(PublishQueue queue) {
+        // Only full if more streams than ring slots became ready at once: wait for the sender to catch up
+        while (!this.readyQueues.offer(queue)) {
+            Thread.yield();
+        }
+    }
+
+    private void mainLoop() {
+        ArrayDeque<PublishQueue> ready = new ArrayDeque<>();
+        while (this.running) {
+            try {
+                this.readSubscriptions();
+
+                PublishQueue queue;
+                while ((queue = this.readyQueues.poll()) != null) {
+                    ready.add(queue);
+                }
+                if (ready.isEmpty()) {
+                    // Segments are only published to streams with subscribers: the subscriptions are read while idle
+                    queue = this.subscriptions != null ? this.readyQueues.take(SUBSCRIPTION_CHECK_NANOS) : this.readyQueues.take();
+                    if (queue == null) {
+                        continue;
+                    }
+                    ready.add(queue);
+                }
+
+                queue = ready.poll();
+                if (queue.sendNext(this::send)) {
+                    ready.add(queue);
+                }
+
+            } catch (InterruptedException exception) {
+                if (this.running) {
+                    LOGGER.info("Publisher message sender thread interrupted");
+                }
+            }
+        }
+    }
+
+    private void readSubscriptions() {
+        if (this.subscriptions == null) {
+            return;
+        }
+
+        byte[] message;
+        while ((message = this.socket.recv(ZMQ.DONTWAIT)) != null) {
+            this.subscriptions.onSubscriptionMessage(message);
+        }
+    }
+
+    private void send(String topic, Segment segment) {
+        if (LOGGER.isTraceEnabled()) {
+            LOGGER.tracef("Sending segment data of length %d on topic %s", segment.length(), topic);
+        }
+
+        // Send multipart message. jeromq keeps a reference to zero-copy frames after send() returns without telling us
+        // when it is done with them, so the data is copied into the frame and the pooled segment can go back to the pool
+        // as soon as the send completes.
+        ByteBuffer data = segment.asByteBuffer();
+        long start = System.nanoTime();
+        this.socket.sendMore(topic);
+        this.socket.send(data.array(), data.arrayOffset() + data.position(), data.remaining(), 0);
+        this.sendTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+}
@@ -1,6 +1,15 @@
 package eu.ill.rtsptofmp4.business.streaming;
 
+import eu.ill.rtsptofmp4.business.mp4frag.Segment;
+
 public interface RTSPStreamClient {
-    void onSegment(byte[] segment);
+    void onSegment(Segment segment);
+    // ffmpeg has produced its first initialisation segment, the given time after it was spawned
+    void onInitialisationReceived(byte[] initialisation, long elapsedNanos);
+    // ffmpeg has exited and is about to be restarted
+    void onRestart(int code);
+    // ffmpeg has been restarted with a different codec configuration
+    void onInitialisationChanged(byte[] initialisation);
+    // ffmpeg has exited and will not be restarted
     void onExit(int code);
 }
@@ -1,15 +1,16 @@
 package eu.ill.rtsptofmp4.business.streaming;
 
 import eu.ill.rtsptofmp4.ServerConfig;
+import eu.ill.rtsptofmp4.business.cluster.ClusterService;
+import eu.ill.rtsptofmp4.business.mp4frag.BufferPool;
 import eu.ill.rtsptofmp4.models.StreamInfo;
 import io.quarkus.logging.Log;
 
+import javax.annotation.PostConstruct;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Objects;
-import java.util.Optional;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 @ApplicationScoped
 public class RTSPStreamManager {
@@ -17,22 +18,60 @@ public class RTSPStreamManager {
     @Inject
     ServerConfig serverConfig;
 
-    private final List<RTSPWorker> rtspWorkers = new ArrayList<>();
+    @Inject
+    ClusterService clusterService;
+
+    // Workers by stream id, removed when their stream relay stops
+    private final Map<String, RTSPWorker> rtspWorkers = new ConcurrentHashMap<>();
+    private BufferPool bufferPool;
+    private WorkerThreads workerThreads;
+    private RestartPolicy restartPolicy;
+    private StreamSource streamSource;
+
+    @PostConstruct
+    void init() {
+        ServerConfig.BufferPoolConfig bufferPoolConfig = this.serverConfig.bufferPool();
+        this.bufferPool = new BufferPool(bufferPoolConfig.maxPooledMb() * 1024L * 1024L, bufferPoolConfig.leakDetection());
+        this.workerThreads = new WorkerThreads(this.serverConfig.worker().virtualThreads());
+
+        ServerConfig.RestartConfig restartConfig = this.serverConfig.worker().restart();
+        this.restartPolicy = new RestartPolicy(restartConfig.initialDelayMs(), restartConfig.maxDelayMs(), restartConfig.maxRestarts());
+
+        // In cluster mode the stream is only read from the camera by the node that owns it
+        this.streamSource = this.clusterService.isEnabled() ? this.clusterService : new FfmpegSource(this.serverConfig.worker().ffmpegPath());
+    }
+
+    public BufferPool getBufferPool() {
+        return this.bufferPool;
+    }
 
     public RTSPWorker connectToStream(StreamInfo streamInfo) {
-        // Check if worker exists
-        RTSPWorker worker = this.getWorker(streamInfo);
-        if (worker == null) {
-            worker = new RTSPWorker(streamInfo, this.serverConfig.worker().ffmpegPath(), this.serverConfig.worker().intialisationTimoutMs());
+        return this.rtspWorkers.computeIfAbsent(streamInfo.getId(), id -> {
             Log.infof("Created new RTSP Worker for stream '%s'", streamInfo.getName());
-            this.rtspWorkers.add(worker);
+            return new RTSPWorker(streamInfo, this.streamSource, this.serverConfig.worker().intialisationTimoutMs(), this.bufferPool, this.workerThreads, this.restartPolicy);
+        });
+    }
+
+    // Called once the worker has been stopped: the next connection to the stream creates a new one
+    public void removeWorker(RTSPWorker worker) {
+        if (this.rtspWorkers.remove(worker.getStreamId(), worker)) {
+            Log.debugf("Removed RTSP Worker for stream '%s'", worker.getStreamId());
         }
+    }
 
-        return worker;
+    public boolean hasWorker(String streamId) {
+        return this.rtspWorkers.containsKey(streamId);
+    }
+
+    // The stream has moved to another node of the cluster
+    public void restartSource(String streamId) {
+        RTSPWorker worker = this.rtspWorkers.get(streamId);
+        if (worker != null) {
+            worker.restartSource();
+        }
     }
 
-    private RTSPWorker getWorker(StreamInfo streamInfo) {
-        Optional<RTSPWorker> optionalRTSPWorker = this.rtspWorkers.stream().filter(worker -> Objects.equals(worker.getStreamId(), streamInfo.getId())).findFirst();
-        return optionalRTSPWorker.orElse(null);
+    public int getWorkerCount() {
+        return this.rtspWorkers.size();
     }
 }
@@ -1,29 +1,58 @@
 package eu.ill.rtsptofmp4.business.streaming;
 
+import eu.ill.rtsptofmp4.business.mp4frag.BufferPool;
 import eu.ill.rtsptofmp4.business.mp4frag.MP4Frag;
-import eu.ill.rtsptofmp4.business.mp4frag.StreamBuffer;
+import eu.ill.rtsptofmp4.business.mp4frag.Segment;
 import eu.ill.rtsptofmp4.models.exceptions.MP4FragException;
 import eu.ill.rtsptofmp4.models.exceptions.StreamingException;
 import eu.ill.rtsptofmp4.models.StreamInfo;
+import eu.ill.rtsptofmp4.models.Track;
+import eu.ill.rtsptofmp4.models.WorkerStats;
 import io.quarkus.logging.Log;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 public class RTSPWorker {
 
     private final StreamInfo streamInfo;
-    private final String ffmpegPath;
+    private final StreamSource source;
     private final int initialisationTimeoutMs;
-
-    private RTSPStreamClient client;
-    private Process process;
-    private MP4Frag mp4Frag;
+    private final BufferPool bufferPool;
+    private final WorkerThreads workerThreads;
+    private final RestartPolicy restartPolicy;
+
+    // Read by the worker thread without the lock: stop() holds it while joining the thread
+    private volatile RTSPStreamClient client;
+    private volatile StreamSource.Feed feed;
+    private volatile MP4Frag mp4Frag;
     private Thread thread;
 
-    public RTSPWorker(final StreamInfo streamInfo, final String ffmpegPath, final int initialisationTimeoutMs) {
+    // Written by the worker thread only
+    private volatile int restarts = 0;
+    private volatile int lastExitCode = 0;
+    private volatile long downtimeMs = 0;
+    private volatile long downSinceMs = 0;
+
+    // Set when the source of a running worker is changed: the feed is opened again straight away
+    private volatile boolean restartRequested = false;
+
+    // Time at which ffmpeg was spawned, 0 once it has produced its initialisation segment
+    private volatile long spawnedAtNanos = 0;
+
+    public RTSPWorker(final StreamInfo streamInfo, final String ffmpegPath, final int initialisationTimeoutMs, final BufferPool bufferPool, final WorkerThreads workerThreads, final RestartPolicy restartPolicy) {
+        this(streamInfo, new FfmpegSource(ffmpegPath), initialisationTimeoutMs, bufferPool, workerThreads, restartPolicy);
+    }
+
+    public RTSPWorker(final StreamInfo streamInfo, final StreamSource source, final int initialisationTimeoutMs, final BufferPool bufferPool, final WorkerThreads workerThreads, final RestartPolicy restartPolicy) {
         this.streamInfo = streamInfo;
-        this.ffmpegPath = ffmpegPath;
+        this.source = source;
         this.initialisationTimeoutMs = initialisationTimeoutMs;
+        this.bufferPool = bufferPool;
+        this.workerThreads = workerThreads;
+        this.restartPolicy = restartPolicy;
     }
 
     public String getStreamId() {
@@ -34,9 +63,19 @@ public class RTSPWorker {
         if (this.thread == null) {
             this.client = client;
 
-            this.mp4Frag = new MP4Frag(this::onSegment);
+            this.mp4Frag = new MP4Frag(new MP4Frag.SegmentListener() {
+                @Override
+                public void onSegment(Segment segment) {
+                    RTSPWorker.this.onSegment(segment);
+                }
 
-            this.thread = new Thread(this::threadMain);
+                @Override
+                public void onInitialization(byte[] initialization, boolean changed) {
+                    RTSPWorker.this.onInitialization(initialization, changed);
+                }
+            }, this.bufferPool);
+
+            this.thread = this.workerThreads.newThread("rtsp-worker-" + this.streamInfo.getId(), this::threadMain);
             this.thread.start();
 
         } else {
@@ -50,17 +89,20 @@ public class RTSPWorker {
 
             this.mp4Frag.stop();
 
-            if (this.process != null) {
+            StreamSource.Feed feed = this.feed;
+            if (feed != null) {
                 Log.infof("Killing ffmpeg for RTSP stream '%s'", this.streamInfo.getName());
-                this.process.destroy();
+                feed.destroy();
             }
 
             this.thread.interrupt();
-            try {
-                this.thread.join();
+            if (Thread.currentThread() != this.thread) {
+                try {
+                    this.thread.join();
 
-            } catch (InterruptedException e) {
-                Log.errorf("Failed to join worker thread for stream '%s'", this.streamInfo.getName());
+                } catch (InterruptedException e) {
+                    Log.errorf("Failed to join worker thread for stream '%s'", this.streamInfo.getName());
+                }
             }
 
             this.mp4Frag = null;
@@ -68,6 +110,17 @@ public class RTSPWorker {
         }
     }
 
+    // Ends the current feed so that the source is opened again, without waiting for the restart delay. The source decides
+    // where the stream is read from each time it is opened.
+    public void restartSource() {
+        StreamSource.Feed feed = this.feed;
+        if (feed != null) {
+            Log.infof("Restarting the source of stream '%s'", this.streamInfo.getName());
+            this.restartRequested = true;
+            feed.destroy();
+        }
+    }
+
     public String getMime() throws StreamingException {
         if (this.mp4Frag != null) {
             return this.mp4Frag.getMime(this.initialisationTimeoutMs);
@@ -86,54 +139,197 @@ public class RTSPWorker {
         }
     }
 
-    private synchronized void sendExitCode(int exitCode) {
-        if (this.client != null) {
-            this.client.onExit(exitCode);
+    public List<Track> getTracks() throws StreamingException {
+        if (this.mp4Frag != null) {
+            // The tracks are parsed along with the mime
+            this.mp4Frag.getMime(this.initialisationTimeoutMs);
+            return this.mp4Frag.getTracks();
+
+        } else {
+            throw new StreamingException("ffmpeg process for RTSP stream '%s' does not exist", this.streamInfo.getName());
+        }
+    }
+
+    // Non-blocking equivalent of getMime: completes exceptionally with a TimeoutException after the initialisation timeout
+    public CompletableFuture<String> getMimeAsync() {
+        MP4Frag mp4Frag = this.mp4Frag;
+        if (mp4Frag == null) {
+            return CompletableFuture.failedFuture(new StreamingException("ffmpeg process for RTSP stream '%s' does not exist", this.streamInfo.getName()));
         }
+
+        return this.withTimeout(mp4Frag.getMimeFuture());
     }
 
-    private synchronized void onSegment(StreamBuffer segment) {
-        if (this.client != null) {
-            this.client.onSegment(segment.getBytes());
+    public CompletableFuture<byte[]> getInitialisationAsync() {
+        MP4Frag mp4Frag = this.mp4Frag;
+        if (mp4Frag == null) {
+            return CompletableFuture.failedFuture(new StreamingException("ffmpeg process for RTSP stream '%s' does not exist", this.streamInfo.getName()));
+        }
+
+        return this.withTimeout(mp4Frag.getInitializationFuture());
+    }
+
+    private <T> CompletableFuture<T> withTimeout(CompletableFuture<T> future) {
+        // A copy so that the timeout of one client does not fail the future shared by all of them
+        CompletableFuture<T> copy = future.thenApply(value -> value);
+        return this.initialisationTimeoutMs == 0 ? copy : copy.orTimeout(this.initialisationTimeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    public WorkerStats getStats() {
+        long downSinceMs = this.downSinceMs;
+        long downtimeMs = this.downtimeMs + (downSinceMs > 0 ? System.currentTimeMillis() - downSinceMs : 0);
+
+        return new WorkerStats(this.streamInfo.getId(), this.isRunning() && downSinceMs == 0, this.restarts, this.lastExitCode, downtimeMs);
+    }
+
+    // Read when metrics are scraped: the counters start again from 0 when the worker is restarted after a stop
+    public long getBytesRead() {
+        MP4Frag mp4Frag = this.mp4Frag;
+        return mp4Frag != null ? mp4Frag.getBytesRead() : 0;
+    }
+
+    public long getFragmentCount() {
+        MP4Frag mp4Frag = this.mp4Frag;
+        return mp4Frag != null ? mp4Frag.getFragmentCount() : 0;
+    }
+
+    public long getChunksParsed() {
+        MP4Frag mp4Frag = this.mp4Frag;
+        return mp4Frag != null ? mp4Frag.getChunksParsed() : 0;
+    }
+
+    public long getParseTimeNanos() {
+        MP4Frag mp4Frag = this.mp4Frag;
+        return mp4Frag != null ? mp4Frag.getParseTimeNanos() : 0;
+    }
+
+    public int getRestarts() {
+        return this.restarts;
+    }
+
+    private synchronized boolean isRunning() {
+        return this.thread != null;
+    }
+
+    private void onInitialization(byte[] initialization, boolean changed) {
+        long spawnedAtNanos = this.spawnedAtNanos;
+        if (spawnedAtNanos > 0) {
+            this.spawnedAtNanos = 0;
+
+            RTSPStreamClient client = this.client;
+            if (client != null) {
+                client.onInitialisationReceived(initialization, System.nanoTime() - spawnedAtNanos);
+            }
+        }
+
+        long downSinceMs = this.downSinceMs;
+        if (downSinceMs > 0) {
+            long downMs = System.currentTimeMillis() - downSinceMs;
+            this.downtimeMs += downMs;
+            this.downSinceMs = 0;
+            Log.infof("ffmpeg restarted for stream '%s' after %d ms%s", this.streamInfo.getName(), downMs, changed ? " with a new initialisation segment" : "");
+        }
+
+        RTSPStreamClient client = this.client;
+        if (changed && client != null) {
+            client.onInitialisationChanged(initialization);
+        }
+    }
+
+    private void sendRestart(int exitCode) {
+        RTSPStreamClient client = this.client;
+        if (client != null) {
+            client.onRestart(exitCode);
+        }
+    }
+
+    private void sendExitCode(int exitCode) {
+        RTSPStreamClient client = this.client;
+        if (client != null) {
+            client.onExit(exitCode);
+        }
+    }
+
+    private void onSegment(Segment segment) {
+        RTSPStreamClient client = this.client;
+        if (client != null) {
+            client.onSegment(segment);
+
+        } else {
+            segment.release();
         }
     }
 
     private void threadMain() {
-        Log.infof("Starting ffmpeg for stream '%s'", this.streamInfo.getName());
-
-        String[] params = {
-                this.ffmpegPath,
-                "-re",
-                "-rtsp_transport",
-                "tcp",
-                "-i",
-                this.streamInfo.getUrl(),
-                "-reset_timestamps",
-                "1",
-                "-an",
-                "-c:v",
-                "copy",
-                "-f",
-                "mp4",
-                "-movflags",
-                "+frag_every_frame+empty_moov+default_base_moof",
-                "pipe:1"
-        };
-
-        Log.infof("Spawning ffmpeg for RTSP stream '%s' at %s", this.streamInfo.getName(), this.streamInfo.getUrl());
-        ProcessBuilder processBuilder = new ProcessBuilder();
-        processBuilder.command(params);
-
-//        processBuilder.redirectInput(ProcessBuilder.Redirect.DISCARD);
-        processBuilder.redirectError(ProcessBuilder.Redirect.DISCARD);
+        // stop() may clear the field before the thread ends when it is called from the thread itself
+        MP4Frag mp4Frag = this.mp4Frag;
+
+        int attempt = 0;
+        while (true) {
+            long startMs = System.currentTimeMillis();
+            int exitCode = this.runFfmpeg(mp4Frag);
+            if (mp4Frag.stopped()) {
+                return;
+            }
+
+            if (this.restartRequested) {
+                // Not a failure: the restart policy does not apply
+                this.restartRequested = false;
+                this.sendRestart(exitCode);
+                mp4Frag.reset();
+                continue;
+            }
 
+            this.lastExitCode = exitCode;
+            if (this.downSinceMs == 0) {
+                this.downSinceMs = System.currentTimeMillis();
+            }
+
+            // ffmpeg has been running long enough to start the backoff again from the initial delay
+            if (this.downSinceMs - startMs >= this.restartPolicy.getMaxDelayMs()) {
+                attempt = 0;
+            }
+
+            if (!this.restartPolicy.shouldRestart(attempt)) {
+                this.sendExitCode(exitCode);
+                return;
+            }
+
+            long delayMs = this.restartPolicy.getDelayMs(attempt);
+            attempt++;
+            this.restarts++;
+            Log.warnf("ffmpeg exited with code %d for stream '%s': restarting in %d ms (attempt %d)", exitCode, this.streamInfo.getName(), delayMs, attempt);
+            this.sendRestart(exitCode);
+
+            try {
+                Thread.sleep(delayMs);
+
+            } catch (InterruptedException e) {
+                // Stopped
+                return;
+            }
+
+            if (mp4Frag.stopped()) {
+                return;
+            }
+            mp4Frag.reset();
+        }
+    }
+
+    private int runFfmpeg(MP4Frag mp4Frag) {
         int exitCode;
+        StreamSource.Feed feed = null;
         try {
-            this.process = processBuilder.start();
-            this.mp4Frag.process(this.process);
+            this.spawnedAtNanos = System.nanoTime();
+            feed = this.source.open(this.streamInfo);
+            this.feed = feed;
+            if (mp4Frag.stopped()) {
+                // Stopped while ffmpeg was starting: stop() did not see the feed to end it
+                feed.destroy();
+            }
+            mp4Frag.process(feed.getInputStream());
 
-            exitCode = this.process.waitFor();
-            this.process = null;
+            exitCode = feed.waitFor();
 
         } catch (IOException e) {
             Log.errorf("IOException received while piping ffmpeg output: %s", e.getMessage());
@@ -146,10 +342,14 @@ public class RTSPWorker {
         } catch (MP4FragException e) {
             Log.errorf("MP4FragException received while piping ffmpeg output: %s", e.getMessage());
             exitCode = 1;
-        }
 
-        if (!this.mp4Frag.stopped()) {
-            this.sendExitCode(exitCode);
+        } finally {
+            this.feed = null;
+            if (feed != null) {
+                feed.close();
+            }
         }
+
+        return exitCode;
     }
 }
@@ -0,0 +1,41 @@
+package eu.ill.rtsptofmp4.business.streaming;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+// When an RTSP worker restarts ffmpeg after it exits. The delay doubles with each consecutive restart up to the maximum,
+// and is jittered so that cameras behind the same failing network link do not all reconnect at the same time.
+public class RestartPolicy {
+
+    public static final RestartPolicy NEVER = new RestartPolicy(0, 0, 0);
+
+    private final long initialDelayMs;
+    private final long maxDelayMs;
+    private final int maxRestarts;
+
+    // A negative maxRestarts restarts ffmpeg indefinitely
+    public RestartPolicy(final long initialDelayMs, final long maxDelayMs, final int maxRestarts) {
+        this.initialDelayMs = initialDelayMs;
+        this.maxDelayMs = Math.max(initialDelayMs, maxDelayMs);
+        this.maxRestarts = maxRestarts;
+    }
+
+    public long getMaxDelayMs() {
+        return this.maxDelayMs;
+    }
+
+    // attempt is the number of consecutive restarts already made
+    public boolean shouldRestart(int attempt) {
+        return this.maxRestarts < 0 || attempt < this.maxRestarts;
+    }
+
+    // Between half and all of the exponential delay
+    public long getDelayMs(int attempt) {
+        long delay = this.maxDelayMs;
+        if (attempt < 31 && (this.initialDelayMs << attempt) >>> attempt == this.initialDelayMs) {
+            delay = Math.min(this.maxDelayMs, this.initialDelayMs << attempt);
+        }
+
+        long half = delay / 2;
+        return half + ThreadLocalRandom.current().nextLong(delay - half + 1);
+    }
+}
@@ -0,0 +1,129 @@
+package eu.ill.rtsptofmp4.business.streaming;
+
+import eu.ill.rtsptofmp4.business.mp4frag.Segment;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Sends the segments of a stream to its viewers. Each segment is copied once out of the pooled buffer into a pooled
+// native buffer that all the viewers write from: sockets send direct buffers without another copy, the pooled buffer
+// of the segment goes back to the pool as soon as the segment has been published, and the native buffer goes back to
+// the Netty pool once every viewer has written it.
+class SegmentFanout {
+
+    private static final SegmentViewer[] NO_VIEWERS = new SegmentViewer[0];
+
+    // Copied on write: the reader thread iterates over the viewers without a lock
+    private volatile SegmentViewer[] viewers = NO_VIEWERS;
+    private boolean closed = false;
+
+    // Written by the reader thread only
+    private volatile long skippedSegments = 0;
+
+    // False if the stream has stopped
+    synchronized boolean add(SegmentViewer viewer, String mime, byte[] initialisation) {
+        if (this.closed) {
+            return false;
+        }
+
+        // The viewer is started by the reader thread with the next segment, so that no segment is missed or sent twice
+        viewer.prepare(mime, initialisation);
+        SegmentViewer[] viewers = Arrays.copyOf(this.viewers, this.viewers.length + 1);
+        viewers[viewers.length - 1] = viewer;
+        this.viewers = viewers;
+        return true;
+    }
+
+    synchronized void remove(SegmentViewer viewer) {
+        SegmentViewer[] viewers = this.viewers;
+        for (int i = 0; i < viewers.length; i++) {
+            if (viewers[i] == viewer) {
+                SegmentViewer[] remaining = new SegmentViewer[viewers.length - 1];
+                System.arraycopy(viewers, 0, remaining, 0, i);
+                System.arraycopy(viewers, i + 1, remaining, i, viewers.length - i - 1);
+                this.viewers = remaining;
+                return;
+            }
+        }
+    }
+
+    int getViewerCount() {
+        return this.viewers.length;
+    }
+
+    long getSkippedSegments() {
+        return this.skippedSegments;
+    }
+
+    // Called by the reader thread once the segment has been added to the GOP cache: viewers that start with it receive it
+    // as the last segment of the cached GOP
+    void publish(Segment segment, GopCache gopCache) {
+        SegmentViewer[] viewers = this.viewers;
+        if (viewers.length == 0) {
+            return;
+        }
+
+        SharedSegment shared = this.share(segment.asByteBuffer(), segment.isKeyframe());
+        try {
+            for (SegmentViewer viewer : viewers) {
+                if (!viewer.isStarted()) {
+                    // The cached segments are retained for the viewer rather than copied: the reader thread is not
+                    // delayed by the size of the GOP
+                    viewer.start(gopCache.getSegments());
+
+                } else if (!viewer.offer(shared)) {
+                    this.skippedSegments++;
+                }
+            }
+
+        } finally {
+            // The viewers that write the segment hold their own reference
+            shared.release();
+        }
+    }
+
+    // ffmpeg has restarted with a different initialisation segment: it is written to every viewer, even one that is
+    // behind, as the segments that follow can not be decoded without it
+    void publishInitialisation(String mime, byte[] initialisation) {
+        SharedSegment shared = null;
+        try {
+            for (SegmentViewer viewer : this.viewers) {
+                if (!viewer.isStarted()) {
+                    viewer.prepare(mime, initialisation);
+
+                } else {
+                    if (shared == null) {
+                        shared = this.share(ByteBuffer.wrap(initialisation), true);
+                    }
+                    viewer.send(shared);
+                }
+            }
+
+        } finally {
+            if (shared != null) {
+                shared.release();
+            }
+        }
+    }
+
+    private SharedSegment share(ByteBuffer data, boolean keyframe) {
+        ByteBuf buffer = PooledByteBufAllocator.DEFAULT.directBuffer(data.remaining());
+        buffer.writeBytes(data);
+        return new SharedSegment(buffer, keyframe);
+    }
+
+    void close() {
+        SegmentViewer[] viewers;
+        synchronized (this) {
+            this.closed = true;
+            viewers = this.viewers;
+            this.viewers = NO_VIEWERS;
+        }
+
+        for (SegmentViewer viewer : viewers) {
+            viewer.close();
+        }
+    }
+}
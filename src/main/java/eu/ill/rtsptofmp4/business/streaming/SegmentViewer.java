@@ -0,0 +1,77 @@
+package eu.ill.rtsptofmp4.business.streaming;
+
+import eu.ill.rtsptofmp4.business.mp4frag.Segment;
+
+import java.util.List;
+
+// A client that receives the segments of a stream directly from its relay rather than through ZeroMQ, over HTTP for
+// example. The segments are offered by the reader thread of the stream: a viewer that can not keep up skips segments
+// until the next keyframe instead of delaying the other viewers.
+public abstract class SegmentViewer {
+
+    // Accessed by the reader thread only
+    private boolean started = false;
+    private boolean waitingForKeyframe = false;
+    private volatile long skippedSegments = 0;
+
+    // Set when the viewer is added, and updated if ffmpeg restarts with a new initialisation segment before it starts
+    private volatile String mime;
+    private volatile byte[] initialisation;
+
+    // Called once, before any segment is written, with the init segment and the segments cached since the last keyframe.
+    // The viewer holds a reference to each cached segment: it releases them once they have been written, or failed to be.
+    protected abstract void start(String mime, byte[] initialisation, List<Segment> gop);
+
+    // False while previous segments are still waiting to be sent to the viewer
+    protected abstract boolean isWritable();
+
+    // The viewer holds a reference to the segment: it releases it once the segment has been written, or failed to be
+    protected abstract void write(SharedSegment segment);
+
+    // The stream has stopped
+    protected abstract void close();
+
+    public long getSkippedSegments() {
+        return this.skippedSegments;
+    }
+
+    void prepare(String mime, byte[] initialisation) {
+        this.mime = mime;
+        this.initialisation = initialisation;
+    }
+
+    boolean isStarted() {
+        return this.started;
+    }
+
+    void start(List<Segment> gop) {
+        this.started = true;
+        this.waitingForKeyframe = gop.isEmpty();
+        this.start(this.mime, this.initialisation, gop);
+    }
+
+    // False if the segment has been skipped
+    boolean offer(SharedSegment segment) {
+        if (this.waitingForKeyframe) {
+            if (!segment.isKeyframe()) {
+                this.skippedSegments++;
+                return false;
+            }
+            this.waitingForKeyframe = false;
+        }
+
+        if (!this.isWritable()) {
+            // The segments that follow depend on this one
+            this.waitingForKeyframe = true;
+            this.skippedSegments++;
+            return false;
+        }
+
+        this.send(segment);
+        return true;
+    }
+
+    void send(SharedSegment segment) {
+        this.write(segment.retain());
+    }
+}
@@ -0,0 +1,61 @@
+package eu.ill.rtsptofmp4.business.streaming;
+
+import io.netty.buffer.ByteBuf;
+
+import java.nio.ByteBuffer;
+import java.util.function.Function;
+
+// A segment as it is written to the viewers of a stream: copied once into a pooled native buffer, and encoded once for
+// the transport of the viewers rather than once per viewer. The buffer is reference counted: each viewer holds a
+// reference until its write has completed, and the buffer goes back to the Netty pool with the last one. Only encoded
+// by the reader thread of the stream.
+public class SharedSegment {
+
+    private final ByteBuf buffer;
+    private final ByteBuffer data;
+    private final boolean keyframe;
+
+    private Function<ByteBuffer, ?> encoder;
+    private Object encoded;
+
+    // Takes the reference to the buffer
+    SharedSegment(final ByteBuf buffer, final boolean keyframe) {
+        this.buffer = buffer;
+        this.data = buffer.nioBuffer(buffer.readerIndex(), buffer.readableBytes());
+        this.keyframe = keyframe;
+    }
+
+    // Shared by all the viewers: it must not be modified, nor used once the segment has been released
+    public ByteBuffer getData() {
+        return this.data;
+    }
+
+    public boolean isKeyframe() {
+        return this.keyframe;
+    }
+
+    // The encoder is applied to the data the first time it is passed: viewers of the same kind have to use the same
+    // encoder instance to share the result
+    @SuppressWarnings("unchecked")
+    public <T> T encode(Function<ByteBuffer, T> encoder) {
+        if (this.encoder != encoder) {
+            this.encoded = encoder.apply(this.data.duplicate());
+            this.encoder = encoder;
+        }
+        return (T) this.encoded;
+    }
+
+    SharedSegment retain() {
+        this.buffer.retain();
+        return this;
+    }
+
+    // Can be called from any thread, once the segment has been written
+    public void release() {
+        this.buffer.release();
+    }
+
+    int referenceCount() {
+        return this.buffer.refCnt();
+    }
+}
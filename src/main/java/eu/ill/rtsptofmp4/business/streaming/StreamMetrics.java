@@ -0,0 +1,69 @@
+package eu.ill.rtsptofmp4.business.streaming;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+
+// The meters of a stream, tagged with its id and removed from the registry when the stream stops. Meters are created
+// once here so that the segment path only records into them: counters that the reader thread already keeps are read
+// by the registry when it is scraped rather than being incremented for each segment.
+public class StreamMetrics {
+
+    public static final String PREFIX = "rtsptofmp4.";
+
+    // A composite registry without any registries: its meters record nothing
+    private static final MeterRegistry DISABLED = new CompositeMeterRegistry();
+
+    private final MeterRegistry registry;
+    private final Tags tags;
+    private final List<Meter> meters = new ArrayList<>();
+
+    // Without a registry, when the classes are used outside the application, the meters record nothing
+    public StreamMetrics(final MeterRegistry registry, final String streamId) {
+        this.registry = registry != null ? registry : DISABLED;
+        this.tags = Tags.of("stream", streamId);
+    }
+
+    public synchronized Timer timer(String name, String description) {
+        return this.add(Timer.builder(PREFIX + name).description(description).tags(this.tags).publishPercentileHistogram().register(this.registry));
+    }
+
+    public synchronized DistributionSummary summary(String name, String description, String baseUnit) {
+        return this.add(DistributionSummary.builder(PREFIX + name).description(description).baseUnit(baseUnit).tags(this.tags).publishPercentileHistogram().register(this.registry));
+    }
+
+    public synchronized <T> void gauge(String name, String description, T object, ToDoubleFunction<T> value) {
+        this.add(Gauge.builder(PREFIX + name, object, value).description(description).tags(this.tags).register(this.registry));
+    }
+
+    public synchronized <T> void counter(String name, String description, String baseUnit, T object, ToDoubleFunction<T> count) {
+        this.add(FunctionCounter.builder(PREFIX + name, object, count).description(description).baseUnit(baseUnit).tags(this.tags).register(this.registry));
+    }
+
+    public synchronized <T> void timer(String name, String description, T object, ToLongFunction<T> count, ToDoubleFunction<T> totalTimeNanos) {
+        this.add(FunctionTimer.builder(PREFIX + name, object, count, totalTimeNanos, TimeUnit.NANOSECONDS).description(description).tags(this.tags).register(this.registry));
+    }
+
+    // The stream has stopped: a stream started again with the same id registers new meters
+    public synchronized void close() {
+        this.meters.forEach(this.registry::remove);
+        this.meters.clear();
+    }
+
+    private <M extends Meter> M add(M meter) {
+        this.meters.add(meter);
+        return meter;
+    }
+}
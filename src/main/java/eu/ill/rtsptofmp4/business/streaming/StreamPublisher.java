@@ -1,27 +1,58 @@
 package eu.ill.rtsptofmp4.business.streaming;
 
 import eu.ill.rtsptofmp4.ServerConfig;
-import io.quarkus.logging.Log;
+import eu.ill.rtsptofmp4.business.mp4frag.Segment;
+import eu.ill.rtsptofmp4.business.mp4frag.StreamBuffer;
+import eu.ill.rtsptofmp4.models.PublishQueueStats;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import org.jboss.logging.Logger;
 import org.zeromq.SocketType;
 import org.zeromq.ZContext;
 import org.zeromq.ZMQ;
-import org.zeromq.ZMsg;
+import zmq.Msg;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 
 @ApplicationScoped
 public class StreamPublisher {
 
+    // Quarkus rewrites calls to Log at build time and they fail when the class is used outside the application: the
+    // logger is declared explicitly so that the publisher can also run in the benchmarks
+    private static final Logger LOGGER = Logger.getLogger(StreamPublisher.class);
+
+    // Appended to the id of a stream for the topic of its changed initialisation segments
+    public static final String INITIALISATION_TOPIC_SUFFIX = ":init";
+
+    private static final String PROXY_ADDRESS = "inproc://stream-publisher";
+    private static final String PROXY_CONTROL_ADDRESS = "inproc://stream-publisher-control";
+
     @Inject
     ServerConfig serverConfig;
 
-    private final LinkedBlockingDeque<StreamMessage> messageQueue = new LinkedBlockingDeque<>();
-    private ZMQ.Socket socket;
+    // Not injected when the publisher is created by the benchmarks: nothing is recorded
+    @Inject
+    MeterRegistry meterRegistry;
+
+    // One bounded queue per stream, sent by the shard that owns the stream
+    private final Map<String, PublishQueue> queues = new ConcurrentHashMap<>();
+    private final SubscriptionTracker subscriptions = new SubscriptionTracker();
+    // Read by the threads that publish, null while the publisher is stopped
+    private volatile PublisherShard[] shards;
+    private Timer[] sendTimers;
+
+    private int queueSize;
+    private DropPolicy dropPolicy;
 
-    private boolean running;
-    private Thread thread;
+    private ZContext context;
+    private Thread proxyThread;
+    private ZMQ.Socket proxyControl;
 
 
     public StreamPublisher() {
@@ -29,105 +60,240 @@ public class StreamPublisher {
     }
 
     public synchronized void start() {
-        if (this.thread == null) {
-            this.running = true;
-            this.thread = new Thread(this::mainLoop);
-            this.thread.start();
+        if (this.shards != null) {
+            return;
         }
 
-        this.connect();
-    }
+        ServerConfig.PublisherConfig config = this.serverConfig.publisher();
+        this.queueSize = config.queueSize();
+        this.dropPolicy = config.dropPolicy();
 
-    public synchronized void stop() {
-        this.disconnect();
+        int shardCount = Math.max(1, config.shards());
+        this.context = new ZContext(shardCount);
 
-        try {
-            this.running = false;
-            if (this.thread != null) {
-                this.thread.interrupt();
-                this.thread.join();
-                this.thread = null;
-            }
+        // Subscribers connect to a single endpoint, an XPUB socket that reports which streams are subscribed to. A single
+        // shard owns it. Several shards publish through an in-process proxy that owns it.
+        String address = "tcp://*:" + config.port();
+        if (shardCount > 1) {
+            this.startProxy(address);
+        }
 
-        } catch (InterruptedException e) {
-            Log.errorf("Stop of Stream Publisher thread interrupted: %s", e.getMessage());
+        MeterRegistry registry = this.meterRegistry != null ? this.meterRegistry : new CompositeMeterRegistry();
+        PublisherShard[] shards = new PublisherShard[shardCount];
+        this.sendTimers = new Timer[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            this.sendTimers[i] = Timer.builder(StreamMetrics.PREFIX + "publisher.send")
+                    .description("Time to hand a segment over to the ZeroMQ socket")
+                    .tag("shard", Integer.toString(i))
+                    .publishPercentileHistogram()
+                    .register(registry);
+
+            PublisherShard shard;
+            if (shardCount > 1) {
+                ZMQ.Socket socket = this.context.createSocket(SocketType.PUB);
+                socket.setLinger(0);
+                socket.connect(PROXY_ADDRESS);
+                shard = new PublisherShard(i, socket, null, config.ringSize(), config.waitStrategy(), this.sendTimers[i]);
+
+            } else {
+                ZMQ.Socket socket = this.context.createSocket(SocketType.XPUB);
+                socket.setLinger(0);
+                this.bind(socket, address);
+                shard = new PublisherShard(i, socket, this.subscriptions, config.ringSize(), config.waitStrategy(), this.sendTimers[i]);
+            }
+            shards[i] = shard;
+            shard.start();
         }
+
+        // Published once all the shards have started
+        this.shards = shards;
     }
 
-    public void publish(String streamId, byte[] segment) {
-        try {
-            this.messageQueue.put(new StreamMessage(streamId, segment));
+    public synchronized void stop() {
+        PublisherShard[] shards = this.shards;
+        if (shards == null) {
+            return;
+        }
+
+        // Segments published from now on are released straight away
+        this.shards = null;
+        for (PublisherShard shard : shards) {
+            shard.stop();
+        }
 
-        } catch (InterruptedException exception) {
-            Log.error("Interrupted when adding message to publisher message queue");
+        if (this.meterRegistry != null) {
+            for (Timer sendTimer : this.sendTimers) {
+                this.meterRegistry.remove(sendTimer);
+            }
         }
+        this.sendTimers = null;
+
+        this.stopProxy();
+        this.subscriptions.clear();
+
+        this.context.close();
+        this.context = null;
+        LOGGER.info("Steam Publisher socket closed");
+
+        // Return unsent segments to the pool
+        this.queues.values().forEach(PublishQueue::close);
+        this.queues.clear();
     }
 
-    private void connect() {
-        if (this.socket == null) {
-            ZContext context = new ZContext();
-            this.socket = context.createSocket(SocketType.PUB);
-            this.socket.setLinger(0);
+    // Takes ownership of the segment: it is released once it has been sent or dropped, or straight away if the publisher
+    // has stopped
+    public void publish(String streamId, Segment segment) {
+        PublisherShard[] shards = this.shards;
+        if (shards == null) {
+            segment.release();
+            return;
+        }
 
-            String address = "tcp://*:" + this.serverConfig.publisher().port();
+        PublishQueue queue = this.getQueue(streamId);
+        if (!this.subscriptions.hasSubscribers(streamId)) {
+            // Nobody would receive it: skip the copy and send
+            queue.skip(segment);
 
+        } else {
             try {
-                this.socket.bind(address);
-                Log.infof("Stream Publisher bound to %s", address);
+                if (queue.offer(segment)) {
+                    this.schedule(shards, queue);
+                }
 
-            } catch (Exception e) {
-                Log.errorf("Failed to bind Stream Publisher socket to %s: %s", address, e.getMessage());
+            } catch (InterruptedException exception) {
+                LOGGER.error("Interrupted when adding message to publisher message queue");
             }
         }
+
+        this.closeIfStopped(queue);
     }
 
-    private void disconnect() {
-        if (this.socket != null) {
-            this.socket.close();
-            this.socket = null;
-            Log.info("Steam Publisher socket closed");
+    // Sent on the topic <stream id>:init after the segments published before it. It is never dropped by the drop policy:
+    // subscribers need it to decode the segments that follow.
+    public void publishInitialisation(String streamId, byte[] initialisation) {
+        PublisherShard[] shards = this.shards;
+        if (shards == null || !this.subscriptions.hasSubscribers(streamId)) {
+            // Subscribers that join later get it from the init segment endpoint
+            return;
         }
 
+        PublishQueue queue = this.getQueue(streamId);
+        if (queue.offerInitialisation(new Segment(new StreamBuffer(initialisation)))) {
+            this.schedule(shards, queue);
+        }
+
+        this.closeIfStopped(queue);
     }
 
-    private void mainLoop() {
-        while (this.running) {
-            try {
-                StreamMessage message = this.messageQueue.take();
-                Log.tracef("Sending segment data of length %d for stream %s", message.getData().length, message.getStreamId());
+    // Drops the unsent segments of a stream that has stopped
+    public void removeStream(String streamId) {
+        PublishQueue queue = this.queues.remove(streamId);
+        if (queue != null) {
+            queue.close();
+        }
+    }
 
-                // Create multipart message
-                ZMsg zMessage = new ZMsg();
-                zMessage.add(message.getStreamId());
-                zMessage.add(message.getData());
+    // True if a ZeroMQ subscriber is subscribed to the topic of the stream
+    public boolean hasSubscribers(String streamId) {
+        return this.subscriptions.hasSubscribers(streamId);
+    }
 
-                zMessage.send(this.socket);
+    public List<PublishQueueStats> getQueueStats() {
+        return this.queues.values().stream().map(PublishQueue::getStats).collect(Collectors.toList());
+    }
 
-            } catch (InterruptedException exception) {
-                if (this.running) {
-                    Log.info("Publisher message sender thread interrupted");
-                }
-            }
+    private PublishQueue getQueue(String streamId) {
+        return this.queues.computeIfAbsent(streamId, id -> new PublishQueue(id, this.queueSize, this.dropPolicy, new StreamMetrics(this.meterRegistry, id)));
+    }
+
+    private void schedule(PublisherShard[] shards, PublishQueue queue) {
+        shards[Math.floorMod(queue.getStreamId().hashCode(), shards.length)].schedule(queue);
+    }
+
+    // Stopped meanwhile: the queue may have been created after the others were closed
+    private void closeIfStopped(PublishQueue queue) {
+        if (this.shards == null && this.queues.remove(queue.getStreamId(), queue)) {
+            queue.close();
         }
+    }
+
+    private void startProxy(String address) {
+        ZMQ.Socket frontend = this.context.createSocket(SocketType.XSUB);
+        frontend.bind(PROXY_ADDRESS);
 
+        ZMQ.Socket backend = this.context.createSocket(SocketType.XPUB);
+        backend.setLinger(0);
+        this.bind(backend, address);
+
+        ZMQ.Socket control = this.context.createSocket(SocketType.PAIR);
+        control.bind(PROXY_CONTROL_ADDRESS);
+        this.proxyControl = this.context.createSocket(SocketType.PAIR);
+        this.proxyControl.connect(PROXY_CONTROL_ADDRESS);
+
+        this.proxyThread = new Thread(() -> this.proxyLoop(frontend, backend, control), "stream-publisher-proxy");
+        this.proxyThread.start();
     }
 
-    private static final class StreamMessage {
-        private final String streamId;
-        private final byte[] data;
+    // Equivalent of ZMQ.proxy that also reads the subscription messages coming back from the XPUB socket
+    private void proxyLoop(ZMQ.Socket frontend, ZMQ.Socket backend, ZMQ.Socket control) {
+        ZMQ.Poller poller = this.context.createPoller(3);
+        int frontendIndex = poller.register(frontend, ZMQ.Poller.POLLIN);
+        int backendIndex = poller.register(backend, ZMQ.Poller.POLLIN);
+        int controlIndex = poller.register(control, ZMQ.Poller.POLLIN);
+
+        while (poller.poll(-1) >= 0) {
+            if (poller.pollin(controlIndex)) {
+                break;
+            }
+
+            if (poller.pollin(frontendIndex)) {
+                forward(frontend, backend);
+            }
 
-        public StreamMessage(final String streamId, final byte[] data) {
-            this.streamId = streamId;
-            this.data = data;
+            if (poller.pollin(backendIndex)) {
+                byte[] subscription = backend.recv(0);
+                this.subscriptions.onSubscriptionMessage(subscription);
+                frontend.send(subscription, 0);
+            }
         }
 
-        public String getStreamId() {
-            return streamId;
+        poller.close();
+    }
+
+    private void stopProxy() {
+        if (this.proxyThread != null) {
+            this.proxyControl.send("TERMINATE");
+            try {
+                this.proxyThread.join();
+
+            } catch (InterruptedException e) {
+                LOGGER.errorf("Stop of Stream Publisher proxy interrupted: %s", e.getMessage());
+            }
+            this.proxyThread = null;
+            this.proxyControl = null;
         }
+    }
 
-        public byte[] getData() {
-            return data;
+    // Hands the received frames over as they are, as ZMQ.proxy does, rather than copying each one into a new array
+    private static void forward(ZMQ.Socket from, ZMQ.Socket to) {
+        boolean more = true;
+        while (more) {
+            Msg part = from.base().recv(0);
+            if (part == null) {
+                return;
+            }
+            more = part.hasMore();
+            to.base().send(part, more ? zmq.ZMQ.ZMQ_SNDMORE : 0);
         }
     }
 
+    private void bind(ZMQ.Socket socket, String address) {
+        try {
+            socket.bind(address);
+            LOGGER.infof("Stream Publisher bound to %s", address);
+
+        } catch (Exception e) {
+            LOGGER.errorf("Failed to bind Stream Publisher socket to %s: %s", address, e.getMessage());
+        }
+    }
 }
@@ -1,27 +1,70 @@
 package eu.ill.rtsptofmp4.business.streaming;
 
+import eu.ill.rtsptofmp4.business.recording.StreamRecorder;
+import eu.ill.rtsptofmp4.business.mp4frag.Segment;
 import eu.ill.rtsptofmp4.models.exceptions.StreamingException;
 import eu.ill.rtsptofmp4.models.StreamInfo;
 import eu.ill.rtsptofmp4.models.StreamInit;
+import eu.ill.rtsptofmp4.models.Track;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Timer;
 import io.quarkus.logging.Log;
 
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class StreamRelay implements RTSPStreamClient {
 
     private final StreamInfo streamInfo;
     private final RTSPWorker rtspWorker;
     private final StreamPublisher streamPublisher;
+    private final GopCache gopCache;
     private final StreamErrorHandler errorHandler;
+    private final StreamMetrics metrics;
+    private final StreamRecorder recorder;
+    private final DistributionSummary segmentSizes;
+    private final Timer timeToInitialisation;
+    private final SegmentFanout fanout = new SegmentFanout();
 
     private final Set<String> clientIds = new HashSet<>();
+    private boolean started = false;
+    private boolean stopped = false;
 
-    public StreamRelay(final StreamInfo streamInfo, final RTSPWorker rtspWorker, final StreamPublisher streamPublisher, final StreamErrorHandler errorHandler) {
+    // Time at which the last client left, 0 while the relay has clients
+    private long idleSinceMs = 0;
+
+    // Time at which the stream was first seen without ZeroMQ subscribers, 0 while it has some
+    private long unsubscribedSinceMs = 0;
+
+    public StreamRelay(final StreamInfo streamInfo, final RTSPWorker rtspWorker, final StreamPublisher streamPublisher, final GopCache gopCache, final StreamMetrics metrics, final StreamErrorHandler errorHandler) {
+        this(streamInfo, rtspWorker, streamPublisher, gopCache, metrics, null, errorHandler);
+    }
+
+    // The recorder is null when recording is disabled
+    public StreamRelay(final StreamInfo streamInfo, final RTSPWorker rtspWorker, final StreamPublisher streamPublisher, final GopCache gopCache, final StreamMetrics metrics, final StreamRecorder recorder, final StreamErrorHandler errorHandler) {
         this.streamInfo = streamInfo;
         this.rtspWorker = rtspWorker;
         this.streamPublisher = streamPublisher;
+        this.gopCache = gopCache;
+        this.recorder = recorder;
         this.errorHandler = errorHandler;
+
+        this.metrics = metrics;
+        this.segmentSizes = metrics.summary("segment.size", "Size of the segments received from ffmpeg", "bytes");
+        this.timeToInitialisation = metrics.timer("ffmpeg.initialisation.time", "Time from spawning ffmpeg to receiving its initialisation segment");
+        metrics.counter("mp4frag.bytes.read", "Bytes of ffmpeg output read", "bytes", rtspWorker, RTSPWorker::getBytesRead);
+        metrics.counter("mp4frag.fragments", "Fragments parsed from the ffmpeg output", null, rtspWorker, RTSPWorker::getFragmentCount);
+        metrics.timer("mp4frag.parse", "Time to parse the chunks read from ffmpeg and hand over their segments", rtspWorker, RTSPWorker::getChunksParsed, RTSPWorker::getParseTimeNanos);
+        metrics.counter("ffmpeg.restarts", "Restarts of ffmpeg after it exited", null, rtspWorker, RTSPWorker::getRestarts);
+        metrics.gauge("relay.clients", "Clients attached to the stream relay", this, StreamRelay::getClientCount);
+        metrics.gauge("relay.viewers", "Viewers receiving the stream directly from the relay", this.fanout, SegmentFanout::getViewerCount);
+        metrics.counter("relay.viewers.skipped", "Segments skipped by viewers that could not keep up", null, this.fanout, SegmentFanout::getSkippedSegments);
     }
 
     public String getId() {
@@ -32,49 +75,142 @@ public class StreamRelay implements RTSPStreamClient {
         return this.streamInfo;
     }
 
+    public RTSPWorker getWorker() {
+        return this.rtspWorker;
+    }
+
     public StreamInit addClient(String clientId) throws StreamingException {
-        if (!this.hasClient(clientId)) {
+        if (!this.attachClient(clientId)) {
+            throw new StreamingException("Stream relay for '%s' has been stopped", this.streamInfo.getName());
+        }
+
+        return this.getInitData(clientId);
+    }
+
+    // Does not block: the init data completes when ffmpeg has produced the moov, or fails with a StreamingException
+    public CompletableFuture<StreamInit> addClientAsync(String clientId) {
+        if (!this.attachClient(clientId)) {
+            return CompletableFuture.failedFuture(new StreamingException("Stream relay for '%s' has been stopped", this.streamInfo.getName()));
+        }
+
+        return this.getInitDataAsync(clientId);
+    }
+
+    // False if the relay has stopped: it can no longer be joined and a new one has to be created for the stream
+    public synchronized boolean attachClient(String clientId) {
+        if (this.stopped) {
+            return false;
+        }
+
+        if (!this.clientIds.contains(clientId)) {
             this.clientIds.add(clientId);
 
             Log.infof("Client '%s' added to stream '%s'. %d client(s) are now attached.", clientId, this.streamInfo.getName(), this.clientIds.size());
 
-            if (this.clientIds.size() == 1) {
-                this.rtspWorker.start(this);
-            }
+            // A lingering relay is still running: its init data and GOP are available straight away
+            this.idleSinceMs = 0;
+            this.unsubscribedSinceMs = 0;
+            this.start();
 
         } else {
             Log.debugf("Client '%s' is already attached to stream '%s'", clientId, this.streamInfo.getName());
         }
-
-        return this.getInitData(clientId);
+        return true;
     }
 
-    public void removeClient(String clientId) {
-        if (this.hasClient(clientId)) {
-            this.clientIds.remove(clientId);
+    // Starts ffmpeg, without waiting for a client when the stream is pre-warmed
+    public synchronized void start() {
+        if (!this.started && !this.stopped) {
+            this.started = true;
+            if (this.recorder != null) {
+                this.recorder.start();
+            }
+            this.rtspWorker.start(this);
+        }
+    }
 
+    // True if the client was the last one. The relay keeps running until it is stopped, or stopIfIdle is called.
+    public synchronized boolean removeClient(String clientId) {
+        if (this.clientIds.remove(clientId)) {
             Log.infof("Client '%s' removed from stream '%s'. %d client(s) are now attached.", clientId, this.streamInfo.getName(), this.clientIds.size());
 
             if (this.clientIds.size() == 0) {
-                this.rtspWorker.stop();
+                this.idleSinceMs = System.currentTimeMillis();
+                return true;
             }
 
         } else {
             Log.debugf("Client '%s' is not attached to stream '%s'", clientId, this.streamInfo.getName());
         }
+        return false;
     }
 
-    public boolean hasClients() {
+    public synchronized int getClientCount() {
+        return this.clientIds.size();
+    }
+
+    public synchronized boolean hasClients() {
         return this.clientIds.size() > 0;
     }
 
-    public boolean hasClient(String clientId) {
+    public synchronized boolean hasClient(String clientId) {
         return this.clientIds.contains(clientId);
     }
 
-    public void stop() {
+    public synchronized Set<String> getClientIds() {
+        return new HashSet<>(this.clientIds);
+    }
+
+    // Stops the relay if it has had no clients for the linger time. True if it has been stopped by this call.
+    public synchronized boolean stopIfIdle(long lingerMs) {
+        if (this.stopped || !this.clientIds.isEmpty() || System.currentTimeMillis() - this.idleSinceMs < lingerMs) {
+            return false;
+        }
+
+        this.stop();
+        return true;
+    }
+
+    // The viewer has to be attached as a client first. False if the relay has stopped.
+    public boolean addViewer(SegmentViewer viewer, StreamInit streamInit) {
+        return this.fanout.add(viewer, streamInit.getMime(), streamInit.getInitSegment());
+    }
+
+    public void removeViewer(SegmentViewer viewer) {
+        this.fanout.remove(viewer);
+    }
+
+    public synchronized boolean isStopped() {
+        return this.stopped;
+    }
+
+    // Called periodically: true once nobody has been subscribed to the stream for the timeout, ie its clients have gone
+    // without disconnecting
+    public synchronized boolean isAbandoned(long timeoutMs) {
+        if (this.fanout.getViewerCount() > 0 || this.streamPublisher.hasSubscribers(this.streamInfo.getId())) {
+            this.unsubscribedSinceMs = 0;
+            return false;
+        }
+
+        long now = System.currentTimeMillis();
+        if (this.unsubscribedSinceMs == 0) {
+            this.unsubscribedSinceMs = now;
+        }
+
+        return now - this.unsubscribedSinceMs >= timeoutMs;
+    }
+
+    public synchronized void stop() {
+        this.stopped = true;
         this.rtspWorker.stop();
+        if (this.recorder != null) {
+            this.recorder.stop();
+        }
         this.clientIds.clear();
+        this.fanout.close();
+        this.streamPublisher.removeStream(this.streamInfo.getId());
+        this.gopCache.clear();
+        this.metrics.close();
     }
 
     public StreamInit getInitData(String clientId) throws StreamingException {
@@ -86,26 +222,107 @@ public class StreamRelay implements RTSPStreamClient {
             byte[] initialisation = this.rtspWorker.getInitialisation();
             Log.debugf("Got initialisation of length %d from ffmpeg for stream '%s'", initialisation.length, this.streamInfo.getName());
 
-            return new StreamInit(clientId, mime, initialisation);
+            List<Track> tracks = this.rtspWorker.getTracks();
+
+            return new StreamInit(clientId, mime, initialisation, tracks);
 
         } catch (StreamingException e) {
             throw new StreamingException("Failed to get stream init data: %s", e.getMessage());
         }
     }
 
+    // All clients of the stream wait on the futures of the same MP4Frag: nothing blocks until the moov arrives
+    public CompletableFuture<StreamInit> getInitDataAsync(String clientId) {
+        CompletableFuture<String> mime = this.rtspWorker.getMimeAsync();
+        CompletableFuture<byte[]> initialisation = this.rtspWorker.getInitialisationAsync();
+
+        return mime.thenCombine(initialisation, (mimeValue, initialisationValue) -> {
+            try {
+                Log.debugf("Got mime '%s' and initialisation of length %d from ffmpeg for stream '%s'", mimeValue, initialisationValue.length, this.streamInfo.getName());
+
+                List<Track> tracks = this.rtspWorker.getTracks();
+
+                return new StreamInit(clientId, mimeValue, initialisationValue, tracks);
+
+            } catch (StreamingException e) {
+                throw new CompletionException(e);
+            }
+
+        }).exceptionally(error -> {
+            throw new CompletionException(new StreamingException("Failed to get stream init data: %s", describe(error)));
+        });
+    }
+
+    // The init segment on its own, for clients that fetch it separately from the segments
+    public CompletableFuture<byte[]> getInitialisationAsync() {
+        return this.rtspWorker.getInitialisationAsync().exceptionally(error -> {
+            throw new CompletionException(new StreamingException("Failed to get stream init data: %s", describe(error)));
+        });
+    }
+
+    // The segments since the last keyframe, retained: a client that has fetched the init segment can play them before
+    // the next published segment. Empty until a keyframe has been cached.
+    public List<Segment> getGop() {
+        return this.gopCache.getSegments();
+    }
+
+    private static String describe(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof CancellationException) {
+            return "MP4Frag stopped while waiting to receive mime";
+
+        } else if (cause instanceof TimeoutException) {
+            return "MP4Frag timeout while waiting to receive mime";
+        }
+        return cause.getMessage();
+    }
+
     @Override
-    public void onSegment(byte[] segment) {
-        Log.debugf("Got segment of length %d from ffmpeg for stream '%s'", segment.length, this.streamInfo.getName());
+    public void onSegment(Segment segment) {
+        // Checked first: formatting the message boxes the length for every segment even when it is not logged
+        if (Log.isTraceEnabled()) {
+            Log.tracef("Got segment of length %d from ffmpeg for stream '%s'", segment.length(), this.streamInfo.getName());
+        }
+        this.segmentSizes.record(segment.length());
+        this.gopCache.add(segment);
+        this.fanout.publish(segment, this.gopCache);
+        if (this.recorder != null) {
+            // Before publishing, which hands the segment over
+            this.recorder.onSegment(segment);
+        }
         this.streamPublisher.publish(this.streamInfo.getId(), segment);
     }
 
     @Override
-    public void onExit(int code) {
-        if (code == 1) {
-            this.errorHandler.handleError(this.streamInfo, "ffmpeg crashed for stream '" + this.streamInfo.getName() + "'");
+    public void onInitialisationReceived(byte[] initialisation, long elapsedNanos) {
+        this.timeToInitialisation.record(elapsedNanos, TimeUnit.NANOSECONDS);
+        if (this.recorder != null) {
+            // Each time ffmpeg is started: the recorder starts a new file
+            this.recorder.onInitialization(initialisation, false);
         }
     }
 
+    @Override
+    public void onRestart(int code) {
+        // The restarted ffmpeg starts from a new keyframe: the cached segments can not be followed by its segments
+        this.gopCache.clear();
+    }
+
+    @Override
+    public void onInitialisationChanged(byte[] initialisation) {
+        // Sent in order with the segments so that connected clients reinitialise their decoder before the segments that
+        // follow it
+        Log.infof("Publishing new initialisation segment of length %d for stream '%s'", initialisation.length, this.streamInfo.getName());
+        this.fanout.publishInitialisation(this.rtspWorker.getMimeAsync().getNow(null), initialisation);
+        this.streamPublisher.publishInitialisation(this.streamInfo.getId(), initialisation);
+    }
+
+    @Override
+    public void onExit(int code) {
+        // Only called once the restart policy has given up
+        this.errorHandler.handleError(this.streamInfo, "ffmpeg exited with code " + code + " for stream '" + this.streamInfo.getName() + "'");
+    }
+
     public interface StreamErrorHandler {
         void handleError(StreamInfo streamInfo, String error);
     }
@@ -0,0 +1,26 @@
+package eu.ill.rtsptofmp4.business.streaming;
+
+import eu.ill.rtsptofmp4.models.StreamInfo;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+// Where an RTSP worker reads the fragmented MP4 of its stream from: ffmpeg pulling the camera, or the node of the cluster
+// that owns the stream. Opened again by the worker each time it restarts.
+public interface StreamSource {
+
+    Feed open(StreamInfo streamInfo) throws IOException;
+
+    interface Feed {
+        InputStream getInputStream();
+
+        // Called once the input stream has ended
+        int waitFor() throws InterruptedException;
+
+        // Ends the feed from any thread: the input stream reaches its end
+        void destroy();
+
+        // Called by the worker thread once it has stopped reading, whether the feed has ended or not
+        void close();
+    }
+}
@@ -0,0 +1,44 @@
+package eu.ill.rtsptofmp4.business.streaming;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Topics subscribed to on the XPUB socket of the publisher. Without verbose mode the socket reports a topic once when its
+// first subscriber arrives and once when its last one leaves, including subscribers whose connection was dropped.
+class SubscriptionTracker {
+
+    private final Set<String> topics = ConcurrentHashMap.newKeySet();
+
+    // A message read from the XPUB socket: 1 for subscribe or 0 for unsubscribe, followed by the topic
+    void onSubscriptionMessage(byte[] message) {
+        if (message.length == 0 || message[0] > 1) {
+            return;
+        }
+
+        String topic = new String(message, 1, message.length - 1, StandardCharsets.UTF_8);
+        if (message[0] == 1) {
+            this.topics.add(topic);
+        } else {
+            this.topics.remove(topic);
+        }
+    }
+
+    boolean hasSubscribers(String streamId) {
+        if (this.topics.contains(streamId)) {
+            return true;
+        }
+
+        // Subscriptions are prefix matches
+        for (String topic : this.topics) {
+            if (streamId.startsWith(topic)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void clear() {
+        this.topics.clear();
+    }
+}
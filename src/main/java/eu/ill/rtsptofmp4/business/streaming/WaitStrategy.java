@@ -0,0 +1,11 @@
+package eu.ill.rtsptofmp4.business.streaming;
+
+// How the consumer of an MpscRing waits for data
+public enum WaitStrategy {
+    // Lowest latency, keeps a core busy
+    BUSY_SPIN,
+    // Spins briefly then yields the core to other threads
+    YIELD,
+    // Spins briefly then parks until a producer signals
+    PARK,
+}
@@ -0,0 +1,61 @@
+package eu.ill.rtsptofmp4.business.streaming;
+
+import io.quarkus.logging.Log;
+
+import java.lang.reflect.Method;
+
+// Creates the threads that read the output of ffmpeg. Virtual threads need Java 21 while the application is built for
+// Java 17: they are created reflectively and platform threads are used when the runtime does not provide them.
+public class WorkerThreads {
+
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method UNSTARTED;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method unstarted = null;
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builderClass.getMethod("name", String.class);
+            unstarted = builderClass.getMethod("unstarted", Runnable.class);
+
+        } catch (ReflectiveOperationException e) {
+            // Java 17
+        }
+
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        UNSTARTED = unstarted;
+    }
+
+    private final boolean virtual;
+
+    public WorkerThreads(final boolean virtual) {
+        if (virtual && OF_VIRTUAL == null) {
+            Log.warnf("Virtual threads are not available with Java %s: RTSP workers use platform threads", Runtime.version().feature());
+        }
+        this.virtual = virtual && OF_VIRTUAL != null;
+    }
+
+    public boolean isVirtual() {
+        return this.virtual;
+    }
+
+    public Thread newThread(String name, Runnable task) {
+        if (this.virtual) {
+            try {
+                Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name);
+                return (Thread) UNSTARTED.invoke(builder, task);
+
+            } catch (ReflectiveOperationException e) {
+                // Preview versions of the API throw if preview features are not enabled
+                Log.warnf("Failed to create virtual thread, using a platform thread: %s", e.getCause() != null ? e.getCause().getMessage() : e.getMessage());
+            }
+        }
+
+        return new Thread(task, name);
+    }
+}
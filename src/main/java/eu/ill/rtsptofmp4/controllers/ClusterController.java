@@ -0,0 +1,83 @@
+package eu.ill.rtsptofmp4.controllers;
+
+import eu.ill.rtsptofmp4.business.cluster.ClusterService;
+import eu.ill.rtsptofmp4.controllers.dto.StreamConnectionDto;
+import eu.ill.rtsptofmp4.controllers.dto.StreamDisconnectionDto;
+import eu.ill.rtsptofmp4.models.ClusterNode;
+import eu.ill.rtsptofmp4.models.StreamInfo;
+import eu.ill.rtsptofmp4.models.exceptions.StreamingException;
+import io.quarkus.logging.Log;
+import io.smallrye.mutiny.Uni;
+import io.smallrye.mutiny.infrastructure.Infrastructure;
+
+import javax.inject.Inject;
+import javax.ws.rs.*;
+import java.util.List;
+import java.util.Map;
+
+// Used by the nodes of the cluster to find each other and to relay the streams they do not own
+@Path("/cluster")
+public class ClusterController {
+
+    @Inject
+    ClusterService clusterService;
+
+    @GET
+    public List<ClusterNode> getNodes() {
+        this.checkEnabled();
+        return this.clusterService.getNodes();
+    }
+
+    // Answers the heartbeats of the other nodes
+    @GET
+    @Path("/node")
+    public ClusterNode getNode() {
+        this.checkEnabled();
+        return this.clusterService.getNode();
+    }
+
+    // The node that the running streams are read from, by stream id
+    @GET
+    @Path("/sources")
+    public Map<String, String> getSources() {
+        this.checkEnabled();
+        return this.clusterService.getSources();
+    }
+
+    @POST
+    @Path("/connect")
+    @Produces("video/mp4")
+    public Uni<byte[]> connect(StreamConnectionDto streamConnection) {
+        this.checkEnabled();
+        if (streamConnection == null || streamConnection.getId() == null || streamConnection.getName() == null || streamConnection.getUrl() == null || streamConnection.getClientId() == null) {
+            throw new BadRequestException("Cluster connection request body does not have valid stream data");
+        }
+
+        StreamInfo streamInfo = new StreamInfo(streamConnection.getId(), streamConnection.getName(), streamConnection.getUrl());
+        return Uni.createFrom().completionStage(() -> this.clusterService.connectPeer(streamInfo, streamConnection.getClientId()))
+                .runSubscriptionOn(Infrastructure.getDefaultWorkerPool())
+                .onFailure(StreamingException.class).transform(e -> {
+                    Log.errorf("An error occurred connecting node client %s to stream %s: %s", streamConnection.getClientId(), streamConnection.getId(), e.getMessage());
+
+                    return new InternalServerErrorException(e.getMessage());
+                });
+    }
+
+    @POST
+    @Path("/disconnect")
+    public String disconnect(StreamDisconnectionDto streamDisconnection) {
+        this.checkEnabled();
+        if (streamDisconnection == null || streamDisconnection.getClientId() == null) {
+            throw new BadRequestException("Cluster disconnection request body does not have a clientId");
+        }
+
+        this.clusterService.disconnectPeer(streamDisconnection.getClientId());
+        return "Ok";
+    }
+
+    private void checkEnabled() {
+        if (!this.clusterService.isEnabled()) {
+            throw new NotFoundException("Cluster mode is not enabled");
+        }
+    }
+}
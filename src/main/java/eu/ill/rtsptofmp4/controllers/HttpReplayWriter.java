@@ -0,0 +1,78 @@
+package eu.ill.rtsptofmp4.controllers;
+
+import eu.ill.rtsptofmp4.business.recording.RecordingService;
+import io.quarkus.logging.Log;
+import io.vertx.core.http.HttpServerResponse;
+
+import java.nio.MappedByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Sends the chunks of a replay in order. Each chunk is read from disk by the replay threads while the one before it is
+// being sent, and the mapped chunk is handed to Netty without being copied to the heap. A replay only holds the
+// chunks it is sending and reading: a slow client stops the reads until its connection drains.
+class HttpReplayWriter {
+
+    private final HttpServerResponse response;
+    private final List<MappedByteBuffer> chunks;
+    private final RecordingService recordingService;
+
+    private int next = 0;
+    private CompletableFuture<MappedByteBuffer> reading;
+
+    HttpReplayWriter(final HttpServerResponse response, final List<MappedByteBuffer> chunks, final RecordingService recordingService) {
+        this.response = response;
+        this.chunks = chunks;
+        this.recordingService = recordingService;
+    }
+
+    void start() {
+        if (this.chunks.isEmpty()) {
+            this.response.end();
+            return;
+        }
+
+        this.reading = this.recordingService.readAsync(this.chunks.get(0));
+        this.sendNext();
+    }
+
+    private void sendNext() {
+        this.reading.whenComplete((chunk, error) -> {
+            if (error != null) {
+                // The headers have been sent: the client sees the connection closed before the end of the body
+                Log.errorf("Failed to read replay chunk: %s", error.getMessage());
+                this.response.reset();
+                return;
+            }
+
+            if (this.response.closed()) {
+                return;
+            }
+
+            this.response.write(HttpSegmentViewer.BUFFER_ENCODER.apply(chunk));
+            this.next++;
+            if (this.next == this.chunks.size()) {
+                this.response.end();
+                return;
+            }
+
+            this.reading = this.recordingService.readAsync(this.chunks.get(this.next));
+
+            // This runs on a replay thread while the queue drains on the event loop: the handler is installed before
+            // the queue is checked, so a drain in between is not missed, and only the first of the two sends the next chunk
+            AtomicBoolean resumed = new AtomicBoolean(false);
+            this.response.drainHandler(ignored -> this.resume(resumed));
+            if (!this.response.writeQueueFull()) {
+                this.resume(resumed);
+            }
+        });
+    }
+
+    private void resume(AtomicBoolean resumed) {
+        if (resumed.compareAndSet(false, true)) {
+            this.response.drainHandler(null);
+            this.sendNext();
+        }
+    }
+}
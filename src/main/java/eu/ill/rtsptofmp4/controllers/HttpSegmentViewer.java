@@ -0,0 +1,59 @@
+package eu.ill.rtsptofmp4.controllers;
+
+import eu.ill.rtsptofmp4.business.mp4frag.Segment;
+import eu.ill.rtsptofmp4.business.streaming.SegmentViewer;
+import eu.ill.rtsptofmp4.business.streaming.SharedSegment;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.function.Function;
+
+// Writes the stream as a single fragmented MP4 with chunked transfer encoding: the body can be appended to a
+// MediaSource as it arrives. Vert.x responses can be written from the reader thread of the stream.
+class HttpSegmentViewer extends SegmentViewer {
+
+    // Wraps the shared segment data without copying it: a Vert.x buffer can be written to any number of connections
+    static final Function<ByteBuffer, Buffer> BUFFER_ENCODER = data -> Buffer.buffer(Unpooled.wrappedBuffer(data));
+
+    private final HttpServerResponse response;
+
+    // Wraps the pooled buffers of a segment without copying them: the segment is released once the write has completed
+    static Buffer wrap(Segment segment) {
+        return Buffer.buffer(Unpooled.wrappedBuffer(segment.asByteBuffers()));
+    }
+
+    HttpSegmentViewer(final HttpServerResponse response) {
+        this.response = response;
+    }
+
+    @Override
+    protected void start(String mime, byte[] initialisation, List<Segment> gop) {
+        this.response.setChunked(true);
+        this.response.putHeader("Content-Type", mime);
+        this.response.putHeader("Cache-Control", "no-store");
+        this.response.write(Buffer.buffer(initialisation));
+        for (Segment segment : gop) {
+            this.response.write(wrap(segment)).onComplete(ignored -> segment.release());
+        }
+    }
+
+    @Override
+    protected boolean isWritable() {
+        return !this.response.writeQueueFull();
+    }
+
+    @Override
+    protected void write(SharedSegment segment) {
+        this.response.write(segment.encode(BUFFER_ENCODER)).onComplete(ignored -> segment.release());
+    }
+
+    @Override
+    protected void close() {
+        if (!this.response.ended() && !this.response.closed()) {
+            this.response.end();
+        }
+    }
+}
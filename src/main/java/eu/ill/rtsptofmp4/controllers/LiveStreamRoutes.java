@@ -0,0 +1,135 @@
+package eu.ill.rtsptofmp4.controllers;
+
+import eu.ill.rtsptofmp4.ServerConfig;
+import eu.ill.rtsptofmp4.business.mp4frag.Segment;
+import eu.ill.rtsptofmp4.business.services.StreamService;
+import eu.ill.rtsptofmp4.business.streaming.SegmentViewer;
+import io.quarkus.logging.Log;
+import io.smallrye.mutiny.infrastructure.Infrastructure;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.http.ServerWebSocket;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+
+// Serves running streams to browsers over HTTP without the ZeroMQ hop. The response is written directly by Vert.x as
+// segments arrive: a viewer does not hold a thread, and a stream is read once whatever its number of viewers.
+@ApplicationScoped
+public class LiveStreamRoutes {
+
+    @Inject
+    ServerConfig serverConfig;
+
+    @Inject
+    StreamService streamService;
+
+    void registerRoutes(@Observes Router router) {
+        router.get("/streams/:id/gop.mp4").handler(this::sendGop);
+        router.get("/streams/:id/live.mp4").handler(this::streamLive);
+        router.get("/streams/ws/:clientId").handler(this::streamWebSocket);
+    }
+
+    // The fragments since the last keyframe, to be appended after /streams/{id}/init.mp4 by clients of the ZeroMQ
+    // publisher. They are written from the retained segments of the GOP cache, without being copied into one array.
+    private void sendGop(RoutingContext context) {
+        String streamId = context.pathParam("id");
+        HttpServerResponse response = context.response();
+
+        List<Segment> gop = this.streamService.getGop(streamId);
+        if (gop == null) {
+            response.setStatusCode(404).end("Stream " + streamId + " is not running");
+            return;
+        }
+
+        response.putHeader("Content-Type", "video/mp4");
+        response.putHeader("Cache-Control", "no-store");
+        response.putHeader("Content-Length", Long.toString(gop.stream().mapToLong(Segment::length).sum()));
+        for (Segment segment : gop) {
+            response.write(HttpSegmentViewer.wrap(segment));
+        }
+        response.end().onComplete(ignored -> gop.forEach(Segment::release));
+    }
+
+    private void streamLive(RoutingContext context) {
+        String streamId = context.pathParam("id");
+        HttpServerResponse response = context.response();
+
+        if (!this.streamService.hasStream(streamId)) {
+            response.setStatusCode(404).end("Stream " + streamId + " is not running");
+            return;
+        }
+
+        // A viewer that falls further behind than this skips segments until the next keyframe
+        response.setWriteQueueMaxSize(this.serverConfig.viewer().writeQueueKb() * 1024);
+
+        HttpSegmentViewer viewer = new HttpSegmentViewer(response);
+        this.streamService.addViewer(streamId, viewer).whenComplete((streamInit, error) -> {
+            if (error != null) {
+                String message = describe(error);
+                Log.errorf("An error occurred connecting viewer to stream %s: %s", streamId, message);
+                if (!response.closed()) {
+                    response.setStatusCode(500).end(message);
+                }
+                return;
+            }
+
+            Log.infof("Viewer '%s' connected to stream '%s'", streamInit.getClientId(), streamId);
+            response.closeHandler(ignored -> this.removeViewer(streamInit.getClientId(), viewer));
+
+            // The viewer went away while waiting for ffmpeg
+            if (response.closed()) {
+                this.removeViewer(streamInit.getClientId(), viewer);
+            }
+        });
+    }
+
+    // The client connects through /streams/connect first, and receives the stream over the socket with its clientId
+    private void streamWebSocket(RoutingContext context) {
+        String clientId = context.pathParam("clientId");
+        if (!this.streamService.hasClient(clientId)) {
+            context.response().setStatusCode(404).end(clientId + " is not associated to any streams");
+            return;
+        }
+
+        context.request().toWebSocket().onSuccess(webSocket -> {
+            webSocket.setWriteQueueMaxSize(this.serverConfig.viewer().writeQueueKb() * 1024);
+
+            WebSocketSegmentViewer viewer = new WebSocketSegmentViewer(webSocket);
+            webSocket.closeHandler(ignored -> this.removeViewer(clientId, viewer));
+
+            this.streamService.attachViewer(clientId, viewer).whenComplete((streamInit, error) -> {
+                if (error != null) {
+                    String message = describe(error);
+                    Log.errorf("An error occurred attaching client %s to its stream: %s", clientId, message);
+                    closeWebSocket(webSocket, message);
+
+                } else if (webSocket.isClosed()) {
+                    // Closed while attaching: the close handler may have run before the viewer was added
+                    this.removeViewer(clientId, viewer);
+                }
+            });
+
+        }).onFailure(error -> Log.errorf("Failed to open web socket for client %s: %s", clientId, error.getMessage()));
+    }
+
+    // Removing the last viewer of a stream stops it, which waits for ffmpeg and the stream threads: not on the event loop
+    private void removeViewer(String clientId, SegmentViewer viewer) {
+        Infrastructure.getDefaultWorkerPool().execute(() -> this.streamService.removeViewer(clientId, viewer));
+    }
+
+    private static void closeWebSocket(ServerWebSocket webSocket, String reason) {
+        if (!webSocket.isClosed()) {
+            webSocket.close((short) 1011, reason);
+        }
+    }
+
+    private static String describe(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause().getMessage() : error.getMessage();
+    }
+}
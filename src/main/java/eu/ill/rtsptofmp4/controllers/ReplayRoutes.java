@@ -0,0 +1,145 @@
+package eu.ill.rtsptofmp4.controllers;
+
+import eu.ill.rtsptofmp4.ServerConfig;
+import eu.ill.rtsptofmp4.business.recording.RecordingService;
+import eu.ill.rtsptofmp4.business.recording.Replay;
+import io.quarkus.logging.Log;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+
+// Serves the recordings of the streams as fragmented MP4 between two times, given in epoch milliseconds or as ISO-8601
+// instants. A single byte range of the replay can be requested, so that players can seek in it.
+@ApplicationScoped
+public class ReplayRoutes {
+
+    private static final int CHUNK_SIZE = 512 * 1024;
+
+    @Inject
+    ServerConfig serverConfig;
+
+    @Inject
+    RecordingService recordingService;
+
+    void registerRoutes(@Observes Router router) {
+        router.get("/streams/:id/replay").handler(this::replay);
+    }
+
+    private void replay(RoutingContext context) {
+        String streamId = context.pathParam("id");
+        HttpServerResponse response = context.response();
+
+        if (!this.recordingService.isEnabled()) {
+            response.setStatusCode(404).end("Recording is not enabled");
+            return;
+        }
+
+        long fromMs;
+        long toMs;
+        try {
+            fromMs = parseTime(context.queryParam("from"), -1);
+            toMs = parseTime(context.queryParam("to"), System.currentTimeMillis());
+
+        } catch (NumberFormatException | DateTimeParseException e) {
+            response.setStatusCode(400).end("Invalid replay time: " + e.getMessage());
+            return;
+        }
+
+        if (fromMs < 0 || toMs < fromMs) {
+            response.setStatusCode(400).end("A replay needs a from time before its to time");
+            return;
+        }
+
+        this.recordingService.replayAsync(streamId, fromMs, toMs).whenComplete((replay, error) -> {
+            if (response.closed()) {
+                return;
+            }
+
+            if (error != null) {
+                String message = error instanceof CompletionException && error.getCause() != null ? error.getCause().getMessage() : error.getMessage();
+                Log.errorf("An error occurred replaying stream %s: %s", streamId, message);
+                response.setStatusCode(500).end(message);
+
+            } else if (replay == null) {
+                response.setStatusCode(404).end("Stream " + streamId + " has not been recorded between " + fromMs + " and " + toMs);
+
+            } else {
+                this.send(context, replay);
+            }
+        });
+    }
+
+    private void send(RoutingContext context, Replay replay) {
+        HttpServerResponse response = context.response();
+        long length = replay.getLength();
+
+        long start = 0;
+        long end = length;
+        long[] range = parseRange(context.request().getHeader("Range"), length);
+        if (range != null) {
+            if (range.length == 0) {
+                response.setStatusCode(416).putHeader("Content-Range", "bytes */" + length).end();
+                return;
+            }
+
+            start = range[0];
+            end = range[1];
+            response.setStatusCode(206).putHeader("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + length);
+        }
+
+        response.putHeader("Content-Type", "video/mp4");
+        response.putHeader("Accept-Ranges", "bytes");
+        response.putHeader("Content-Length", Long.toString(end - start));
+        response.setWriteQueueMaxSize(this.serverConfig.viewer().writeQueueKb() * 1024);
+
+        new HttpReplayWriter(response, replay.getChunks(start, end, CHUNK_SIZE), this.recordingService).start();
+    }
+
+    private static long parseTime(List<String> values, long defaultMs) {
+        if (values.isEmpty() || values.get(0).isBlank()) {
+            return defaultMs;
+        }
+
+        String value = values.get(0).trim();
+        return value.chars().allMatch(Character::isDigit) ? Long.parseLong(value) : Instant.parse(value).toEpochMilli();
+    }
+
+    // Start and end (exclusive) of a single range, null to send the whole replay and an empty array if the range can
+    // not be satisfied. Requests for several ranges get the whole replay.
+    private static long[] parseRange(String header, long length) {
+        if (header == null || !header.startsWith("bytes=") || header.contains(",")) {
+            return null;
+        }
+
+        String spec = header.substring("bytes=".length()).trim();
+        int separator = spec.indexOf('-');
+        if (separator < 0) {
+            return null;
+        }
+
+        try {
+            String first = spec.substring(0, separator).trim();
+            String last = spec.substring(separator + 1).trim();
+            if (first.isEmpty()) {
+                // The last bytes of the replay
+                long suffix = Long.parseLong(last);
+                return suffix > 0 ? new long[]{Math.max(0, length - suffix), length} : new long[0];
+            }
+
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? length : Math.min(Long.parseLong(last) + 1, length);
+            return start < end ? new long[]{start, end} : new long[0];
+
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -2,11 +2,15 @@ package eu.ill.rtsptofmp4.controllers;
 
 import eu.ill.rtsptofmp4.controllers.dto.StreamConnectionDto;
 import eu.ill.rtsptofmp4.controllers.dto.StreamDisconnectionDto;
+import eu.ill.rtsptofmp4.models.PublishQueueStats;
 import eu.ill.rtsptofmp4.models.StreamInfo;
 import eu.ill.rtsptofmp4.models.StreamInit;
+import eu.ill.rtsptofmp4.models.WorkerStats;
 import eu.ill.rtsptofmp4.models.exceptions.StreamingException;
 import eu.ill.rtsptofmp4.business.services.StreamService;
 import io.quarkus.logging.Log;
+import io.smallrye.mutiny.Uni;
+import io.smallrye.mutiny.infrastructure.Infrastructure;
 
 import javax.inject.Inject;
 import javax.ws.rs.*;
@@ -26,9 +30,39 @@ public class StreamController {
         return streams;
     }
 
+    @GET
+    @Path("/publisher")
+    public List<PublishQueueStats> getPublishQueueStats() {
+        return this.streamService.getPublishQueueStats();
+    }
+
+    @GET
+    @Path("/workers")
+    public List<WorkerStats> getWorkerStats() {
+        return this.streamService.getWorkerStats();
+    }
+
+    // The cached GOP and the live segments are served by LiveStreamRoutes at /streams/{id}/gop.mp4 and
+    // /streams/{id}/live.mp4, the recordings by ReplayRoutes at /streams/{id}/replay
+    @GET
+    @Path("/{id}/init.mp4")
+    @Produces("video/mp4")
+    public Uni<byte[]> getInitSegment(@PathParam("id") String streamId) {
+        if (!this.streamService.hasStream(streamId)) {
+            throw new NotFoundException("Stream " + streamId + " is not running");
+        }
+
+        return Uni.createFrom().completionStage(() -> this.streamService.getInitialisationAsync(streamId))
+                .onFailure(StreamingException.class).transform(e -> {
+                    Log.errorf("An error occurred getting the init segment of stream %s: %s", streamId, e.getMessage());
+
+                    return new InternalServerErrorException(e.getMessage());
+                });
+    }
+
     @POST
     @Path("/connect")
-    public StreamInit connect(StreamConnectionDto streamConnection) {
+    public Uni<StreamInit> connect(StreamConnectionDto streamConnection) {
         if (streamConnection == null) {
             throw new BadRequestException("Request body does not contain stream connection data");
         }
@@ -41,16 +75,16 @@ public class StreamController {
             throw new BadRequestException("Stream connection request uses clientId that is already connected");
         }
 
-        try {
-            StreamInfo streamInfo = new StreamInfo(streamConnection.getId(), streamConnection.getName(), streamConnection.getUrl());
-            StreamInit streamInit = this.streamService.connect(streamInfo, streamConnection.getClientId());
-            return streamInit;
-
-        } catch (StreamingException e) {
-            Log.errorf("An error occurred connecting to stream %s: %s", streamConnection.getId(), e.getMessage());
+        // Joins the stream on a worker thread, then waits for ffmpeg without holding one: the connection times out after
+        // the worker initialisation timeout
+        StreamInfo streamInfo = new StreamInfo(streamConnection.getId(), streamConnection.getName(), streamConnection.getUrl());
+        return Uni.createFrom().completionStage(() -> this.streamService.connectAsync(streamInfo, streamConnection.getClientId()))
+                .runSubscriptionOn(Infrastructure.getDefaultWorkerPool())
+                .onFailure(StreamingException.class).transform(e -> {
+                    Log.errorf("An error occurred connecting to stream %s: %s", streamConnection.getId(), e.getMessage());
 
-            throw new InternalServerErrorException(e.getMessage());
-        }
+                    return new InternalServerErrorException(e.getMessage());
+                });
     }
 
     @POST
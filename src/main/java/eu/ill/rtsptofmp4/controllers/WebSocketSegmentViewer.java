@@ -0,0 +1,46 @@
+package eu.ill.rtsptofmp4.controllers;
+
+import eu.ill.rtsptofmp4.business.mp4frag.Segment;
+import eu.ill.rtsptofmp4.business.streaming.SegmentViewer;
+import eu.ill.rtsptofmp4.business.streaming.SharedSegment;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.ServerWebSocket;
+
+import java.util.List;
+
+// Sends each segment as one binary message, to be appended to the SourceBuffer of a MediaSource. The write queue of the
+// socket is the send window of the client: once it is full the client skips segments until the next keyframe.
+class WebSocketSegmentViewer extends SegmentViewer {
+
+    private final ServerWebSocket webSocket;
+
+    WebSocketSegmentViewer(final ServerWebSocket webSocket) {
+        this.webSocket = webSocket;
+    }
+
+    @Override
+    protected void start(String mime, byte[] initialisation, List<Segment> gop) {
+        this.webSocket.writeBinaryMessage(Buffer.buffer(initialisation));
+        for (Segment segment : gop) {
+            this.webSocket.writeBinaryMessage(HttpSegmentViewer.wrap(segment)).onComplete(ignored -> segment.release());
+        }
+    }
+
+    @Override
+    protected boolean isWritable() {
+        return !this.webSocket.writeQueueFull();
+    }
+
+    @Override
+    protected void write(SharedSegment segment) {
+        // The buffer is shared with the other viewers of the stream: only the frame header is written per client
+        this.webSocket.writeBinaryMessage(segment.encode(HttpSegmentViewer.BUFFER_ENCODER)).onComplete(ignored -> segment.release());
+    }
+
+    @Override
+    protected void close() {
+        if (!this.webSocket.isClosed()) {
+            this.webSocket.close((short) 1001, "Stream stopped");
+        }
+    }
+}
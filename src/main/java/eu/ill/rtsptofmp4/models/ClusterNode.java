@@ -0,0 +1,42 @@
+package eu.ill.rtsptofmp4.models;
+
+public class ClusterNode {
+
+    private String url;
+    private int publisherPort;
+    private boolean alive;
+
+    public ClusterNode() {
+    }
+
+    public ClusterNode(String url, int publisherPort, boolean alive) {
+        this.url = url;
+        this.publisherPort = publisherPort;
+        this.alive = alive;
+    }
+
+    // Base URL of the API of the node, as listed in the cluster configuration
+    public String getUrl() {
+        return url;
+    }
+
+    public void setUrl(String url) {
+        this.url = url;
+    }
+
+    public int getPublisherPort() {
+        return publisherPort;
+    }
+
+    public void setPublisherPort(int publisherPort) {
+        this.publisherPort = publisherPort;
+    }
+
+    public boolean isAlive() {
+        return alive;
+    }
+
+    public void setAlive(boolean alive) {
+        this.alive = alive;
+    }
+}
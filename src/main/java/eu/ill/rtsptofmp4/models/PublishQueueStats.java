@@ -0,0 +1,58 @@
+package eu.ill.rtsptofmp4.models;
+
+public class PublishQueueStats {
+
+    private final String streamId;
+    private final int depth;
+    private final int capacity;
+    private final long sent;
+    private final long dropped;
+    private final long skipped;
+    private final long meanLatencyUs;
+    private final long maxLatencyUs;
+
+    public PublishQueueStats(final String streamId, final int depth, final int capacity, final long sent, final long dropped, final long skipped, final long meanLatencyUs, final long maxLatencyUs) {
+        this.streamId = streamId;
+        this.depth = depth;
+        this.capacity = capacity;
+        this.sent = sent;
+        this.dropped = dropped;
+        this.skipped = skipped;
+        this.meanLatencyUs = meanLatencyUs;
+        this.maxLatencyUs = maxLatencyUs;
+    }
+
+    public String getStreamId() {
+        return streamId;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getSent() {
+        return sent;
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+
+    // Segments not sent because nobody was subscribed to the stream
+    public long getSkipped() {
+        return skipped;
+    }
+
+    // Time from publish() to the end of the socket send
+    public long getMeanLatencyUs() {
+        return meanLatencyUs;
+    }
+
+    public long getMaxLatencyUs() {
+        return maxLatencyUs;
+    }
+}
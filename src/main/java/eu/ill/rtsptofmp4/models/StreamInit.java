@@ -1,15 +1,19 @@
 package eu.ill.rtsptofmp4.models;
 
+import java.util.List;
+
 public class StreamInit {
 
     private final String clientId;
     private final String mime;
     private final byte[] initSegment;
+    private final List<Track> tracks;
 
-    public StreamInit(final String clientId, final String mime, final byte[] initSegment) {
+    public StreamInit(final String clientId, final String mime, final byte[] initSegment, final List<Track> tracks) {
         this.clientId = clientId;
         this.mime = mime;
         this.initSegment = initSegment;
+        this.tracks = tracks;
     }
 
     public String getClientId() {
@@ -23,4 +27,8 @@ public class StreamInit {
     public byte[] getInitSegment() {
         return initSegment;
     }
+
+    public List<Track> getTracks() {
+        return tracks;
+    }
 }
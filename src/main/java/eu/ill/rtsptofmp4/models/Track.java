@@ -0,0 +1,78 @@
+package eu.ill.rtsptofmp4.models;
+
+import java.util.List;
+
+public class Track {
+
+    private final int id;
+    private final String type;
+    private final String codec;
+    private final long timescale;
+    private final int width;
+    private final int height;
+    private final int channelCount;
+    private final int sampleRate;
+    private final List<byte[]> vps;
+    private final List<byte[]> sps;
+    private final List<byte[]> pps;
+
+    public Track(final int id, final String type, final String codec, final long timescale, final int width, final int height, final int channelCount, final int sampleRate, final List<byte[]> vps, final List<byte[]> sps, final List<byte[]> pps) {
+        this.id = id;
+        this.type = type;
+        this.codec = codec;
+        this.timescale = timescale;
+        this.width = width;
+        this.height = height;
+        this.channelCount = channelCount;
+        this.sampleRate = sampleRate;
+        this.vps = vps;
+        this.sps = sps;
+        this.pps = pps;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    // video, audio or the handler type of other tracks
+    public String getType() {
+        return type;
+    }
+
+    // RFC 6381 codec string, null if the sample entry is not supported
+    public String getCodec() {
+        return codec;
+    }
+
+    public long getTimescale() {
+        return timescale;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public List<byte[]> getVps() {
+        return vps;
+    }
+
+    public List<byte[]> getSps() {
+        return sps;
+    }
+
+    public List<byte[]> getPps() {
+        return pps;
+    }
+}
@@ -0,0 +1,40 @@
+package eu.ill.rtsptofmp4.models;
+
+public class WorkerStats {
+
+    private final String streamId;
+    private final boolean running;
+    private final int restarts;
+    private final int lastExitCode;
+    private final long downtimeMs;
+
+    public WorkerStats(final String streamId, final boolean running, final int restarts, final int lastExitCode, final long downtimeMs) {
+        this.streamId = streamId;
+        this.running = running;
+        this.restarts = restarts;
+        this.lastExitCode = lastExitCode;
+        this.downtimeMs = downtimeMs;
+    }
+
+    public String getStreamId() {
+        return streamId;
+    }
+
+    // False while ffmpeg is being restarted
+    public boolean isRunning() {
+        return running;
+    }
+
+    public int getRestarts() {
+        return restarts;
+    }
+
+    public int getLastExitCode() {
+        return lastExitCode;
+    }
+
+    // Total time from ffmpeg exiting to the restarted process sending its initialisation segment
+    public long getDowntimeMs() {
+        return downtimeMs;
+    }
+}
@@ -0,0 +1,134 @@
+package eu.ill.rtsptofmp4;
+
+import eu.ill.rtsptofmp4.business.mp4frag.BufferPool;
+import eu.ill.rtsptofmp4.business.mp4frag.MP4Frag;
+import eu.ill.rtsptofmp4.business.mp4frag.PooledBuffer;
+import eu.ill.rtsptofmp4.business.mp4frag.Segment;
+import eu.ill.rtsptofmp4.business.mp4frag.StreamBuffer;
+import eu.ill.rtsptofmp4.models.exceptions.MP4FragException;
+import io.quarkus.test.junit.QuarkusTest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+@QuarkusTest
+public class BufferPoolTest {
+
+    private BufferPool bufferPool;
+
+    @BeforeEach
+    public void createPool() {
+        this.bufferPool = new BufferPool(1024 * 1024, true);
+    }
+
+    @AfterEach
+    public void detectLeaks() {
+        List<Throwable> leaks = this.bufferPool.getLeaks();
+        Assertions.assertEquals(0, leaks.size(), () -> "Leaked pooled buffers, acquired at:\n" + leaks.stream().map(BufferPoolTest::getStackTrace).collect(Collectors.joining("\n")));
+        Assertions.assertEquals(0, this.bufferPool.getOutstandingBuffers());
+        Assertions.assertEquals(0, this.bufferPool.getBytesInUse());
+    }
+
+    private static String getStackTrace(Throwable trace) {
+        StringWriter writer = new StringWriter();
+        trace.printStackTrace(new PrintWriter(writer));
+        return writer.toString();
+    }
+
+    @Test
+    public void testSizeClassesAndHitRate() {
+        PooledBuffer buffer = this.bufferPool.acquire(3000);
+        Assertions.assertEquals(4096, buffer.capacity());
+        Assertions.assertEquals(1, this.bufferPool.getOutstandingBuffers());
+        Assertions.assertEquals(4096, this.bufferPool.getBytesInUse());
+        buffer.release();
+
+        PooledBuffer reused = this.bufferPool.acquire(4096);
+        Assertions.assertSame(buffer.getData(), reused.getData());
+        Assertions.assertEquals(0.5, this.bufferPool.getHitRate());
+        reused.release();
+
+        Assertions.assertEquals(4096, this.bufferPool.getPooledBytes());
+    }
+
+    @Test
+    public void testRetainRelease() {
+        PooledBuffer buffer = this.bufferPool.acquire(100);
+        buffer.retain();
+        buffer.release();
+        Assertions.assertEquals(1, this.bufferPool.getOutstandingBuffers());
+
+        buffer.release();
+        Assertions.assertThrows(IllegalStateException.class, buffer::release);
+        Assertions.assertThrows(IllegalStateException.class, buffer::retain);
+    }
+
+    @Test
+    public void testPoolLimit() {
+        PooledBuffer first = this.bufferPool.acquire(1024 * 1024);
+        PooledBuffer second = this.bufferPool.acquire(1024 * 1024);
+        first.release();
+        second.release();
+
+        Assertions.assertEquals(1024 * 1024, this.bufferPool.getPooledBytes());
+    }
+
+    @Test
+    public void testLeakDetector() {
+        PooledBuffer leaked = this.bufferPool.acquire(100);
+
+        List<Throwable> leaks = this.bufferPool.getLeaks();
+        Assertions.assertEquals(1, leaks.size());
+        Assertions.assertTrue(Arrays.stream(leaks.get(0).getStackTrace()).anyMatch(element -> element.getMethodName().equals("testLeakDetector")));
+
+        leaked.release();
+    }
+
+    @Test
+    public void testParsedSegmentsAreReleased() throws MP4FragException {
+        List<byte[]> segments = new ArrayList<>();
+        MP4Frag mp4Frag = new MP4Frag((segment) -> {
+            segments.add(segment.getBytes());
+            segment.release();
+        }, this.bufferPool);
+
+        byte[] initSegment = FMP4TestData.initSegment();
+        mp4Frag.parseChunk(new StreamBuffer(Arrays.copyOfRange(initSegment, 0, 28)));
+        mp4Frag.parseChunk(new StreamBuffer(Arrays.copyOfRange(initSegment, 28, initSegment.length)));
+
+        for (int i = 0; i < 10; i++) {
+            byte[] fragment = FMP4TestData.fragment(i + 1, i * 3600L, i == 0, 3600, new byte[5000]);
+            mp4Frag.parseChunk(new StreamBuffer(Arrays.copyOfRange(fragment, 0, 2000)));
+            mp4Frag.parseChunk(new StreamBuffer(Arrays.copyOfRange(fragment, 2000, fragment.length)));
+        }
+
+        Assertions.assertEquals(10, segments.size());
+        Assertions.assertTrue(this.bufferPool.getHitRate() > 0.8);
+    }
+
+    @Test
+    public void testPartialSegmentReleasedWhenStreamEnds() throws IOException, MP4FragException {
+        List<Segment> segments = new ArrayList<>();
+        MP4Frag mp4Frag = new MP4Frag(segments::add, this.bufferPool);
+
+        byte[] initSegment = FMP4TestData.initSegment();
+        byte[] fragment = FMP4TestData.fragment(1, 0, true, 3600, new byte[5000]);
+        byte[] stream = new byte[initSegment.length + fragment.length / 2];
+        System.arraycopy(initSegment, 0, stream, 0, initSegment.length);
+        System.arraycopy(fragment, 0, stream, initSegment.length, fragment.length / 2);
+
+        mp4Frag.process(new ByteArrayInputStream(stream));
+
+        Assertions.assertEquals(0, segments.size());
+    }
+}
@@ -0,0 +1,223 @@
+package eu.ill.rtsptofmp4;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import eu.ill.rtsptofmp4.business.cluster.ClusterService;
+import eu.ill.rtsptofmp4.business.cluster.HashRing;
+import eu.ill.rtsptofmp4.business.services.StreamService;
+import eu.ill.rtsptofmp4.models.StreamInfo;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.QuarkusTestProfile;
+import io.quarkus.test.junit.TestProfile;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.zeromq.SocketType;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+
+import javax.inject.Inject;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+// Two cluster nodes on localhost ports: this application and a second node played by the test, which answers the
+// heartbeats and the connections of the ClusterController and publishes its stream over ZeroMQ. A stream owned by the
+// second node is relayed from it, and moves to this node, which then reads it from ffmpeg, once the second node stops
+// answering the heartbeats.
+@QuarkusTest
+@TestProfile(ClusterRelayTest.ClusterProfile.class)
+public class ClusterRelayTest {
+
+    private static final int HTTP_PORT = freePort("http");
+    private static final int PUBLISHER_PORT = freePort("publisher");
+    private static final int PEER_HTTP_PORT = freePort("peer.http");
+    private static final int PEER_PUBLISHER_PORT = freePort("peer.publisher");
+
+    private static final String NODE_URL = "http://localhost:" + HTTP_PORT + "/api";
+    private static final String PEER_URL = "http://localhost:" + PEER_HTTP_PORT + "/api";
+
+    // First byte of the payload of the fragments, telling which node read them from the camera
+    private static final byte FROM_NODE = 'N';
+    private static final byte FROM_PEER = 'P';
+
+    @Inject
+    StreamService streamService;
+
+    @Inject
+    ClusterService clusterService;
+
+    public static class ClusterProfile implements QuarkusTestProfile {
+
+        @Override
+        public Map<String, String> getConfigOverrides() {
+            try {
+                // ffmpeg of this node: the fragments are written at once then the process waits to be stopped
+                File fragments = File.createTempFile("cluster-fragments", ".mp4");
+                fragments.deleteOnExit();
+                Files.write(fragments.toPath(), stream(FROM_NODE, 100));
+
+                File script = File.createTempFile("cluster-ffmpeg", ".sh");
+                script.deleteOnExit();
+                Files.writeString(script.toPath(), String.format("#!/bin/sh\ncat '%s'\nexec sleep 600\n", fragments.getAbsolutePath()));
+                script.setExecutable(true);
+
+                return Map.of(
+                        "quarkus.http.test-port", Integer.toString(HTTP_PORT),
+                        "server.cluster.node-url", NODE_URL,
+                        "server.cluster.nodes", NODE_URL + "," + PEER_URL,
+                        "server.cluster.heartbeat-ms", "100",
+                        "server.cluster.node-timeout-ms", "500",
+                        "server.publisher.port", Integer.toString(PUBLISHER_PORT),
+                        "server.publisher.unsubscribed-timeout-ms", "0",
+                        "server.worker.ffmpeg-path", script.getAbsolutePath(),
+                        "server.worker.linger-ms", "0");
+
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    @Test
+    public void testStreamIsRelayedThenMovesOwner() throws Exception {
+        String streamId = streamOwnedBy(PEER_URL);
+        StreamInfo streamInfo = new StreamInfo(streamId, "Cluster", "rtsp://localhost/cluster");
+
+        HttpServer peer = startPeer();
+        Thread peerPublisher = new Thread(() -> publish(streamId));
+        peerPublisher.start();
+
+        try (ZContext context = new ZContext()) {
+            ZMQ.Socket subscriber = context.createSocket(SocketType.SUB);
+            subscriber.setReceiveTimeOut(100);
+            subscriber.connect("tcp://localhost:" + PUBLISHER_PORT);
+            subscriber.subscribe(streamId.getBytes(StandardCharsets.UTF_8));
+
+            // The peer can only be relayed from once it has given its publisher port in a heartbeat
+            waitFor(() -> this.clusterService.getNodes().stream().anyMatch(node -> node.getUrl().equals(PEER_URL) && node.getPublisherPort() == PEER_PUBLISHER_PORT), "The peer did not answer the heartbeats");
+
+            this.streamService.connectAsync(streamInfo, "cluster-viewer").get(10, TimeUnit.SECONDS);
+            Assertions.assertEquals(PEER_URL, this.clusterService.getSources().get(streamId));
+            Assertions.assertTrue(receiveFrom(subscriber, streamId, FROM_PEER), "The segments of the owner were not relayed");
+
+            // The peer leaves the cluster: this node owns the stream and reads it from ffmpeg
+            peer.stop(0);
+            waitFor(() -> NODE_URL.equals(this.clusterService.getSources().get(streamId)), "The stream did not move to this node");
+            Assertions.assertTrue(receiveFrom(subscriber, streamId, FROM_NODE), "The segments read from ffmpeg were not published");
+
+        } finally {
+            this.streamService.disconnect("cluster-viewer");
+            peerPublisher.interrupt();
+            peerPublisher.join(5000);
+            peer.stop(0);
+        }
+    }
+
+    // Answers the calls of this node to the ClusterController of the peer
+    private static HttpServer startPeer() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", PEER_HTTP_PORT), 0);
+        server.createContext("/api/cluster/node", exchange -> respond(exchange, "application/json",
+                String.format("{\"url\":\"%s\",\"publisherPort\":%d,\"alive\":true}", PEER_URL, PEER_PUBLISHER_PORT).getBytes(StandardCharsets.UTF_8)));
+        server.createContext("/api/cluster/connect", exchange -> respond(exchange, "video/mp4", FMP4TestData.initSegment()));
+        server.createContext("/api/cluster/disconnect", exchange -> respond(exchange, "text/plain", "Ok".getBytes(StandardCharsets.UTF_8)));
+        server.start();
+        return server;
+    }
+
+    private static void respond(HttpExchange exchange, String contentType, byte[] body) throws IOException {
+        exchange.getRequestBody().readAllBytes();
+        exchange.getResponseHeaders().add("Content-Type", contentType);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(body);
+        }
+    }
+
+    // The publisher of the peer, until interrupted: one fragment of the stream every 40 ms
+    private static void publish(String streamId) {
+        try (ZContext context = new ZContext()) {
+            ZMQ.Socket publisher = context.createSocket(SocketType.PUB);
+            publisher.bind("tcp://*:" + PEER_PUBLISHER_PORT);
+
+            byte[] payload = new byte[100];
+            payload[0] = FROM_PEER;
+            for (int i = 0; !Thread.currentThread().isInterrupted(); i++) {
+                publisher.sendMore(streamId);
+                publisher.send(FMP4TestData.fragment(i + 1, i * 3600L, i % 10 == 0, 3600, payload), 0);
+                Thread.sleep(40);
+            }
+
+        } catch (InterruptedException e) {
+            // Stopped by the test
+        }
+    }
+
+    private static boolean receiveFrom(ZMQ.Socket subscriber, String streamId, byte node) {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            byte[] topic = subscriber.recv(0);
+            if (topic == null || !subscriber.hasReceiveMore()) {
+                continue;
+            }
+
+            byte[] segment = subscriber.recv(0);
+            if (Arrays.equals(topic, streamId.getBytes(StandardCharsets.UTF_8)) && segment[FMP4TestData.payloadOffset(segment)] == node) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] stream(byte node, int fragmentCount) {
+        byte[] payload = new byte[100];
+        payload[0] = node;
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        outputStream.writeBytes(FMP4TestData.initSegment());
+        for (int i = 0; i < fragmentCount; i++) {
+            outputStream.writeBytes(FMP4TestData.fragment(i + 1, i * 3600L, i % 10 == 0, 3600, payload));
+        }
+        return outputStream.toByteArray();
+    }
+
+    private static String streamOwnedBy(String nodeUrl) {
+        HashRing ring = new HashRing(List.of(NODE_URL, PEER_URL), 128);
+        for (int i = 0; ; i++) {
+            if (ring.ownerOf("cluster-" + i).equals(nodeUrl)) {
+                return "cluster-" + i;
+            }
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition, String message) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Assertions.assertTrue(condition.getAsBoolean(), message);
+    }
+
+    // Kept in the system properties: the profile and the test are loaded by different class loaders
+    private static synchronized int freePort(String name) {
+        String property = ClusterRelayTest.class.getName() + "." + name;
+        if (System.getProperty(property) == null) {
+            try (ServerSocket serverSocket = new ServerSocket(0)) {
+                System.setProperty(property, Integer.toString(serverSocket.getLocalPort()));
+
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return Integer.getInteger(property);
+    }
+}
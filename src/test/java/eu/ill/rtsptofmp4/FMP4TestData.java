@@ -0,0 +1,54 @@
+package eu.ill.rtsptofmp4;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+
+public class FMP4TestData {
+
+    public static final String FTYP_BASE64 = "AAAAHGZ0eXBpc281AAACAGlzbzVpc282bXA0MQ==";
+    public static final String AVC_MOOV_BASE64 = "AAADJW1vb3YAAABsbXZoZAAAAAAAAAAAAAAAAAAAA+gAAAAAAAEAAAEAAAAAAAAAAAAAAAABAAAAAAAAAAAAAAAAAAAAAQAAAAAAAAAAAAAAAAAAQAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAIAAAIJdHJhawAAAFx0a2hkAAAAAwAAAAAAAAAAAAAAAQAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAABAAAAAAAAAAAAAAAAAAAAAQAAAAAAAAAAAAAAAAAAQAAAAAPAAAACHAAAAAABpW1kaWEAAAAgbWRoZAAAAAAAAAAAAAAAAAABX5AAAAAAVcQAAAAAAC1oZGxyAAAAAAAAAAB2aWRlAAAAAAAAAAAAAAAAVmlkZW9IYW5kbGVyAAAAAVBtaW5mAAAAFHZtaGQAAAABAAAAAAAAAAAAAAAkZGluZgAAABxkcmVmAAAAAAAAAAEAAAAMdXJsIAAAAAEAAAEQc3RibAAAAMRzdHNkAAAAAAAAAAEAAAC0YXZjMQAAAAAAAAABAAAAAAAAAAAAAAAAAAAAAAPAAhwASAAAAEgAAAAAAAAAAQAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAABj//wAAADthdmNDAWQAH//hAB5nZAAfrNlA8BF+8BagICAoAAADAAgAAAMBgHjBjLABAAZo6+C0siz9+PgAAAAAE2NvbHJuY2x4AAEAAQABAAAAABBwYXNwAAAAAQAAAAEAAAAQc3R0cwAAAAAAAAAAAAAAEHN0c2MAAAAAAAAAAAAAABRzdHN6AAAAAAAAAAAAAAAAAAAAEHN0Y28AAAAAAAAAAAAAAChtdmV4AAAAIHRyZXgAAAAAAAAAAQAAAAEAAAAAAAAAAAAAAAAAAACAdWR0YQAAAHhtZXRhAAAAAAAAACFoZGxyAAAAAAAAAABtZGlyYXBwbAAAAAAAAAAAAAAAAEtpbHN0AAAAHqluYW0AAAAWZGF0YQAAAAEAAAAAU3RyZWFtAAAAJal0b28AAAAdZGF0YQAAAAEAAAAATGF2ZjU5LjE2LjEwMA==";
+    public static final String HEVC_AAC_MOOV_BASE64 = "AAAFRW1vb3YAAABsbXZoZAAAAAAAAAAAAAAAAAAAA+gAAAAAAAEAAAEAAAAAAAAAAAAAAAABAAAAAAAAAAAAAAAAAAAAAQAAAAAAAAAAAAAAAAAAQAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAIAAAJKdHJhawAAAFx0a2hkAAAAAwAAAAAAAAAAAAAAAQAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAABAAAAAAAAAAAAAAAAAAAAAQAAAAAAAAAAAAAAAAAAQAAAAAPAAAACHAAAAAAB5m1kaWEAAAAgbWRoZAAAAAAAAAAAAAAAAAABX5AAAAAAVcQAAAAAAC1oZGxyAAAAAAAAAAB2aWRlAAAAAAAAAAAAAAAAVmlkZW9IYW5kbGVyAAAAAZFtaW5mAAAAFHZtaGQAAAABAAAAAAAAAAAAAAAkZGluZgAAABxkcmVmAAAAAAAAAAEAAAAMdXJsIAAAAAEAAAFRc3RibAAAAQVzdHNkAAAAAAAAAAEAAAD1aGV2MQAAAAAAAAABAAAAAAAAAAAAAAAAAAAAAAPAAhwASAAAAEgAAAAAAAAAAQAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAABj//wAAAHxodmNDAQFgAAAAkAAAAAAAWvAA/P34+AAADwMgAAEAGEABDAH//wFgAAADAJAAAAMAAAMAWpWYCSEAAQAvQgEBAWAAAAMAkAAAAwAAAwBaoAeCAIh95ZWaSTK8BagICA8IAAADAAgAAAMAwEAiAAEAB0QBwXK0YkAAAAATY29scm5jbHgAAQABAAEAAAAAEHBhc3AAAAABAAAAAQAAABBzdHRzAAAAAAAAAAAAAAAQc3RzYwAAAAAAAAAAAAAAFHN0c3oAAAAAAAAAAAAAAAAAAAAQc3RjbwAAAAAAAAAAAAABv3RyYWsAAABcdGtoZAAAAAMAAAAAAAAAAAAAAAIAAAAAAAAAAAAAAAAAAAAAAAAAAQEAAAAAAQAAAAAAAAAAAAAAAAAAAAEAAAAAAAAAAAAAAAAAAEAAAAAAAAAAAAAAAAAAAVttZGlhAAAAIG1kaGQAAAAAAAAAAAAAAAAAALuAAAAAAFXEAAAAAAAtaGRscgAAAAAAAAAAc291bgAAAAAAAAAAAAAAAFNvdW5kSGFuZGxlcgAAAAEGbWluZgAAABBzbWhkAAAAAAAAAAAAAAAkZGluZgAAABxkcmVmAAAAAAAAAAEAAAAMdXJsIAAAAAEAAADKc3RibAAAAH5zdHNkAAAAAAAAAAEAAABubXA0YQAAAAAAAAABAAAAAAAAAAAAAgAQAAAAALuAAAAAAAA2ZXNkcwAAAAADgICAJQACAASAgIAXQBUAAAAAAfQAAAH0AAWAgIAFEZBW5QAGgICAAQIAAAAUYnRydAAAAAAAAfQAAAH0AAAAABBzdHRzAAAAAAAAAAAAAAAQc3RzYwAAAAAAAAAAAAAAFHN0c3oAAAAAAAAAAAAAAAAAAAAQc3RjbwAAAAAAAAAAAAAASG12ZXgAAAAgdHJleAAAAAAAAAABAAAAAQAAAAAAAAAAAAAAAAAAACB0cmV4AAAAAAAAAAIAAAABAAAAAAAAAAAAAAAAAAAAgHVkdGEAAAB4bWV0YQAAAAAAAAAhaGRscgAAAAAAAAAAbWRpcmFwcGwAAAAAAAAAAAAAAABLaWxzdAAAAB6pbmFtAAAAFmRhdGEAAAABAAAAAFN0cmVhbQAAACWpdG9vAAAAHWRhdGEAAAABAAAAAExhdmY1OS4xNi4xMDA=";
+    public static final String AVC_MIME = "video/mp4; codecs=\"avc1.64001F\"";
+
+    public static final int SAMPLE_FLAGS_KEYFRAME = 0x02000000;
+    public static final int SAMPLE_FLAGS_DELTA = 0x01010000;
+
+    public static byte[] initSegment() {
+        byte[] ftyp = Base64.getDecoder().decode(FTYP_BASE64);
+        byte[] moov = Base64.getDecoder().decode(AVC_MOOV_BASE64);
+
+        return ByteBuffer.allocate(ftyp.length + moov.length).put(ftyp).put(moov).array();
+    }
+
+    // moof + mdat pair as written by ffmpeg with +frag_every_frame+default_base_moof: one traf holding tfhd, tfdt (v1) and a single-sample trun
+    public static byte[] fragment(int sequenceNumber, long baseMediaDecodeTime, boolean keyframe, int sampleDuration, byte[] payload) {
+        int mfhdSize = 16;
+        int tfhdSize = 24;
+        int tfdtSize = 20;
+        int trunSize = 28;
+        int trafSize = 8 + tfhdSize + tfdtSize + trunSize;
+        int moofSize = 8 + mfhdSize + trafSize;
+        int mdatSize = 8 + payload.length;
+
+        ByteBuffer buffer = ByteBuffer.allocate(moofSize + mdatSize);
+        buffer.putInt(moofSize).put("moof".getBytes());
+
+        buffer.putInt(mfhdSize).put("mfhd".getBytes()).putInt(0).putInt(sequenceNumber);
+
+        buffer.putInt(trafSize).put("traf".getBytes());
+        // default-base-is-moof | default-sample-duration | default-sample-flags
+        buffer.putInt(tfhdSize).put("tfhd".getBytes()).putInt(0x020028).putInt(1).putInt(sampleDuration).putInt(SAMPLE_FLAGS_DELTA);
+        buffer.putInt(tfdtSize).put("tfdt".getBytes()).putInt(0x01000000).putLong(baseMediaDecodeTime);
+        // data-offset | first-sample-flags | sample-size
+        buffer.putInt(trunSize).put("trun".getBytes()).putInt(0x000205).putInt(1).putInt(moofSize + 8)
+                .putInt(keyframe ? SAMPLE_FLAGS_KEYFRAME : SAMPLE_FLAGS_DELTA).putInt(payload.length);
+
+        buffer.putInt(mdatSize).put("mdat".getBytes()).put(payload);
+
+        return buffer.array();
+    }
+
+    public static int payloadOffset(byte[] fragment) {
+        return ByteBuffer.wrap(fragment).getInt(0) + 8;
+    }
+}
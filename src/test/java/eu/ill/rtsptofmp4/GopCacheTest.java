@@ -0,0 +1,157 @@
+package eu.ill.rtsptofmp4;
+
+import eu.ill.rtsptofmp4.business.mp4frag.BufferPool;
+import eu.ill.rtsptofmp4.business.mp4frag.MP4Frag;
+import eu.ill.rtsptofmp4.business.mp4frag.Segment;
+import eu.ill.rtsptofmp4.business.mp4frag.StreamBuffer;
+import eu.ill.rtsptofmp4.business.streaming.GopCache;
+import eu.ill.rtsptofmp4.models.exceptions.MP4FragException;
+import io.quarkus.test.junit.QuarkusTest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@QuarkusTest
+public class GopCacheTest {
+
+    private static final int PAYLOAD_SIZE = 1000;
+
+    private BufferPool bufferPool;
+    private List<Segment> segments;
+    private MP4Frag mp4Frag;
+
+    @BeforeEach
+    public void createParser() throws MP4FragException {
+        this.bufferPool = new BufferPool(1024 * 1024, true);
+        this.segments = new ArrayList<>();
+        this.mp4Frag = new MP4Frag(this.segments::add, this.bufferPool);
+        this.mp4Frag.parseChunk(new StreamBuffer(FMP4TestData.initSegment()));
+    }
+
+    @AfterEach
+    public void detectLeaks() {
+        Assertions.assertEquals(0, this.bufferPool.getLeaks().size(), "Leaked pooled buffers");
+        Assertions.assertEquals(0, this.bufferPool.getOutstandingBuffers());
+    }
+
+    @Test
+    public void testKeyframeDetection() throws MP4FragException {
+        this.parseFragments(true, false, false, true);
+
+        Assertions.assertEquals(List.of(true, false, false, true), this.segments.stream().map(Segment::isKeyframe).toList());
+        this.segments.forEach(Segment::release);
+    }
+
+    @Test
+    public void testCacheStartsAtMostRecentKeyframe() throws MP4FragException {
+        GopCache.Budget budget = new GopCache.Budget(1024 * 1024);
+        GopCache gopCache = new GopCache(1024 * 1024, budget);
+
+        // Delta fragments before the first keyframe cannot be decoded
+        this.parseFragments(false, true, false, false, true, false);
+        this.segments.forEach(gopCache::add);
+
+        Assertions.assertEquals(2, gopCache.getSegmentCount());
+        byte[] expected = concat(this.segments.get(4), this.segments.get(5));
+        Assertions.assertArrayEquals(expected, gopCache.getBytes());
+        Assertions.assertEquals(expected.length, budget.getBytesUsed());
+
+        // The cache holds its own references
+        this.segments.forEach(Segment::release);
+        Assertions.assertEquals(2, this.bufferPool.getOutstandingBuffers());
+
+        gopCache.clear();
+        Assertions.assertEquals(0, gopCache.getBytes().length);
+        Assertions.assertEquals(0, budget.getBytesUsed());
+    }
+
+    @Test
+    public void testSegmentsOutliveCache() throws MP4FragException {
+        GopCache gopCache = new GopCache(1024 * 1024, new GopCache.Budget(1024 * 1024));
+
+        this.parseFragments(true, false);
+        this.segments.forEach(gopCache::add);
+        this.segments.forEach(Segment::release);
+
+        // The segments being sent stay valid when the cache moves on to the next keyframe
+        List<Segment> gop = gopCache.getSegments();
+        Assertions.assertEquals(this.segments, gop);
+        gopCache.clear();
+        Assertions.assertEquals(2, this.bufferPool.getOutstandingBuffers());
+
+        gop.forEach(Segment::release);
+    }
+
+    @Test
+    public void testStreamLimitDropsGroupUntilNextKeyframe() throws MP4FragException {
+        GopCache.Budget budget = new GopCache.Budget(1024 * 1024);
+        GopCache gopCache = new GopCache(3 * PAYLOAD_SIZE, budget);
+
+        this.parseFragments(true, false, false, false, true);
+        for (int i = 0; i < 4; i++) {
+            gopCache.add(this.segments.get(i));
+        }
+
+        Assertions.assertEquals(0, gopCache.getSegmentCount());
+        Assertions.assertEquals(0, budget.getBytesUsed());
+
+        gopCache.add(this.segments.get(4));
+        Assertions.assertEquals(1, gopCache.getSegmentCount());
+
+        this.segments.forEach(Segment::release);
+        gopCache.clear();
+    }
+
+    @Test
+    public void testGlobalLimitIsSharedBetweenStreams() throws MP4FragException {
+        this.parseFragments(true, false, true, false);
+        long fragmentLength = this.segments.get(0).length();
+
+        GopCache.Budget budget = new GopCache.Budget(3 * fragmentLength);
+        GopCache first = new GopCache(1024 * 1024, budget);
+        GopCache second = new GopCache(1024 * 1024, budget);
+
+        first.add(this.segments.get(0));
+        first.add(this.segments.get(1));
+        second.add(this.segments.get(2));
+        Assertions.assertEquals(3 * fragmentLength, budget.getBytesUsed());
+
+        // Over the global limit: the second stream has no usable group until its next keyframe
+        second.add(this.segments.get(3));
+        Assertions.assertEquals(0, second.getSegmentCount());
+        Assertions.assertEquals(2, first.getSegmentCount());
+        Assertions.assertEquals(2 * fragmentLength, budget.getBytesUsed());
+
+        this.segments.forEach(Segment::release);
+        first.clear();
+        second.clear();
+    }
+
+    private void parseFragments(boolean... keyframes) throws MP4FragException {
+        for (int i = 0; i < keyframes.length; i++) {
+            byte[] fragment = FMP4TestData.fragment(i + 1, i * 3600L, keyframes[i], 3600, new byte[PAYLOAD_SIZE]);
+            fragment[FMP4TestData.payloadOffset(fragment)] = (byte) i;
+            this.mp4Frag.parseChunk(new StreamBuffer(fragment));
+        }
+    }
+
+    private static byte[] concat(Segment... segments) {
+        int length = 0;
+        for (Segment segment : segments) {
+            length += segment.length();
+        }
+
+        byte[] bytes = new byte[length];
+        int position = 0;
+        for (Segment segment : segments) {
+            System.arraycopy(segment.getBytes(), 0, bytes, position, segment.length());
+            position += segment.length();
+        }
+
+        return bytes;
+    }
+}
@@ -0,0 +1,80 @@
+package eu.ill.rtsptofmp4;
+
+import eu.ill.rtsptofmp4.business.cluster.HashRing;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class HashRingTest {
+
+    private static final int POINTS_PER_NODE = 128;
+    private static final int STREAMS = 10000;
+
+    private static final String NODE_A = "http://localhost:8081/api";
+    private static final String NODE_B = "http://localhost:8082/api";
+    private static final String NODE_C = "http://localhost:8083/api";
+
+    @Test
+    public void testOwnerDoesNotDependOnNodeOrder() {
+        HashRing ring = new HashRing(List.of(NODE_A, NODE_B, NODE_C), POINTS_PER_NODE);
+        HashRing reordered = new HashRing(List.of(NODE_C, NODE_A, NODE_B), POINTS_PER_NODE);
+
+        for (int i = 0; i < STREAMS; i++) {
+            Assertions.assertEquals(ring.ownerOf("stream-" + i), reordered.ownerOf("stream-" + i));
+        }
+    }
+
+    @Test
+    public void testStreamsAreSpreadEvenly() {
+        HashRing ring = new HashRing(List.of(NODE_A, NODE_B, NODE_C), POINTS_PER_NODE);
+
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < STREAMS; i++) {
+            counts.merge(ring.ownerOf("stream-" + i), 1, Integer::sum);
+        }
+
+        Assertions.assertEquals(3, counts.size());
+        for (int count : counts.values()) {
+            Assertions.assertTrue(Math.abs(count - STREAMS / 3) < STREAMS / 3 * 0.25, "Unbalanced ring: " + counts);
+        }
+    }
+
+    @Test
+    public void testLeavingNodeOnlyMovesItsStreams() {
+        HashRing ring = new HashRing(List.of(NODE_A, NODE_B, NODE_C), POINTS_PER_NODE);
+        HashRing withoutC = new HashRing(List.of(NODE_A, NODE_B), POINTS_PER_NODE);
+
+        for (int i = 0; i < STREAMS; i++) {
+            String owner = ring.ownerOf("stream-" + i);
+            if (!owner.equals(NODE_C)) {
+                Assertions.assertEquals(owner, withoutC.ownerOf("stream-" + i));
+            }
+        }
+    }
+
+    @Test
+    public void testJoiningNodeOnlyTakesStreams() {
+        HashRing ring = new HashRing(List.of(NODE_A, NODE_B), POINTS_PER_NODE);
+        HashRing withC = new HashRing(List.of(NODE_A, NODE_B, NODE_C), POINTS_PER_NODE);
+
+        int moved = 0;
+        for (int i = 0; i < STREAMS; i++) {
+            String owner = withC.ownerOf("stream-" + i);
+            if (!owner.equals(ring.ownerOf("stream-" + i))) {
+                Assertions.assertEquals(NODE_C, owner);
+                moved++;
+            }
+        }
+
+        // About a third of the streams move to the new node
+        Assertions.assertTrue(Math.abs(moved - STREAMS / 3) < STREAMS / 3 * 0.25, moved + " streams moved");
+    }
+
+    @Test
+    public void testEmptyRing() {
+        Assertions.assertNull(new HashRing(List.of(), POINTS_PER_NODE).ownerOf("stream"));
+    }
+}
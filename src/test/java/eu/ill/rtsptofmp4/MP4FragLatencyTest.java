@@ -0,0 +1,58 @@
+package eu.ill.rtsptofmp4;
+
+import eu.ill.rtsptofmp4.business.mp4frag.MP4Frag;
+import eu.ill.rtsptofmp4.models.exceptions.StreamingException;
+import io.quarkus.test.junit.QuarkusTest;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+@QuarkusTest
+public class MP4FragLatencyTest {
+
+    private static final int FRAGMENT_COUNT = 100;
+    private static final int PAYLOAD_SIZE = 20000;
+
+    // Each fragment is written to the pipe only once the one before it has reached onSegment: the reader has to hand a
+    // fragment over as soon as it has been written, without waiting for more data to fill its buffer or for the end of
+    // the stream
+    @Test
+    public void testFragmentsAreDeliveredAsTheyAreWritten() throws IOException, InterruptedException, StreamingException {
+        Pipe pipe = Pipe.open();
+        BlockingQueue<Long> received = new LinkedBlockingQueue<>();
+        MP4Frag mp4Frag = new MP4Frag((segment) -> received.add(segment.getInfo().getSequenceNumber()));
+
+        AtomicReference<Exception> error = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            try {
+                mp4Frag.process(Channels.newInputStream(pipe.source()));
+
+            } catch (Exception e) {
+                error.set(e);
+            }
+        });
+        reader.start();
+
+        try (OutputStream outputStream = Channels.newOutputStream(pipe.sink())) {
+            outputStream.write(FMP4TestData.initSegment());
+            for (int i = 1; i <= FRAGMENT_COUNT; i++) {
+                outputStream.write(FMP4TestData.fragment(i, (i - 1) * 3600L, i % 25 == 1, 3600, new byte[PAYLOAD_SIZE]));
+
+                Long sequenceNumber = received.poll(10, TimeUnit.SECONDS);
+                Assertions.assertEquals(i, sequenceNumber, "Fragment " + i + " not delivered until more data was written");
+            }
+        }
+
+        reader.join(10000);
+        Assertions.assertNull(error.get());
+        Assertions.assertEquals(FMP4TestData.AVC_MIME, mp4Frag.getMime(0));
+    }
+}
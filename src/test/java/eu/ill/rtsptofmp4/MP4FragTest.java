@@ -1,13 +1,23 @@
 package eu.ill.rtsptofmp4;
 
 import eu.ill.rtsptofmp4.business.mp4frag.MP4Frag;
+import eu.ill.rtsptofmp4.business.mp4frag.Segment;
 import eu.ill.rtsptofmp4.business.mp4frag.StreamBuffer;
+import eu.ill.rtsptofmp4.models.Track;
 import eu.ill.rtsptofmp4.models.exceptions.MP4FragException;
 import eu.ill.rtsptofmp4.models.exceptions.StreamingException;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 
 public class MP4FragTest {
 
@@ -76,6 +86,61 @@ public class MP4FragTest {
         Assertions.assertEquals(-1, indexOf);
     }
 
+    @Test
+    public void testPartStreamBufferSlice() throws MP4FragException {
+        byte[] mainBuffer = new byte[]{0, 0, 0, 1, 0 ,0, 0, 2, 0, 0, 0, 3, 0 ,0 ,0, 4, 0, 0, 0, 5, 0, 0, 0, 6};
+        StreamBuffer streamBuffer = new StreamBuffer(mainBuffer, 4, 16);
+
+        StreamBuffer slice = streamBuffer.slice(4, 16);
+        Assertions.assertEquals(12, slice.length());
+        Assertions.assertEquals(3L, slice.readUInt32BE(0));
+        Assertions.assertSame(slice, streamBuffer.slice(12, 16, slice));
+        Assertions.assertEquals(5L, slice.readUInt32BE(0));
+
+        // Within the underlying array but past the end of the view
+        Assertions.assertThrows(IndexOutOfBoundsException.class, () -> streamBuffer.slice(4, 20));
+        Assertions.assertThrows(IndexOutOfBoundsException.class, () -> streamBuffer.slice(4, 20, new StreamBuffer(mainBuffer)));
+        Assertions.assertThrows(IndexOutOfBoundsException.class, () -> streamBuffer.slice(8, 4));
+        Assertions.assertThrows(IndexOutOfBoundsException.class, () -> streamBuffer.slice(8, 4, new StreamBuffer(mainBuffer)));
+    }
+
+    @Test
+    public void testStreamBufferIndexOfMatchesNaiveSearch() {
+        // Small alphabet so that partial and overlapping matches are frequent, including the 0x01 before 0x00 that the
+        // word at a time scan can flag wrongly
+        byte[] alphabet = {0x00, 0x01, 0x6d, 0x6f, 0x66};
+        int[] fourccs = {0x6d6f6f66, 0x00016d6f, 0x01010101, 0x6f6f6f6f};
+        Random random = new Random(0);
+
+        for (int i = 0; i < 2000; i++) {
+            byte[] data = new byte[random.nextInt(64)];
+            for (int j = 0; j < data.length; j++) {
+                data[j] = alphabet[random.nextInt(alphabet.length)];
+            }
+            int offset = data.length == 0 ? 0 : random.nextInt(data.length);
+            StreamBuffer streamBuffer = new StreamBuffer(data, offset, random.nextInt(data.length - offset + 1));
+
+            int[] indexes = streamBuffer.indexOfEach(fourccs);
+            for (int k = 0; k < fourccs.length; k++) {
+                byte[] needle = ByteBuffer.allocate(4).putInt(fourccs[k]).array();
+                int expected = naiveIndexOf(data, offset, streamBuffer.length(), needle);
+
+                Assertions.assertEquals(expected, streamBuffer.indexOf(needle));
+                Assertions.assertEquals(expected, streamBuffer.indexOf(fourccs[k], 0));
+                Assertions.assertEquals(expected, indexes[k]);
+            }
+        }
+    }
+
+    private static int naiveIndexOf(byte[] data, int offset, int length, byte[] needle) {
+        for (int i = 0; i + needle.length <= length; i++) {
+            if (Arrays.equals(data, offset + i, offset + i + needle.length, needle, 0, needle.length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     @Test
     public void testParseCodecAVCC() throws MP4FragException, StreamingException {
         MP4Frag mp4Frag = new MP4Frag((segment) -> {});
@@ -108,5 +173,303 @@ public class MP4FragTest {
         String mime = mp4Frag.getMime(0);
         Assertions.assertNotNull(mime);
         Assertions.assertEquals("video/mp4; codecs=\"hev1.1.6.L90.90, mp4a.40.2\"", mime);
+
+        List<Track> tracks = mp4Frag.getTracks();
+        Assertions.assertEquals(2, tracks.size());
+        Assertions.assertEquals(1, tracks.get(0).getVps().size());
+        Assertions.assertEquals(1, tracks.get(0).getSps().size());
+        Assertions.assertEquals(1, tracks.get(0).getPps().size());
+        Assertions.assertEquals("audio", tracks.get(1).getType());
+        Assertions.assertEquals(48000, tracks.get(1).getSampleRate());
+        Assertions.assertEquals(2, tracks.get(1).getChannelCount());
+    }
+
+    @Test
+    public void testParseTracks() throws MP4FragException, StreamingException {
+        MP4Frag mp4Frag = new MP4Frag((segment) -> {});
+        mp4Frag.parseChunk(new StreamBuffer(FMP4TestData.initSegment()));
+        mp4Frag.getMime(0);
+
+        List<Track> tracks = mp4Frag.getTracks();
+        Assertions.assertEquals(1, tracks.size());
+
+        Track video = tracks.get(0);
+        Assertions.assertEquals(1, video.getId());
+        Assertions.assertEquals("video", video.getType());
+        Assertions.assertEquals("avc1.64001F", video.getCodec());
+        Assertions.assertEquals(90000, video.getTimescale());
+        Assertions.assertEquals(960, video.getWidth());
+        Assertions.assertEquals(540, video.getHeight());
+        Assertions.assertEquals(1, video.getSps().size());
+        Assertions.assertEquals(1, video.getPps().size());
+        // nal unit types 7 and 8
+        Assertions.assertEquals(7, video.getSps().get(0)[0] & 0x1f);
+        Assertions.assertEquals(8, video.getPps().get(0)[0] & 0x1f);
+    }
+
+    @Test
+    public void testCodecFourccInMetadataIsIgnored() throws MP4FragException, StreamingException {
+        // The encoder name in udta of a hevc stream is changed to avc fourccs: only the sample entry gives the codec
+        byte[] moov = Base64.getDecoder().decode(FMP4TestData.HEVC_AAC_MOOV_BASE64);
+        int encoderIndex = new StreamBuffer(moov).indexOf("Lavf59.16.100".getBytes());
+        System.arraycopy("avc1avcC12345".getBytes(), 0, moov, encoderIndex, 13);
+
+        MP4Frag mp4Frag = new MP4Frag((segment) -> {});
+        mp4Frag.parseChunk(new StreamBuffer(Base64.getDecoder().decode(FMP4TestData.FTYP_BASE64)));
+        mp4Frag.parseChunk(new StreamBuffer(moov));
+
+        Assertions.assertEquals("video/mp4; codecs=\"hev1.1.6.L90.90, mp4a.40.2\"", mp4Frag.getMime(0));
+    }
+
+    @Test
+    public void testResetForRestartedFfmpeg() throws MP4FragException, StreamingException {
+        List<Segment> segments = new ArrayList<>();
+        List<Boolean> initialisations = new ArrayList<>();
+        MP4Frag mp4Frag = new MP4Frag(new MP4Frag.SegmentListener() {
+            @Override
+            public void onSegment(Segment segment) {
+                segments.add(segment);
+            }
+
+            @Override
+            public void onInitialization(byte[] initialization, boolean changed) {
+                initialisations.add(changed);
+            }
+        });
+
+        mp4Frag.parseChunk(new StreamBuffer(FMP4TestData.initSegment()));
+        byte[] fragment = FMP4TestData.fragment(1, 0, true, 3000, new byte[100]);
+        // ffmpeg exits part way through a segment
+        mp4Frag.parseChunk(new StreamBuffer(fragment, 0, fragment.length - 10));
+        Assertions.assertEquals(0, segments.size());
+
+        // Same codec configuration: the initialisation is unchanged for clients and segments follow on
+        mp4Frag.reset();
+        mp4Frag.parseChunk(new StreamBuffer(FMP4TestData.initSegment()));
+        mp4Frag.parseChunk(new StreamBuffer(fragment));
+        Assertions.assertEquals(List.of(false, false), initialisations);
+        Assertions.assertEquals(1, segments.size());
+        Assertions.assertEquals(FMP4TestData.AVC_MIME, mp4Frag.getMime(0));
+
+        // New codec configuration: new clients get the new initialisation segment
+        mp4Frag.reset();
+        mp4Frag.parseChunk(new StreamBuffer(Base64.getDecoder().decode(FMP4TestData.FTYP_BASE64)));
+        mp4Frag.parseChunk(new StreamBuffer(Base64.getDecoder().decode(FMP4TestData.HEVC_AAC_MOOV_BASE64)));
+        Assertions.assertEquals(List.of(false, false, true), initialisations);
+        Assertions.assertEquals("video/mp4; codecs=\"hev1.1.6.L90.90, mp4a.40.2\"", mp4Frag.getMime(0));
+        Assertions.assertEquals(2, mp4Frag.getTracks().size());
+    }
+
+    @Test
+    public void testInitialisationWaits() throws MP4FragException, StreamingException {
+        MP4Frag mp4Frag = new MP4Frag((segment) -> {});
+        CompletableFuture<String> mime = mp4Frag.getMimeFuture();
+        Assertions.assertFalse(mime.isDone());
+
+        StreamingException timeout = Assertions.assertThrows(StreamingException.class, () -> mp4Frag.getMime(10));
+        Assertions.assertEquals("MP4Frag timeout while waiting to receive mime", timeout.getMessage());
+
+        mp4Frag.parseChunk(new StreamBuffer(FMP4TestData.initSegment()));
+        Assertions.assertEquals(FMP4TestData.AVC_MIME, mime.getNow(null));
+        Assertions.assertArrayEquals(FMP4TestData.initSegment(), mp4Frag.getInitialization(10));
+
+        // Clients still waiting when the stream stops fail straight away
+        MP4Frag stopped = new MP4Frag((segment) -> {});
+        stopped.stop();
+        StreamingException stop = Assertions.assertThrows(StreamingException.class, () -> stopped.getInitialization(0));
+        Assertions.assertEquals("MP4Frag stopped while waiting to receive initialization segment", stop.getMessage());
+
+        // As does a stream with an unsupported codec
+        byte[] moov = Base64.getDecoder().decode(FMP4TestData.AVC_MOOV_BASE64);
+        int sampleEntry = new StreamBuffer(moov).indexOf("avc1".getBytes());
+        System.arraycopy("xxxx".getBytes(), 0, moov, sampleEntry, 4);
+        MP4Frag unsupported = new MP4Frag((segment) -> {});
+        unsupported.parseChunk(new StreamBuffer(Base64.getDecoder().decode(FMP4TestData.FTYP_BASE64)));
+        Assertions.assertThrows(MP4FragException.class, () -> unsupported.parseChunk(new StreamBuffer(moov)));
+        Assertions.assertTrue(unsupported.getMimeFuture().isCompletedExceptionally());
+    }
+
+    @Test
+    public void testParseSegmentFromReusedReadBuffer() throws MP4FragException {
+        List<byte[]> segments = new ArrayList<>();
+        MP4Frag mp4Frag = new MP4Frag((segment) -> segments.add(segment.getBytes()));
+
+        byte[] fragment = FMP4TestData.fragment(1, 0, true, 3600, new byte[1000]);
+        Arrays.fill(fragment, fragment.length - 1000, fragment.length, (byte) 7);
+
+        // Feed everything through a single small buffer that is overwritten on each read, splitting moof and mdat
+        byte[] stream = ByteBuffer.allocate(FMP4TestData.initSegment().length + fragment.length).put(FMP4TestData.initSegment()).put(fragment).array();
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(stream);
+        byte[] readBuffer = new byte[1024];
+        StreamBuffer chunk = new StreamBuffer(readBuffer);
+
+        mp4Frag.parseChunk(chunk.reset(0, inputStream.read(readBuffer, 0, 28)));
+        mp4Frag.parseChunk(chunk.reset(0, inputStream.read(readBuffer, 0, 805 + 50)));
+        int bytesRead;
+        while ((bytesRead = inputStream.read(readBuffer, 0, 300)) != -1) {
+            mp4Frag.parseChunk(chunk.reset(0, bytesRead));
+        }
+
+        Assertions.assertEquals(1, segments.size());
+        Assertions.assertArrayEquals(fragment, segments.get(0));
+    }
+
+    @Test
+    public void testParseAtEveryChunkSize() throws MP4FragException, StreamingException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        outputStream.writeBytes(FMP4TestData.initSegment());
+        List<byte[]> fragments = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            byte[] fragment = FMP4TestData.fragment(i + 1, i * 3600L, i == 0, 3600, new byte[100 + i * 50]);
+            fragments.add(fragment);
+            outputStream.writeBytes(fragment);
+        }
+        byte[] stream = outputStream.toByteArray();
+
+        // Covers splits inside every box header and body
+        for (int chunkSize = 1; chunkSize <= 300; chunkSize++) {
+            List<byte[]> segments = new ArrayList<>();
+            MP4Frag mp4Frag = new MP4Frag((segment) -> segments.add(segment.getBytes()));
+
+            for (int position = 0; position < stream.length; position += chunkSize) {
+                mp4Frag.parseChunk(new StreamBuffer(Arrays.copyOfRange(stream, position, Math.min(position + chunkSize, stream.length))));
+            }
+
+            Assertions.assertEquals(FMP4TestData.AVC_MIME, mp4Frag.getMime(0));
+            Assertions.assertEquals(fragments.size(), segments.size(), "Chunk size " + chunkSize);
+            for (int i = 0; i < fragments.size(); i++) {
+                Assertions.assertArrayEquals(fragments.get(i), segments.get(i), "Chunk size " + chunkSize);
+            }
+        }
+    }
+
+    @Test
+    public void testParseManyFragmentsInOneChunk() throws MP4FragException {
+        // Small audio-like fragments: a single read can hold thousands of them
+        int fragmentCount = 20000;
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        outputStream.writeBytes(FMP4TestData.initSegment());
+        for (int i = 0; i < fragmentCount; i++) {
+            outputStream.writeBytes(FMP4TestData.fragment(i + 1, i * 1024L, true, 1024, new byte[8]));
+        }
+
+        List<Segment> segments = new ArrayList<>();
+        MP4Frag mp4Frag = new MP4Frag(segments::add);
+        mp4Frag.parseChunk(new StreamBuffer(outputStream.toByteArray()));
+
+        Assertions.assertEquals(fragmentCount, segments.size());
+        Assertions.assertEquals(FMP4TestData.fragment(fragmentCount, (fragmentCount - 1) * 1024L, true, 1024, new byte[8]).length, segments.get(fragmentCount - 1).length());
+    }
+
+    @Test
+    public void testParseFragmentInfo() throws MP4FragException {
+        List<Segment> segments = new ArrayList<>();
+        MP4Frag mp4Frag = new MP4Frag(segments::add);
+        mp4Frag.parseChunk(new StreamBuffer(FMP4TestData.initSegment()));
+
+        byte[] keyframe = FMP4TestData.fragment(7, 1L << 33, true, 3600, new byte[500]);
+        byte[] delta = FMP4TestData.fragment(8, (1L << 33) + 3600, false, 3600, new byte[300]);
+        mp4Frag.parseChunk(new StreamBuffer(keyframe));
+        mp4Frag.parseChunk(new StreamBuffer(delta));
+
+        // Per-sample durations and flags with a version 0 tfdt
+        int trunSize = 20 + 3 * 8;
+        int trafSize = 8 + 16 + 16 + trunSize;
+        int moofSize = 8 + 16 + trafSize;
+        ByteBuffer multiSample = ByteBuffer.allocate(moofSize + 8 + 30);
+        multiSample.putInt(moofSize).put("moof".getBytes());
+        multiSample.putInt(16).put("mfhd".getBytes()).putInt(0).putInt(9);
+        multiSample.putInt(trafSize).put("traf".getBytes());
+        multiSample.putInt(16).put("tfhd".getBytes()).putInt(0x020000).putInt(1);
+        multiSample.putInt(16).put("tfdt".getBytes()).putInt(0).putInt(90000);
+        multiSample.putInt(trunSize).put("trun".getBytes()).putInt(0x000501).putInt(3).putInt(moofSize + 8);
+        multiSample.putInt(1000).putInt(FMP4TestData.SAMPLE_FLAGS_KEYFRAME).putInt(2000).putInt(FMP4TestData.SAMPLE_FLAGS_DELTA).putInt(3000).putInt(FMP4TestData.SAMPLE_FLAGS_DELTA);
+        multiSample.putInt(8 + 30).put("mdat".getBytes());
+        mp4Frag.parseChunk(new StreamBuffer(multiSample.array()));
+
+        Assertions.assertEquals(3, segments.size());
+        Assertions.assertEquals("FragmentInfo{sequenceNumber=7, baseMediaDecodeTime=8589934592, sampleCount=1, duration=3600, keyframe=true, size=" + keyframe.length + "}", segments.get(0).getInfo().toString());
+        Assertions.assertEquals("FragmentInfo{sequenceNumber=8, baseMediaDecodeTime=8589938192, sampleCount=1, duration=3600, keyframe=false, size=" + delta.length + "}", segments.get(1).getInfo().toString());
+        Assertions.assertEquals("FragmentInfo{sequenceNumber=9, baseMediaDecodeTime=90000, sampleCount=3, duration=6000, keyframe=true, size=" + multiSample.capacity() + "}", segments.get(2).getInfo().toString());
+    }
+
+    @Test
+    public void testParseLargeSizeBox() throws MP4FragException {
+        List<byte[]> segments = new ArrayList<>();
+        MP4Frag mp4Frag = new MP4Frag((segment) -> segments.add(segment.getBytes()));
+        mp4Frag.parseChunk(new StreamBuffer(FMP4TestData.initSegment()));
+
+        // Rewrite the mdat header with a size of 1 followed by a 64 bit largesize
+        byte[] fragment = FMP4TestData.fragment(1, 0, true, 3600, new byte[500]);
+        int moofLength = FMP4TestData.payloadOffset(fragment) - 8;
+        ByteBuffer largeFragment = ByteBuffer.allocate(fragment.length + 8);
+        largeFragment.put(fragment, 0, moofLength).putInt(1).put("mdat".getBytes()).putLong(16 + 500).put(new byte[500]);
+
+        byte[] bytes = largeFragment.array();
+        for (int i = 0; i < bytes.length; i += 5) {
+            mp4Frag.parseChunk(new StreamBuffer(Arrays.copyOfRange(bytes, i, Math.min(i + 5, bytes.length))));
+        }
+
+        Assertions.assertEquals(1, segments.size());
+        Assertions.assertArrayEquals(bytes, segments.get(0));
+    }
+
+    @Test
+    public void testMoofSearchAfterCorruptData() throws MP4FragException {
+        List<byte[]> segments = new ArrayList<>();
+        MP4Frag mp4Frag = new MP4Frag((segment) -> segments.add(segment.getBytes()));
+        mp4Frag.parseChunk(new StreamBuffer(FMP4TestData.initSegment()));
+
+        byte[] first = FMP4TestData.fragment(1, 0, true, 3600, new byte[200]);
+        byte[] garbage = new byte[300];
+        Arrays.fill(garbage, (byte) 0xff);
+        byte[] second = FMP4TestData.fragment(2, 3600, false, 3600, new byte[200]);
+
+        mp4Frag.parseChunk(new StreamBuffer(first));
+        mp4Frag.parseChunk(new StreamBuffer(garbage, 0, 150));
+        mp4Frag.parseChunk(new StreamBuffer(garbage, 150, 150));
+        // The moof header of the next fragment is split across chunks
+        mp4Frag.parseChunk(new StreamBuffer(second, 0, 6));
+        mp4Frag.parseChunk(new StreamBuffer(second, 6, second.length - 6));
+
+        Assertions.assertEquals(2, segments.size());
+        Assertions.assertArrayEquals(second, segments.get(1));
+    }
+
+    @Test
+    public void testMoofSearchAtEveryChunkSize() throws MP4FragException {
+        // Corrupt data full of partial and invalid moof headers
+        byte[] garbage = ByteBuffer.allocate(64).put("moomoofmo".getBytes()).putInt(0x7fffffff).put("moof".getBytes())
+                .put("xxmoo".getBytes()).putInt(4).put("moof".getBytes()).put("mo".getBytes()).array();
+        byte[] first = FMP4TestData.fragment(1, 0, true, 3600, new byte[100]);
+        byte[] second = FMP4TestData.fragment(2, 3600, false, 3600, new byte[100]);
+        byte[] stream = ByteBuffer.allocate(first.length + garbage.length + second.length).put(first).put(garbage).put(second).array();
+
+        for (int chunkSize = 1; chunkSize <= 100; chunkSize++) {
+            List<byte[]> segments = new ArrayList<>();
+            MP4Frag mp4Frag = new MP4Frag((segment) -> segments.add(segment.getBytes()));
+            mp4Frag.parseChunk(new StreamBuffer(FMP4TestData.initSegment()));
+
+            for (int position = 0; position < stream.length; position += chunkSize) {
+                mp4Frag.parseChunk(new StreamBuffer(stream, position, Math.min(chunkSize, stream.length - position)));
+            }
+
+            Assertions.assertEquals(2, segments.size(), "Chunk size " + chunkSize);
+            Assertions.assertArrayEquals(second, segments.get(1), "Chunk size " + chunkSize);
+        }
+    }
+
+    @Test
+    public void testMoofSearchLimit() throws MP4FragException {
+        MP4Frag mp4Frag = new MP4Frag((segment) -> {});
+        mp4Frag.parseChunk(new StreamBuffer(FMP4TestData.initSegment()));
+
+        byte[] garbage = new byte[100];
+        Arrays.fill(garbage, (byte) 0xff);
+        Assertions.assertThrows(MP4FragException.class, () -> {
+            for (int i = 0; i < 100; i++) {
+                mp4Frag.parseChunk(new StreamBuffer(garbage));
+            }
+        });
     }
 }
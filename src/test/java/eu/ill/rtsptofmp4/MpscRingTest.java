@@ -0,0 +1,78 @@
+package eu.ill.rtsptofmp4;
+
+import eu.ill.rtsptofmp4.business.streaming.MpscRing;
+import eu.ill.rtsptofmp4.business.streaming.WaitStrategy;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class MpscRingTest {
+
+    @Test
+    public void testCapacityAndWrap() {
+        MpscRing<Integer> ring = new MpscRing<>(5, WaitStrategy.BUSY_SPIN);
+        Assertions.assertEquals(8, ring.capacity());
+
+        for (int lap = 0; lap < 3; lap++) {
+            for (int i = 0; i < 8; i++) {
+                Assertions.assertTrue(ring.offer(i));
+            }
+            Assertions.assertFalse(ring.offer(8));
+
+            for (int i = 0; i < 8; i++) {
+                Assertions.assertEquals(i, ring.poll());
+            }
+            Assertions.assertNull(ring.poll());
+        }
+    }
+
+    @Test
+    public void testTakeTimesOut() throws InterruptedException {
+        for (WaitStrategy waitStrategy : WaitStrategy.values()) {
+            MpscRing<Integer> ring = new MpscRing<>(8, waitStrategy);
+            Assertions.assertNull(ring.take(TimeUnit.MILLISECONDS.toNanos(5)), waitStrategy.name());
+
+            ring.offer(1);
+            Assertions.assertEquals(1, ring.take(TimeUnit.MILLISECONDS.toNanos(5)), waitStrategy.name());
+        }
+    }
+
+    @Test
+    public void testConcurrentProducers() throws InterruptedException {
+        for (WaitStrategy waitStrategy : WaitStrategy.values()) {
+            int producerCount = 16;
+            int messageCount = 20000;
+            MpscRing<long[]> ring = new MpscRing<>(64, waitStrategy);
+
+            List<Thread> producers = new ArrayList<>();
+            for (int producer = 0; producer < producerCount; producer++) {
+                int id = producer;
+                Thread thread = new Thread(() -> {
+                    for (int i = 0; i < messageCount; i++) {
+                        long[] message = {id, i};
+                        while (!ring.offer(message)) {
+                            Thread.yield();
+                        }
+                    }
+                });
+                thread.start();
+                producers.add(thread);
+            }
+
+            // Nothing is lost and each producer's messages arrive in order
+            int[] next = new int[producerCount];
+            for (int i = 0; i < producerCount * messageCount; i++) {
+                long[] message = ring.take();
+                Assertions.assertEquals(next[(int) message[0]]++, message[1], waitStrategy.name());
+            }
+            Assertions.assertNull(ring.poll());
+
+            for (Thread producer : producers) {
+                producer.join();
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package eu.ill.rtsptofmp4;
+
+import eu.ill.rtsptofmp4.business.streaming.RestartPolicy;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class RestartPolicyTest {
+
+    @Test
+    public void testJitteredExponentialDelay() {
+        RestartPolicy policy = new RestartPolicy(500, 30000, -1);
+
+        for (int i = 0; i < 1000; i++) {
+            long first = policy.getDelayMs(0);
+            Assertions.assertTrue(first >= 250 && first <= 500, "Delay " + first);
+
+            long third = policy.getDelayMs(2);
+            Assertions.assertTrue(third >= 1000 && third <= 2000, "Delay " + third);
+
+            // Capped, including when the exponential delay would overflow
+            long capped = policy.getDelayMs(100);
+            Assertions.assertTrue(capped >= 15000 && capped <= 30000, "Delay " + capped);
+        }
+    }
+
+    @Test
+    public void testMaxRestarts() {
+        RestartPolicy policy = new RestartPolicy(500, 30000, 3);
+        Assertions.assertTrue(policy.shouldRestart(0));
+        Assertions.assertTrue(policy.shouldRestart(2));
+        Assertions.assertFalse(policy.shouldRestart(3));
+
+        Assertions.assertFalse(RestartPolicy.NEVER.shouldRestart(0));
+        Assertions.assertTrue(new RestartPolicy(500, 30000, -1).shouldRestart(Integer.MAX_VALUE));
+    }
+}
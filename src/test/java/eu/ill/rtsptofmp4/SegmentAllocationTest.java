@@ -0,0 +1,62 @@
+package eu.ill.rtsptofmp4;
+
+import eu.ill.rtsptofmp4.business.mp4frag.BufferPool;
+import eu.ill.rtsptofmp4.business.mp4frag.MP4Frag;
+import eu.ill.rtsptofmp4.business.mp4frag.StreamBuffer;
+import eu.ill.rtsptofmp4.models.exceptions.MP4FragException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// The bytes allocated per segment are measured by MP4FragParseBenchmark (gc.alloc.rate.norm)
+public class SegmentAllocationTest {
+
+    private static final int FRAGMENT_COUNT = 200;
+    private static final int PAYLOAD_SIZE = 30000;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    @Test
+    public void testSegmentsAreNotFlattened() throws MP4FragException {
+        byte[] stream = createStream();
+        byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+        StreamBuffer chunk = new StreamBuffer(readBuffer);
+        BufferPool bufferPool = new BufferPool(16 * 1024 * 1024, true);
+
+        // Fragments span the reads: they are assembled in the pooled buffers, and the publisher reads a view on them
+        List<Integer> lengths = new ArrayList<>();
+        MP4Frag mp4Frag = new MP4Frag((segment) -> {
+            Assertions.assertTrue(segment.isContiguous());
+
+            ByteBuffer first = segment.asByteBuffer();
+            ByteBuffer second = segment.asByteBuffer();
+            Assertions.assertSame(first.array(), second.array(), "Segment copied into a new array");
+            Assertions.assertEquals(segment.length(), first.remaining());
+
+            lengths.add(segment.length());
+            segment.release();
+        }, bufferPool);
+
+        for (int position = 0; position < stream.length; position += READ_BUFFER_SIZE) {
+            int length = Math.min(READ_BUFFER_SIZE, stream.length - position);
+            System.arraycopy(stream, position, readBuffer, 0, length);
+            mp4Frag.parseChunk(chunk.reset(0, length));
+        }
+
+        Assertions.assertEquals(FRAGMENT_COUNT, lengths.size());
+        Assertions.assertEquals(0, bufferPool.getOutstandingBuffers());
+        Assertions.assertEquals(0, bufferPool.getLeaks().size());
+    }
+
+    private static byte[] createStream() {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        outputStream.writeBytes(FMP4TestData.initSegment());
+        for (int i = 0; i < FRAGMENT_COUNT; i++) {
+            outputStream.writeBytes(FMP4TestData.fragment(i + 1, i * 3600L, i % 25 == 0, 3600, new byte[PAYLOAD_SIZE]));
+        }
+        return outputStream.toByteArray();
+    }
+}
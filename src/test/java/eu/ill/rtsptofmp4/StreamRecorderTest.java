@@ -0,0 +1,279 @@
+package eu.ill.rtsptofmp4;
+
+import eu.ill.rtsptofmp4.business.mp4frag.BufferPool;
+import eu.ill.rtsptofmp4.business.mp4frag.MP4Frag;
+import eu.ill.rtsptofmp4.business.mp4frag.Segment;
+import eu.ill.rtsptofmp4.business.mp4frag.StreamBuffer;
+import eu.ill.rtsptofmp4.business.recording.Recording;
+import eu.ill.rtsptofmp4.business.recording.RecordingFile;
+import eu.ill.rtsptofmp4.business.recording.RecordingService;
+import eu.ill.rtsptofmp4.business.recording.Replay;
+import eu.ill.rtsptofmp4.business.recording.StreamRecorder;
+import eu.ill.rtsptofmp4.business.streaming.StreamMetrics;
+import eu.ill.rtsptofmp4.models.exceptions.MP4FragException;
+import io.quarkus.test.junit.QuarkusTest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+@QuarkusTest
+public class StreamRecorderTest {
+
+    private static final String STREAM_ID = "camera/1";
+    private static final int PAYLOAD_SIZE = 1000;
+    private static final int SAMPLE_DURATION = 3600; // 40 ms at 90 kHz
+    private static final long FILE_CAPACITY = 1024 * 1024;
+
+    private Path directory;
+    private BufferPool bufferPool;
+    private List<byte[]> fragments;
+
+    @BeforeEach
+    public void createDirectory() throws IOException {
+        this.directory = Files.createTempDirectory("recordings");
+        this.bufferPool = new BufferPool(1024 * 1024, true);
+        this.fragments = new ArrayList<>();
+    }
+
+    @AfterEach
+    public void deleteDirectory() throws IOException {
+        Assertions.assertEquals(0, this.bufferPool.getLeaks().size(), "Leaked pooled buffers");
+        Assertions.assertEquals(0, this.bufferPool.getOutstandingBuffers());
+
+        try (Stream<Path> paths = Files.walk(this.directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    public void testRecordingStartsAtFirstKeyframe() throws Exception {
+        RecordingService recordingService = this.createService(60000, Long.MAX_VALUE);
+        this.record(recordingService, false, true, false, false, true, false);
+
+        List<RecordingFile> files = recordingService.getRecording(STREAM_ID).getFiles();
+        Assertions.assertEquals(1, files.size());
+
+        RecordingFile file = files.get(0);
+        Assertions.assertFalse(file.isWriting());
+        Assertions.assertArrayEquals(concat(FMP4TestData.initSegment(), this.fragments.subList(1, 6)), readAll(file));
+    }
+
+    @Test
+    public void testSeekFindsKeyframeBeforeTime() throws Exception {
+        RecordingService recordingService = this.createService(60000, Long.MAX_VALUE);
+        this.record(recordingService, true, false, false, true, false, false);
+
+        RecordingFile file = recordingService.getRecording(STREAM_ID).getFiles().get(0);
+        int initLength = FMP4TestData.initSegment().length;
+        long secondKeyframe = initLength + 3L * this.fragments.get(0).length;
+
+        // Times follow the decode times of the fragments from the start of the file
+        Assertions.assertEquals(initLength, file.seek(file.getStartMs()));
+        Assertions.assertEquals(initLength, file.seek(file.getStartMs() + 119));
+        Assertions.assertEquals(secondKeyframe, file.seek(file.getStartMs() + 120));
+        Assertions.assertEquals(secondKeyframe, file.seek(file.getStartMs() + 200));
+        Assertions.assertEquals(initLength, file.seek(file.getStartMs() - 1000));
+
+        Assertions.assertEquals(secondKeyframe, file.seekEnd(file.getStartMs() + 40));
+        Assertions.assertEquals(file.getLength(), file.seekEnd(file.getStartMs() + 120));
+
+        // From the second keyframe to the end
+        long start = file.seek(file.getStartMs() + 160);
+        Assertions.assertArrayEquals(concat(new byte[0], this.fragments.subList(3, 6)), getBytes(file.map(start, file.getLength() - start)));
+    }
+
+    @Test
+    public void testReplayStartsAtKeyframeBeforeTime() throws Exception {
+        RecordingService recordingService = this.createService(60000, Long.MAX_VALUE);
+        this.record(recordingService, true, false, false, true, false, false, true, false);
+
+        long startMs = recordingService.getRecording(STREAM_ID).getFiles().get(0).getStartMs();
+
+        // From 160 ms to 200 ms: the GOP of the keyframe at 120 ms, up to the keyframe at 240 ms
+        Replay replay = recordingService.replayAsync(STREAM_ID, startMs + 160, startMs + 200).get();
+        byte[] expected = concat(FMP4TestData.initSegment(), this.fragments.subList(3, 6));
+        Assertions.assertEquals(expected.length, replay.getLength());
+        Assertions.assertArrayEquals(expected, readChunks(replay, 0, replay.getLength(), 100));
+
+        // A byte range across the initialisation segment and the fragments
+        Assertions.assertArrayEquals(Arrays.copyOfRange(expected, 500, 2500), readChunks(replay, 500, 2500, 300));
+
+        Assertions.assertNull(recordingService.replayAsync(STREAM_ID, startMs - 2000, startMs - 1000).get());
+        Assertions.assertNull(recordingService.replayAsync("camera/2", startMs, startMs + 1000).get());
+    }
+
+    @Test
+    public void testReplayAcrossFiles() throws Exception {
+        RecordingService recordingService = this.createService(100, Long.MAX_VALUE);
+        this.record(recordingService, true, false, true, false, true, false, true, false, true, false);
+
+        List<RecordingFile> files = recordingService.getRecording(STREAM_ID).getFiles();
+        Assertions.assertEquals(3, files.size());
+
+        // The initialisation segment is not repeated between files: the replay plays as one stream
+        Replay replay = recordingService.replayAsync(STREAM_ID, files.get(0).getStartMs() + 100, files.get(2).getStartMs()).get();
+        byte[] expected = concat(FMP4TestData.initSegment(), this.fragments.subList(2, 10));
+        Assertions.assertArrayEquals(expected, readChunks(replay, 0, replay.getLength(), 64 * 1024));
+    }
+
+    @Test
+    public void testFilesRotateOnKeyframes() throws Exception {
+        // A keyframe every 80 ms: the file is rotated at the first keyframe 100 ms or more after its start
+        RecordingService recordingService = this.createService(100, Long.MAX_VALUE);
+        this.record(recordingService, true, false, true, false, true, false, true, false, true, false);
+
+        List<RecordingFile> files = recordingService.getRecording(STREAM_ID).getFiles();
+        Assertions.assertEquals(3, files.size());
+
+        Assertions.assertArrayEquals(concat(FMP4TestData.initSegment(), this.fragments.subList(0, 4)), readAll(files.get(0)));
+        Assertions.assertArrayEquals(concat(FMP4TestData.initSegment(), this.fragments.subList(4, 8)), readAll(files.get(1)));
+        Assertions.assertArrayEquals(concat(FMP4TestData.initSegment(), this.fragments.subList(8, 10)), readAll(files.get(2)));
+        Assertions.assertEquals(files.get(0).getStartMs() + 160, files.get(1).getStartMs());
+    }
+
+    @Test
+    public void testRecordingsAreLoadedAgain() throws Exception {
+        RecordingService recordingService = this.createService(100, Long.MAX_VALUE);
+        this.record(recordingService, true, false, true, false, true, false);
+        List<RecordingFile> files = recordingService.getRecording(STREAM_ID).getFiles();
+
+        Recording recording = this.createService(100, Long.MAX_VALUE).getRecording(STREAM_ID);
+        List<RecordingFile> loaded = recording.getFiles();
+
+        Assertions.assertEquals(files.size(), loaded.size());
+        for (int i = 0; i < files.size(); i++) {
+            Assertions.assertEquals(files.get(i).getStartMs(), loaded.get(i).getStartMs());
+            Assertions.assertEquals(files.get(i).getLength(), loaded.get(i).getLength());
+            Assertions.assertEquals(files.get(i).seek(files.get(i).getStartMs() + 80), loaded.get(i).seek(loaded.get(i).getStartMs() + 80));
+            Assertions.assertArrayEquals(readAll(files.get(i)), readAll(loaded.get(i)));
+        }
+    }
+
+    @Test
+    public void testRetentionDeletesOldestFiles() throws Exception {
+        long fileLength = FMP4TestData.initSegment().length + 4L * FMP4TestData.fragment(0, 0, true, SAMPLE_DURATION, new byte[PAYLOAD_SIZE]).length;
+
+        // Room for two complete files
+        RecordingService recordingService = this.createService(100, 2 * fileLength);
+        this.record(recordingService, true, false, true, false, true, false, true, false, true, false, true, false, true, false, true, false);
+
+        List<RecordingFile> files = recordingService.getRecording(STREAM_ID).getFiles();
+        Assertions.assertEquals(2, files.size());
+        Assertions.assertEquals(2 * fileLength, files.stream().mapToLong(RecordingFile::getLength).sum());
+
+        try (Stream<Path> paths = Files.list(this.directory.resolve("camera%2F1"))) {
+            Assertions.assertEquals(4, paths.count(), "A data file and an index file per recording file");
+        }
+    }
+
+    @Test
+    public void testStreamIdsStayInRecorderDirectory() throws Exception {
+        RecordingService recordingService = this.createService(60000, Long.MAX_VALUE);
+
+        for (String streamId : List.of("..", ".", "../camera", "/tmp/camera", "cam\u00e9ra 1")) {
+            recordingService.createRecorder(streamId, new StreamMetrics(null, streamId));
+        }
+
+        // One directory per stream, all inside the recorder directory
+        try (Stream<Path> paths = Files.list(this.directory)) {
+            Assertions.assertEquals(List.of("%2E", "%2E%2E", "%2E%2E%2Fcamera", "%2Ftmp%2Fcamera", "cam%C3%A9ra%201"), paths.map(path -> path.getFileName().toString()).sorted().toList());
+        }
+
+        // The ids are decoded from the directory names when the recordings are loaded again
+        RecordingService loaded = this.createService(60000, Long.MAX_VALUE);
+        Assertions.assertNotNull(loaded.getRecording(".."));
+        Assertions.assertNotNull(loaded.getRecording("cam\u00e9ra 1"));
+    }
+
+    private RecordingService createService(long fileDurationMs, long maxTotalBytes) {
+        RecordingService recordingService = new RecordingService(this.directory, FILE_CAPACITY, fileDurationMs, Long.MAX_VALUE / 2, maxTotalBytes, 256, 2);
+        Assertions.assertTrue(recordingService.isEnabled());
+        return recordingService;
+    }
+
+    // Parses an init segment followed by one fragment per flag, handing the segments to a recorder as the relay does
+    private void record(RecordingService recordingService, boolean... keyframes) throws Exception {
+        StreamRecorder recorder = recordingService.createRecorder(STREAM_ID, new StreamMetrics(null, STREAM_ID));
+        recorder.start();
+
+        MP4Frag mp4Frag = new MP4Frag(new MP4Frag.SegmentListener() {
+            @Override
+            public void onSegment(Segment segment) {
+                recorder.onSegment(segment);
+                segment.release();
+            }
+
+            @Override
+            public void onInitialization(byte[] initialization, boolean changed) {
+                recorder.onInitialization(initialization, changed);
+            }
+        }, this.bufferPool);
+
+        mp4Frag.parseChunk(new StreamBuffer(FMP4TestData.initSegment()));
+        long expectedBytes = 0;
+        boolean recording = false;
+        for (int i = 0; i < keyframes.length; i++) {
+            byte[] fragment = FMP4TestData.fragment(i + 1, (long) i * SAMPLE_DURATION, keyframes[i], SAMPLE_DURATION, new byte[PAYLOAD_SIZE]);
+            this.fragments.add(fragment);
+            mp4Frag.parseChunk(new StreamBuffer(fragment));
+
+            recording |= keyframes[i];
+            if (recording) {
+                expectedBytes += fragment.length;
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (recorder.getBytesWritten() < expectedBytes && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        recorder.stop();
+
+        Assertions.assertEquals(expectedBytes, recorder.getBytesWritten());
+        Assertions.assertEquals(0, recorder.getDroppedSegments());
+    }
+
+    private static byte[] readAll(RecordingFile file) throws IOException {
+        return getBytes(file.map(0, file.getLength()));
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static byte[] readChunks(Replay replay, long start, long end, int chunkSize) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (ByteBuffer chunk : replay.getChunks(start, end, chunkSize)) {
+            Assertions.assertTrue(chunk.remaining() <= chunkSize);
+            output.write(getBytes(chunk));
+        }
+        return output.toByteArray();
+    }
+
+    private static byte[] concat(byte[] first, List<byte[]> others) {
+        int length = first.length + others.stream().mapToInt(bytes -> bytes.length).sum();
+        byte[] bytes = Arrays.copyOf(first, length);
+        int position = first.length;
+        for (byte[] other : others) {
+            System.arraycopy(other, 0, bytes, position, other.length);
+            position += other.length;
+        }
+        return bytes;
+    }
+}
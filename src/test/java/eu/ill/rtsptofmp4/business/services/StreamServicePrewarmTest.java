@@ -0,0 +1,78 @@
+package eu.ill.rtsptofmp4.business.services;
+
+import eu.ill.rtsptofmp4.business.streaming.RTSPStreamManager;
+import eu.ill.rtsptofmp4.models.StreamInfo;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.QuarkusTestProfile;
+import io.quarkus.test.junit.TestProfile;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+// A stream pre-warmed at boot with a script in place of ffmpeg that fails the first time it is run and never produces
+// any data afterwards
+@QuarkusTest
+@TestProfile(StreamServicePrewarmTest.FailingFfmpegProfile.class)
+public class StreamServicePrewarmTest {
+
+    private static final String STREAM_ID = "prewarmed";
+
+    @Inject
+    StreamService streamService;
+
+    @Inject
+    RTSPStreamManager rtspStreamManager;
+
+    public static class FailingFfmpegProfile implements QuarkusTestProfile {
+
+        @Override
+        public Map<String, String> getConfigOverrides() {
+            try {
+                File started = File.createTempFile("fake-ffmpeg", ".started");
+                started.delete();
+                started.deleteOnExit();
+
+                File script = File.createTempFile("fake-ffmpeg", ".sh");
+                script.deleteOnExit();
+                Files.writeString(script.toPath(), String.format("#!/bin/sh\nif [ -f '%1$s' ]; then exec sleep 60; fi\ntouch '%1$s'\nexit 1\n", started.getAbsolutePath()));
+                script.setExecutable(true);
+
+                return Map.of(
+                        "server.worker.ffmpeg-path", script.getAbsolutePath(),
+                        "server.worker.prewarm", STREAM_ID + "=rtsp://localhost/" + STREAM_ID,
+                        "server.worker.restart.max-restarts", "0",
+                        "server.worker.linger-ms", "0",
+                        "server.publisher.unsubscribed-timeout-ms", "0");
+
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    @Test
+    public void testFailedPrewarmedStreamIsStoppedOnceItsClientsLeave() throws Exception {
+        waitFor(() -> !this.streamService.hasStream(STREAM_ID), "The failed pre-warmed stream was not removed");
+
+        // The stream is no longer pre-warmed: the relay created for the client stops once it disconnects
+        this.streamService.connectAsync(new StreamInfo(STREAM_ID, "Pre-warmed", "rtsp://localhost/" + STREAM_ID), "prewarm-client");
+        Assertions.assertTrue(this.streamService.hasStream(STREAM_ID));
+
+        this.streamService.disconnect("prewarm-client");
+        waitFor(() -> !this.streamService.hasStream(STREAM_ID), "The stream was not stopped once its client left");
+        Assertions.assertEquals(0, this.rtspStreamManager.getWorkerCount(), "Leaked RTSP workers");
+    }
+
+    private static void waitFor(BooleanSupplier condition, String message) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Assertions.assertTrue(condition.getAsBoolean(), message);
+    }
+}
@@ -0,0 +1,120 @@
+package eu.ill.rtsptofmp4.business.services;
+
+import eu.ill.rtsptofmp4.business.streaming.RTSPStreamManager;
+import eu.ill.rtsptofmp4.models.StreamInfo;
+import eu.ill.rtsptofmp4.models.StreamInit;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.QuarkusTestProfile;
+import io.quarkus.test.junit.TestProfile;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// Connects and disconnects clients from many threads with a script in place of ffmpeg that never produces any data
+@QuarkusTest
+@TestProfile(StreamServiceStressTest.FakeFfmpegProfile.class)
+public class StreamServiceStressTest {
+
+    private static final int THREADS = 8;
+    private static final int CONNECTIONS_PER_THREAD = 500;
+    private static final int STREAMS = 20;
+
+    @Inject
+    StreamService streamService;
+
+    @Inject
+    RTSPStreamManager rtspStreamManager;
+
+    public static class FakeFfmpegProfile implements QuarkusTestProfile {
+
+        @Override
+        public Map<String, String> getConfigOverrides() {
+            try {
+                File script = File.createTempFile("fake-ffmpeg", ".sh");
+                script.deleteOnExit();
+                Files.writeString(script.toPath(), "#!/bin/sh\nexec sleep 60\n");
+                script.setExecutable(true);
+
+                return Map.of(
+                        "server.worker.ffmpeg-path", script.getAbsolutePath(),
+                        "server.worker.linger-ms", "50",
+                        "server.publisher.unsubscribed-timeout-ms", "0");
+
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentConnectAndDisconnect() throws Exception {
+        List<StreamInfo> streams = new ArrayList<>();
+        for (int i = 0; i < STREAMS; i++) {
+            streams.add(new StreamInfo("stream-" + i, "Stream " + i, "rtsp://localhost/stream-" + i));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<List<CompletableFuture<StreamInit>>>> results = new ArrayList<>();
+        for (int thread = 0; thread < THREADS; thread++) {
+            int threadIndex = thread;
+            results.add(executor.submit(() -> {
+                Random random = new Random(threadIndex);
+                List<CompletableFuture<StreamInit>> connections = new ArrayList<>();
+                List<String> connected = new ArrayList<>();
+
+                for (int i = 0; i < CONNECTIONS_PER_THREAD; i++) {
+                    StreamInfo stream = streams.get(random.nextInt(STREAMS));
+                    String clientId = "client-" + threadIndex + "-" + i;
+                    connections.add(this.streamService.connectAsync(stream, clientId));
+                    connected.add(clientId);
+
+                    // While the client is connected its relay can not be removed
+                    Assertions.assertTrue(this.streamService.hasClient(clientId));
+                    Assertions.assertTrue(this.streamService.getAllStreamInfos().stream().anyMatch(info -> info.getId().equals(stream.getId())));
+
+                    // Disconnect some clients straight away and others later so that relays are both created and joined
+                    while (connected.size() > random.nextInt(4)) {
+                        this.streamService.disconnect(connected.remove(random.nextInt(connected.size())));
+                    }
+                }
+
+                connected.forEach(this.streamService::disconnect);
+                return connections;
+            }));
+        }
+
+        executor.shutdown();
+        Assertions.assertTrue(executor.awaitTermination(120, TimeUnit.SECONDS));
+
+        for (Future<List<CompletableFuture<StreamInit>>> result : results) {
+            for (CompletableFuture<StreamInit> connection : result.get()) {
+                // ffmpeg never sent the moov: every connection fails once its stream stops
+                Assertions.assertThrows(ExecutionException.class, () -> connection.get(10, TimeUnit.SECONDS));
+            }
+        }
+
+        // Relays are stopped once they have lingered without clients
+        long deadline = System.currentTimeMillis() + 10000;
+        while (this.streamService.getAllStreamInfos().size() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        Assertions.assertEquals(0, this.streamService.getAllStreamInfos().size(), "Leaked stream relays");
+        Assertions.assertEquals(0, this.rtspStreamManager.getWorkerCount(), "Leaked RTSP workers");
+        Assertions.assertTrue(Thread.getAllStackTraces().keySet().stream().noneMatch(thread -> thread.getName().startsWith("rtsp-worker-")), "Leaked RTSP worker threads");
+        Assertions.assertFalse(this.streamService.hasClient("client-0-0"));
+    }
+}
@@ -0,0 +1,202 @@
+package eu.ill.rtsptofmp4.business.streaming;
+
+import eu.ill.rtsptofmp4.business.mp4frag.BufferPool;
+import eu.ill.rtsptofmp4.business.mp4frag.FragmentInfo;
+import eu.ill.rtsptofmp4.business.mp4frag.PooledBuffer;
+import eu.ill.rtsptofmp4.business.mp4frag.Segment;
+import eu.ill.rtsptofmp4.business.mp4frag.StreamBuffer;
+import eu.ill.rtsptofmp4.models.PublishQueueStats;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// In the publisher package as the queue is internal to the StreamPublisher
+public class PublishQueueTest {
+
+    private BufferPool bufferPool;
+    private List<Long> sent;
+
+    @BeforeEach
+    public void createPool() {
+        this.bufferPool = new BufferPool(1024 * 1024, true);
+        this.sent = new ArrayList<>();
+    }
+
+    @AfterEach
+    public void detectLeaks() {
+        Assertions.assertEquals(0, this.bufferPool.getLeaks().size(), "Leaked pooled buffers");
+        Assertions.assertEquals(0, this.bufferPool.getOutstandingBuffers());
+    }
+
+    @Test
+    public void testDropOldest() throws InterruptedException {
+        PublishQueue queue = new PublishQueue("stream", 3, DropPolicy.DROP_OLDEST);
+        Assertions.assertTrue(queue.offer(this.segment(1, true)));
+        for (int i = 2; i <= 5; i++) {
+            Assertions.assertFalse(queue.offer(this.segment(i, false)));
+        }
+
+        this.drain(queue);
+
+        Assertions.assertEquals(List.of(3L, 4L, 5L), this.sent);
+        PublishQueueStats stats = queue.getStats();
+        Assertions.assertEquals(2, stats.getDropped());
+        Assertions.assertEquals(3, stats.getSent());
+        Assertions.assertEquals(0, stats.getDepth());
+    }
+
+    @Test
+    public void testDropUntilKeyframe() throws InterruptedException {
+        PublishQueue queue = new PublishQueue("stream", 3, DropPolicy.DROP_UNTIL_KEYFRAME);
+        queue.offer(this.segment(1, true));
+        queue.offer(this.segment(2, false));
+        queue.offer(this.segment(3, false));
+
+        // The queue is full: the queued group and the deltas that follow can no longer be decoded
+        queue.offer(this.segment(4, false));
+        queue.offer(this.segment(5, false));
+        queue.offer(this.segment(6, true));
+        queue.offer(this.segment(7, false));
+
+        this.drain(queue);
+
+        Assertions.assertEquals(List.of(6L, 7L), this.sent);
+        Assertions.assertEquals(5, queue.getStats().getDropped());
+    }
+
+    @Test
+    public void testSkipWaitsForKeyframe() throws InterruptedException {
+        PublishQueue queue = new PublishQueue("stream", 3, DropPolicy.DROP_OLDEST);
+        queue.offer(this.segment(1, true));
+        this.drain(queue);
+
+        // No subscribers: the group is skipped, and its deltas queued once a subscriber has joined can not be decoded
+        queue.skip(this.segment(2, true));
+        queue.skip(this.segment(3, false));
+        queue.offer(this.segment(4, false));
+        queue.offer(this.segment(5, true));
+        queue.offer(this.segment(6, false));
+
+        this.drain(queue);
+
+        Assertions.assertEquals(List.of(1L, 5L, 6L), this.sent);
+        PublishQueueStats stats = queue.getStats();
+        Assertions.assertEquals(2, stats.getSkipped());
+        Assertions.assertEquals(1, stats.getDropped());
+    }
+
+    @Test
+    public void testInitialisationIsSentInOrderAndNeverDropped() throws InterruptedException {
+        PublishQueue queue = new PublishQueue("stream", 3, DropPolicy.DROP_UNTIL_KEYFRAME);
+        queue.offer(this.segment(1, true));
+        queue.offer(this.segment(2, false));
+        queue.offerInitialisation(this.segment(100, false));
+
+        // The queue overflows: the fragments are dropped until the next keyframe, the initialisation segment is not
+        queue.offer(this.segment(3, true));
+        queue.offer(this.segment(4, false));
+        queue.offer(this.segment(5, false));
+        queue.offer(this.segment(6, true));
+
+        this.drain(queue);
+
+        // Sent on the initialisation topic, shown negated
+        Assertions.assertEquals(List.of(-100L, 6L), this.sent);
+        Assertions.assertEquals(5, queue.getStats().getDropped());
+    }
+
+    @Test
+    public void testOnlyLatestInitialisationIsSent() throws InterruptedException {
+        PublishQueue queue = new PublishQueue("stream", 8, DropPolicy.DROP_OLDEST);
+        queue.offer(this.segment(1, true));
+        queue.offerInitialisation(this.segment(100, false));
+        queue.offer(this.segment(2, true));
+        queue.offerInitialisation(this.segment(101, false));
+        queue.offer(this.segment(3, true));
+
+        this.drain(queue);
+
+        Assertions.assertEquals(List.of(1L, -101L, 3L), this.sent);
+        // The fragment between the two could only be decoded with the first one
+        Assertions.assertEquals(2, queue.getStats().getSent());
+        Assertions.assertEquals(1, queue.getStats().getDropped());
+    }
+
+    @Test
+    public void testBlockUntilSent() throws InterruptedException {
+        PublishQueue queue = new PublishQueue("stream", 2, DropPolicy.BLOCK);
+        queue.offer(this.segment(1, true));
+        queue.offer(this.segment(2, false));
+
+        Thread producer = new Thread(() -> {
+            try {
+                queue.offer(this.segment(3, false));
+
+            } catch (InterruptedException e) {
+                Assertions.fail(e);
+            }
+        });
+        producer.start();
+        producer.join(200);
+        Assertions.assertTrue(producer.isAlive());
+
+        queue.sendNext(this::send);
+        producer.join();
+
+        this.drain(queue);
+
+        Assertions.assertEquals(List.of(1L, 2L, 3L), this.sent);
+        Assertions.assertEquals(0, queue.getStats().getDropped());
+    }
+
+    @Test
+    public void testStoppedPublisherReleasesSegments() {
+        StreamPublisher publisher = new StreamPublisher();
+        publisher.publish("stream", this.segment(1, true));
+
+        Assertions.assertEquals(0, publisher.getQueueStats().size());
+    }
+
+    @Test
+    public void testCloseReleasesQueuedSegmentsAndBlockedProducers() throws InterruptedException {
+        PublishQueue queue = new PublishQueue("stream", 1, DropPolicy.BLOCK);
+        queue.offer(this.segment(1, true));
+
+        Thread producer = new Thread(() -> {
+            try {
+                queue.offer(this.segment(2, false));
+
+            } catch (InterruptedException e) {
+                Assertions.fail(e);
+            }
+        });
+        producer.start();
+        producer.join(200);
+
+        queue.close();
+        producer.join();
+
+        Assertions.assertFalse(queue.offer(this.segment(3, true)));
+        Assertions.assertFalse(queue.sendNext(this::send));
+        Assertions.assertEquals(0, this.sent.size());
+    }
+
+    private void drain(PublishQueue queue) {
+        while (queue.sendNext(this::send)) {
+        }
+    }
+
+    private void send(String topic, Segment segment) {
+        long sequenceNumber = segment.getInfo().getSequenceNumber();
+        this.sent.add(topic.equals("stream" + StreamPublisher.INITIALISATION_TOPIC_SUFFIX) ? -sequenceNumber : sequenceNumber);
+    }
+
+    private Segment segment(long sequenceNumber, boolean keyframe) {
+        PooledBuffer buffer = this.bufferPool.acquire(100);
+        return new Segment(buffer, new FragmentInfo(sequenceNumber, 0, 1, 0, keyframe, 100), new StreamBuffer(buffer.getData(), 0, 100));
+    }
+}
@@ -0,0 +1,258 @@
+package eu.ill.rtsptofmp4.business.streaming;
+
+import eu.ill.rtsptofmp4.business.mp4frag.BufferPool;
+import eu.ill.rtsptofmp4.business.mp4frag.FragmentInfo;
+import eu.ill.rtsptofmp4.business.mp4frag.PooledBuffer;
+import eu.ill.rtsptofmp4.business.mp4frag.Segment;
+import eu.ill.rtsptofmp4.business.mp4frag.StreamBuffer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// In the streaming package as the fanout is internal to the StreamRelay
+public class SegmentFanoutTest {
+
+    private static final byte[] INITIALISATION = {0x69, 0x6e, 0x69, 0x74};
+
+    private BufferPool bufferPool;
+    private GopCache gopCache;
+    private SegmentFanout fanout;
+
+    @BeforeEach
+    public void createFanout() {
+        this.bufferPool = new BufferPool(1024 * 1024, true);
+        this.gopCache = new GopCache(1024 * 1024, new GopCache.Budget(1024 * 1024));
+        this.fanout = new SegmentFanout();
+    }
+
+    @AfterEach
+    public void detectLeaks() {
+        this.gopCache.clear();
+        Assertions.assertEquals(0, this.bufferPool.getLeaks().size(), "Leaked pooled buffers");
+        Assertions.assertEquals(0, this.bufferPool.getOutstandingBuffers());
+    }
+
+    @Test
+    public void testViewerStartsWithCachedGop() {
+        this.publish(1, true);
+        this.publish(2, false);
+
+        TestViewer viewer = new TestViewer();
+        Assertions.assertTrue(this.fanout.add(viewer, "video/mp4", INITIALISATION));
+        Assertions.assertFalse(viewer.started);
+
+        // Started with the cached segments, including the one being published, which is not written again
+        this.publish(3, false);
+        this.publish(4, false);
+
+        Assertions.assertArrayEquals(INITIALISATION, viewer.initialisation);
+        Assertions.assertEquals(List.of(1, 2, 3), viewer.gop);
+        Assertions.assertEquals(List.of(4), viewer.segments);
+    }
+
+    @Test
+    public void testViewerWaitsForKeyframeWithoutGop() {
+        TestViewer viewer = new TestViewer();
+        this.fanout.add(viewer, "video/mp4", INITIALISATION);
+
+        this.publish(1, false);
+        this.publish(2, false);
+        this.publish(3, true);
+        this.publish(4, false);
+
+        Assertions.assertTrue(viewer.started);
+        Assertions.assertEquals(List.of(), viewer.gop);
+        Assertions.assertEquals(List.of(3, 4), viewer.segments);
+    }
+
+    @Test
+    public void testSlowViewerSkipsToNextKeyframe() {
+        TestViewer slow = new TestViewer();
+        TestViewer fast = new TestViewer();
+        this.fanout.add(slow, "video/mp4", INITIALISATION);
+        this.fanout.add(fast, "video/mp4", INITIALISATION);
+        this.publish(1, true);
+
+        this.publish(2, false);
+        slow.writable = false;
+        this.publish(3, false);
+        slow.writable = true;
+        this.publish(4, false);
+        this.publish(5, true);
+        this.publish(6, false);
+
+        Assertions.assertEquals(List.of(2, 5, 6), slow.segments);
+        Assertions.assertEquals(2, slow.getSkippedSegments());
+        Assertions.assertEquals(List.of(2, 3, 4, 5, 6), fast.segments);
+        Assertions.assertEquals(0, fast.getSkippedSegments());
+        Assertions.assertEquals(2, this.fanout.getSkippedSegments());
+    }
+
+    @Test
+    public void testSegmentIsCopiedOnceForAllViewers() {
+        List<TestViewer> viewers = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            TestViewer viewer = new TestViewer();
+            viewers.add(viewer);
+            this.fanout.add(viewer, "video/mp4", INITIALISATION);
+        }
+        this.publish(1, true);
+        this.publish(2, false);
+
+        ByteBuffer shared = viewers.get(0).buffers.get(0);
+        Assertions.assertTrue(shared.isDirect());
+        for (TestViewer viewer : viewers) {
+            Assertions.assertSame(shared, viewer.buffers.get(0));
+        }
+    }
+
+    @Test
+    public void testBufferIsReleasedOnceWritten() {
+        TestViewer first = new TestViewer();
+        TestViewer second = new TestViewer();
+        first.completeWrites = false;
+        second.completeWrites = false;
+        this.fanout.add(first, "video/mp4", INITIALISATION);
+        this.fanout.add(second, "video/mp4", INITIALISATION);
+        this.publish(1, true);
+        this.publish(2, false);
+
+        // The fanout has released its reference: only the writes in progress hold the buffer
+        SharedSegment segment = first.written.get(0);
+        Assertions.assertSame(segment, second.written.get(0));
+        Assertions.assertEquals(2, segment.referenceCount());
+
+        first.complete();
+        Assertions.assertEquals(1, segment.referenceCount());
+        second.complete();
+        Assertions.assertEquals(0, segment.referenceCount());
+    }
+
+    @Test
+    public void testGopIsWrittenFromThePooledBuffers() {
+        this.publish(1, true);
+        this.publish(2, false);
+
+        TestViewer viewer = new TestViewer();
+        viewer.completeWrites = false;
+        this.fanout.add(viewer, "video/mp4", INITIALISATION);
+        this.publish(3, false);
+
+        // The viewer holds the cached segments themselves, which outlive the cache until they have been written
+        Assertions.assertEquals(3, viewer.writtenGop.size());
+        List<Segment> cached = this.gopCache.getSegments();
+        Assertions.assertSame(cached.get(0).getPart(0).asByteBuffer().array(), viewer.writtenGop.get(0).getPart(0).asByteBuffer().array());
+        cached.forEach(Segment::release);
+        this.gopCache.clear();
+        Assertions.assertEquals(3, this.bufferPool.getOutstandingBuffers());
+
+        viewer.complete();
+        Assertions.assertEquals(0, this.bufferPool.getOutstandingBuffers());
+    }
+
+    @Test
+    public void testChangedInitialisationIsReleasedOnceWritten() {
+        TestViewer viewer = new TestViewer();
+        viewer.completeWrites = false;
+        this.fanout.add(viewer, "video/mp4", INITIALISATION);
+        this.publish(1, true);
+
+        this.fanout.publishInitialisation("video/mp4", new byte[]{0x6e, 0x65, 0x77});
+        SharedSegment initialisation = viewer.written.get(0);
+        Assertions.assertEquals(3, initialisation.getData().remaining());
+        Assertions.assertEquals(1, initialisation.referenceCount());
+
+        viewer.complete();
+        Assertions.assertEquals(0, initialisation.referenceCount());
+    }
+
+    @Test
+    public void testRemoveAndClose() {
+        TestViewer removed = new TestViewer();
+        TestViewer closed = new TestViewer();
+        this.fanout.add(removed, "video/mp4", INITIALISATION);
+        this.fanout.add(closed, "video/mp4", INITIALISATION);
+
+        this.fanout.remove(removed);
+        Assertions.assertEquals(1, this.fanout.getViewerCount());
+        this.publish(1, true);
+        Assertions.assertFalse(removed.started);
+
+        this.fanout.close();
+        Assertions.assertTrue(closed.closed);
+        Assertions.assertFalse(removed.closed);
+        Assertions.assertEquals(0, this.fanout.getViewerCount());
+        Assertions.assertFalse(this.fanout.add(new TestViewer(), "video/mp4", INITIALISATION));
+    }
+
+    private void publish(int sequenceNumber, boolean keyframe) {
+        PooledBuffer buffer = this.bufferPool.acquire(100);
+        buffer.getData()[0] = (byte) sequenceNumber;
+        Segment segment = new Segment(buffer, new FragmentInfo(sequenceNumber, 0, 1, 0, keyframe, 100), new StreamBuffer(buffer.getData(), 0, 100));
+
+        // As the StreamRelay does: the publisher releases the segment once it is sent
+        this.gopCache.add(segment);
+        this.fanout.publish(segment, this.gopCache);
+        segment.release();
+    }
+
+    private static class TestViewer extends SegmentViewer {
+
+        private boolean started = false;
+        private boolean closed = false;
+        private boolean writable = true;
+        private boolean completeWrites = true;
+        private byte[] initialisation;
+        private final List<Integer> gop = new ArrayList<>();
+        private final List<Integer> segments = new ArrayList<>();
+        private final List<ByteBuffer> buffers = new ArrayList<>();
+        private final List<SharedSegment> written = new ArrayList<>();
+        private final List<Segment> writtenGop = new ArrayList<>();
+
+        @Override
+        protected void start(String mime, byte[] initialisation, List<Segment> gop) {
+            this.started = true;
+            this.initialisation = initialisation;
+            for (Segment segment : gop) {
+                this.gop.add((int) segment.getPart(0).get(0));
+                if (this.completeWrites) {
+                    segment.release();
+                } else {
+                    this.writtenGop.add(segment);
+                }
+            }
+        }
+
+        @Override
+        protected boolean isWritable() {
+            return this.writable;
+        }
+
+        @Override
+        protected void write(SharedSegment segment) {
+            this.segments.add((int) segment.getData().get(0));
+            this.buffers.add(segment.getData());
+            if (this.completeWrites) {
+                segment.release();
+            } else {
+                this.written.add(segment);
+            }
+        }
+
+        // As the socket does once the writes have been sent
+        private void complete() {
+            this.written.forEach(SharedSegment::release);
+            this.writtenGop.forEach(Segment::release);
+        }
+
+        @Override
+        protected void close() {
+            this.closed = true;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package eu.ill.rtsptofmp4.business.streaming;
+
+import eu.ill.rtsptofmp4.FMP4TestData;
+import eu.ill.rtsptofmp4.business.mp4frag.BufferPool;
+import eu.ill.rtsptofmp4.models.StreamInfo;
+import eu.ill.rtsptofmp4.models.StreamInit;
+import eu.ill.rtsptofmp4.models.exceptions.StreamingException;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.quarkus.test.junit.QuarkusTest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// Connects through StreamRelay with a script in place of ffmpeg that writes the init segment after a delay
+@QuarkusTest
+public class StreamRelayConnectTest {
+
+    private static final int STREAMS = 50;
+    private static final int CLIENTS = 1000;
+
+    private Path directory;
+    private BufferPool bufferPool;
+    private StreamPublisher streamPublisher;
+    private MeterRegistry meterRegistry;
+    private final List<StreamRelay> relays = new ArrayList<>();
+
+    @BeforeEach
+    public void createFakeFfmpeg() throws Exception {
+        Assumptions.assumeTrue(new File("/bin/sh").canExecute(), "Requires a POSIX shell");
+
+        this.directory = Files.createTempDirectory("rtsp-to-fmp4");
+        this.bufferPool = new BufferPool(1024 * 1024, false);
+        this.streamPublisher = new StreamPublisher();
+        this.meterRegistry = new SimpleMeterRegistry();
+    }
+
+    @AfterEach
+    public void stopRelays() throws Exception {
+        this.relays.forEach(StreamRelay::stop);
+        this.relays.clear();
+
+        if (this.directory != null) {
+            for (File file : this.directory.toFile().listFiles()) {
+                file.delete();
+            }
+            Files.delete(this.directory);
+        }
+    }
+
+    @Test
+    public void testConcurrentConnectsToColdStreams() throws Exception {
+        Path ffmpeg = this.fakeFfmpeg(2000);
+        for (int i = 0; i < STREAMS; i++) {
+            this.relays.add(this.createRelay("stream-" + i, ffmpeg, 30000));
+        }
+
+        int threadsBefore = Thread.activeCount();
+
+        // Connects are made from a few threads, as they would be from the event loop: none of them may block on ffmpeg
+        ExecutorService eventLoop = Executors.newFixedThreadPool(4);
+        List<CompletableFuture<StreamInit>> connections = new ArrayList<>();
+        for (int i = 0; i < CLIENTS; i++) {
+            StreamRelay relay = this.relays.get(i % STREAMS);
+            String clientId = "client-" + i;
+            connections.add(CompletableFuture.supplyAsync(() -> relay.addClientAsync(clientId), eventLoop).thenCompose(connection -> connection));
+        }
+
+        eventLoop.shutdown();
+        Assertions.assertTrue(eventLoop.awaitTermination(5, TimeUnit.SECONDS));
+        Assertions.assertTrue(connections.stream().noneMatch(CompletableFuture::isDone), "Connects waited for ffmpeg");
+
+        // One reader thread per stream, whatever the number of waiting clients
+        Assertions.assertTrue(Thread.activeCount() - threadsBefore <= STREAMS + 8, "Too many threads: " + Thread.activeCount());
+
+        CompletableFuture.allOf(connections.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+        for (int i = 0; i < CLIENTS; i++) {
+            StreamInit streamInit = connections.get(i).get();
+            Assertions.assertEquals("client-" + i, streamInit.getClientId());
+            Assertions.assertEquals(FMP4TestData.AVC_MIME, streamInit.getMime());
+            Assertions.assertArrayEquals(FMP4TestData.initSegment(), streamInit.getInitSegment());
+        }
+    }
+
+    @Test
+    public void testConnectTimeout() throws Exception {
+        StreamRelay relay = this.createRelay("slow", this.fakeFfmpeg(5000), 200);
+        this.relays.add(relay);
+
+        CompletableFuture<StreamInit> connection = relay.addClientAsync("client");
+        CompletionException exception = Assertions.assertThrows(CompletionException.class, connection::join);
+        Assertions.assertTrue(exception.getCause() instanceof StreamingException);
+        Assertions.assertEquals("Failed to get stream init data: MP4Frag timeout while waiting to receive mime", exception.getCause().getMessage());
+    }
+
+    @Test
+    public void testStopFailsWaitingClients() throws Exception {
+        StreamRelay relay = this.createRelay("stopped", this.fakeFfmpeg(5000), 30000);
+
+        CompletableFuture<StreamInit> connection = relay.addClientAsync("client");
+        relay.stop();
+
+        CompletionException exception = Assertions.assertThrows(CompletionException.class, connection::join);
+        Assertions.assertEquals("Failed to get stream init data: MP4Frag stopped while waiting to receive mime", exception.getCause().getMessage());
+    }
+
+    @Test
+    public void testRejoinWhileLingering() throws Exception {
+        StreamRelay relay = this.createRelay("lingering", this.fakeFfmpeg(200), 30000);
+        this.relays.add(relay);
+
+        relay.addClientAsync("first").get(10, TimeUnit.SECONDS);
+        Assertions.assertTrue(relay.removeClient("first"));
+        Assertions.assertFalse(relay.stopIfIdle(60000));
+
+        // ffmpeg is still running: the init data is available without waiting
+        CompletableFuture<StreamInit> connection = relay.addClientAsync("second");
+        Assertions.assertTrue(connection.isDone());
+        Assertions.assertEquals("second", connection.get().getClientId());
+
+        // A client is attached again so the relay is not idle, whatever the linger time
+        Assertions.assertFalse(relay.stopIfIdle(0));
+        Assertions.assertTrue(relay.removeClient("second"));
+        Assertions.assertTrue(relay.stopIfIdle(0));
+        Assertions.assertTrue(relay.isStopped());
+        Assertions.assertFalse(relay.attachClient("third"));
+    }
+
+    @Test
+    public void testFfmpegRestart() throws Exception {
+        // ffmpeg writes the init segment and exits straight away: the worker keeps restarting it
+        Path ffmpeg = this.directory.resolve("ffmpeg-exit.sh");
+        Path segment = this.directory.resolve("init-exit.mp4");
+        Files.write(segment, FMP4TestData.initSegment());
+        Files.writeString(ffmpeg, String.format(Locale.ROOT, "#!/bin/sh\ncat '%s'\nexit 1\n", segment));
+        ffmpeg.toFile().setExecutable(true);
+
+        StreamInfo streamInfo = new StreamInfo("restarted", "restarted", "rtsp://localhost/restarted");
+        RTSPWorker worker = new RTSPWorker(streamInfo, ffmpeg.toString(), 30000, this.bufferPool, new WorkerThreads(false), new RestartPolicy(10, 50, -1));
+        List<String> errors = new ArrayList<>();
+        StreamRelay relay = new StreamRelay(streamInfo, worker, this.streamPublisher, new GopCache(1024 * 1024, new GopCache.Budget(1024 * 1024)), new StreamMetrics(null, streamInfo.getId()), (info, error) -> errors.add(error));
+        this.relays.add(relay);
+
+        Assertions.assertEquals(FMP4TestData.AVC_MIME, relay.addClientAsync("client").get(10, TimeUnit.SECONDS).getMime());
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (worker.getStats().getRestarts() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        Assertions.assertTrue(worker.getStats().getRestarts() >= 3);
+        Assertions.assertEquals(1, worker.getStats().getLastExitCode());
+        Assertions.assertTrue(errors.isEmpty());
+        Assertions.assertTrue(relay.hasClient("client"));
+    }
+
+    @Test
+    public void testFfmpegExitWithoutRestart() throws Exception {
+        Path ffmpeg = this.directory.resolve("ffmpeg-fail.sh");
+        Files.writeString(ffmpeg, "#!/bin/sh\nexit 1\n");
+        ffmpeg.toFile().setExecutable(true);
+
+        StreamInfo streamInfo = new StreamInfo("failed", "failed", "rtsp://localhost/failed");
+        RTSPWorker worker = new RTSPWorker(streamInfo, ffmpeg.toString(), 30000, this.bufferPool, new WorkerThreads(false), new RestartPolicy(10, 50, 2));
+        CompletableFuture<String> error = new CompletableFuture<>();
+        StreamRelay relay = new StreamRelay(streamInfo, worker, this.streamPublisher, new GopCache(1024 * 1024, new GopCache.Budget(1024 * 1024)), new StreamMetrics(null, streamInfo.getId()), (info, message) -> error.complete(message));
+        this.relays.add(relay);
+
+        relay.addClientAsync("client");
+        Assertions.assertEquals("ffmpeg exited with code 1 for stream 'failed'", error.get(10, TimeUnit.SECONDS));
+        Assertions.assertEquals(2, worker.getStats().getRestarts());
+        Assertions.assertFalse(worker.getStats().isRunning());
+    }
+
+    @Test
+    public void testStreamMetrics() throws Exception {
+        StreamRelay relay = this.createRelay("measured", this.fakeFfmpeg(200), 30000);
+
+        relay.addClientAsync("first").get(10, TimeUnit.SECONDS);
+        relay.addClientAsync("second").get(10, TimeUnit.SECONDS);
+
+        // The clients are completed by the reader thread before it records the chunk that contained the init segment
+        Timer timeToInitialisation = this.meterRegistry.get("rtsptofmp4.ffmpeg.initialisation.time").tag("stream", "measured").timer();
+        FunctionCounter bytesRead = this.meterRegistry.get("rtsptofmp4.mp4frag.bytes.read").tag("stream", "measured").functionCounter();
+        long deadline = System.currentTimeMillis() + 10000;
+        while ((timeToInitialisation.count() == 0 || bytesRead.count() < FMP4TestData.initSegment().length) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        Assertions.assertEquals(2.0, this.meterRegistry.get("rtsptofmp4.relay.clients").tag("stream", "measured").gauge().value());
+        Assertions.assertEquals(FMP4TestData.initSegment().length, bytesRead.count());
+        Assertions.assertEquals(0.0, this.meterRegistry.get("rtsptofmp4.ffmpeg.restarts").tag("stream", "measured").functionCounter().count());
+        Assertions.assertEquals(1, timeToInitialisation.count());
+        Assertions.assertTrue(timeToInitialisation.totalTime(TimeUnit.MILLISECONDS) >= 200);
+
+        // The meters of a stopped stream are removed
+        relay.stop();
+        Assertions.assertTrue(this.meterRegistry.find("rtsptofmp4.relay.clients").tag("stream", "measured").meters().isEmpty());
+        Assertions.assertTrue(this.meterRegistry.find("rtsptofmp4.segment.size").tag("stream", "measured").meters().isEmpty());
+    }
+
+    private StreamRelay createRelay(String id, Path ffmpeg, int timeoutMs) {
+        StreamInfo streamInfo = new StreamInfo(id, id, "rtsp://localhost/" + id);
+        RTSPWorker worker = new RTSPWorker(streamInfo, ffmpeg.toString(), timeoutMs, this.bufferPool, new WorkerThreads(false), RestartPolicy.NEVER);
+        GopCache gopCache = new GopCache(1024 * 1024, new GopCache.Budget(1024 * 1024));
+
+        return new StreamRelay(streamInfo, worker, this.streamPublisher, gopCache, new StreamMetrics(this.meterRegistry, id), (info, error) -> {});
+    }
+
+    private Path fakeFfmpeg(int delayMs) throws Exception {
+        Path segment = this.directory.resolve("init-" + delayMs + ".mp4");
+        Files.write(segment, FMP4TestData.initSegment());
+
+        Path script = this.directory.resolve("ffmpeg-" + delayMs + ".sh");
+        Files.writeString(script, String.format(Locale.ROOT, "#!/bin/sh\nsleep %.3f\ncat '%s'\nexec sleep 60\n", delayMs / 1000.0, segment));
+        script.toFile().setExecutable(true);
+
+        return script;
+    }
+}
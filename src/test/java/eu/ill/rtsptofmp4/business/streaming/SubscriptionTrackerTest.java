@@ -0,0 +1,51 @@
+package eu.ill.rtsptofmp4.business.streaming;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+public class SubscriptionTrackerTest {
+
+    @Test
+    public void testSubscribeAndUnsubscribe() {
+        SubscriptionTracker tracker = new SubscriptionTracker();
+        Assertions.assertFalse(tracker.hasSubscribers("camera-1"));
+
+        tracker.onSubscriptionMessage(message(1, "camera-1"));
+        Assertions.assertTrue(tracker.hasSubscribers("camera-1"));
+        Assertions.assertFalse(tracker.hasSubscribers("camera-2"));
+
+        tracker.onSubscriptionMessage(message(0, "camera-1"));
+        Assertions.assertFalse(tracker.hasSubscribers("camera-1"));
+    }
+
+    @Test
+    public void testPrefixSubscriptions() {
+        SubscriptionTracker tracker = new SubscriptionTracker();
+        tracker.onSubscriptionMessage(message(1, "camera-"));
+        Assertions.assertTrue(tracker.hasSubscribers("camera-1"));
+        Assertions.assertFalse(tracker.hasSubscribers("microscope-1"));
+
+        // An empty topic subscribes to every stream
+        tracker.onSubscriptionMessage(message(1, ""));
+        Assertions.assertTrue(tracker.hasSubscribers("microscope-1"));
+    }
+
+    @Test
+    public void testOtherMessagesAreIgnored() {
+        SubscriptionTracker tracker = new SubscriptionTracker();
+        tracker.onSubscriptionMessage(new byte[0]);
+        tracker.onSubscriptionMessage(message(2, "camera-1"));
+
+        Assertions.assertFalse(tracker.hasSubscribers("camera-1"));
+    }
+
+    private static byte[] message(int type, String topic) {
+        byte[] bytes = topic.getBytes(StandardCharsets.UTF_8);
+        byte[] message = new byte[bytes.length + 1];
+        message[0] = (byte) type;
+        System.arraycopy(bytes, 0, message, 1, bytes.length);
+        return message;
+    }
+}